@@ -41,7 +41,7 @@ import java.util.Date;
  */
 public class As2Message {
 
-    // Holds the payload
+    // Holds the payload, null if created from the headers only, see As2MessageFactory#createAs2MessageFromHeaders
     private final MimeMessage mimeMessage;
 
     private final String as2Version;
@@ -130,6 +130,16 @@ public class As2Message {
         public As2Message build() {
 
             required(mimeMessage, "mimeMessage");
+
+            return buildWithoutMimeMessage();
+        }
+
+        /**
+         * Builds a message from the headers only, for messages of which the payload is read separately rather than
+         * parsed into a MimeMessage.
+         */
+        As2Message buildWithoutMimeMessage() {
+
             required(as2Version, "as2Version");
             required(as2From, "as2From");
             required(as2To, "as2To");
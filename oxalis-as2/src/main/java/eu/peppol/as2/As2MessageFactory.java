@@ -74,6 +74,17 @@ public class As2MessageFactory {
     }
 
 
+    /**
+     * Creates an As2Message from the HTTP headers only, holding no MimeMessage, as the payload is read and verified
+     * separately by the {@link SignedMimeMessageReader}.
+     *
+     * @param internetHeaders the HTTP headers of the AS2 message
+     * @return the AS2 message described by the headers
+     */
+    public static As2Message createAs2MessageFromHeaders(InternetHeaders internetHeaders) throws InvalidAs2HeaderValueException, MdnRequestException {
+        return createAs2MessageBuilder(internetHeaders).buildWithoutMimeMessage();
+    }
+
     static As2Message.Builder createAs2MessageBuilder(InternetHeaders internetHeaders) throws InvalidAs2HeaderValueException, MdnRequestException {
         As2Message.Builder builder = new As2Message.Builder();
 
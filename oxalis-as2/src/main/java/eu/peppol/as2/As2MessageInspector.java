@@ -22,6 +22,7 @@ package eu.peppol.as2;
 import eu.peppol.security.CommonName;
 
 import javax.security.auth.x500.X500Principal;
+import java.security.cert.X509Certificate;
 
 /**
  * @author steinar
@@ -37,19 +38,35 @@ public class As2MessageInspector {
 
         SignedMimeMessageInspector SignedMimeMessageInspector = new SignedMimeMessageInspector(as2Message.getMimeMessage());
 
-        compareAs2FromHeaderWithCertificateCommonName(as2Message, SignedMimeMessageInspector);
-
-        // TODO: compare the value of the AS2-To: header with the CN attribute of our own certificate for equality
+        validate(as2Message, SignedMimeMessageInspector.getSignersX509Certificate());
 
         return SignedMimeMessageInspector;
     }
 
+    /**
+     * Validates the headers of a message, which has been verified already, against the certificate of the signer.
+     */
+    public static void validate(As2Message as2Message, X509Certificate signersX509Certificate) throws InvalidAs2MessageException {
+
+        compareAs2FromHeaderWithCertificateCommonName(as2Message, signersX509Certificate);
+    }
+
+    /**
+     * Compares the value of the "AS2-To" header with our AS2 system identifier, i.e. the value of the CN attribute of
+     * our own certificate. Invoked before the body is read, as the headers are all that is required.
+     */
+    public static void validateAs2To(As2Message as2Message, PeppolAs2SystemIdentifier ourAs2SystemIdentifier) throws InvalidAs2MessageException {
+        if (!ourAs2SystemIdentifier.equals(as2Message.getAs2To())) {
+            throw new InvalidAs2MessageException("The AS2-To header '" + as2Message.getAs2To() + "' does not compare to our AS2 system identifier '" + ourAs2SystemIdentifier + "'");
+        }
+    }
+
 
     /** Compares the value of the "AS2-From" header with the value of the CN= attribute of the inbound certificate. */
-    private static void compareAs2FromHeaderWithCertificateCommonName(As2Message as2Message, SignedMimeMessageInspector SignedMimeMessageInspector) throws InvalidAs2MessageException {
+    private static void compareAs2FromHeaderWithCertificateCommonName(As2Message as2Message, X509Certificate signersX509Certificate) throws InvalidAs2MessageException {
 
         // Retrieves the CN=AP_......, O=X......, C=.... from the certificate
-        X500Principal x500Principal = SignedMimeMessageInspector.getSignersX509Certificate().getSubjectX500Principal();
+        X500Principal x500Principal = signersX509Certificate.getSubjectX500Principal();
         CommonName sendersCommonName = CommonName.valueOf(x500Principal);
 
         // Verifies that the value of AS2-From header equals the value of the CN attribute from the signers certificate
@@ -33,8 +33,10 @@ import org.slf4j.LoggerFactory;
 
 import javax.mail.internet.InternetHeaders;
 import javax.security.auth.x500.X500Principal;
+import java.io.File;
 import java.io.InputStream;
 import java.security.Security;
+import java.security.cert.X509Certificate;
 
 /**
  * Main entry point for receiving AS2 messages.
@@ -47,11 +49,72 @@ public class InboundMessageReceiver {
 
     public static final Logger log = LoggerFactory.getLogger(InboundMessageReceiver.class);
     private final SbdhParser sbdhParser;
+    private final int spoolThreshold;
+    private final File spoolDirectory;
+    private final PeppolAs2SystemIdentifier ourAs2SystemIdentifier;
 
     public InboundMessageReceiver() {
+        this(SignedMimeMessageReader.DEFAULT_SPOOL_THRESHOLD, null);
+    }
+
+    /**
+     * @param spoolThreshold payloads larger than this number of bytes are held in a temporary file until persisted
+     * @param spoolDirectory where the temporary files are created, the default temporary directory if null
+     */
+    public InboundMessageReceiver(int spoolThreshold, File spoolDirectory) {
+        this(spoolThreshold, spoolDirectory, null);
+    }
+
+    /**
+     * @param spoolThreshold         payloads larger than this number of bytes are held in a temporary file until persisted
+     * @param spoolDirectory         where the temporary files are created, the default temporary directory if null
+     * @param ourAs2SystemIdentifier messages having any other AS2-To header are rejected, not verified if null
+     */
+    public InboundMessageReceiver(int spoolThreshold, File spoolDirectory, PeppolAs2SystemIdentifier ourAs2SystemIdentifier) {
         // Gives us access to BouncyCastle
         Security.addProvider(new BouncyCastleProvider());
         sbdhParser = new SbdhParser();
+        this.spoolThreshold = spoolThreshold;
+        this.spoolDirectory = spoolDirectory;
+        this.ourAs2SystemIdentifier = ourAs2SystemIdentifier;
+    }
+
+    /**
+     * Validates the AS2 headers of a request before the body is read, hence requests which would be rejected anyhow,
+     * like messages addressed to another access point or requesting an unsupported MIC algorithm, are rejected
+     * without spending bandwidth and CPU on the body.
+     *
+     * @return the AS2 message described by the headers, holding no payload
+     * @throws ErrorWithMdnException holding the MDN to be returned if the headers are not acceptable
+     */
+    public As2Message inspectHeaders(InternetHeaders internetHeaders) throws ErrorWithMdnException {
+        try {
+            // Inspects the eu.peppol.as2.As2Header.DISPOSITION_NOTIFICATION_OPTIONS
+            inspectDispositionNotificationOptions(internetHeaders);
+
+            // Validates the AS2 headers, the payload is read while being verified
+            As2Message as2Message = As2MessageFactory.createAs2MessageFromHeaders(internetHeaders);
+
+            if (ourAs2SystemIdentifier != null) {
+                As2MessageInspector.validateAs2To(as2Message, ourAs2SystemIdentifier);
+            }
+            return as2Message;
+
+        } catch (InvalidAs2MessageException e) {
+            log.error("Invalid AS2 headers " + e.getMessage());
+            MdnData mdnData = MdnData.Builder.buildProcessingErrorFromHeaders(internetHeaders, e.getMessage());
+            throw new ErrorWithMdnException(mdnData);
+
+        } catch (MdnRequestException e) {
+            log.error("Invalid MDN request: " + e.getMessage());
+            MdnData mdnData = MdnData.Builder.buildFailureFromHeaders(internetHeaders, e.getMessage());
+            throw new ErrorWithMdnException(mdnData);
+
+        } catch (RuntimeException e) {
+            log.error("Invalid AS2 headers " + e.getMessage(), e);
+            MdnData mdnData = MdnData.Builder.buildProcessingErrorFromHeaders(internetHeaders, e.getMessage());
+            throw new ErrorWithMdnException(mdnData, e);
+        }
     }
 
     /**
@@ -69,6 +132,19 @@ public class InboundMessageReceiver {
      * @throws ErrorWithMdnException if validation fails due to syntactic, semantic or other reasons.
      */
     public MdnData receive(InternetHeaders internetHeaders, InputStream inputStream, MessageRepository messageRepository) throws ErrorWithMdnException {
+        if (internetHeaders == null) {
+            throw new IllegalArgumentException("internetHeaders required constructor argument");
+        }
+        return receive(internetHeaders, inspectHeaders(internetHeaders), inputStream, messageRepository);
+    }
+
+    /**
+     * Receives an AS2 Message, the headers of which have been validated by {@link #inspectHeaders(InternetHeaders)}.
+     *
+     * @param as2Message the AS2 message returned by {@link #inspectHeaders(InternetHeaders)}
+     * @throws ErrorWithMdnException if validation fails due to syntactic, semantic or other reasons.
+     */
+    public MdnData receive(InternetHeaders internetHeaders, As2Message as2Message, InputStream inputStream, MessageRepository messageRepository) throws ErrorWithMdnException {
 
         if (messageRepository == null) {
             throw new IllegalArgumentException("messageRepository is a required argument in constructor");
@@ -79,38 +155,34 @@ public class InboundMessageReceiver {
         if (inputStream == null) {
             throw new IllegalArgumentException("inputStream required constructor argument");
         }
+        SignedMimeMessageReader signedMimeMessageReader = null;
         try {
             log.info("Receiving message ..");
-            // Inspects the eu.peppol.as2.As2Header.DISPOSITION_NOTIFICATION_OPTIONS
-            inspectDispositionNotificationOptions(internetHeaders);
 
-            log.info("Message contains valid Disposition-notification-options, now creating internal AS2 message...");
-            // Transforms the input data into a proper As2Message
-            As2Message as2Message = As2MessageFactory.createAs2MessageFrom(internetHeaders, inputStream);
+            // Reads the message once, verifying the signature, calculating the MIC for the payload and
+            // buffering the payload, the start of which is kept for the extraction of the SBDH
+            String micAlgorithmName = as2Message.getDispositionNotificationOptions().getSignedReceiptMicalg().getTextValue();
+            signedMimeMessageReader = new SignedMimeMessageReader(inputStream, micAlgorithmName, spoolThreshold, spoolDirectory);
 
             log.info("Validating AS2 Message: " + as2Message);
 
             // Validates the message headers according to the PEPPOL rules
             // Performs semantic validation
-            SignedMimeMessageInspector SignedMimeMessageInspector = As2MessageInspector.validate(as2Message);
-
-            // Persists the payload
-            InputStream payloadInputStream = SignedMimeMessageInspector.getPayload();
+            As2MessageInspector.validate(as2Message, signedMimeMessageReader.getSignersX509Certificate());
 
-            PeppolMessageMetaData peppolMessageMetaData = collectTransmissionData(as2Message, SignedMimeMessageInspector);
+            PeppolStandardBusinessHeader peppolStandardBusinessHeader = parseSbdh(signedMimeMessageReader);
+            PeppolMessageMetaData peppolMessageMetaData = collectTransmissionData(as2Message, peppolStandardBusinessHeader, signedMimeMessageReader.getSignersX509Certificate());
 
+            // Persists the payload, which has been verified
             log.info("Persisting AS2 Message ....");
-            messageRepository.saveInboundMessage(peppolMessageMetaData, payloadInputStream);
+            InputStream payloadInputStream = signedMimeMessageReader.getPayload();
+            try {
+                messageRepository.saveInboundMessage(peppolMessageMetaData, payloadInputStream);
+            } finally {
+                payloadInputStream.close();
+            }
 
-//                smimeMessageInspector.getMimeMessage().writeTo(System.out);
-
-
-            log.info("Persisting statistics");
-
-            // Calculates the MIC for the payload
-            As2DispositionNotificationOptions.Parameter signedReceiptMicalg = as2Message.getDispositionNotificationOptions().getSignedReceiptMicalg();
-            String micAlgorithmName = signedReceiptMicalg.getTextValue();
-            Mic mic = SignedMimeMessageInspector.calculateMic(micAlgorithmName);
+            Mic mic = signedMimeMessageReader.getMic();
 
             // Creates the MDN to be returned
             MdnData mdnData = MdnData.Builder.buildProcessedOK(internetHeaders, mic);
@@ -122,28 +194,42 @@ public class InboundMessageReceiver {
             MdnData mdnData = MdnData.Builder.buildProcessingErrorFromHeaders(internetHeaders, e.getMessage());
             throw new ErrorWithMdnException(mdnData);
 
-        } catch (MdnRequestException e) {
-            log.error("Invalid MDN request: " + e.getMessage());
-            MdnData mdnData = MdnData.Builder.buildFailureFromHeaders(internetHeaders, e.getMessage());
-            throw new ErrorWithMdnException(mdnData);
-
         } catch (Exception e) {
             log.error("Unexpected error: " + e.getMessage(), e);
             MdnData mdnData = MdnData.Builder.buildProcessingErrorFromHeaders(internetHeaders, e.getMessage());
             throw new ErrorWithMdnException(mdnData, e);
+        } finally {
+            // The MDN requires nothing but the MIC, hence the spooled payload is discarded before the MDN is sent
+            if (signedMimeMessageReader != null) {
+                signedMimeMessageReader.close();
+            }
         }
 
     }
 
-    PeppolMessageMetaData collectTransmissionData(As2Message as2Message, SignedMimeMessageInspector SignedMimeMessageInspector) {
+    /**
+     * Parses the SBDH from the start of the payload, resorting to the entire payload only if the header does not fit
+     * within the start.
+     */
+    PeppolStandardBusinessHeader parseSbdh(SignedMimeMessageReader signedMimeMessageReader) {
 
-        DocumentSniffer documentSniffer = new DocumentSniffer(SignedMimeMessageInspector.getPayload());
+        DocumentSniffer documentSniffer = new DocumentSniffer(signedMimeMessageReader.getPayloadHead());
         if (!documentSniffer.isSbdhDetected()) {
             throw new IllegalStateException("Payload does not contain Standard Business Document Header");
         }
 
         // Parses the SBDH and obtains metadata
-        PeppolStandardBusinessHeader peppolStandardBusinessHeader = sbdhParser.parse(SignedMimeMessageInspector.getPayload());
+        try {
+            return sbdhParser.parse(signedMimeMessageReader.getPayloadHead());
+        } catch (IllegalStateException e) {
+            if (signedMimeMessageReader.isPayloadHeadComplete()) {
+                throw e;
+            }
+            return sbdhParser.parse(signedMimeMessageReader.getPayload());
+        }
+    }
+
+    PeppolMessageMetaData collectTransmissionData(As2Message as2Message, PeppolStandardBusinessHeader peppolStandardBusinessHeader, X509Certificate signersX509Certificate) {
 
         PeppolMessageMetaData peppolMessageMetaData = new PeppolMessageMetaData();
 
@@ -160,7 +246,7 @@ public class InboundMessageReceiver {
         peppolMessageMetaData.setReceivingAccessPoint(new AccessPointIdentifier(as2Message.getAs2To().toString()));
 
         // Retrieves the Common Name of the X500Principal, which is used to construct the AccessPointIdentifier for the senders access point
-        X500Principal subjectX500Principal = SignedMimeMessageInspector.getSignersX509Certificate().getSubjectX500Principal();
+        X500Principal subjectX500Principal = signersX509Certificate.getSubjectX500Principal();
         peppolMessageMetaData.setSendingAccessPointPrincipal(subjectX500Principal);
 
 
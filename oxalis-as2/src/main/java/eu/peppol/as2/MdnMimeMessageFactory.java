@@ -102,13 +102,15 @@ import java.util.Map;
  */
 public class MdnMimeMessageFactory {
 
-    private final X509Certificate ourCertificate;
-    private final PrivateKey ourPrivateKey;
+    /** Created once, as building the signer for every MDN is expensive */
+    private final SMimeMessageFactory sMimeMessageFactory;
 
     public MdnMimeMessageFactory(X509Certificate ourCertificate, PrivateKey ourPrivateKey) {
+        this(new SMimeSigner(ourPrivateKey, ourCertificate));
+    }
 
-        this.ourCertificate = ourCertificate;
-        this.ourPrivateKey = ourPrivateKey;
+    public MdnMimeMessageFactory(SMimeSigner sMimeSigner) {
+        this.sMimeMessageFactory = new SMimeMessageFactory(sMimeSigner);
     }
 
 
@@ -119,9 +121,7 @@ public class MdnMimeMessageFactory {
 
         MimeBodyPart mimeBodyPart = wrapHumandAndMachineReadableParts(humanReadablePart, machineReadablePart);
 
-        SMimeMessageFactory SMimeMessageFactory = new SMimeMessageFactory(ourPrivateKey, ourCertificate);
-
-        MimeMessage signedMimeMessage = SMimeMessageFactory.createSignedMimeMessage(mimeBodyPart);
+        MimeMessage signedMimeMessage = sMimeMessageFactory.createSignedMimeMessage(mimeBodyPart);
 
         return signedMimeMessage;
     }
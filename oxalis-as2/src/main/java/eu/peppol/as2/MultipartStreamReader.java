@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2011,2012,2013,2014 UNIT4 Agresso AS.
+ *
+ * This file is part of Oxalis.
+ *
+ * Oxalis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Oxalis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Oxalis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.peppol.as2;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits the body of a MIME multipart into its parts while it is being read, holding no more than a buffer of the
+ * underlying stream in memory, as opposed to {@link javax.mail.internet.MimeMultipart}, which requires the entire
+ * body to be available.
+ *
+ * <p>Every part is supplied as a stream of the bytes between two delimiters, i.e. the headers of the part followed
+ * by its content, which need not be read before the next part is requested. The preamble and the epilogue are
+ * skipped, some of the latter might have been read from the underlying stream when the closing delimiter is found.</p>
+ *
+ * <p>The delimiters are located by a Boyer-Moore-Horspool search directly within the buffer the underlying stream
+ * is read into, which mostly inspects a single byte out of every delimiter length. The content of a part may be
+ * consumed as slices of that buffer by {@link PartInputStream#transferTo(SliceHandler)}, in which case the bytes
+ * are not copied at all.</p>
+ */
+class MultipartStreamReader {
+
+    /** Size of the buffers of the streams around the reader */
+    static final int BUFFER_SIZE = 8192;
+
+    /** Size of the buffer scanned for the delimiters, large enough for reads to bypass any buffer of the underlying stream */
+    static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream inputStream;
+
+    /** The delimiter preceding every part, i.e. CRLF followed by two hyphens and the boundary */
+    private final byte[] delimiter;
+
+    /** Distance to shift the delimiter by, indexed by the byte found opposite the last byte of the delimiter */
+    private final int[] shift = new int[256];
+
+    private final byte[] buffer;
+    private int position = 0;
+    private int limit = 0;
+
+    /** Index of the delimiter ending the current part within the buffer, or -1 if not yet found */
+    private int delimiterIndex = -1;
+
+    private PartInputStream currentPart;
+    private boolean finished = false;
+
+    MultipartStreamReader(InputStream inputStream, String boundary) {
+        this.inputStream = inputStream;
+        this.delimiter = toAscii("\r\n--" + boundary);
+        this.buffer = new byte[Math.max(SCAN_BUFFER_SIZE, 2 * delimiter.length)];
+
+        Arrays.fill(shift, delimiter.length);
+        for (int i = 0; i < delimiter.length - 1; i++) {
+            shift[delimiter[i] & 0xff] = delimiter.length - 1 - i;
+        }
+
+        // The delimiter of the first part need not be preceded by a line break, which we pretend is there
+        buffer[limit++] = '\r';
+        buffer[limit++] = '\n';
+    }
+
+    /**
+     * Provides the next part of the multipart, skipping whatever remains unread of the current part.
+     *
+     * @return the headers and content of the next part, or null if the closing delimiter has been read
+     */
+    PartInputStream nextPart() throws IOException {
+        if (currentPart == null) {
+            // Skips the preamble
+            currentPart = new PartInputStream();
+        }
+        currentPart.transferTo(DISCARD);
+        if (finished) {
+            return null;
+        }
+
+        currentPart = new PartInputStream();
+        return currentPart;
+    }
+
+    /** Number of bytes holding data of the current part, starting at the current position, 0 if the part has ended */
+    private int available() throws IOException {
+        while (true) {
+            if (delimiterIndex < 0) {
+                delimiterIndex = indexOfDelimiter(position, limit);
+            }
+            if (delimiterIndex >= 0) {
+                return delimiterIndex - position;
+            }
+
+            // The end of the buffer might hold the start of the delimiter
+            int safe = limit - delimiter.length + 1;
+            if (safe > position) {
+                return safe - position;
+            }
+            if (!fill()) {
+                throw new EOFException("Unexpected end of multipart, the closing delimiter was not found");
+            }
+        }
+    }
+
+    /** Moves past the delimiter ending the current part and the remainder of its line */
+    private void consumeDelimiter() throws IOException {
+        position = delimiterIndex + delimiter.length;
+        delimiterIndex = -1;
+
+        if (require(2) && buffer[position] == '-' && buffer[position + 1] == '-') {
+            position += 2;
+            finished = true;
+            return;
+        }
+
+        // Skips any transport padding up to and including the line feed
+        while (true) {
+            if (!require(1)) {
+                throw new EOFException("Unexpected end of multipart, the delimiter line is not terminated");
+            }
+            if (buffer[position++] == '\n') {
+                return;
+            }
+        }
+    }
+
+    /** Ensures at least the given number of bytes are available in the buffer, returns false at end of stream */
+    private boolean require(int count) throws IOException {
+        while (limit - position < count) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Moves the unread bytes to the start of the buffer and reads more, returns false at end of stream */
+    private boolean fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        int count = inputStream.read(buffer, limit, buffer.length - limit);
+        if (count == -1) {
+            return false;
+        }
+        limit += count;
+        return true;
+    }
+
+    /** Index of the first delimiter within the given range of the buffer, or -1 if none */
+    int indexOfDelimiter(int from, int to) {
+        int last = delimiter.length - 1;
+        int i = from;
+        while (i <= to - delimiter.length) {
+            byte b = buffer[i + last];
+            if (b == delimiter[last]) {
+                int j = last - 1;
+                while (j >= 0 && buffer[i + j] == delimiter[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += shift[b & 0xff];
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a block of headers, i.e. everything up to and including the first empty line.
+     *
+     * @param maxSize the maximum number of bytes of the headers, guarding against unbounded lines
+     */
+    static InternetHeaders readHeaders(InputStream inputStream, int maxSize) throws IOException {
+        ByteArrayOutputStream headers = new ByteArrayOutputStream(512);
+        int lineLength = 0;
+        int b;
+        while ((b = inputStream.read()) != -1) {
+            if (headers.size() >= maxSize) {
+                throw new IllegalStateException("MIME headers exceed " + maxSize + " bytes");
+            }
+            headers.write(b);
+            if (b == '\n') {
+                if (lineLength == 0) {
+                    break;
+                }
+                lineLength = 0;
+            } else if (b != '\r') {
+                lineLength++;
+            }
+        }
+        try {
+            return new InternetHeaders(new ByteArrayInputStream(headers.toByteArray()));
+        } catch (MessagingException e) {
+            throw new IllegalStateException("Unable to parse MIME headers. " + e.getMessage(), e);
+        }
+    }
+
+    static void skipFully(InputStream inputStream) throws IOException {
+        byte[] bytes = new byte[BUFFER_SIZE];
+        while (inputStream.read(bytes) != -1) {
+            // Discards the data
+        }
+    }
+
+    private static byte[] toAscii(String s) {
+        try {
+            return s.getBytes("US-ASCII");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Receives the content of a part as slices of the buffer of the reader, which are valid only during the
+     * invocation.
+     */
+    interface SliceHandler {
+        void handle(byte[] bytes, int offset, int length) throws IOException;
+    }
+
+    private static final SliceHandler DISCARD = new SliceHandler() {
+        @Override
+        public void handle(byte[] bytes, int offset, int length) {
+        }
+    };
+
+    /** The data of a single part, ending at the next delimiter */
+    class PartInputStream extends InputStream {
+
+        private boolean ended = false;
+
+        /**
+         * Passes the remainder of the part to the handler without copying it.
+         *
+         * @return the number of bytes passed
+         */
+        long transferTo(SliceHandler sliceHandler) throws IOException {
+            long count = 0;
+            while (!ended) {
+                int available = available();
+                if (available == 0) {
+                    consumeDelimiter();
+                    ended = true;
+                } else {
+                    sliceHandler.handle(buffer, position, available);
+                    position += available;
+                    count += available;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (ended) {
+                return -1;
+            }
+            if (available() == 0) {
+                consumeDelimiter();
+                ended = true;
+                return -1;
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (ended) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int available = available();
+            if (available == 0) {
+                consumeDelimiter();
+                ended = true;
+                return -1;
+            }
+            int count = Math.min(len, available);
+            System.arraycopy(buffer, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            // The underlying stream is shared by all of the parts
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2011,2012,2013,2014 UNIT4 Agresso AS.
+ *
+ * This file is part of Oxalis.
+ *
+ * Oxalis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Oxalis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Oxalis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.peppol.as2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Buffers the payload of an inbound message, which may be read any number of times once written. The payload is
+ * held in memory until it grows beyond the threshold, after which it is moved to a temporary file, hence the heap
+ * required is bounded by the threshold regardless of the size of the message.
+ *
+ * <p>The temporary file is deleted by {@link #delete()}, which must be invoked once the payload is no longer
+ * needed, after any stream provided has been closed.</p>
+ */
+class PayloadSpool extends OutputStream {
+
+    public static final Logger log = LoggerFactory.getLogger(PayloadSpool.class);
+
+    private final int threshold;
+    private final File directory;
+
+    private MemoryBuffer memory = new MemoryBuffer();
+    private File file;
+    private OutputStream fileOutputStream;
+    private long size = 0;
+
+    /**
+     * @param threshold maximum number of bytes held in memory
+     * @param directory where the temporary file is created, the default temporary directory if null
+     */
+    PayloadSpool(int threshold, File directory) {
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (file == null && size + len > threshold) {
+            spill();
+        }
+        if (file == null) {
+            memory.write(b, off, len);
+        } else {
+            fileOutputStream.write(b, off, len);
+        }
+        size += len;
+    }
+
+    /** Moves the bytes written so far into a temporary file, to which the remainder will be written */
+    private void spill() throws IOException {
+        file = File.createTempFile("oxalis-as2-", ".spool", directory);
+        fileOutputStream = new BufferedOutputStream(new FileOutputStream(file), MultipartStreamReader.BUFFER_SIZE);
+        memory.writeTo(fileOutputStream);
+        memory = null;
+        log.debug("Spooling payload larger than " + threshold + " bytes to " + file);
+    }
+
+    /** Completes the writing, after which the payload may be read */
+    @Override
+    public void close() throws IOException {
+        if (fileOutputStream != null) {
+            fileOutputStream.close();
+            fileOutputStream = null;
+        }
+    }
+
+    /** Provides the payload written, which must have been closed */
+    InputStream openInputStream() throws IOException {
+        if (fileOutputStream != null) {
+            throw new IllegalStateException("Payload is still being written");
+        }
+        if (file == null) {
+            return memory.openInputStream();
+        }
+        return new BufferedInputStream(new FileInputStream(file), MultipartStreamReader.BUFFER_SIZE);
+    }
+
+    long size() {
+        return size;
+    }
+
+    /** The temporary file, or null if the payload is held in memory */
+    File getFile() {
+        return file;
+    }
+
+    /** Discards the payload, deleting the temporary file if any */
+    void delete() {
+        try {
+            close();
+        } catch (IOException e) {
+            log.warn("Unable to close " + file + ": " + e.getMessage());
+        }
+        if (file != null && file.exists() && !file.delete()) {
+            log.warn("Unable to delete " + file);
+        }
+        memory = null;
+    }
+
+    /** Provides the bytes written without copying them */
+    private static class MemoryBuffer extends ByteArrayOutputStream {
+
+        MemoryBuffer() {
+            super(MultipartStreamReader.BUFFER_SIZE);
+        }
+
+        InputStream openInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+}
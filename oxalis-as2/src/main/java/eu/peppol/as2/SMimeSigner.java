@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2011,2012,2013,2014 UNIT4 Agresso AS.
+ *
+ * This file is part of Oxalis.
+ *
+ * Oxalis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Oxalis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Oxalis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package eu.peppol.as2;
+
+import eu.peppol.security.KeystoreManager;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cms.DefaultSignedAttributeTableGenerator;
+import org.bouncycastle.cms.SignerInfoGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.mail.smime.SMIMEException;
+import org.bouncycastle.mail.smime.SMIMESignedGenerator;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.util.Store;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import java.security.PrivateKey;
+import java.security.Security;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+
+/**
+ * Thread safe S/MIME signing service, which should be created once and shared by all the threads signing
+ * outbound AS2 messages and MDNs.
+ *
+ * <p>Everything which does not change between messages, i.e. the BouncyCastle provider, our certificate and
+ * the certificate store enclosed with the signature, the signed attributes, the builders and the mail session,
+ * is prepared in the constructor. Per message only the objects holding state of the actual signature are created,
+ * i.e. the {@link ContentSigner}, the {@link SignerInfoGenerator} and the {@link SMIMESignedGenerator}.</p>
+ *
+ * <p>Note that BouncyCastle computes the signature when the multipart is written, not when it is generated.
+ * Hence the signature state can not be shared between messages, as two messages may very well be written
+ * simultaneously by two different threads.</p>
+ */
+public class SMimeSigner {
+
+    public static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+
+    private final PrivateKey privateKey;
+    private final X509Certificate ourCertificate;
+
+    private final X509CertificateHolder ourCertificateHolder;
+    private final Store certificateStore;
+    private final JcaContentSignerBuilder contentSignerBuilder;
+    private final JcaSignerInfoGeneratorBuilder signerInfoGeneratorBuilder;
+    private final Session session;
+
+    /** Creates a signer using the private key and certificate of this access point */
+    public SMimeSigner(KeystoreManager keystoreManager) {
+        this(keystoreManager.getOurPrivateKey(), keystoreManager.getOurCertificate());
+    }
+
+    public SMimeSigner(PrivateKey privateKey, X509Certificate ourCertificate) {
+        if (privateKey == null || ourCertificate == null) {
+            throw new IllegalArgumentException("Both the private key and our certificate are required for signing");
+        }
+        this.privateKey = privateKey;
+        this.ourCertificate = ourCertificate;
+
+        registerBouncyCastleProvider();
+
+        try {
+            ourCertificateHolder = new JcaX509CertificateHolder(ourCertificate);
+            // The certificate required to verify the signature is enclosed with every message
+            certificateStore = new JcaCertStore(Collections.singletonList(ourCertificate));
+        } catch (CertificateEncodingException e) {
+            throw new IllegalStateException("Unable to encode our certificate. " + e.getMessage(), e);
+        }
+
+        contentSignerBuilder = new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).setProvider(BouncyCastleProvider.PROVIDER_NAME);
+
+        try {
+            signerInfoGeneratorBuilder = new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().setProvider(BouncyCastleProvider.PROVIDER_NAME).build());
+        } catch (OperatorCreationException e) {
+            throw new IllegalStateException("Unable to create digest calculator provider. " + e.getMessage(), e);
+        }
+        // S/MIME capabilities are required, but we simply supply an empty vector
+        signerInfoGeneratorBuilder.setSignedAttributeGenerator(new DefaultSignedAttributeTableGenerator(new AttributeTable(new ASN1EncodableVector())));
+
+        session = Session.getDefaultInstance(System.getProperties(), null);
+    }
+
+    /**
+     * Signs the supplied MimeBodyPart, producing a multipart/signed holding the body part together with a
+     * detached signature.
+     */
+    public MimeMultipart sign(MimeBodyPart mimeBodyPart) {
+        SMIMESignedGenerator smimeSignedGenerator = new SMIMESignedGenerator();
+        smimeSignedGenerator.addSignerInfoGenerator(createSignerInfoGenerator());
+        smimeSignedGenerator.addCertificates(certificateStore);
+
+        try {
+            return smimeSignedGenerator.generate(mimeBodyPart);
+        } catch (SMIMEException e) {
+            throw new IllegalStateException("Unable to generate signed mime multipart." + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Signs the supplied MimeBodyPart and wraps the resulting multipart/signed in a MimeMessage.
+     */
+    public MimeMessage createSignedMimeMessage(MimeBodyPart mimeBodyPart) {
+        MimeMultipart mimeMultipart = sign(mimeBodyPart);
+
+        MimeMessage mimeMessage = new MimeMessage(session);
+        try {
+            mimeMessage.setContent(mimeMultipart, mimeMultipart.getContentType());
+        } catch (MessagingException e) {
+            throw new IllegalStateException("Unable to  set Content type of MimeMessage. " + e.getMessage(), e);
+        }
+        try {
+            mimeMessage.saveChanges();
+        } catch (MessagingException e) {
+            throw new IllegalStateException("Unable to save changes to Mime message. " + e.getMessage(), e);
+        }
+        return mimeMessage;
+    }
+
+    public X509Certificate getOurCertificate() {
+        return ourCertificate;
+    }
+
+    /** Our certificate, to be enclosed with every signature */
+    Store getCertificateStore() {
+        return certificateStore;
+    }
+
+    /** The signer information holds the state of a single signature and must never be shared between messages */
+    SignerInfoGenerator createSignerInfoGenerator() {
+        try {
+            ContentSigner contentSigner = contentSignerBuilder.build(privateKey);
+            return signerInfoGeneratorBuilder.build(contentSigner, ourCertificateHolder);
+        } catch (OperatorCreationException e) {
+            throw new IllegalStateException("Unable to add Signer information. " + e.getMessage(), e);
+        }
+    }
+
+    /** Adds the BouncyCastle provider, unless it has been added already */
+    static synchronized void registerBouncyCastleProvider() {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2011,2012,2013,2014 UNIT4 Agresso AS.
+ *
+ * This file is part of Oxalis.
+ *
+ * Oxalis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Oxalis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Oxalis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.peppol.as2;
+
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.util.Store;
+import org.bouncycastle.util.encoders.Base64;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParseException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Security;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads a signed S/MIME message in a single pass, being the receiving counterpart of {@link SignedMimeMessageWriter}.
+ *
+ * <p>{@link SignedMimeMessageInspector} requires the message to be parsed into a {@link javax.mail.internet.MimeMessage},
+ * after which the payload is read once to verify the signature, once more for every consumer of the payload and
+ * the entire message is written out again in order to calculate the MIC. This reader splits the multipart/signed
+ * while the message is being received, copying every byte through the digest of the MIC and the signed content
+ * through the digest of the signature, while the decoded payload is buffered and the start of it is captured for
+ * the extraction of the SBDH. Content which is not transfer encoded, like the binary content written by
+ * {@link SignedMimeMessageWriter}, is handed to the digest and the buffer as slices of the buffer of the
+ * {@link MultipartStreamReader}, without being copied. The detached signature is verified against the digest thus
+ * computed, hence the payload need not be read again.</p>
+ *
+ * <p>The message is read and verified by the constructor, which throws {@link IllegalStateException} if the message
+ * is not a valid multipart/signed or the signature does not verify. Payloads larger than the spool threshold are
+ * held in a temporary file, which is deleted by {@link #close()}.</p>
+ */
+public class SignedMimeMessageReader implements Closeable {
+
+    /** Number of bytes at the start of the payload captured for the extraction of the SBDH */
+    static final int PAYLOAD_HEAD_SIZE = 64 * 1024;
+
+    /** Upper bound of the size of a block of MIME headers */
+    static final int MAX_HEADER_SIZE = 64 * 1024;
+
+    /** Number of bytes of the payload held in memory, unless specified */
+    static final int DEFAULT_SPOOL_THRESHOLD = 1024 * 1024;
+
+    /** Upper bound of the size of the encoded signature */
+    static final int MAX_SIGNATURE_SIZE = 1024 * 1024;
+
+    /** The object identifiers of the digest algorithms allowed in the micalg parameter */
+    private static final Map<String, String> DIGEST_OIDS = new HashMap<String, String>();
+
+    static {
+        DIGEST_OIDS.put("SHA1", "1.3.14.3.2.26");
+        DIGEST_OIDS.put("SHA256", "2.16.840.1.101.3.4.2.1");
+        DIGEST_OIDS.put("SHA384", "2.16.840.1.101.3.4.2.2");
+        DIGEST_OIDS.put("SHA512", "2.16.840.1.101.3.4.2.3");
+        DIGEST_OIDS.put("MD5", "1.2.840.113549.2.5");
+    }
+
+    private final PayloadSpool payload;
+    private final HeadOutputStream payloadHead = new HeadOutputStream(PAYLOAD_HEAD_SIZE);
+    private X509Certificate signersX509Certificate;
+    private Mic mic;
+
+    /**
+     * Reads and verifies the signed message.
+     *
+     * @param inputStream      supplies the message, starting with the MIME headers, is read to the end but not closed
+     * @param micAlgorithmName the algorithm of the MIC to be returned in the MDN, i.e. sha1
+     */
+    public SignedMimeMessageReader(InputStream inputStream, String micAlgorithmName) {
+        this(inputStream, micAlgorithmName, DEFAULT_SPOOL_THRESHOLD, null);
+    }
+
+    /**
+     * Reads and verifies the signed message, spooling large payloads to disk.
+     *
+     * @param inputStream      supplies the message, starting with the MIME headers, is read to the end but not closed
+     * @param micAlgorithmName the algorithm of the MIC to be returned in the MDN, i.e. sha1
+     * @param spoolThreshold   maximum number of bytes of the payload held in memory
+     * @param spoolDirectory   where larger payloads are written, the default temporary directory if null
+     */
+    public SignedMimeMessageReader(InputStream inputStream, String micAlgorithmName, int spoolThreshold, File spoolDirectory) {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        payload = new PayloadSpool(spoolThreshold, spoolDirectory);
+
+        boolean verified = false;
+        try {
+            read(inputStream, micAlgorithmName);
+            payload.close();
+            verified = true;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read signed message. " + e.getMessage(), e);
+        } catch (MessagingException e) {
+            throw new IllegalStateException("Unable to parse signed message. " + e.getMessage(), e);
+        } finally {
+            if (!verified) {
+                payload.delete();
+            }
+        }
+    }
+
+    private void read(InputStream inputStream, String micAlgorithmName) throws IOException, MessagingException {
+        // Every byte of the message, headers included, is digested for the MIC
+        MessageDigest micDigest = createMessageDigest(micAlgorithmName);
+        DigestInputStream messageInputStream = new DigestInputStream(new BufferedInputStream(inputStream, MultipartStreamReader.BUFFER_SIZE), micDigest);
+
+        InternetHeaders messageHeaders = MultipartStreamReader.readHeaders(messageInputStream, MAX_HEADER_SIZE);
+        ContentType contentType = parseContentType(messageHeaders);
+        if (!contentType.match("multipart/signed")) {
+            throw new IllegalStateException("MIME message is not multipart/signed, it is: " + contentType);
+        }
+        String boundary = contentType.getParameter("boundary");
+        if (boundary == null) {
+            throw new IllegalStateException("No boundary in " + contentType);
+        }
+        String micalg = contentType.getParameter("micalg") == null ? "sha1" : contentType.getParameter("micalg");
+
+        MultipartStreamReader multipartStreamReader = new MultipartStreamReader(messageInputStream, boundary);
+
+        // The first part, including its headers, is the signed content
+        MultipartStreamReader.PartInputStream signedPart = multipartStreamReader.nextPart();
+        if (signedPart == null) {
+            throw new IllegalStateException("Signed message holds no content");
+        }
+        final MessageDigest contentDigest = createMessageDigest(micalg);
+        DigestInputStream signedContent = new DigestInputStream(signedPart, contentDigest);
+        InternetHeaders contentHeaders = MultipartStreamReader.readHeaders(signedContent, MAX_HEADER_SIZE);
+        String encoding = contentHeaders.getHeader("Content-Transfer-Encoding", null);
+        if (isIdentityEncoding(encoding)) {
+            // The content is digested and buffered straight from the buffer of the multipart reader
+            signedPart.transferTo(new MultipartStreamReader.SliceHandler() {
+                @Override
+                public void handle(byte[] bytes, int offset, int length) throws IOException {
+                    contentDigest.update(bytes, offset, length);
+                    payload.write(bytes, offset, length);
+                    payloadHead.write(bytes, offset, length);
+                }
+            });
+        } else {
+            copy(MimeUtility.decode(signedContent, encoding.trim()), new SignedMimeMessageWriter.TeeOutputStream(payload, payloadHead));
+            // The decoder might have stopped short of the end of the part
+            MultipartStreamReader.skipFully(signedContent);
+        }
+        byte[] contentHash = contentDigest.digest();
+
+        // The second part holds the detached signature
+        InputStream signaturePart = multipartStreamReader.nextPart();
+        if (signaturePart == null) {
+            throw new IllegalStateException("Signed message holds no signature");
+        }
+        InternetHeaders signatureHeaders = MultipartStreamReader.readHeaders(signaturePart, MAX_HEADER_SIZE);
+        byte[] signature = readSignature(decode(signaturePart, signatureHeaders));
+
+        // Skips any further parts and the epilogue, which are covered by the MIC as well
+        while (multipartStreamReader.nextPart() != null) {
+            // Nothing to do
+        }
+        MultipartStreamReader.skipFully(messageInputStream);
+        mic = new Mic(new String(Base64.encode(micDigest.digest())), micAlgorithmName);
+
+        verify(micalg, contentHash, signature);
+    }
+
+    /**
+     * Verifies the detached signature against the digest of the signed content, which has already been computed,
+     * rather than having Bouncy Castle read the content once more.
+     */
+    void verify(String micalg, byte[] contentHash, byte[] signature) {
+        String digestOid = DIGEST_OIDS.get(normalizeAlgorithmName(micalg));
+
+        SignerInformation signer;
+        Store certs;
+        try {
+            Map<String, byte[]> hashes = Collections.singletonMap(digestOid, contentHash);
+            CMSSignedData signedData = new CMSSignedData(hashes, signature);
+            certs = signedData.getCertificates();
+
+            Iterator signersIterator = signedData.getSignerInfos().getSigners().iterator();
+            if (!signersIterator.hasNext()) {
+                throw new IllegalStateException("There is no signer information available");
+            }
+            signer = (SignerInformation) signersIterator.next();
+        } catch (CMSException e) {
+            throw new IllegalStateException("Unable to parse the signature. " + e.getMessage(), e);
+        }
+
+        if (!digestOid.equals(signer.getDigestAlgOID())) {
+            throw new IllegalStateException("The digest algorithm of the signature " + signer.getDigestAlgOID() + " does not match micalg " + micalg);
+        }
+
+        Collection certCollection = certs.getMatches(signer.getSID());
+        if (certCollection.isEmpty()) {
+            throw new IllegalStateException("The signature holds no certificate of the signer");
+        }
+        try {
+            signersX509Certificate = new JcaX509CertificateConverter().setProvider("BC").getCertificate((X509CertificateHolder) certCollection.iterator().next());
+        } catch (CertificateException e) {
+            throw new IllegalStateException("Unable to fetch certificate for signer. " + e.getMessage(), e);
+        }
+
+        try {
+            if (!signer.verify(new JcaSimpleSignerInfoVerifierBuilder().setProvider("BC").build(signersX509Certificate))) {
+                throw new IllegalStateException("Verification of signer failed");
+            }
+        } catch (CMSException e) {
+            throw new IllegalStateException("Unable to verify the signer. " + e.getMessage(), e);
+        } catch (OperatorCreationException e) {
+            throw new IllegalStateException("Unable to verify the signer. " + e.getMessage(), e);
+        }
+    }
+
+    public X509Certificate getSignersX509Certificate() {
+        return signersX509Certificate;
+    }
+
+    /** The MIC of the entire message as received, to be returned in the MDN */
+    public Mic getMic() {
+        return mic;
+    }
+
+    /** Provides the decoded payload, which may be read any number of times until closed */
+    public InputStream getPayload() {
+        try {
+            return payload.openInputStream();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read spooled payload. " + e.getMessage(), e);
+        }
+    }
+
+    /** Number of bytes of the decoded payload */
+    public long getPayloadSize() {
+        return payload.size();
+    }
+
+    /** Provides the first {@link #PAYLOAD_HEAD_SIZE} bytes of the payload, or all of it if smaller */
+    public InputStream getPayloadHead() {
+        return payloadHead.openInputStream();
+    }
+
+    /** Tells whether {@link #getPayloadHead()} provides all of the payload */
+    public boolean isPayloadHeadComplete() {
+        return payloadHead.size() == payload.size();
+    }
+
+    /** The temporary file holding the payload, or null if held in memory */
+    File getSpoolFile() {
+        return payload.getFile();
+    }
+
+    /**
+     * Discards the payload, deleting the temporary file holding it if any. Streams of the payload must have been
+     * closed.
+     */
+    @Override
+    public void close() {
+        payload.delete();
+    }
+
+    static ContentType parseContentType(InternetHeaders headers) throws ParseException {
+        String contentType = headers.getHeader("Content-Type", null);
+        if (contentType == null) {
+            throw new IllegalStateException("MIME headers hold no Content-Type");
+        }
+        return new ContentType(contentType);
+    }
+
+    /** Tells whether content having the given Content-Transfer-Encoding is to be used as is */
+    static boolean isIdentityEncoding(String encoding) {
+        if (encoding == null) {
+            return true;
+        }
+        String name = encoding.trim();
+        return name.equalsIgnoreCase("binary") || name.equalsIgnoreCase("7bit") || name.equalsIgnoreCase("8bit");
+    }
+
+    /** Decodes the content according to the Content-Transfer-Encoding header, if any */
+    static InputStream decode(InputStream inputStream, InternetHeaders headers) throws MessagingException {
+        String encoding = headers.getHeader("Content-Transfer-Encoding", null);
+        return encoding == null ? inputStream : MimeUtility.decode(inputStream, encoding.trim());
+    }
+
+    static MessageDigest createMessageDigest(String algorithmName) {
+        String providerName = "BC";
+        try {
+            return MessageDigest.getInstance(normalizeAlgorithmName(algorithmName), providerName);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithmName + " not found", e);
+        } catch (NoSuchProviderException e) {
+            throw new IllegalStateException("Security provider " + providerName + " not found. Do you have BouncyCastle on your path?");
+        }
+    }
+
+    /** Transforms micalg values like sha-256 into the name of the algorithm, i.e. SHA256 */
+    static String normalizeAlgorithmName(String algorithmName) {
+        String name = algorithmName.trim().toUpperCase(Locale.ROOT).replace("-", "");
+        if (!DIGEST_OIDS.containsKey(name)) {
+            throw new IllegalStateException("Unsupported digest algorithm " + algorithmName);
+        }
+        return name;
+    }
+
+    private static byte[] readSignature(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream signature = new ByteArrayOutputStream(4096);
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+            signature.write(buffer, 0, count);
+            if (signature.size() > MAX_SIGNATURE_SIZE) {
+                throw new IllegalStateException("Signature exceeds " + MAX_SIGNATURE_SIZE + " bytes");
+            }
+        }
+        return signature.toByteArray();
+    }
+
+    private static void copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+        byte[] buffer = new byte[MultipartStreamReader.BUFFER_SIZE];
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, count);
+        }
+    }
+
+    /** Keeps the first bytes written, discarding the remainder */
+    static class HeadOutputStream extends ByteArrayOutputStream {
+
+        private final int maxSize;
+
+        HeadOutputStream(int maxSize) {
+            super(MultipartStreamReader.BUFFER_SIZE);
+            this.maxSize = maxSize;
+        }
+
+        InputStream openInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if (count < maxSize) {
+                super.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            int length = Math.min(len, maxSize - count);
+            if (length > 0) {
+                super.write(b, off, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2011,2012,2013,2014 UNIT4 Agresso AS.
+ *
+ * This file is part of Oxalis.
+ *
+ * Oxalis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Oxalis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Oxalis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package eu.peppol.as2;
+
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedDataStreamGenerator;
+import org.bouncycastle.util.encoders.Base64;
+
+import javax.activation.MimeType;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Writes a signed S/MIME message in a single pass, without holding the payload in memory.
+ *
+ * <p>{@link SMimeMessageFactory} creates a {@link javax.mail.internet.MimeMessage}, for which the payload must be
+ * read twice when written; once to write the payload itself and once more to compute the detached signature.
+ * This writer copies the payload to the output and through the digest of the signature simultaneously, after
+ * which the signature is appended. Hence the memory required is bounded by the buffers of the streams, the
+ * signature being only a couple of kilobytes, regardless of the size of the payload.</p>
+ *
+ * <p>The output is identical in structure to what is written by {@link javax.mail.internet.MimeMessage#writeTo(OutputStream)}
+ * for a message created by {@link SMimeMessageFactory}, i.e. the MIME headers followed by a multipart/signed holding
+ * the payload with binary transfer encoding and the base64 encoded detached signature.</p>
+ *
+ * <p>Instances are thread safe, every invocation of {@link #writeTo(OutputStream, ContentWriter)} creates
+ * a new signature.</p>
+ */
+public class SignedMimeMessageWriter {
+
+    static final String CRLF = "\r\n";
+
+    /** Number of base64 characters per line of the signature, according to RFC 2045 */
+    static final int BASE64_LINE_LENGTH = 76;
+
+    private final SMimeSigner sMimeSigner;
+    private final MimeType mimeType;
+
+    public SignedMimeMessageWriter(SMimeSigner sMimeSigner, MimeType mimeType) {
+        this.sMimeSigner = sMimeSigner;
+        this.mimeType = mimeType;
+    }
+
+    /**
+     * Writes the payload supplied by the ContentWriter as a signed S/MIME message.
+     *
+     * @param outputStream   where the S/MIME message is written, will not be closed
+     * @param contentWriter writes the payload, which should be streamed rather than buffered
+     */
+    public void writeTo(OutputStream outputStream, ContentWriter contentWriter) throws IOException {
+        String boundary = "----=_Part_" + UUID.randomUUID().toString();
+
+        write(outputStream, "MIME-Version: 1.0" + CRLF);
+        write(outputStream, "Content-Type: " + createContentType(boundary) + CRLF);
+        write(outputStream, CRLF);
+
+        // The payload part, including its headers, is signed while being written
+        write(outputStream, "--" + boundary + CRLF);
+
+        ByteArrayOutputStream signature = new ByteArrayOutputStream(4096);
+        OutputStream signingStream = openSigningStream(signature);
+        OutputStream contentStream = new TeeOutputStream(outputStream, signingStream);
+
+        write(contentStream, "Content-Type: " + mimeType.toString() + CRLF);
+        write(contentStream, "Content-Transfer-Encoding: binary" + CRLF);
+        write(contentStream, CRLF);
+        contentWriter.writeTo(contentStream);
+
+        // Completes the signature, which is written into our buffer rather than to the output stream
+        signingStream.close();
+
+        write(outputStream, CRLF + "--" + boundary + CRLF);
+        write(outputStream, "Content-Type: application/pkcs7-signature; name=smime.p7s; smime-type=signed-data" + CRLF);
+        write(outputStream, "Content-Transfer-Encoding: base64" + CRLF);
+        write(outputStream, "Content-Disposition: attachment; filename=\"smime.p7s\"" + CRLF);
+        write(outputStream, "Content-Description: S/MIME Cryptographic Signature" + CRLF);
+        write(outputStream, CRLF);
+        writeBase64(outputStream, signature.toByteArray());
+        write(outputStream, CRLF + "--" + boundary + "--" + CRLF);
+
+        outputStream.flush();
+    }
+
+    /** Writes the payload read from the supplied input stream as a signed S/MIME message */
+    public void writeTo(OutputStream outputStream, final InputStream inputStream) throws IOException {
+        writeTo(outputStream, new ContentWriter() {
+            @Override
+            public void writeTo(OutputStream outputStream) throws IOException {
+                byte[] buffer = new byte[8192];
+                int numberOfBytesRead;
+                while ((numberOfBytesRead = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, numberOfBytesRead);
+                }
+            }
+        });
+    }
+
+    String createContentType(String boundary) {
+        return "multipart/signed; protocol=\"application/pkcs7-signature\"; micalg=sha1; boundary=\"" + boundary + "\"";
+    }
+
+    /** Creates a stream, which digests everything written to it and writes the detached signature when closed */
+    OutputStream openSigningStream(OutputStream signatureOutputStream) throws IOException {
+        CMSSignedDataStreamGenerator generator = new CMSSignedDataStreamGenerator();
+        generator.addSignerInfoGenerator(sMimeSigner.createSignerInfoGenerator());
+        try {
+            generator.addCertificates(sMimeSigner.getCertificateStore());
+        } catch (CMSException e) {
+            throw new IllegalStateException("Unable to add our certificate to the signature. " + e.getMessage(), e);
+        }
+        return generator.open(signatureOutputStream, false);
+    }
+
+    private static void writeBase64(OutputStream outputStream, byte[] bytes) throws IOException {
+        byte[] encoded = Base64.encode(bytes);
+        for (int offset = 0; offset < encoded.length; offset += BASE64_LINE_LENGTH) {
+            if (offset > 0) {
+                write(outputStream, CRLF);
+            }
+            outputStream.write(encoded, offset, Math.min(BASE64_LINE_LENGTH, encoded.length - offset));
+        }
+    }
+
+    private static void write(OutputStream outputStream, String s) throws IOException {
+        outputStream.write(s.getBytes("US-ASCII"));
+    }
+
+    /**
+     * Writes the payload of the message. Implementations should write directly to the supplied stream, which must
+     * not be closed.
+     */
+    public interface ContentWriter {
+        void writeTo(OutputStream outputStream) throws IOException;
+    }
+
+    /** Writes everything to two streams, neither of which is closed */
+    static class TeeOutputStream extends OutputStream {
+
+        private final OutputStream first;
+        private final OutputStream second;
+
+        TeeOutputStream(OutputStream first, OutputStream second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            first.write(b);
+            second.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            first.write(b, off, len);
+            second.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            first.flush();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
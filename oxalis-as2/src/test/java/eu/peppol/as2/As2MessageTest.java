@@ -2,15 +2,18 @@ package eu.peppol.as2;
 
 import eu.peppol.security.KeystoreManager;
 import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
 
 import javax.activation.MimeType;
 import javax.mail.internet.MimeMessage;
 import java.io.InputStream;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
+import java.util.Date;
 
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
 
 /**
  * @author steinar
@@ -35,4 +38,30 @@ public class As2MessageTest {
 
 
     }
+
+    @Test
+    public void messageHoldsTheMimeMessage() throws Exception {
+        As2Message as2Message = createBuilder().mimeMessage(signedMimeMessage).build();
+        assertSame(as2Message.getMimeMessage(), signedMimeMessage);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void mimeMessageIsRequired() throws Exception {
+        createBuilder().build();
+    }
+
+    @Test
+    public void messageMayBeBuiltFromTheHeadersOnly() throws Exception {
+        As2Message as2Message = createBuilder().buildWithoutMimeMessage();
+        assertNull(as2Message.getMimeMessage());
+    }
+
+    private As2Message.Builder createBuilder() throws Exception {
+        return new As2Message.Builder()
+                .as2From("APP_1000000006")
+                .as2To("APP_1000000006")
+                .transmissionId("42")
+                .date(new Date())
+                .subject("PEPPOL Message");
+    }
 }
@@ -21,6 +21,7 @@ import java.io.InputStream;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
 import static org.testng.AssertJUnit.fail;
 
 /**
@@ -104,4 +105,20 @@ public class InboundMessageReceiverTest {
             assertEquals(e.getMdnData().getSubject(), MdnData.SUBJECT);
         }
     }
+
+    @Test
+    public void messageForAnotherAccessPointIsRejectedBeforeTheBodyIsRead() throws Exception {
+        InboundMessageReceiver inboundMessageReceiver = new InboundMessageReceiver(SignedMimeMessageReader.DEFAULT_SPOOL_THRESHOLD, null, new PeppolAs2SystemIdentifier("APP_1000000099"));
+        int available = inputStream.available();
+
+        try {
+            inboundMessageReceiver.receive(headers, inputStream, messageRepository);
+            fail("Message addressed to another access point should have been rejected");
+        } catch (ErrorWithMdnException e) {
+            assertNotNull(e.getMdnData());
+            assertTrue(e.getMdnData().getAs2Disposition().getDispositionModifier().getDispositionModifierExtension().contains("AS2-To"));
+        }
+        // Nothing was read
+        assertEquals(inputStream.available(), available);
+    }
 }
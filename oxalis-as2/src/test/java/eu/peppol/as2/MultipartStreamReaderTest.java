@@ -0,0 +1,86 @@
+package eu.peppol.as2;
+
+import org.testng.annotations.Test;
+
+import javax.mail.internet.InternetHeaders;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class MultipartStreamReaderTest {
+
+    @Test
+    public void partsAreSplitAtTheDelimiters() throws Exception {
+        String body = "This is the preamble\r\n"
+                + "--XYZ\r\n"
+                + "Content-Type: text/plain\r\n\r\n"
+                + "First part mentioning --XY and\r\n-XYZ which is not the boundary\r\n"
+                + "--XYZ  \r\n"
+                + "\r\n"
+                + "Second part\r\n"
+                + "--XYZ--\r\n"
+                + "This is the epilogue";
+        InputStream inputStream = new ByteArrayInputStream(body.getBytes("US-ASCII"));
+        MultipartStreamReader reader = new MultipartStreamReader(inputStream, "XYZ");
+
+        InputStream first = reader.nextPart();
+        InternetHeaders headers = MultipartStreamReader.readHeaders(first, 1000);
+        assertEquals(headers.getHeader("Content-Type", null), "text/plain");
+        assertEquals(SignedMimeMessageWriterTest.readFully(first), "First part mentioning --XY and\r\n-XYZ which is not the boundary");
+
+        // Transport padding after the delimiter is ignored, the part has no headers
+        InputStream second = reader.nextPart();
+        assertEquals(SignedMimeMessageWriterTest.readFully(second), "\r\nSecond part");
+
+        assertNull(reader.nextPart());
+    }
+
+    @Test
+    public void partsLargerThanTheBufferAreSplit() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 3 * MultipartStreamReader.SCAN_BUFFER_SIZE; i++) {
+            content.append((char) ('a' + i % 26));
+        }
+        String body = "--b\r\n" + content + "\r\n--b\r\n" + content + "\r\n--b--";
+        MultipartStreamReader reader = new MultipartStreamReader(new ByteArrayInputStream(body.getBytes("US-ASCII")), "b");
+
+        assertEquals(SignedMimeMessageWriterTest.readFully(reader.nextPart()), content.toString());
+        // The remainder of an unread part is skipped
+        reader.nextPart();
+        assertNull(reader.nextPart());
+    }
+
+    @Test
+    public void contentIsTransferredInSlices() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < MultipartStreamReader.SCAN_BUFFER_SIZE; i++) {
+            content.append((char) ('a' + i % 26));
+        }
+        String body = "--b\r\n" + content + "\r\n--b--\r\n";
+        MultipartStreamReader reader = new MultipartStreamReader(new ByteArrayInputStream(body.getBytes("US-ASCII")), "b");
+
+        final ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+        long count = reader.nextPart().transferTo(new MultipartStreamReader.SliceHandler() {
+            @Override
+            public void handle(byte[] bytes, int offset, int length) {
+                transferred.write(bytes, offset, length);
+            }
+        });
+
+        assertEquals(count, content.length());
+        assertEquals(transferred.toString("US-ASCII"), content.toString());
+        assertNull(reader.nextPart());
+    }
+
+    @Test(expectedExceptions = EOFException.class)
+    public void missingClosingDelimiterIsDetected() throws Exception {
+        String body = "--XYZ\r\n\r\nTruncated";
+        MultipartStreamReader reader = new MultipartStreamReader(new ByteArrayInputStream(body.getBytes("US-ASCII")), "XYZ");
+
+        SignedMimeMessageWriterTest.readFully(reader.nextPart());
+    }
+}
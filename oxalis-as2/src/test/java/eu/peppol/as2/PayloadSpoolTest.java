@@ -0,0 +1,45 @@
+package eu.peppol.as2;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class PayloadSpoolTest {
+
+    @Test
+    public void smallPayloadIsHeldInMemory() throws Exception {
+        PayloadSpool payloadSpool = new PayloadSpool(100, null);
+        payloadSpool.write("Hello world".getBytes("UTF-8"));
+        payloadSpool.close();
+
+        assertNull(payloadSpool.getFile());
+        assertEquals(payloadSpool.size(), 11);
+        assertEquals(SignedMimeMessageWriterTest.readFully(payloadSpool.openInputStream()), "Hello world");
+    }
+
+    @Test
+    public void largePayloadIsMovedToTemporaryFile() throws Exception {
+        PayloadSpool payloadSpool = new PayloadSpool(10, null);
+        payloadSpool.write("Hello ".getBytes("UTF-8"));
+        assertNull(payloadSpool.getFile());
+        payloadSpool.write("world".getBytes("UTF-8"));
+        payloadSpool.write('!');
+        payloadSpool.close();
+
+        File file = payloadSpool.getFile();
+        assertNotNull(file);
+        assertTrue(file.exists());
+        // May be read more than once
+        assertEquals(SignedMimeMessageWriterTest.readFully(payloadSpool.openInputStream()), "Hello world!");
+        assertEquals(SignedMimeMessageWriterTest.readFully(payloadSpool.openInputStream()), "Hello world!");
+
+        payloadSpool.delete();
+        assertFalse(file.exists());
+    }
+}
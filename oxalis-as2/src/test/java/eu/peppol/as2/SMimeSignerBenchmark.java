@@ -0,0 +1,125 @@
+package eu.peppol.as2;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.mail.smime.SMIMESignedGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signatures per second using the shared {@link SMimeSigner}, compared with how messages were signed before,
+ * i.e. registering the provider and building the signer information and certificate store for every message.
+ *
+ * <p>Run from the command line, after <code>mvn test-compile</code> of this module:</p>
+ * <pre>
+ *     java -cp target/test-classes:target/classes:&lt;test class path&gt; eu.peppol.as2.SMimeSignerBenchmark
+ * </pre>
+ * Add <code>-t 8</code> to measure the throughput when the signer is shared by 8 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SMimeSignerBenchmark {
+
+    private PrivateKey privateKey;
+    private X509Certificate ourCertificate;
+    private SMimeSigner sMimeSigner;
+    private String payload;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyStore.PrivateKeyEntry privateKeyEntry = SMimeSignerTest.createSelfSignedPrivateKeyEntry();
+        privateKey = privateKeyEntry.getPrivateKey();
+        ourCertificate = (X509Certificate) privateKeyEntry.getCertificate();
+        sMimeSigner = new SMimeSigner(privateKey, ourCertificate);
+
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Invoice>");
+        for (int i = 0; i < 200; i++) {
+            sb.append("<InvoiceLine><ID>").append(i).append("</ID><Note>Lorem ipsum dolor sit amet</Note></InvoiceLine>");
+        }
+        payload = sb.append("</Invoice>").toString();
+    }
+
+    /** The way every message was signed, before the signer was shared */
+    @Benchmark
+    public long perMessageSetup() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+
+        SMIMESignedGenerator smimeSignedGenerator = new SMIMESignedGenerator();
+        smimeSignedGenerator.addSignerInfoGenerator(new JcaSimpleSignerInfoGeneratorBuilder().setProvider("BC").setSignedAttributeGenerator(new AttributeTable(new ASN1EncodableVector())).build("SHA1withRSA", privateKey, ourCertificate));
+        List<X509Certificate> certList = new ArrayList<X509Certificate>();
+        certList.add(ourCertificate);
+        smimeSignedGenerator.addCertificates(new JcaCertStore(certList));
+
+        MimeMultipart mimeMultipart = smimeSignedGenerator.generate(SMimeSignerTest.createPayload(payload));
+        MimeMessage mimeMessage = new MimeMessage(Session.getDefaultInstance(System.getProperties(), null));
+        mimeMessage.setContent(mimeMultipart, mimeMultipart.getContentType());
+        mimeMessage.saveChanges();
+
+        return write(mimeMessage);
+    }
+
+    @Benchmark
+    public long sharedSigner() throws Exception {
+        return write(sMimeSigner.createSignedMimeMessage(SMimeSignerTest.createPayload(payload)));
+    }
+
+    /** The signature is computed when the message is written */
+    private static long write(MimeMessage mimeMessage) throws Exception {
+        CountingOutputStream outputStream = new CountingOutputStream();
+        mimeMessage.writeTo(outputStream);
+        return outputStream.count;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(SMimeSignerBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
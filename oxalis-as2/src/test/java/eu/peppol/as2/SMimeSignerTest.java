@@ -0,0 +1,132 @@
+package eu.peppol.as2;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.activation.MimeType;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Verifies that a single {@link SMimeSigner} may be shared by several threads. Uses a self signed certificate,
+ * so no key store is required.
+ */
+public class SMimeSignerTest {
+
+    private KeyStore.PrivateKeyEntry privateKeyEntry;
+    private SMimeSigner sMimeSigner;
+
+    @BeforeClass
+    public void createSigner() throws Exception {
+        privateKeyEntry = createSelfSignedPrivateKeyEntry();
+        sMimeSigner = new SMimeSigner(privateKeyEntry.getPrivateKey(), (X509Certificate) privateKeyEntry.getCertificate());
+    }
+
+    @Test
+    public void signedMessageIsVerified() throws Exception {
+        MimeMessage mimeMessage = sMimeSigner.createSignedMimeMessage(createPayload("<Invoice>1</Invoice>"));
+
+        MimeMessage received = writeAndParse(mimeMessage);
+        SignedMimeMessageInspector inspector = new SignedMimeMessageInspector(received);
+        assertEquals(inspector.getSignersX509Certificate(), sMimeSigner.getOurCertificate());
+    }
+
+    @Test
+    public void bouncyCastleProviderIsRegisteredOnlyOnce() throws Exception {
+        int numberOfProviders = Security.getProviders().length;
+
+        for (int i = 0; i < 10; i++) {
+            new SMimeSigner(privateKeyEntry.getPrivateKey(), (X509Certificate) privateKeyEntry.getCertificate());
+        }
+
+        assertEquals(Security.getProviders().length, numberOfProviders);
+        assertTrue(Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) != null);
+    }
+
+    /**
+     * The signature is computed when the message is written, hence messages signed by one thread and written
+     * simultaneously by other threads must not share any signature state.
+     */
+    @Test
+    public void sharedSignerIsThreadSafe() throws Exception {
+        final int numberOfMessages = 50;
+
+        final List<MimeMessage> signedMessages = new ArrayList<MimeMessage>();
+        for (int i = 0; i < numberOfMessages; i++) {
+            signedMessages.add(sMimeSigner.createSignedMimeMessage(createPayload("<Invoice>" + i + "</Invoice>")));
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<MimeMessage>> futures = new ArrayList<Future<MimeMessage>>();
+            for (final MimeMessage signedMessage : signedMessages) {
+                futures.add(executorService.submit(new Callable<MimeMessage>() {
+                    @Override
+                    public MimeMessage call() throws Exception {
+                        return writeAndParse(signedMessage);
+                    }
+                }));
+            }
+
+            // Every message must be verified, throws IllegalStateException if not
+            for (Future<MimeMessage> future : futures) {
+                new SignedMimeMessageInspector(future.get());
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    static MimeBodyPart createPayload(String xml) throws Exception {
+        return MimeMessageHelper.createMimeBodyPart(new ByteArrayInputStream(xml.getBytes("UTF-8")), new MimeType("application", "xml"));
+    }
+
+    static MimeMessage writeAndParse(MimeMessage mimeMessage) throws Exception {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        mimeMessage.writeTo(byteArrayOutputStream);
+        return new MimeMessage(Session.getDefaultInstance(new Properties()), new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+    }
+
+    /** Creates an RSA key pair together with a self signed certificate, valid for one day */
+    static KeyStore.PrivateKeyEntry createSelfSignedPrivateKeyEntry() throws Exception {
+        SMimeSigner.registerBouncyCastleProvider();
+
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+        X500Name name = new X500Name("CN=APP_1000000001,O=Oxalis test,C=NO");
+        Date now = new Date();
+        JcaX509v3CertificateBuilder certificateBuilder = new JcaX509v3CertificateBuilder(name, BigInteger.valueOf(now.getTime()), now, new Date(now.getTime() + 24L * 3600 * 1000), name, keyPair.getPublic());
+        X509Certificate certificate = new JcaX509CertificateConverter().setProvider(BouncyCastleProvider.PROVIDER_NAME)
+                .getCertificate(certificateBuilder.build(new JcaContentSignerBuilder(SMimeSigner.SIGNATURE_ALGORITHM).setProvider(BouncyCastleProvider.PROVIDER_NAME).build(keyPair.getPrivate())));
+
+        return new KeyStore.PrivateKeyEntry(keyPair.getPrivate(), new Certificate[]{certificate});
+    }
+}
@@ -0,0 +1,107 @@
+package eu.peppol.as2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.activation.MimeType;
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time spent receiving a signed message of 10 KB, 1 MB and 20 MB by {@link SignedMimeMessageReader}, compared with
+ * how messages were received before, i.e. parsing a {@link MimeMessage}, verifying it by the
+ * {@link SignedMimeMessageInspector}, reading the payload and calculating the MIC.
+ *
+ * <p>Run from the command line, after <code>mvn test-compile</code> of this module:</p>
+ * <pre>
+ *     java -cp target/test-classes:target/classes:&lt;test class path&gt; eu.peppol.as2.SignedMimeMessageReaderBenchmark
+ * </pre>
+ * Add <code>-prof gc</code> to compare the allocations as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SignedMimeMessageReaderBenchmark {
+
+    @Param({"10240", "1048576", "20971520"})
+    public int payloadSize;
+
+    private byte[] message;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyStore.PrivateKeyEntry privateKeyEntry = SMimeSignerTest.createSelfSignedPrivateKeyEntry();
+        SMimeSigner sMimeSigner = new SMimeSigner(privateKeyEntry.getPrivateKey(), (X509Certificate) privateKeyEntry.getCertificate());
+        SignedMimeMessageWriter signedMimeMessageWriter = new SMimeMessageFactory(sMimeSigner).createSignedMimeMessageWriter(new MimeType("application", "xml"));
+
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Invoice>");
+        for (int i = 0; sb.length() < payloadSize; i++) {
+            sb.append("<InvoiceLine><ID>").append(i).append("</ID><Note>Lorem ipsum dolor sit amet</Note></InvoiceLine>");
+        }
+        byte[] payload = sb.append("</Invoice>").toString().getBytes("UTF-8");
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(payload.length + 8192);
+        signedMimeMessageWriter.writeTo(outputStream, new ByteArrayInputStream(payload));
+        message = outputStream.toByteArray();
+    }
+
+    /** The way messages were received, before the single pass reader */
+    @Benchmark
+    public long mimeMessage() throws Exception {
+        MimeMessage mimeMessage = MimeMessageHelper.createMimeMessage(new ByteArrayInputStream(message));
+        SignedMimeMessageInspector inspector = new SignedMimeMessageInspector(mimeMessage);
+        long count = drain(inspector.getPayload());
+        inspector.calculateMic("sha1");
+        return count;
+    }
+
+    /** The payload is held in memory, in order to compare the parsing rather than the file system */
+    @Benchmark
+    public long singlePass() throws Exception {
+        SignedMimeMessageReader reader = new SignedMimeMessageReader(new ByteArrayInputStream(message), "sha1", Integer.MAX_VALUE, null);
+        try {
+            return drain(reader.getPayload());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static long drain(InputStream inputStream) throws Exception {
+        byte[] buffer = new byte[8192];
+        long count = 0;
+        int numberOfBytesRead;
+        while ((numberOfBytesRead = inputStream.read(buffer)) != -1) {
+            count += numberOfBytesRead;
+        }
+        return count;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(SignedMimeMessageReaderBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,90 @@
+package eu.peppol.as2;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.activation.MimeType;
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+public class SignedMimeMessageReaderTest {
+
+    private SMimeSigner sMimeSigner;
+    private SignedMimeMessageWriter signedMimeMessageWriter;
+
+    @BeforeClass
+    public void createWriter() throws Exception {
+        KeyStore.PrivateKeyEntry privateKeyEntry = SMimeSignerTest.createSelfSignedPrivateKeyEntry();
+        sMimeSigner = new SMimeSigner(privateKeyEntry.getPrivateKey(), (X509Certificate) privateKeyEntry.getCertificate());
+        signedMimeMessageWriter = new SMimeMessageFactory(sMimeSigner).createSignedMimeMessageWriter(new MimeType("application", "xml"));
+    }
+
+    @Test
+    public void readerAgreesWithMimeMessageInspector() throws Exception {
+        String payload = SignedMimeMessageWriterTest.createPayload(1000);
+        byte[] message = writeSignedMessage(payload);
+
+        SignedMimeMessageReader reader = new SignedMimeMessageReader(new ByteArrayInputStream(message), "sha1");
+
+        MimeMessage mimeMessage = MimeMessageHelper.createMimeMessage(new ByteArrayInputStream(message));
+        SignedMimeMessageInspector inspector = new SignedMimeMessageInspector(mimeMessage);
+
+        assertEquals(reader.getSignersX509Certificate(), inspector.getSignersX509Certificate());
+        assertEquals(SignedMimeMessageWriterTest.readFully(reader.getPayload()), payload);
+        assertEquals(reader.getMic().toString(), inspector.calculateMic("sha1").toString());
+    }
+
+    @Test
+    public void headOfLargePayloadIsBounded() throws Exception {
+        String payload = SignedMimeMessageWriterTest.createPayload(5000);
+        SignedMimeMessageReader reader = new SignedMimeMessageReader(new ByteArrayInputStream(writeSignedMessage(payload)), "sha1");
+
+        assertFalse(reader.isPayloadHeadComplete());
+        assertEquals(reader.getPayloadSize(), payload.getBytes("UTF-8").length);
+        assertTrue(payload.startsWith(SignedMimeMessageWriterTest.readFully(reader.getPayloadHead()).substring(0, 1000)));
+    }
+
+    @Test
+    public void largePayloadIsSpooledUntilClosed() throws Exception {
+        String payload = SignedMimeMessageWriterTest.createPayload(1000);
+        SignedMimeMessageReader reader = new SignedMimeMessageReader(new ByteArrayInputStream(writeSignedMessage(payload)), "sha1", 10000, null);
+
+        File spoolFile = reader.getSpoolFile();
+        assertNotNull(spoolFile);
+        assertEquals(spoolFile.length(), payload.getBytes("UTF-8").length);
+        assertEquals(SignedMimeMessageWriterTest.readFully(reader.getPayload()), payload);
+
+        reader.close();
+        assertFalse(spoolFile.exists());
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void modifiedPayloadIsRejected() throws Exception {
+        byte[] message = writeSignedMessage(SignedMimeMessageWriterTest.createPayload(10));
+        String tampered = new String(message, "ISO-8859-1").replace("<ID>5</ID>", "<ID>6</ID>");
+
+        new SignedMimeMessageReader(new ByteArrayInputStream(tampered.getBytes("ISO-8859-1")), "sha1");
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void unsignedMessageIsRejected() throws Exception {
+        String message = "MIME-Version: 1.0\r\nContent-Type: application/xml\r\n\r\n<Invoice/>";
+
+        new SignedMimeMessageReader(new ByteArrayInputStream(message.getBytes("US-ASCII")), "sha1");
+    }
+
+    private byte[] writeSignedMessage(String payload) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        signedMimeMessageWriter.writeTo(outputStream, new ByteArrayInputStream(payload.getBytes("UTF-8")));
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,81 @@
+package eu.peppol.as2;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.activation.MimeType;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class SignedMimeMessageWriterTest {
+
+    private SMimeSigner sMimeSigner;
+    private SignedMimeMessageWriter signedMimeMessageWriter;
+
+    @BeforeClass
+    public void createWriter() throws Exception {
+        KeyStore.PrivateKeyEntry privateKeyEntry = SMimeSignerTest.createSelfSignedPrivateKeyEntry();
+        sMimeSigner = new SMimeSigner(privateKeyEntry.getPrivateKey(), (X509Certificate) privateKeyEntry.getCertificate());
+        signedMimeMessageWriter = new SMimeMessageFactory(sMimeSigner).createSignedMimeMessageWriter(new MimeType("application", "xml"));
+    }
+
+    @Test
+    public void writtenMessageIsVerifiedByReceiver() throws Exception {
+        String payload = createPayload(1000);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        signedMimeMessageWriter.writeTo(outputStream, new ByteArrayInputStream(payload.getBytes("UTF-8")));
+
+        // Parses the message the way the inbound AS2 servlet does, verifying the signature
+        MimeMessage mimeMessage = MimeMessageHelper.createMimeMessage(new ByteArrayInputStream(outputStream.toByteArray()));
+        SignedMimeMessageInspector inspector = new SignedMimeMessageInspector(mimeMessage);
+
+        assertEquals(inspector.getSignersX509Certificate(), sMimeSigner.getOurCertificate());
+        assertEquals(readFully(inspector.getPayload()), payload);
+        assertTrue(mimeMessage.getContentType().startsWith("multipart/signed"));
+    }
+
+    @Test
+    public void structureIsEquivalentToMimeMessage() throws Exception {
+        String payload = createPayload(10);
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        signedMimeMessageWriter.writeTo(streamed, new ByteArrayInputStream(payload.getBytes("UTF-8")));
+        MimeMessage streamedMessage = MimeMessageHelper.createMimeMessage(new ByteArrayInputStream(streamed.toByteArray()));
+
+        MimeMessage buffered = SMimeSignerTest.writeAndParse(sMimeSigner.createSignedMimeMessage(SMimeSignerTest.createPayload(payload)));
+
+        MimeMultipart streamedMultipart = (MimeMultipart) streamedMessage.getContent();
+        MimeMultipart bufferedMultipart = (MimeMultipart) buffered.getContent();
+        assertEquals(streamedMultipart.getCount(), bufferedMultipart.getCount());
+        for (int i = 0; i < bufferedMultipart.getCount(); i++) {
+            assertEquals(streamedMultipart.getBodyPart(i).getContentType(), bufferedMultipart.getBodyPart(i).getContentType());
+        }
+    }
+
+    static String createPayload(int numberOfLines) {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Invoice>\n");
+        for (int i = 0; i < numberOfLines; i++) {
+            sb.append("<InvoiceLine><ID>").append(i).append("</ID><Note>Blåbærsyltetøy</Note></InvoiceLine>\n");
+        }
+        return sb.append("</Invoice>").toString();
+    }
+
+    static String readFully(InputStream inputStream) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int numberOfBytesRead;
+        while ((numberOfBytesRead = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, numberOfBytesRead);
+        }
+        return outputStream.toString("UTF-8");
+    }
+}
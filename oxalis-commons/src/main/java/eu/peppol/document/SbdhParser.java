@@ -13,6 +13,7 @@ import javax.xml.bind.Unmarshaller;
 import javax.xml.datatype.XMLGregorianCalendar;
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 import java.io.InputStream;
@@ -30,6 +31,9 @@ public class SbdhParser {
 
 
     public static final Logger log = LoggerFactory.getLogger(SbdhParser.class);
+
+    static final String STANDARD_BUSINESS_DOCUMENT_HEADER = "StandardBusinessDocumentHeader";
+
     private final JAXBContext jaxbContext;
     private final XMLInputFactory xmlInputFactory;
 
@@ -47,7 +51,12 @@ public class SbdhParser {
 
     }
 
-    /** Parses the SBDH from the provided stream into a PeppolMessageInformation object which is created here */
+    /**
+     * Parses the SBDH from the provided stream into a PeppolMessageInformation object which is created here.
+     *
+     * Only the header is unmarshalled, the stream is not read beyond the end of the header, hence the stream may hold
+     * merely the start of the document.
+     */
     public PeppolStandardBusinessHeader parse(InputStream inputStream) {
 
 
@@ -58,10 +67,10 @@ public class SbdhParser {
         PeppolStandardBusinessHeader peppolSbdh = new PeppolStandardBusinessHeader();
         try {
 
-            JAXBElement<StandardBusinessDocument> sbdh = (JAXBElement) unmarshaller.unmarshal(xmlReader);
+            moveToStandardBusinessDocumentHeader(xmlReader);
+            JAXBElement<StandardBusinessDocumentHeader> sbdh = unmarshaller.unmarshal(xmlReader, StandardBusinessDocumentHeader.class);
 
-            StandardBusinessDocument standardBusinessDocument = sbdh.getValue();
-            StandardBusinessDocumentHeader standardBusinessDocumentHeader = standardBusinessDocument.getStandardBusinessDocumentHeader();
+            StandardBusinessDocumentHeader standardBusinessDocumentHeader = sbdh.getValue();
 
 
             // Receiver
@@ -90,6 +99,20 @@ public class SbdhParser {
         }
     }
 
+    /** Advances the reader to the start of the StandardBusinessDocumentHeader element, skipping the document element */
+    private void moveToStandardBusinessDocumentHeader(XMLStreamReader xmlReader) {
+        try {
+            while (xmlReader.hasNext()) {
+                if (xmlReader.next() == XMLStreamConstants.START_ELEMENT && STANDARD_BUSINESS_DOCUMENT_HEADER.equals(xmlReader.getLocalName())) {
+                    return;
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException("Unable to parse SBDH: " + e.getMessage(), e);
+        }
+        throw new IllegalStateException("Unable to parse SBDH: no " + STANDARD_BUSINESS_DOCUMENT_HEADER + " element found");
+    }
+
     private void parseDocumentIdentificationAndScopes(PeppolStandardBusinessHeader peppolMessageMetaData, StandardBusinessDocumentHeader standardBusinessDocumentHeader) {
 
         DocumentIdentification documentIdentification = standardBusinessDocumentHeader.getDocumentIdentification();
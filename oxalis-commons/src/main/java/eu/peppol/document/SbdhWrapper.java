@@ -32,8 +32,26 @@ public class SbdhWrapper {
     private final Stack<String> currentContext;
     private List<XMLEvent> bufferedEvents;
     private XMLEventWriter xmlEventWriter;
+    private final String instanceIdentifier;
+    private final Date creationDateAndTime;
 
+    /**
+     * Creates a wrapper assigning a new instance identifier and the current time to every SBDH.
+     */
     public SbdhWrapper() {
+        this(null, null);
+    }
+
+    /**
+     * Creates a wrapper emitting the supplied identification in the SBDH, allowing the same document to be wrapped
+     * repeatedly, e.g. when retransmitted, without being perceived as another document by the receiver.
+     *
+     * @param instanceIdentifier  the InstanceIdentifier of the SBDH, a new one is generated for every SBDH if null
+     * @param creationDateAndTime the CreationDateAndTime of the SBDH, the current time if null
+     */
+    public SbdhWrapper(String instanceIdentifier, Date creationDateAndTime) {
+        this.instanceIdentifier = instanceIdentifier;
+        this.creationDateAndTime = creationDateAndTime;
 
         eventFactory = XMLEventFactory.newFactory();
         // Creates a constant for the newline character
@@ -61,18 +79,35 @@ public class SbdhWrapper {
      */
     public byte[] wrap(InputStream inputStream) {
 
+        // This is where we place the resulting output
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+
+        wrap(inputStream, byteArrayOutputStream);
+
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    /**
+     * Wraps the XML document supplied in the InputStream in a SBDH, writing the result directly to the supplied
+     * OutputStream rather than into a buffer. Only the XML events preceding the sender and receiver are buffered.
+     * The OutputStream is flushed, but not closed.
+     *
+     * The wrapped document is always encoded in UTF-8 and declared as such, whatever the encoding of the input.
+     *
+     * @param inputStream the XML document to be wrapped
+     * @param outputStream receives the wrapped document
+     */
+    public void wrap(InputStream inputStream, OutputStream outputStream) {
+
         // We start off by buffering all the XML events read from the input source
         boolean bufferTheEvents = true;
 
         // and this is where we buffer the events
         bufferedEvents = new ArrayList<XMLEvent>();
 
-        // This is where we place the resulting output
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-
         try {
             XMLEventReader xmlEventReader = XMLInputFactory.newFactory().createXMLEventReader(inputStream);
-            xmlEventWriter = XMLOutputFactory.newFactory().createXMLEventWriter(byteArrayOutputStream);
+            xmlEventWriter = XMLOutputFactory.newFactory().createXMLEventWriter(outputStream, "UTF-8");
 
             boolean startElementSeen = false;
 
@@ -176,10 +211,12 @@ public class SbdhWrapper {
                 }
             }
 
+            // Pushes whatever is held by the writer into the output stream, without closing it
+            xmlEventWriter.flush();
+
         } catch (XMLStreamException e) {
-            e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
+            throw new IllegalStateException("Unable to wrap the document with an SBDH; " + e.getMessage(), e);
         }
-        return byteArrayOutputStream.toByteArray();
     }
 
     /**
@@ -226,7 +263,8 @@ public class SbdhWrapper {
      * @throws XMLStreamException
      */
     private void emitSBDH(XMLEventWriter xmlEventWriter) throws XMLStreamException {
-        xmlEventWriter.add(eventFactory.createStartDocument());
+        // The encoding of the input is not carried over, the declaration must match the UTF-8 actually written
+        xmlEventWriter.add(eventFactory.createStartDocument("UTF-8", "1.0"));
         nl();
         StartElement standardBusinessDocument = eventFactory.createStartElement("", SBDH_URI, "StandardBusinessDocument");
         xmlEventWriter.add(standardBusinessDocument);
@@ -279,12 +317,12 @@ public class SbdhWrapper {
         simpleElement(xmlEventWriter, "TypeVersion", ublVersion);
 
         tab(3);
-        simpleElement(xmlEventWriter, "InstanceIdentifier", UUID.randomUUID().toString());
+        simpleElement(xmlEventWriter, "InstanceIdentifier", instanceIdentifier != null ? instanceIdentifier : UUID.randomUUID().toString());
         tab(3);
         simpleElement(xmlEventWriter, "Type", localName);
         tab(3);
         SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-        simpleElement(xmlEventWriter, "CreationDateAndTime", simpleDateFormat.format(new Date()));
+        simpleElement(xmlEventWriter, "CreationDateAndTime", simpleDateFormat.format(creationDateAndTime != null ? creationDateAndTime : new Date()));
         tab(2);
         xmlEventWriter.add(eventFactory.createEndElement("", SBDH_URI, "DocumentIdentification"));
         nl();
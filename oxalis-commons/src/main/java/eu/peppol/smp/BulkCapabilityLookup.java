@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2011,2012,2013,2014 UNIT4 Agresso AS.
+ *
+ * This file is part of Oxalis.
+ *
+ * Oxalis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Oxalis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Oxalis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.peppol.smp;
+
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.identifier.PeppolDocumentTypeId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Looks up the capabilities of a large number of participants concurrently, i.e. the service group of each
+ * participant followed by the end point of each document type.
+ *
+ * <ul>
+ *     <li>The total number of concurrent lookups is bounded by the number of threads.</li>
+ *     <li>The number of concurrent lookups against a single SMP is bounded as well. As every participant has a host
+ *     name of its own in the SML, the SMP is identified by the address the host name of the participant resolves to.</li>
+ *     <li>Failures are reported per participant and per document type, rather than failing the entire lookup.</li>
+ * </ul>
+ */
+public class BulkCapabilityLookup {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkCapabilityLookup.class);
+
+    private final SmpLookupManager smpLookupManager;
+    private final SmpLookupManagerImpl smpUrlSource;
+    private final int threads;
+    private final int maxConcurrentPerHost;
+
+    private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+
+    /**
+     * @param smpLookupManager     performs the actual lookups
+     * @param smpUrlSource         constructs the SML host names of the participants
+     * @param threads              maximum number of concurrent lookups
+     * @param maxConcurrentPerHost maximum number of concurrent lookups against a single SMP
+     */
+    public BulkCapabilityLookup(SmpLookupManager smpLookupManager, SmpLookupManagerImpl smpUrlSource, int threads, int maxConcurrentPerHost) {
+        if (threads < 1 || maxConcurrentPerHost < 1) {
+            throw new IllegalArgumentException("Number of threads and concurrent lookups per host must be at least 1");
+        }
+        this.smpLookupManager = smpLookupManager;
+        this.smpUrlSource = smpUrlSource;
+        this.threads = threads;
+        this.maxConcurrentPerHost = maxConcurrentPerHost;
+    }
+
+    /**
+     * Looks up the capabilities of the supplied participants, handing each result to the listener as soon as it is
+     * available. Returns once all the participants have been looked up.
+     */
+    public void lookup(Collection<ParticipantId> participantIds, CapabilityLookupListener listener) throws InterruptedException {
+        if (participantIds.isEmpty()) {
+            return;
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.min(threads, participantIds.size()), new BulkLookupThreadFactory());
+        CompletionService<ParticipantCapabilities> completionService = new ExecutorCompletionService<ParticipantCapabilities>(executorService);
+        try {
+            int submitted = 0;
+            for (final ParticipantId participantId : participantIds) {
+                completionService.submit(new Callable<ParticipantCapabilities>() {
+                    @Override
+                    public ParticipantCapabilities call() throws Exception {
+                        return lookup(participantId);
+                    }
+                });
+                submitted++;
+            }
+
+            for (int i = 0; i < submitted; i++) {
+                try {
+                    listener.onCapabilities(completionService.take().get());
+                } catch (ExecutionException e) {
+                    // Should not happen, as every failure is reported as part of the result
+                    log.error("Bulk capability lookup failed unexpectedly: " + e.getCause(), e.getCause());
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Looks up a single participant, within the concurrency limit of its SMP.
+     */
+    ParticipantCapabilities lookup(ParticipantId participantId) {
+        String smpHost;
+        try {
+            smpHost = resolveSmpHost(participantId);
+        } catch (UnknownHostException e) {
+            return new ParticipantCapabilities(participantId, null, new ParticipantNotRegisteredException(participantId));
+        } catch (Exception e) {
+            return new ParticipantCapabilities(participantId, null, e);
+        }
+
+        Semaphore permits = getPermits(smpHost);
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ParticipantCapabilities(participantId, smpHost, e);
+        }
+
+        try {
+            List<PeppolDocumentTypeId> documentTypes = smpLookupManager.getServiceGroups(participantId);
+
+            Map<PeppolDocumentTypeId, SmpLookupManager.PeppolEndpointData> endpoints = new LinkedHashMap<PeppolDocumentTypeId, SmpLookupManager.PeppolEndpointData>();
+            Map<PeppolDocumentTypeId, Exception> documentTypeErrors = new HashMap<PeppolDocumentTypeId, Exception>();
+            for (PeppolDocumentTypeId documentTypeId : documentTypes) {
+                try {
+                    endpoints.put(documentTypeId, smpLookupManager.getEndpointTransmissionData(participantId, documentTypeId));
+                } catch (Exception e) {
+                    documentTypeErrors.put(documentTypeId, e);
+                }
+            }
+            return new ParticipantCapabilities(participantId, smpHost, documentTypes, endpoints, documentTypeErrors);
+
+        } catch (Exception e) {
+            return new ParticipantCapabilities(participantId, smpHost, e);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Determines the address of the SMP serving the supplied participant, by resolving the SML host name of the participant.
+     */
+    String resolveSmpHost(ParticipantId participantId) throws SmpLookupException, UnknownHostException {
+        URL serviceGroupURL = smpUrlSource.constructServiceGroupURL(participantId);
+        return InetAddress.getByName(serviceGroupURL.getHost()).getHostAddress();
+    }
+
+    Semaphore getPermits(String smpHost) {
+        Semaphore permits = hostPermits.get(smpHost);
+        if (permits == null) {
+            Semaphore newPermits = new Semaphore(maxConcurrentPerHost);
+            permits = hostPermits.putIfAbsent(smpHost, newPermits);
+            if (permits == null) {
+                permits = newPermits;
+            }
+        }
+        return permits;
+    }
+
+    private static class BulkLookupThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "oxalis-smp-bulk-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
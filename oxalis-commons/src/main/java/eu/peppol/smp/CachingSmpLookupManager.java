@@ -0,0 +1,685 @@
+/*
+ * Copyright (c) 2011,2012,2013,2014 UNIT4 Agresso AS.
+ *
+ * This file is part of Oxalis.
+ *
+ * Oxalis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Oxalis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Oxalis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.peppol.smp;
+
+import com.google.inject.Singleton;
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.identifier.PeppolDocumentTypeId;
+import eu.peppol.identifier.PeppolProcessTypeId;
+import eu.peppol.security.SmpResponseValidator;
+import eu.peppol.util.GlobalConfiguration;
+import org.busdox.smp.SignedServiceMetadataType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe, caching decorator of {@link SmpLookupManagerImpl}.
+ *
+ * <p>The validated service meta data is cached per combination of participant and document type identifier,
+ * together with the end point data, certificate and process identifier parsed from it. Hence all the lookup
+ * methods for the same receiver are served by a single SMP round trip.</p>
+ *
+ * <ul>
+ *     <li>Entries expire after a configurable time to live, see {@link GlobalConfiguration#getSmpCacheTtl()}</li>
+ *     <li>The number of entries is bounded, the least recently used entries are evicted first</li>
+ *     <li>Concurrent misses for the same key are coalesced, i.e. only the first thread performs the lookup
+ *     while the others wait for the result.</li>
+ *     <li>Entries requested shortly before they expire are reloaded in the background, while callers keep getting
+ *     the current entry, see {@link GlobalConfiguration#getSmpCacheRefreshAhead()}</li>
+ *     <li>Expired entries are served for a limited period while being reloaded in the background, which keeps
+ *     us sending if the SMP is temporarily unreachable, see {@link GlobalConfiguration#getSmpCacheMaxStaleness()}</li>
+ * </ul>
+ *
+ * <p>Hence the SMP round trip is kept off the sending path for receivers we send to frequently.</p>
+ *
+ * <p>The contents of the cache may be saved to disk and restored upon start up, see {@link #enableSnapshot(java.io.File, boolean)}</p>
+ */
+@Singleton
+public class CachingSmpLookupManager implements SmpLookupManager {
+
+    private static final Logger log = LoggerFactory.getLogger(CachingSmpLookupManager.class);
+
+    /** Minimum number of milliseconds between background reloads of an entry, after a reload has failed */
+    static final long REFRESH_RETRY_INTERVAL = 10000;
+
+    static final int DEFAULT_BULK_THREADS = 16;
+    static final int DEFAULT_BULK_MAX_PER_HOST = 4;
+
+    private final SmpLookupManagerImpl smpLookupManager;
+    private final long timeToLive;
+    private final int maxEntries;
+    private final long refreshAhead;
+    private final long maxStaleness;
+
+    /** Reloads entries in the background, null if neither refresh ahead nor serving of stale entries is enabled */
+    private final ExecutorService refreshExecutor;
+
+    /** Earliest time of the next background reload of entries, for which the previous reload failed */
+    private final ConcurrentMap<SmpCacheEntry.Key, Long> refreshRetryAt = new ConcurrentHashMap<SmpCacheEntry.Key, Long>();
+
+    private final Map<SmpCacheEntry.Key, SmpCacheEntry> cache;
+    private final ConcurrentMap<SmpCacheEntry.Key, FutureTask<SmpCacheEntry>> lookupsInProgress = new ConcurrentHashMap<SmpCacheEntry.Key, FutureTask<SmpCacheEntry>>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong loadFailureCount = new AtomicLong();
+    private final AtomicLong totalLoadTimeNanos = new AtomicLong();
+    private final AtomicLong staleHitCount = new AtomicLong();
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong refreshFailureCount = new AtomicLong();
+
+    /** Number of threads and concurrent lookups per SMP of a bulk capability lookup */
+    private volatile int bulkThreads = DEFAULT_BULK_THREADS;
+    private volatile int bulkMaxPerHost = DEFAULT_BULK_MAX_PER_HOST;
+
+    /** File to which the cache is saved when closed, null unless snapshots have been enabled */
+    private volatile File snapshotFile;
+    private Thread snapshotShutdownHook;
+
+    /**
+     * Creates a cache without background reloading, i.e. expired entries are reloaded by the requesting thread.
+     */
+    public CachingSmpLookupManager(SmpLookupManagerImpl smpLookupManager, long timeToLive, final int maxEntries) {
+        this(smpLookupManager, timeToLive, maxEntries, 0, 0, 0);
+    }
+
+    /**
+     * @param timeToLive     milliseconds after which an entry expires
+     * @param maxEntries     maximum number of entries in the cache
+     * @param refreshAhead   milliseconds before expiry, during which a requested entry is reloaded in the background
+     * @param maxStaleness   milliseconds after expiry, during which an entry is served while reloaded in the background
+     * @param refreshThreads number of threads performing background reloads
+     */
+    public CachingSmpLookupManager(SmpLookupManagerImpl smpLookupManager, long timeToLive, final int maxEntries, long refreshAhead, long maxStaleness, int refreshThreads) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Maximum number of entries in SMP cache must be at least 1, not " + maxEntries);
+        }
+        if (refreshAhead < 0 || refreshAhead > timeToLive) {
+            throw new IllegalArgumentException("SMP cache refresh ahead must be between 0 and the time to live of " + timeToLive + "ms, not " + refreshAhead);
+        }
+        if (maxStaleness < 0) {
+            throw new IllegalArgumentException("Maximum staleness of SMP cache entries can not be negative: " + maxStaleness);
+        }
+        this.smpLookupManager = smpLookupManager;
+        this.timeToLive = timeToLive;
+        this.maxEntries = maxEntries;
+        this.refreshAhead = refreshAhead;
+        this.maxStaleness = maxStaleness;
+
+        if (refreshAhead > 0 || maxStaleness > 0) {
+            if (refreshThreads < 1) {
+                throw new IllegalArgumentException("At least 1 thread is required for reloading SMP cache entries in the background, not " + refreshThreads);
+            }
+            refreshExecutor = Executors.newFixedThreadPool(refreshThreads, new RefreshThreadFactory());
+        } else {
+            refreshExecutor = null;
+        }
+
+        // Access ordered map, which evicts the least recently used entry once the maximum size is exceeded
+        cache = Collections.synchronizedMap(new LinkedHashMap<SmpCacheEntry.Key, SmpCacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<SmpCacheEntry.Key, SmpCacheEntry> eldest) {
+                return size() > maxEntries;
+            }
+        });
+
+        log.debug("SMP cache created with time to live " + timeToLive + "ms, at most " + maxEntries + " entries, refresh ahead " + refreshAhead + "ms and max staleness " + maxStaleness + "ms");
+    }
+
+    @Override
+    public URL getEndpointAddress(ParticipantId participant, PeppolDocumentTypeId documentTypeIdentifier) {
+        return lookupOrFail(participant, documentTypeIdentifier).getEndpointData().getUrl();
+    }
+
+    @Override
+    public X509Certificate getEndpointCertificate(ParticipantId participant, PeppolDocumentTypeId documentTypeIdentifier) {
+        return lookupOrFail(participant, documentTypeIdentifier).getCertificate();
+    }
+
+    /**
+     * Service groups are not cached, as they are only used when inspecting the capabilities of a participant.
+     */
+    @Override
+    public List<PeppolDocumentTypeId> getServiceGroups(ParticipantId participantId) throws SmpLookupException, ParticipantNotRegisteredException {
+        return smpLookupManager.getServiceGroups(participantId);
+    }
+
+    /**
+     * The end points are looked up using, and stored in, the cache.
+     */
+    @Override
+    public void getCapabilities(Collection<ParticipantId> participantIds, CapabilityLookupListener listener) throws InterruptedException {
+        new BulkCapabilityLookup(this, smpLookupManager, bulkThreads, bulkMaxPerHost).lookup(participantIds, listener);
+    }
+
+    /**
+     * @param threads    number of threads performing the lookups of a bulk capability lookup
+     * @param maxPerHost maximum number of concurrent lookups against a single SMP
+     */
+    public void setBulkLookupLimits(int threads, int maxPerHost) {
+        if (threads < 1 || maxPerHost < 1) {
+            throw new IllegalArgumentException("Bulk capability lookups require at least 1 thread and 1 lookup per SMP, not " + threads + " and " + maxPerHost);
+        }
+        this.bulkThreads = threads;
+        this.bulkMaxPerHost = maxPerHost;
+    }
+
+    @Override
+    public PeppolEndpointData getEndpointTransmissionData(ParticipantId participantId, PeppolDocumentTypeId documentTypeIdentifier) {
+        return lookupOrFail(participantId, documentTypeIdentifier).getEndpointData();
+    }
+
+    @Override
+    public SignedServiceMetadataType getServiceMetaData(ParticipantId participant, PeppolDocumentTypeId documentTypeIdentifier) throws SmpSignedServiceMetaDataException {
+        return lookup(participant, documentTypeIdentifier).getServiceMetadata();
+    }
+
+    public PeppolProcessTypeId getProcessIdentifierForDocumentType(ParticipantId participantId, PeppolDocumentTypeId documentTypeIdentifier) throws SmpSignedServiceMetaDataException {
+        return lookup(participantId, documentTypeIdentifier).getProcessTypeId();
+    }
+
+    /** Removes the cached SMP data for the given participant and document type, if any */
+    public void invalidate(ParticipantId participantId, PeppolDocumentTypeId documentTypeIdentifier) {
+        SmpCacheEntry.Key key = new SmpCacheEntry.Key(participantId, documentTypeIdentifier);
+        cache.remove(key);
+        refreshRetryAt.remove(key);
+    }
+
+    /** Removes all cached SMP data */
+    public void invalidateAll() {
+        cache.clear();
+        refreshRetryAt.clear();
+    }
+
+    /**
+     * Stops the background reloading of entries. Reloads in progress are allowed to complete.
+     * The cache is saved to disk, if snapshots have been enabled.
+     */
+    public synchronized void close() {
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdown();
+        }
+
+        if (snapshotFile != null) {
+            saveSnapshotQuietly(snapshotFile);
+            snapshotFile = null;
+
+            // Removes the hook unless we are invoked by it
+            if (Thread.currentThread() != snapshotShutdownHook) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(snapshotShutdownHook);
+                } catch (IllegalStateException e) {
+                    // JVM is already shutting down
+                }
+            }
+        }
+    }
+
+    /**
+     * Restores the cache from the supplied snapshot file, if it exists, and saves the cache to the same file
+     * when closed or when the JVM shuts down.
+     *
+     * @param file    the snapshot file
+     * @param trusted if true, the signatures of the SMP responses held in the snapshot are not verified
+     */
+    public synchronized void enableSnapshot(File file, boolean trusted) {
+        if (file.isFile()) {
+            try {
+                int restored = loadSnapshot(file, trusted);
+                log.info("Restored " + restored + " SMP cache entries from " + file);
+            } catch (IOException e) {
+                log.warn("Unable to restore the SMP cache from " + file + "; " + e.getMessage(), e);
+            }
+        }
+
+        if (snapshotFile == null) {
+            snapshotShutdownHook = new Thread("oxalis-smp-cache-snapshot") {
+                @Override
+                public void run() {
+                    close();
+                }
+            };
+            Runtime.getRuntime().addShutdownHook(snapshotShutdownHook);
+        }
+        snapshotFile = file;
+    }
+
+    /**
+     * Writes the current contents of the cache to the supplied file.
+     *
+     * @return number of entries written
+     */
+    public int saveSnapshot(File file) throws IOException {
+        List<SmpCacheEntry> entries;
+        synchronized (cache) {
+            entries = new ArrayList<SmpCacheEntry>(cache.values());
+        }
+        return SmpCacheSnapshot.write(entries, file);
+    }
+
+    /**
+     * Adds the entries held in the supplied snapshot file to the cache. Entries having expired beyond the maximum
+     * staleness are skipped, as are entries whose signature can not be verified, unless the snapshot is trusted.
+     * Entries already present in the cache are retained.
+     *
+     * @param file    the snapshot file
+     * @param trusted if true, the signatures of the SMP responses held in the snapshot are not verified
+     * @return number of entries added to the cache
+     */
+    public int loadSnapshot(File file, boolean trusted) throws IOException {
+        long now = System.currentTimeMillis();
+        int restored = 0;
+
+        for (SmpCacheSnapshot.Record record : SmpCacheSnapshot.read(file)) {
+            if (now - record.getFetchedAt() >= timeToLive + maxStaleness) {
+                continue;
+            }
+            try {
+                SmpCacheEntry entry = restore(record, trusted);
+                if (entry == null) {
+                    continue;
+                }
+                synchronized (cache) {
+                    if (!cache.containsKey(record.getKey())) {
+                        cache.put(record.getKey(), entry);
+                        restored++;
+                    }
+                }
+            } catch (Exception e) {
+                log.warn("Unable to restore SMP cache entry for " + record.getKey() + "; " + e.getMessage());
+            }
+        }
+        return restored;
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public Statistics getStatistics() {
+        return new Statistics(hitCount.get(), missCount.get(), coalescedCount.get(), loadCount.get(), loadFailureCount.get(), totalLoadTimeNanos.get(), cache.size(),
+                staleHitCount.get(), refreshCount.get(), refreshFailureCount.get());
+    }
+
+    /**
+     * Provides the cache entry for the supplied participant and document type, performing an SMP lookup if the
+     * entry is not cached or has expired beyond the maximum staleness. Entries about to expire, or which have
+     * expired recently, are returned immediately and reloaded in the background.
+     */
+    SmpCacheEntry lookup(final ParticipantId participantId, final PeppolDocumentTypeId documentTypeIdentifier) throws SmpSignedServiceMetaDataException {
+        final SmpCacheEntry.Key key = new SmpCacheEntry.Key(participantId, documentTypeIdentifier);
+
+        SmpCacheEntry entry = cache.get(key);
+        if (entry != null) {
+            long age = entry.getAge(System.currentTimeMillis());
+            if (age < timeToLive - refreshAhead) {
+                hitCount.incrementAndGet();
+                return entry;
+            } else if (age < timeToLive) {
+                hitCount.incrementAndGet();
+                refreshInBackground(key);
+                return entry;
+            } else if (age < timeToLive + maxStaleness) {
+                hitCount.incrementAndGet();
+                staleHitCount.incrementAndGet();
+                refreshInBackground(key);
+                return entry;
+            }
+        }
+        missCount.incrementAndGet();
+
+        FutureTask<SmpCacheEntry> lookupTask = createLookupTask(key);
+
+        FutureTask<SmpCacheEntry> lookupInProgress = lookupsInProgress.putIfAbsent(key, lookupTask);
+        if (lookupInProgress == null) {
+            // We are the first, performs the lookup in the current thread
+            try {
+                lookupTask.run();
+            } finally {
+                lookupsInProgress.remove(key, lookupTask);
+            }
+            lookupInProgress = lookupTask;
+        } else {
+            coalescedCount.incrementAndGet();
+        }
+
+        return waitFor(lookupInProgress, key);
+    }
+
+    /**
+     * Retrieves the service meta data from the SMP and parses it.
+     */
+    SmpCacheEntry load(SmpCacheEntry.Key key) throws SmpSignedServiceMetaDataException {
+        long start = System.nanoTime();
+        try {
+            Document document = smpLookupManager.getSignedServiceMetaDataDocument(key.getParticipantId(), key.getDocumentTypeId());
+
+            SignedServiceMetadataType serviceMetadata;
+            try {
+                serviceMetadata = smpLookupManager.parseSmpResponseIntoSignedServiceMetadataType(document);
+            } catch (Exception e) {
+                throw new SmpSignedServiceMetaDataException(key.getParticipantId(), key.getDocumentTypeId(), null, e);
+            }
+
+            SmpCacheEntry entry = createEntry(key, serviceMetadata, System.currentTimeMillis(), SmpCacheSnapshot.toBytes(document));
+
+            loadCount.incrementAndGet();
+            return entry;
+        } catch (SmpSignedServiceMetaDataException e) {
+            loadFailureCount.incrementAndGet();
+            throw e;
+        } catch (RuntimeException e) {
+            loadFailureCount.incrementAndGet();
+            throw e;
+        } finally {
+            totalLoadTimeNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Parses and, unless trusted, verifies the SMP response held in a snapshot record.
+     *
+     * @return the restored entry or null if the signature is invalid
+     */
+    SmpCacheEntry restore(SmpCacheSnapshot.Record record, boolean trusted) throws Exception {
+        Document document = smpLookupManager.createXmlDocument(new InputSource(new ByteArrayInputStream(record.getSignedResponse())));
+
+        if (!trusted && !new SmpResponseValidator(document).isSmpSignatureValid()) {
+            log.warn("Invalid signature of SMP response for " + record.getKey() + " in snapshot, entry ignored");
+            return null;
+        }
+
+        SignedServiceMetadataType serviceMetadata = smpLookupManager.parseSmpResponseIntoSignedServiceMetadataType(document);
+        return createEntry(record.getKey(), serviceMetadata, record.getFetchedAt(), record.getSignedResponse());
+    }
+
+    /**
+     * Reloads the entry for the supplied key using the background executor, unless a lookup of the key is already
+     * in progress or the previous background reload failed less than {@link #REFRESH_RETRY_INTERVAL} ago.
+     * The current entry is kept in the cache if the reload fails.
+     */
+    void refreshInBackground(final SmpCacheEntry.Key key) {
+        if (refreshExecutor == null) {
+            return;
+        }
+        Long retryAt = refreshRetryAt.get(key);
+        if (retryAt != null && System.currentTimeMillis() < retryAt) {
+            return;
+        }
+
+        final FutureTask<SmpCacheEntry> refreshTask = createLookupTask(key);
+        if (lookupsInProgress.putIfAbsent(key, refreshTask) != null) {
+            return;     // Somebody else is already loading this entry
+        }
+
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refreshTask.run();
+                    } finally {
+                        lookupsInProgress.remove(key, refreshTask);
+                    }
+                    try {
+                        refreshTask.get();
+                        refreshCount.incrementAndGet();
+                        refreshRetryAt.remove(key);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException e) {
+                        refreshFailureCount.incrementAndGet();
+                        refreshRetryAt.put(key, System.currentTimeMillis() + REFRESH_RETRY_INTERVAL);
+                        log.warn("Background reload of SMP data for " + key + " failed, keeps using the cached entry. " + e.getCause(), e.getCause());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The executor has been shut down, the entry will be reloaded when it has expired
+            lookupsInProgress.remove(key, refreshTask);
+        }
+    }
+
+    long getTimeToLive() {
+        return timeToLive;
+    }
+
+    long getRefreshAhead() {
+        return refreshAhead;
+    }
+
+    long getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    int getMaxEntries() {
+        return maxEntries;
+    }
+
+    SmpLookupManagerImpl getSmpLookupManager() {
+        return smpLookupManager;
+    }
+
+    Map<SmpCacheEntry.Key, SmpCacheEntry> getCache() {
+        return cache;
+    }
+
+    /**
+     * Same semantics as {@link SmpLookupManagerImpl}, i.e. any problems are reported as unchecked exceptions.
+     */
+    private SmpCacheEntry lookupOrFail(ParticipantId participantId, PeppolDocumentTypeId documentTypeIdentifier) {
+        try {
+            return lookup(participantId, documentTypeIdentifier);
+        } catch (SmpSignedServiceMetaDataException e) {
+            throw new RuntimeException("Problem with SMP lookup", e);
+        }
+    }
+
+    private SmpCacheEntry createEntry(SmpCacheEntry.Key key, SignedServiceMetadataType serviceMetadata, long fetchedAt, byte[] signedResponse) {
+        return new SmpCacheEntry(key,
+                serviceMetadata,
+                smpLookupManager.createEndpointData(key.getParticipantId(), key.getDocumentTypeId(), serviceMetadata),
+                smpLookupManager.getEndpointCertificate(serviceMetadata),
+                smpLookupManager.getProcessIdentifier(serviceMetadata),
+                fetchedAt,
+                signedResponse);
+    }
+
+    private void saveSnapshotQuietly(File file) {
+        try {
+            int saved = saveSnapshot(file);
+            log.info("Saved " + saved + " SMP cache entries to " + file);
+        } catch (IOException e) {
+            log.warn("Unable to save the SMP cache to " + file + "; " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Creates a task, which loads the entry for the supplied key from the SMP and stores it in the cache.
+     */
+    private FutureTask<SmpCacheEntry> createLookupTask(final SmpCacheEntry.Key key) {
+        return new FutureTask<SmpCacheEntry>(new Callable<SmpCacheEntry>() {
+            @Override
+            public SmpCacheEntry call() throws Exception {
+                SmpCacheEntry loadedEntry = load(key);
+                cache.put(key, loadedEntry);
+                return loadedEntry;
+            }
+        });
+    }
+
+    private SmpCacheEntry waitFor(FutureTask<SmpCacheEntry> lookupTask, SmpCacheEntry.Key key) throws SmpSignedServiceMetaDataException {
+        try {
+            return lookupTask.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for SMP lookup of " + key, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SmpSignedServiceMetaDataException) {
+                throw (SmpSignedServiceMetaDataException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IllegalStateException("SMP lookup of " + key + " failed: " + cause, cause);
+            }
+        }
+    }
+
+    /**
+     * Snapshot of the SMP cache counters.
+     */
+    public static class Statistics {
+
+        private final long hitCount;
+        private final long missCount;
+        private final long coalescedCount;
+        private final long loadCount;
+        private final long loadFailureCount;
+        private final long totalLoadTimeNanos;
+        private final int size;
+        private final long staleHitCount;
+        private final long refreshCount;
+        private final long refreshFailureCount;
+
+        Statistics(long hitCount, long missCount, long coalescedCount, long loadCount, long loadFailureCount, long totalLoadTimeNanos, int size,
+                   long staleHitCount, long refreshCount, long refreshFailureCount) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.coalescedCount = coalescedCount;
+            this.loadCount = loadCount;
+            this.loadFailureCount = loadFailureCount;
+            this.totalLoadTimeNanos = totalLoadTimeNanos;
+            this.size = size;
+            this.staleHitCount = staleHitCount;
+            this.refreshCount = refreshCount;
+            this.refreshFailureCount = refreshFailureCount;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        /** Number of misses, which waited for a lookup already in progress rather than performing their own */
+        public long getCoalescedCount() {
+            return coalescedCount;
+        }
+
+        public long getLoadCount() {
+            return loadCount;
+        }
+
+        public long getLoadFailureCount() {
+            return loadFailureCount;
+        }
+
+        public long getTotalLoadTimeNanos() {
+            return totalLoadTimeNanos;
+        }
+
+        public double getAverageLoadTimeMillis() {
+            long loads = loadCount + loadFailureCount;
+            return loads == 0 ? 0.0 : (totalLoadTimeNanos / 1000000.0) / loads;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        /** Number of hits served with an expired entry, while the entry was reloaded in the background */
+        public long getStaleHitCount() {
+            return staleHitCount;
+        }
+
+        /** Number of successful background reloads */
+        public long getRefreshCount() {
+            return refreshCount;
+        }
+
+        public long getRefreshFailureCount() {
+            return refreshFailureCount;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder("Statistics{");
+            sb.append("hits=").append(hitCount);
+            sb.append(", misses=").append(missCount);
+            sb.append(", coalesced=").append(coalescedCount);
+            sb.append(", loads=").append(loadCount);
+            sb.append(", loadFailures=").append(loadFailureCount);
+            sb.append(", averageLoadTime=").append(String.format("%.1fms", getAverageLoadTimeMillis()));
+            sb.append(", size=").append(size);
+            sb.append(", staleHits=").append(staleHitCount);
+            sb.append(", refreshes=").append(refreshCount);
+            sb.append(", refreshFailures=").append(refreshFailureCount);
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Creates daemon threads, so that background reloading never prevents the JVM from exiting.
+     */
+    private static class RefreshThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "oxalis-smp-refresh-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
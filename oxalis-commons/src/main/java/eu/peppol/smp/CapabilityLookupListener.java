@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2011,2012,2013,2014 UNIT4 Agresso AS.
+ *
+ * This file is part of Oxalis.
+ *
+ * Oxalis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Oxalis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Oxalis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.peppol.smp;
+
+/**
+ * Receives the results of a bulk capability lookup, see {@link SmpLookupManager#getCapabilities(java.util.Collection, CapabilityLookupListener)}
+ *
+ * <p>The listener is invoked by the thread which initiated the lookup, once for every participant, in the order
+ * in which the lookups complete.</p>
+ */
+public interface CapabilityLookupListener {
+
+    void onCapabilities(ParticipantCapabilities participantCapabilities);
+}
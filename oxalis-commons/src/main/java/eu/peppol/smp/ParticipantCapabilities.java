@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2011,2012,2013,2014 UNIT4 Agresso AS.
+ *
+ * This file is part of Oxalis.
+ *
+ * Oxalis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Oxalis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Oxalis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.peppol.smp;
+
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.identifier.PeppolDocumentTypeId;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of looking up the capabilities of a single participant, i.e. the document types it accepts and the end
+ * point for each of them.
+ *
+ * <p>A failure to look up the participant, like for instance the participant not being registered in the SML, is
+ * reported by {@link #getError()}, while failures to look up individual document types are reported by
+ * {@link #getDocumentTypeErrors()}.</p>
+ */
+public class ParticipantCapabilities {
+
+    private final ParticipantId participantId;
+    private final String smpHost;
+    private final List<PeppolDocumentTypeId> documentTypes;
+    private final Map<PeppolDocumentTypeId, SmpLookupManager.PeppolEndpointData> endpoints;
+    private final Map<PeppolDocumentTypeId, Exception> documentTypeErrors;
+    private final Exception error;
+
+    ParticipantCapabilities(ParticipantId participantId, String smpHost, List<PeppolDocumentTypeId> documentTypes, Map<PeppolDocumentTypeId, SmpLookupManager.PeppolEndpointData> endpoints, Map<PeppolDocumentTypeId, Exception> documentTypeErrors) {
+        this.participantId = participantId;
+        this.smpHost = smpHost;
+        this.documentTypes = Collections.unmodifiableList(documentTypes);
+        this.endpoints = Collections.unmodifiableMap(endpoints);
+        this.documentTypeErrors = Collections.unmodifiableMap(documentTypeErrors);
+        this.error = null;
+    }
+
+    ParticipantCapabilities(ParticipantId participantId, String smpHost, Exception error) {
+        this.participantId = participantId;
+        this.smpHost = smpHost;
+        this.documentTypes = Collections.emptyList();
+        this.endpoints = Collections.emptyMap();
+        this.documentTypeErrors = Collections.emptyMap();
+        this.error = error;
+    }
+
+    public ParticipantId getParticipantId() {
+        return participantId;
+    }
+
+    /** The address of the SMP serving the participant, or null if it could not be determined */
+    public String getSmpHost() {
+        return smpHost;
+    }
+
+    /** The document types accepted by the participant, according to the service group */
+    public List<PeppolDocumentTypeId> getDocumentTypes() {
+        return documentTypes;
+    }
+
+    /** End point data for each document type, which could be looked up successfully */
+    public Map<PeppolDocumentTypeId, SmpLookupManager.PeppolEndpointData> getEndpoints() {
+        return endpoints;
+    }
+
+    /** The errors encountered for each document type, which could not be looked up */
+    public Map<PeppolDocumentTypeId, Exception> getDocumentTypeErrors() {
+        return documentTypeErrors;
+    }
+
+    /** The error encountered when looking up the participant, null if successful */
+    public Exception getError() {
+        return error;
+    }
+
+    /** Whether the participant and all of its document types were looked up successfully */
+    public boolean isSuccess() {
+        return error == null && documentTypeErrors.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("ParticipantCapabilities{");
+        sb.append("participantId=").append(participantId);
+        sb.append(", smpHost=").append(smpHost);
+        if (error != null) {
+            sb.append(", error=").append(error);
+        } else {
+            sb.append(", documentTypes=").append(documentTypes.size());
+            sb.append(", endpoints=").append(endpoints.size());
+            sb.append(", documentTypeErrors=").append(documentTypeErrors.size());
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+}
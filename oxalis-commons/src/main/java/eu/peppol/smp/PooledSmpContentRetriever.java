@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2011,2012,2013,2014 UNIT4 Agresso AS.
+ *
+ * This file is part of Oxalis.
+ *
+ * Oxalis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Oxalis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Oxalis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.peppol.smp;
+
+import eu.peppol.util.ConnectionException;
+import eu.peppol.util.TryAgainLaterException;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link SmpContentRetriever} using a pool of keep-alive HTTP connections.
+ *
+ * <ul>
+ *     <li>Connect and read timeouts are applied, see {@link eu.peppol.util.GlobalConfiguration#getConnectTimeout()}
+ *     and {@link eu.peppol.util.GlobalConfiguration#getReadTimeout()}</li>
+ *     <li>gzip and deflate are announced using the Accept-Encoding header and decompressed transparently</li>
+ *     <li>The response body is handed over to the XML parser as a stream of bytes, allowing the parser to honour the
+ *     encoding of the XML declaration. The connection is returned to the pool once the parser closes the stream.</li>
+ *     <li>Latency is recorded per SMP host, see {@link #getHostStatistics()}</li>
+ * </ul>
+ */
+public class PooledSmpContentRetriever implements SmpContentRetriever {
+
+    private static final Logger log = LoggerFactory.getLogger(PooledSmpContentRetriever.class);
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final long idleTimeoutInMillis;
+    private final AtomicLong lastEviction = new AtomicLong(System.currentTimeMillis());
+
+    private final ConcurrentMap<String, HostStatistics> hostStatistics = new ConcurrentHashMap<String, HostStatistics>();
+
+    public PooledSmpContentRetriever(int connectTimeout, int readTimeout, int maxTotal, int maxPerRoute, long idleTimeoutInMillis) {
+        this.idleTimeoutInMillis = idleTimeoutInMillis;
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .build();
+
+        // Content compression is enabled by default, i.e. Accept-Encoding is sent and responses are decompressed
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .disableConnectionState()
+                .build();
+
+        log.debug("Pooled SMP content retriever created; connect timeout=" + connectTimeout + "ms, read timeout=" + readTimeout + "ms, max total=" + maxTotal + ", max per route=" + maxPerRoute);
+    }
+
+    /**
+     * Gets the XML content of a given url, wrapped in an InputSource object holding the byte stream of the response.
+     * The caller must close the byte stream in order to release the connection.
+     */
+    @Override
+    public InputSource getUrlContent(URL url) {
+
+        evictIdleConnections();
+
+        String host = url.getHost().toLowerCase();
+        long start = System.nanoTime();
+
+        CloseableHttpResponse response;
+        try {
+            response = httpClient.execute(new HttpGet(url.toExternalForm()));
+        } catch (IOException e) {
+            getHostStatistics(host).recordFailure(System.nanoTime() - start);
+            throw new IllegalStateException("Unable to connect to " + url + " ; " + e.getMessage(), e);
+        }
+
+        try {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != HttpStatus.SC_OK) {
+                getHostStatistics(host).recordFailure(System.nanoTime() - start);
+
+                // Consumes the entity, thus allowing the connection to be re-used
+                EntityUtils.consumeQuietly(response.getEntity());
+                closeQuietly(response);
+
+                if (statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+                    Header retryAfter = response.getFirstHeader("Retry-After");
+                    throw new TryAgainLaterException(url, retryAfter != null ? retryAfter.getValue() : null);
+                }
+                throw new ConnectionException(url, statusCode);
+            }
+
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                closeQuietly(response);
+                throw new IllegalStateException("No content received from " + url);
+            }
+
+            InputSource inputSource = new InputSource(entity.getContent());
+            inputSource.setSystemId(url.toExternalForm());
+
+            // Only overrides the encoding of the XML declaration if the server told us explicitly
+            ContentType contentType = ContentType.get(entity);
+            if (contentType != null) {
+                Charset charset = contentType.getCharset();
+                if (charset != null) {
+                    inputSource.setEncoding(charset.name());
+                }
+            }
+
+            // Time to first byte, as the body is read by the parser
+            getHostStatistics(host).recordSuccess(System.nanoTime() - start);
+            return inputSource;
+
+        } catch (IOException e) {
+            getHostStatistics(host).recordFailure(System.nanoTime() - start);
+            closeQuietly(response);
+            throw new RuntimeException("Problem reading URL data at " + url.toExternalForm(), e);
+        } catch (RuntimeException e) {
+            closeQuietly(response);
+            throw e;
+        }
+    }
+
+    /**
+     * Latency statistics for each SMP host, keyed by host name.
+     */
+    public Map<String, HostStatistics> getHostStatistics() {
+        return Collections.unmodifiableMap(new HashMap<String, HostStatistics>(hostStatistics));
+    }
+
+    /**
+     * Closes all the pooled connections.
+     */
+    public void close() {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            log.warn("Unable to close the SMP http client: " + e.getMessage(), e);
+        }
+        connectionManager.shutdown();
+    }
+
+    PoolingHttpClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    HostStatistics getHostStatistics(String host) {
+        HostStatistics statistics = hostStatistics.get(host);
+        if (statistics == null) {
+            HostStatistics newStatistics = new HostStatistics(host);
+            statistics = hostStatistics.putIfAbsent(host, newStatistics);
+            if (statistics == null) {
+                statistics = newStatistics;
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Closes expired and idle connections, at most once every idle timeout period. Performed by the calling thread
+     * in order to avoid a separate eviction thread.
+     */
+    private void evictIdleConnections() {
+        long now = System.currentTimeMillis();
+        long last = lastEviction.get();
+        if (now - last >= idleTimeoutInMillis && lastEviction.compareAndSet(last, now)) {
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(idleTimeoutInMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void closeQuietly(CloseableHttpResponse response) {
+        try {
+            response.close();
+        } catch (IOException e) {
+            // Ignore any problems related to closing of the response
+        }
+    }
+
+    /**
+     * Thread safe latency counters for a single SMP host.
+     */
+    public static class HostStatistics {
+
+        private final String host;
+        private final AtomicLong requestCount = new AtomicLong();
+        private final AtomicLong failureCount = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        HostStatistics(String host) {
+            this.host = host;
+        }
+
+        void recordSuccess(long nanos) {
+            record(nanos);
+        }
+
+        void recordFailure(long nanos) {
+            failureCount.incrementAndGet();
+            record(nanos);
+        }
+
+        private void record(long nanos) {
+            requestCount.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+
+            long max;
+            do {
+                max = maxNanos.get();
+            } while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public long getRequestCount() {
+            return requestCount.get();
+        }
+
+        public long getFailureCount() {
+            return failureCount.get();
+        }
+
+        public double getAverageLatencyMillis() {
+            long requests = requestCount.get();
+            return requests == 0 ? 0.0 : (totalNanos.get() / 1000000.0) / requests;
+        }
+
+        public double getMaxLatencyMillis() {
+            return maxNanos.get() / 1000000.0;
+        }
+
+        @Override
+        public String toString() {
+            return "HostStatistics{" +
+                    "host=" + host +
+                    ", requests=" + requestCount +
+                    ", failures=" + failureCount +
+                    ", averageLatency=" + String.format("%.1fms", getAverageLatencyMillis()) +
+                    ", maxLatency=" + String.format("%.1fms", getMaxLatencyMillis()) +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2011,2012,2013,2014 UNIT4 Agresso AS.
+ *
+ * This file is part of Oxalis.
+ *
+ * Oxalis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Oxalis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Oxalis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.peppol.smp;
+
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.identifier.PeppolDocumentTypeId;
+import eu.peppol.identifier.PeppolProcessTypeId;
+import org.busdox.smp.SignedServiceMetadataType;
+
+import java.security.cert.X509Certificate;
+
+/**
+ * Immutable result of a single SMP lookup for a combination of participant and document type identifier. Holds
+ * the validated service meta data together with the data parsed from it, thus avoiding repeated parsing.
+ * The signed response is retained in order for the entry to be written to, and verified when read from,
+ * a {@link SmpCacheSnapshot}.
+ */
+class SmpCacheEntry {
+
+    private final Key key;
+    private final SignedServiceMetadataType serviceMetadata;
+    private final SmpLookupManager.PeppolEndpointData endpointData;
+    private final X509Certificate certificate;
+    private final PeppolProcessTypeId processTypeId;
+    private final long fetchedAt;
+    private final byte[] signedResponse;
+
+    SmpCacheEntry(Key key, SignedServiceMetadataType serviceMetadata, SmpLookupManager.PeppolEndpointData endpointData, X509Certificate certificate, PeppolProcessTypeId processTypeId, long fetchedAt, byte[] signedResponse) {
+        this.key = key;
+        this.serviceMetadata = serviceMetadata;
+        this.endpointData = endpointData;
+        this.certificate = certificate;
+        this.processTypeId = processTypeId;
+        this.fetchedAt = fetchedAt;
+        this.signedResponse = signedResponse;
+    }
+
+    Key getKey() {
+        return key;
+    }
+
+    SignedServiceMetadataType getServiceMetadata() {
+        return serviceMetadata;
+    }
+
+    SmpLookupManager.PeppolEndpointData getEndpointData() {
+        return endpointData;
+    }
+
+    X509Certificate getCertificate() {
+        return certificate;
+    }
+
+    PeppolProcessTypeId getProcessTypeId() {
+        return processTypeId;
+    }
+
+    /** Time stamp in milliseconds of when the SMP response was fetched */
+    long getFetchedAt() {
+        return fetchedAt;
+    }
+
+    /** The signed SMP response as received, allowing the signature to be verified when restored from a snapshot */
+    byte[] getSignedResponse() {
+        return signedResponse;
+    }
+
+    long getAge(long now) {
+        return now - fetchedAt;
+    }
+
+    boolean isExpired(long now, long timeToLive) {
+        return getAge(now) >= timeToLive;
+    }
+
+    @Override
+    public String toString() {
+        return "SmpCacheEntry{" + key + ", " + endpointData + ", fetchedAt=" + fetchedAt + '}';
+    }
+
+    /**
+     * Cache key composed of the participant and the document type identifier.
+     */
+    static class Key {
+
+        private final ParticipantId participantId;
+        private final PeppolDocumentTypeId documentTypeId;
+
+        Key(ParticipantId participantId, PeppolDocumentTypeId documentTypeId) {
+            if (participantId == null || documentTypeId == null) {
+                throw new IllegalArgumentException("Both participant id and document type id are required");
+            }
+            this.participantId = participantId;
+            this.documentTypeId = documentTypeId;
+        }
+
+        ParticipantId getParticipantId() {
+            return participantId;
+        }
+
+        PeppolDocumentTypeId getDocumentTypeId() {
+            return documentTypeId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+
+            if (!documentTypeId.equals(key.documentTypeId)) return false;
+            if (!participantId.equals(key.participantId)) return false;
+
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = participantId.hashCode();
+            result = 31 * result + documentTypeId.hashCode();
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return participantId + "/" + documentTypeId;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2011,2012,2013,2014 UNIT4 Agresso AS.
+ *
+ * This file is part of Oxalis.
+ *
+ * Oxalis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Oxalis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Oxalis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.peppol.smp;
+
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.identifier.PeppolDocumentTypeId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes the contents of the SMP cache from and to a compact, compressed file, allowing the cache to be
+ * restored when Oxalis is restarted.
+ *
+ * <p>Only the identifiers, the time of retrieval and the signed SMP response are written. The end point data,
+ * certificate and process identifier are parsed from the SMP response once it has been read, after the signature
+ * has been verified unless the snapshot is trusted. See {@link CachingSmpLookupManager#loadSnapshot(java.io.File, boolean)}</p>
+ *
+ * <p>The file is written to a temporary file, which is renamed once completed, hence a crash will never leave
+ * a partially written snapshot behind.</p>
+ */
+class SmpCacheSnapshot {
+
+    private static final Logger log = LoggerFactory.getLogger(SmpCacheSnapshot.class);
+
+    /** "OXSC" */
+    static final int MAGIC = 0x4f585343;
+    static final int VERSION = 1;
+
+    /**
+     * Writes the supplied entries to the given file, replacing any existing snapshot.
+     *
+     * @return number of entries written
+     */
+    static int write(Collection<SmpCacheEntry> entries, File file) throws IOException {
+        File tempFile = new File(file.getAbsolutePath() + ".tmp");
+
+        int written = 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tempFile))));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (SmpCacheEntry entry : entries) {
+                out.writeUTF(entry.getKey().getParticipantId().stringValue());
+                out.writeUTF(entry.getKey().getDocumentTypeId().toString());
+                out.writeLong(entry.getFetchedAt());
+                out.writeInt(entry.getSignedResponse().length);
+                out.write(entry.getSignedResponse());
+                written++;
+            }
+        } finally {
+            out.close();
+        }
+
+        // File.renameTo() will not replace an existing file on all platforms
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to replace SMP cache snapshot " + file);
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Unable to rename " + tempFile + " to " + file);
+        }
+
+        log.debug("Wrote " + written + " SMP cache entries to " + file);
+        return written;
+    }
+
+    /**
+     * Reads all the records held in the supplied snapshot file.
+     */
+    static List<Record> read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+        try {
+            int magic = in.readInt();
+            if (magic != MAGIC) {
+                throw new IOException(file + " is not an SMP cache snapshot");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported SMP cache snapshot version " + version + " in " + file);
+            }
+
+            int count = in.readInt();
+            List<Record> records = new ArrayList<Record>(count);
+            for (int i = 0; i < count; i++) {
+                ParticipantId participantId = new ParticipantId(in.readUTF());
+                PeppolDocumentTypeId documentTypeId = PeppolDocumentTypeId.valueOf(in.readUTF());
+                long fetchedAt = in.readLong();
+                byte[] signedResponse = new byte[in.readInt()];
+                in.readFully(signedResponse);
+
+                records.add(new Record(new SmpCacheEntry.Key(participantId, documentTypeId), fetchedAt, signedResponse));
+            }
+            return records;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Serializes the signed SMP response as is, without any formatting, which would otherwise break the signature.
+     */
+    static byte[] toBytes(Document document) {
+        try {
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(8192);
+            transformer.transform(new DOMSource(document), new StreamResult(byteArrayOutputStream));
+            return byteArrayOutputStream.toByteArray();
+        } catch (TransformerException e) {
+            throw new IllegalStateException("Unable to serialize SMP response: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * A single entry read from a snapshot, not yet verified nor parsed.
+     */
+    static class Record {
+
+        private final SmpCacheEntry.Key key;
+        private final long fetchedAt;
+        private final byte[] signedResponse;
+
+        Record(SmpCacheEntry.Key key, long fetchedAt, byte[] signedResponse) {
+            this.key = key;
+            this.fetchedAt = fetchedAt;
+            this.signedResponse = signedResponse;
+        }
+
+        SmpCacheEntry.Key getKey() {
+            return key;
+        }
+
+        long getFetchedAt() {
+            return fetchedAt;
+        }
+
+        byte[] getSignedResponse() {
+            return signedResponse;
+        }
+    }
+}
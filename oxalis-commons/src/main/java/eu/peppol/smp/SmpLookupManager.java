@@ -8,6 +8,7 @@ import org.busdox.smp.SignedServiceMetadataType;
 
 import java.net.URL;
 import java.security.cert.X509Certificate;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -35,6 +36,16 @@ public interface SmpLookupManager {
 
     SignedServiceMetadataType getServiceMetaData(ParticipantId participant, PeppolDocumentTypeId documentTypeIdentifier) throws SmpSignedServiceMetaDataException;
 
+    /**
+     * Looks up the service groups, and the end point of every document type, of a large number of participants
+     * concurrently. The results are handed to the listener as they complete, failures being reported per
+     * participant and per document type.
+     *
+     * @param participantIds the participants to be looked up
+     * @param listener receives the result for every participant
+     */
+    void getCapabilities(Collection<ParticipantId> participantIds, CapabilityLookupListener listener) throws InterruptedException;
+
 
     public static class PeppolEndpointData {
         URL url;
@@ -57,9 +57,11 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * Thread safe implementation of {@link SmpLookupManager}
@@ -83,18 +85,50 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
     // Keeping the SMP content retriever in a separate class allows for unit testing
     private final SmpContentRetriever smpContentRetriever;
     private final BusDoxProtocolSelectionStrategy busDoxProtocolSelectionStrategy;
+    private final SmpRequestHedger smpRequestHedger;
+
+    // DocumentBuilder is not thread safe, but may be re-used by the same thread, thus avoiding the costly factory lookup
+    private static final ThreadLocal<DocumentBuilder> documentBuilders = new ThreadLocal<DocumentBuilder>() {
+        @Override
+        protected DocumentBuilder initialValue() {
+            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+            documentBuilderFactory.setNamespaceAware(true);
+            try {
+                return documentBuilderFactory.newDocumentBuilder();
+            } catch (ParserConfigurationException e) {
+                throw new IllegalStateException("Unable to create DocumentBuilder: " + e.getMessage(), e);
+            }
+        }
+    };
 
     @Inject
+    public SmpLookupManagerImpl(SmpContentRetriever smpContentRetriever, BusDoxProtocolSelectionStrategy busDoxProtocolSelectionStrategy, DnsResolver dnsResolver, SmpRequestHedger smpRequestHedger) {
+        this(discoverSmlHost(), smpContentRetriever, busDoxProtocolSelectionStrategy, dnsResolver, smpRequestHedger);
+    }
+
+    public SmpLookupManagerImpl(SmpContentRetriever smpContentRetriever, BusDoxProtocolSelectionStrategy busDoxProtocolSelectionStrategy, DnsResolver dnsResolver) {
+        this(discoverSmlHost(), smpContentRetriever, busDoxProtocolSelectionStrategy, dnsResolver, SmpRequestHedger.disabled());
+    }
+
     public SmpLookupManagerImpl(SmpContentRetriever smpContentRetriever, BusDoxProtocolSelectionStrategy busDoxProtocolSelectionStrategy) {
-        this(discoverSmlHost(), smpContentRetriever, busDoxProtocolSelectionStrategy);
+        this(smpContentRetriever, busDoxProtocolSelectionStrategy, new InetAddressDnsResolver());
     }
 
-    private SmpLookupManagerImpl(SmlHost smlHost, SmpContentRetriever smpContentRetriever, BusDoxProtocolSelectionStrategy busDoxProtocolSelectionStrategy) {
+    SmpLookupManagerImpl(SmlHost smlHost, SmpContentRetriever smpContentRetriever, BusDoxProtocolSelectionStrategy busDoxProtocolSelectionStrategy) {
+        this(smlHost, smpContentRetriever, busDoxProtocolSelectionStrategy, new InetAddressDnsResolver());
+    }
+
+    SmpLookupManagerImpl(SmlHost smlHost, SmpContentRetriever smpContentRetriever, BusDoxProtocolSelectionStrategy busDoxProtocolSelectionStrategy, DnsResolver dnsResolver) {
+        this(smlHost, smpContentRetriever, busDoxProtocolSelectionStrategy, dnsResolver, SmpRequestHedger.disabled());
+    }
+
+    SmpLookupManagerImpl(SmlHost smlHost, SmpContentRetriever smpContentRetriever, BusDoxProtocolSelectionStrategy busDoxProtocolSelectionStrategy, DnsResolver dnsResolver, SmpRequestHedger smpRequestHedger) {
         this.smlHost = smlHost;
         this.smpContentRetriever = smpContentRetriever;
         this.busDoxProtocolSelectionStrategy = busDoxProtocolSelectionStrategy;
+        this.smpRequestHedger = smpRequestHedger;
 
-        this.dnsLookupHelper = new DNSLookupHelper();
+        this.dnsLookupHelper = new DNSLookupHelper(dnsResolver);
         try {
             jaxbContext = JaxbContextCache.getInstance(SignedServiceMetadataType.class);
         } catch (JAXBException e) {
@@ -168,6 +202,36 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
     public PeppolEndpointData getEndpointTransmissionData(ParticipantId participantId, PeppolDocumentTypeId documentTypeIdentifier) {
         EndpointType endpointType = getEndpointType(participantId, documentTypeIdentifier);
 
+        return createEndpointData(participantId, documentTypeIdentifier, endpointType);
+    }
+
+    /**
+     * Creates the end point data required for transmission from a service meta data object, which has already been
+     * retrieved and validated. Allows callers holding on to the service meta data to avoid another SMP lookup.
+     */
+    PeppolEndpointData createEndpointData(ParticipantId participantId, PeppolDocumentTypeId documentTypeIdentifier, SignedServiceMetadataType serviceMetadata) {
+        return createEndpointData(participantId, documentTypeIdentifier, selectOptimalEndpoint(serviceMetadata));
+    }
+
+    /**
+     * Extracts the X.509 certificate of the optimal end point from a service meta data object already retrieved.
+     */
+    X509Certificate getEndpointCertificate(SignedServiceMetadataType serviceMetadata) {
+        return getX509CertificateFromEndpointType(selectOptimalEndpoint(serviceMetadata));
+    }
+
+    /**
+     * Extracts the first process identifier from a service meta data object already retrieved.
+     */
+    PeppolProcessTypeId getProcessIdentifier(SignedServiceMetadataType serviceMetadata) {
+        // SOAP generated type...
+        ProcessIdentifierType processIdentifier = serviceMetadata.getServiceMetadata().getServiceInformation().getProcessList().getProcess().get(0).getProcessIdentifier();
+
+        // Converts SOAP generated type into something nicer
+        return PeppolProcessTypeId.valueOf(processIdentifier.getValue());
+    }
+
+    private PeppolEndpointData createEndpointData(ParticipantId participantId, PeppolDocumentTypeId documentTypeIdentifier, EndpointType endpointType) {
         String transportProfile = endpointType.getTransportProfile();
         String address = getEndPointUrl(endpointType);
 
@@ -218,13 +282,7 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
         // Parses the XML response from the SMP
         try {
 
-            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-            documentBuilderFactory.setNamespaceAware(true);
-            DocumentBuilder documentBuilder;
-            Document document;
-
-            documentBuilder = documentBuilderFactory.newDocumentBuilder();
-            document = documentBuilder.parse(smpContents);
+            Document document = createXmlDocument(smpContents);
 
             // Locates the namespace URI of the root element
             String nameSpaceURI = document.getDocumentElement().getNamespaceURI();
@@ -266,13 +324,17 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
 
     }
 
+    @Override
+    public void getCapabilities(Collection<ParticipantId> participantIds, CapabilityLookupListener listener) throws InterruptedException {
+        new BulkCapabilityLookup(this, this,
+                GlobalConfiguration.getInstance().getSmpBulkThreads(),
+                GlobalConfiguration.getInstance().getSmpBulkMaxPerHost()).lookup(participantIds, listener);
+    }
+
     public PeppolProcessTypeId getProcessIdentifierForDocumentType(ParticipantId participantId, PeppolDocumentTypeId documentTypeIdentifier) throws SmpSignedServiceMetaDataException {
         SignedServiceMetadataType serviceMetaData = getServiceMetaData(participantId, documentTypeIdentifier);
-        // SOAP generated type...
-        ProcessIdentifierType processIdentifier = serviceMetaData.getServiceMetadata().getServiceInformation().getProcessList().getProcess().get(0).getProcessIdentifier();
 
-        // Converts SOAP generated type into something nicer
-        return PeppolProcessTypeId.valueOf(processIdentifier.getValue());
+        return getProcessIdentifier(serviceMetaData);
     }
 
     /**
@@ -287,8 +349,47 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
     @Override
     public SignedServiceMetadataType getServiceMetaData(ParticipantId participant, PeppolDocumentTypeId documentTypeIdentifier) throws SmpSignedServiceMetaDataException {
 
+        Document document = getSignedServiceMetaDataDocument(participant, documentTypeIdentifier);
+
+        try {
+            // Finally parse the response into a properly typed object
+            return parseSmpResponseIntoSignedServiceMetadataType(document);
+        } catch (Exception e) {
+            throw new SmpSignedServiceMetaDataException(participant, documentTypeIdentifier, constructDocumentTypeURL(participant, documentTypeIdentifier), e);
+        }
+    }
+
+    /**
+     * Retrieves the signed service meta data from the SMP as an XML document, having validated the signature.
+     * The document is retained as is by {@link CachingSmpLookupManager}, allowing the signature to be verified
+     * again when the cache is restored from disk.
+     */
+    Document getSignedServiceMetaDataDocument(final ParticipantId participant, final PeppolDocumentTypeId documentTypeIdentifier) throws SmpSignedServiceMetaDataException {
+
         // Constructs the URL for looking up the participant and document type identifier
-        URL smpUrl = constructDocumentTypeURL(participant, documentTypeIdentifier);
+        final URL smpUrl = constructDocumentTypeURL(participant, documentTypeIdentifier);
+
+        // A slow SMP request may be hedged by a second one, the first one having a valid signature wins
+        try {
+            return smpRequestHedger.execute(new Callable<Document>() {
+                @Override
+                public Document call() throws Exception {
+                    return fetchValidatedDocument(participant, documentTypeIdentifier, smpUrl);
+                }
+            });
+        } catch (SmpSignedServiceMetaDataException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SmpSignedServiceMetaDataException(participant, documentTypeIdentifier, smpUrl, e);
+        }
+    }
+
+    /**
+     * Retrieves the signed service meta data from the supplied SMP url and validates the signature.
+     */
+    private Document fetchValidatedDocument(ParticipantId participant, PeppolDocumentTypeId documentTypeIdentifier, URL smpUrl) throws SmpSignedServiceMetaDataException {
 
         // Retrieves the contents of the URL
         InputSource smpContents = fetchContentsOfSmpUrl(participant, documentTypeIdentifier, smpUrl);
@@ -317,12 +418,7 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
             }
 */
 
-        try {
-            // Finally parse the response into a properly typed object
-            return parseSmpResponseIntoSignedServiceMetadataType(document);
-        } catch (Exception e) {
-            throw new SmpSignedServiceMetaDataException(participant, documentTypeIdentifier, smpUrl, e);
-        }
+        return document;
     }
 
     /**
@@ -394,13 +490,32 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
     }
 
 
-     // Parses the XML response from the SMP
+     // Parses the XML response from the SMP, closing the stream in order to release any pooled connection
      Document createXmlDocument(InputSource smpContents) throws ParserConfigurationException, SAXException, IOException {
-        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        documentBuilderFactory.setNamespaceAware(true);
+        try {
+            DocumentBuilder documentBuilder = documentBuilders.get();
+            documentBuilder.reset();
+            return documentBuilder.parse(smpContents);
+        } finally {
+            closeQuietly(smpContents);
+        }
+    }
 
-        DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-        return documentBuilder.parse(smpContents);
+    /**
+     * Closes the byte stream or character stream held in the supplied input source, if any, which releases the
+     * connection back to the pool when retrieved by {@link PooledSmpContentRetriever}.
+     */
+    private static void closeQuietly(InputSource inputSource) {
+        try {
+            if (inputSource.getByteStream() != null) {
+                inputSource.getByteStream().close();
+            }
+            if (inputSource.getCharacterStream() != null) {
+                inputSource.getCharacterStream().close();
+            }
+        } catch (IOException e) {
+            // Ignore any problems related to closing of input stream
+        }
     }
 
     /**
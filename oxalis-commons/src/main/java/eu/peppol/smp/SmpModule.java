@@ -20,6 +20,12 @@
 package eu.peppol.smp;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+import eu.peppol.util.CachingDnsResolver;
+import eu.peppol.util.DnsResolver;
+import eu.peppol.util.GlobalConfiguration;
+import eu.peppol.util.InetAddressDnsResolver;
 
 /**
  * @author steinar
@@ -30,8 +36,79 @@ public class SmpModule extends AbstractModule{
 
     @Override
     protected void configure() {
-        bind(SmpContentRetriever.class).to(SmpContentRetrieverImpl.class);
-        bind(SmpLookupManager.class).to(SmpLookupManagerImpl.class);
+        // SMP lookups are cached, the cache decorates the real implementation
+        bind(SmpLookupManager.class).to(CachingSmpLookupManager.class);
         bind(BusDoxProtocolSelectionStrategy.class).to(DefaultBusDoxProtocolSelectionStrategyImpl.class);
     }
+
+    /**
+     * Provides the SMP cache, configured by the <code>oxalis.smp.cache.*</code> and <code>oxalis.smp.bulk.*</code>
+     * properties. Override this binding in order to configure the cache otherwise.
+     */
+    @Provides
+    @Singleton
+    CachingSmpLookupManager provideCachingSmpLookupManager(SmpLookupManagerImpl smpLookupManager) {
+        GlobalConfiguration globalConfiguration = GlobalConfiguration.getInstance();
+        CachingSmpLookupManager cachingSmpLookupManager = new CachingSmpLookupManager(smpLookupManager,
+                globalConfiguration.getSmpCacheTtl(),
+                globalConfiguration.getSmpCacheMaxEntries(),
+                globalConfiguration.getSmpCacheRefreshAhead(),
+                globalConfiguration.getSmpCacheMaxStaleness(),
+                globalConfiguration.getSmpCacheRefreshThreads());
+        cachingSmpLookupManager.setBulkLookupLimits(globalConfiguration.getSmpBulkThreads(), globalConfiguration.getSmpBulkMaxPerHost());
+
+        if (globalConfiguration.isSmpCacheSnapshotEnabled()) {
+            cachingSmpLookupManager.enableSnapshot(globalConfiguration.getSmpCacheSnapshotFile(), globalConfiguration.isSmpCacheSnapshotTrusted());
+        }
+        return cachingSmpLookupManager;
+    }
+
+    /**
+     * Provides the retriever of SMP responses, which uses a pool of keep-alive HTTP connections unless
+     * <code>oxalis.smp.http.pooled=false</code>
+     */
+    @Provides
+    @Singleton
+    SmpContentRetriever provideSmpContentRetriever() {
+        GlobalConfiguration globalConfiguration = GlobalConfiguration.getInstance();
+        if (!globalConfiguration.isSmpHttpPooled()) {
+            return new SmpContentRetrieverImpl();
+        }
+        return new PooledSmpContentRetriever(globalConfiguration.getConnectTimeout(),
+                globalConfiguration.getReadTimeout(),
+                globalConfiguration.getHttpPoolMaxTotal(),
+                globalConfiguration.getHttpPoolMaxPerRoute(),
+                globalConfiguration.getHttpPoolIdleTimeout());
+    }
+
+    /**
+     * Provides the hedging policy for SMP requests, which is disabled unless <code>oxalis.smp.hedge=true</code>
+     */
+    @Provides
+    @Singleton
+    SmpRequestHedger provideSmpRequestHedger() {
+        GlobalConfiguration globalConfiguration = GlobalConfiguration.getInstance();
+        if (!globalConfiguration.isSmpHedgeEnabled()) {
+            return SmpRequestHedger.disabled();
+        }
+        return new SmpRequestHedger(globalConfiguration.getSmpHedgePercentile(),
+                globalConfiguration.getSmpHedgeMinDelay(),
+                globalConfiguration.getSmpHedgeMaxRate(),
+                1000,
+                2 * globalConfiguration.getHttpPoolMaxTotal());
+    }
+
+    /**
+     * Provides the resolver used to determine whether a participant is registered in the SML. Override this binding
+     * with an instance of {@link eu.peppol.util.StubDnsResolver} in order to perform lookups offline.
+     */
+    @Provides
+    @Singleton
+    DnsResolver provideDnsResolver() {
+        GlobalConfiguration globalConfiguration = GlobalConfiguration.getInstance();
+        return new CachingDnsResolver(new InetAddressDnsResolver(),
+                globalConfiguration.getDnsCacheTtl(),
+                globalConfiguration.getDnsNegativeCacheTtl(),
+                globalConfiguration.getDnsCacheMaxEntries());
+    }
 }
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2011,2012,2013,2014 UNIT4 Agresso AS.
+ *
+ * This file is part of Oxalis.
+ *
+ * Oxalis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Oxalis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Oxalis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.peppol.smp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cuts the tail latency of SMP lookups by issuing a second, identical request if the first one has not completed
+ * within a delay computed from the recently observed latencies. The first request to complete successfully wins,
+ * i.e. a response failing signature validation will not win as long as the other request succeeds.
+ *
+ * <ul>
+ *     <li>The delay is the configured percentile of the latencies of the most recent requests, but never less
+ *     than the configured minimum delay.</li>
+ *     <li>The number of hedged requests is capped at the configured fraction of all requests, which prevents
+ *     hedging from doubling the load when all the SMP servers are slow.</li>
+ *     <li>No hedging is performed until enough latencies have been observed.</li>
+ * </ul>
+ */
+public class SmpRequestHedger {
+
+    private static final Logger log = LoggerFactory.getLogger(SmpRequestHedger.class);
+
+    /** Number of latency samples required before hedging is performed */
+    static final int MIN_SAMPLES = 20;
+
+    private final boolean enabled;
+    private final double percentile;
+    private final long minDelayInMillis;
+    private final double maxHedgeRate;
+
+    /** Ring buffer holding the latencies of the most recent requests, in milliseconds */
+    private final long[] latencies;
+    private int latencyIndex = 0;
+    private int latencyCount = 0;
+
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private final AtomicLong hedgeWinCount = new AtomicLong();
+
+    /**
+     * Creates a hedger, which simply invokes the supplied tasks in the calling thread.
+     */
+    public static SmpRequestHedger disabled() {
+        return new SmpRequestHedger();
+    }
+
+    private SmpRequestHedger() {
+        enabled = false;
+        percentile = 0;
+        minDelayInMillis = 0;
+        maxHedgeRate = 0;
+        latencies = new long[0];
+        executor = null;
+    }
+
+    /**
+     * @param percentile       percentile of recent latencies after which a hedged request is issued, e.g. 95
+     * @param minDelayInMillis minimum number of milliseconds to wait before issuing a hedged request
+     * @param maxHedgeRate     maximum fraction of requests being hedged, e.g. 0.1
+     * @param windowSize       number of recent latencies from which the percentile is computed
+     * @param maxThreads       maximum number of concurrent requests, including the hedged ones
+     */
+    public SmpRequestHedger(double percentile, long minDelayInMillis, double maxHedgeRate, int windowSize, int maxThreads) {
+        if (percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be in the range (0,100], not " + percentile);
+        }
+        if (maxHedgeRate < 0 || maxHedgeRate > 1) {
+            throw new IllegalArgumentException("Maximum hedge rate must be in the range [0,1], not " + maxHedgeRate);
+        }
+        if (windowSize < MIN_SAMPLES) {
+            throw new IllegalArgumentException("Window size must be at least " + MIN_SAMPLES + ", not " + windowSize);
+        }
+        this.enabled = true;
+        this.percentile = percentile;
+        this.minDelayInMillis = minDelayInMillis;
+        this.maxHedgeRate = maxHedgeRate;
+        this.latencies = new long[windowSize];
+
+        executor = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new HedgeThreadFactory());
+
+        log.debug("SMP request hedging enabled; percentile=" + percentile + ", min delay=" + minDelayInMillis + "ms, max hedge rate=" + maxHedgeRate);
+    }
+
+    /**
+     * Executes the supplied task, which must be safe to invoke twice concurrently, hedging it if it is slow.
+     *
+     * @return the result of the first invocation to complete successfully
+     * @throws Exception the exception thrown by the task, if every invocation failed
+     */
+    public <T> T execute(Callable<T> task) throws Exception {
+        if (!enabled) {
+            return task.call();
+        }
+        requestCount.incrementAndGet();
+        long start = System.currentTimeMillis();
+
+        CompletionService<T> completionService = new ExecutorCompletionService<T>(executor);
+        Future<T> primary;
+        try {
+            primary = completionService.submit(task);
+        } catch (RejectedExecutionException e) {
+            // All the threads are busy, no point in hedging
+            T result = task.call();
+            recordLatency(System.currentTimeMillis() - start);
+            return result;
+        }
+
+        Future<T> hedge = null;
+        try {
+            Long delay = getHedgeDelay();
+            Future<T> completed = delay == null ? completionService.take() : completionService.poll(delay, TimeUnit.MILLISECONDS);
+
+            if (completed == null && isHedgeAllowed()) {
+                try {
+                    hedge = completionService.submit(task);
+                    hedgeCount.incrementAndGet();
+                } catch (RejectedExecutionException e) {
+                    log.debug("Unable to hedge SMP request, all threads are busy");
+                }
+            }
+
+            int outstanding = hedge == null ? 1 : 2;
+            Exception firstFailure = null;
+            while (outstanding > 0) {
+                if (completed == null) {
+                    completed = completionService.take();
+                }
+                outstanding--;
+                try {
+                    T result = completed.get();
+                    recordLatency(System.currentTimeMillis() - start);
+                    if (completed == hedge) {
+                        hedgeWinCount.incrementAndGet();
+                    }
+                    return result;
+                } catch (ExecutionException e) {
+                    if (firstFailure == null) {
+                        firstFailure = unwrap(e);
+                    }
+                }
+                completed = null;
+            }
+            throw firstFailure;
+
+        } finally {
+            // The loser, if any, is interrupted; its response is discarded
+            primary.cancel(true);
+            if (hedge != null) {
+                hedge.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * The number of milliseconds to wait before hedging, or null if hedging is not possible yet.
+     */
+    Long getHedgeDelay() {
+        long[] snapshot;
+        synchronized (latencies) {
+            if (latencyCount < MIN_SAMPLES) {
+                return null;
+            }
+            snapshot = Arrays.copyOf(latencies, latencyCount);
+        }
+        Arrays.sort(snapshot);
+        int index = (int) Math.ceil(percentile / 100.0 * snapshot.length) - 1;
+        return Math.max(minDelayInMillis, snapshot[Math.max(0, index)]);
+    }
+
+    boolean isHedgeAllowed() {
+        return hedgeCount.get() < maxHedgeRate * requestCount.get();
+    }
+
+    void recordLatency(long latencyInMillis) {
+        synchronized (latencies) {
+            latencies[latencyIndex] = latencyInMillis;
+            latencyIndex = (latencyIndex + 1) % latencies.length;
+            if (latencyCount < latencies.length) {
+                latencyCount++;
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /** Number of hedged requests issued */
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    /** Number of hedged requests completing before the original request */
+    public long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SmpRequestHedger{" +
+                "enabled=" + enabled +
+                ", requests=" + requestCount +
+                ", hedges=" + hedgeCount +
+                ", hedgeWins=" + hedgeWinCount +
+                ", delay=" + (enabled ? getHedgeDelay() : null) +
+                '}';
+    }
+
+    private static Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        } else {
+            return e;
+        }
+    }
+
+    private static class HedgeThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "oxalis-smp-hedge-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package eu.peppol.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe {@link DnsResolver}, which caches the results of another resolver using explicit time to live values.
+ *
+ * <p>Host names which exist and host names which do not exist are kept in two separate bounded caches, each having
+ * their own time to live. Hence participants not registered in the SML, will not cause a slow NXDOMAIN lookup
+ * for every attempt, while a burst of unknown host names will not push the registered ones out of the cache.</p>
+ *
+ * <p>A host name is only remembered as not existing if the resolver returns false. A {@link DnsLookupException},
+ * thrown when the name servers could not be reached or did not respond, is passed on to the caller and not cached.</p>
+ *
+ * <p>The time to live values are fixed, as neither the JVM nor JNDI expose the time to live of the DNS records.
+ * They should hence not exceed the time to live of the records of the SML.</p>
+ *
+ * <p>Bear in mind that lookups performed by {@link InetAddressDnsResolver} are subject to the cache of the JVM as well.</p>
+ */
+public class CachingDnsResolver implements DnsResolver {
+
+    public static final Logger log = LoggerFactory.getLogger(CachingDnsResolver.class);
+
+    private final DnsResolver dnsResolver;
+    private final long positiveTimeToLive;
+    private final long negativeTimeToLive;
+
+    /** Host names known to exist, mapped to the time of expiry */
+    private final Map<String, Long> positiveCache;
+
+    /** Host names known not to exist, mapped to the time of expiry */
+    private final Map<String, Long> negativeCache;
+
+    private final AtomicLong positiveHitCount = new AtomicLong();
+    private final AtomicLong negativeHitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * @param dnsResolver        the resolver performing the actual lookups
+     * @param positiveTimeToLive milliseconds to remember a host name which exists
+     * @param negativeTimeToLive milliseconds to remember a host name which does not exist
+     * @param maxEntries         maximum number of entries in each of the two caches
+     */
+    public CachingDnsResolver(DnsResolver dnsResolver, long positiveTimeToLive, long negativeTimeToLive, int maxEntries) {
+        if (dnsResolver == null) {
+            throw new IllegalArgumentException("A DnsResolver performing the actual lookups is required");
+        }
+        this.dnsResolver = dnsResolver;
+        this.positiveTimeToLive = positiveTimeToLive;
+        this.negativeTimeToLive = negativeTimeToLive;
+        this.positiveCache = createLruMap(maxEntries);
+        this.negativeCache = createLruMap(maxEntries);
+    }
+
+    @Override
+    public boolean domainExists(String hostname) {
+        String key = hostname.toLowerCase();
+        long now = System.currentTimeMillis();
+
+        if (isCached(positiveCache, key, now)) {
+            positiveHitCount.incrementAndGet();
+            return true;
+        }
+        if (isCached(negativeCache, key, now)) {
+            negativeHitCount.incrementAndGet();
+            return false;
+        }
+
+        missCount.incrementAndGet();
+        // A DnsLookupException is left uncached, the next attempt will perform a new lookup
+        boolean exists = dnsResolver.domainExists(hostname);
+        if (exists) {
+            negativeCache.remove(key);
+            if (positiveTimeToLive > 0) {
+                positiveCache.put(key, now + positiveTimeToLive);
+            }
+        } else {
+            positiveCache.remove(key);
+            if (negativeTimeToLive > 0) {
+                negativeCache.put(key, now + negativeTimeToLive);
+            }
+            log.debug("Host name " + hostname + " does not exist, remembered for " + negativeTimeToLive + "ms");
+        }
+        return exists;
+    }
+
+    /** Forgets whatever is known about the supplied host name */
+    public void invalidate(String hostname) {
+        String key = hostname.toLowerCase();
+        positiveCache.remove(key);
+        negativeCache.remove(key);
+    }
+
+    public void clear() {
+        positiveCache.clear();
+        negativeCache.clear();
+    }
+
+    public long getPositiveHitCount() {
+        return positiveHitCount.get();
+    }
+
+    public long getNegativeHitCount() {
+        return negativeHitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public int getPositiveCacheSize() {
+        return positiveCache.size();
+    }
+
+    public int getNegativeCacheSize() {
+        return negativeCache.size();
+    }
+
+    @Override
+    public String toString() {
+        return "CachingDnsResolver{" +
+                "positiveHits=" + positiveHitCount +
+                ", negativeHits=" + negativeHitCount +
+                ", misses=" + missCount +
+                ", positiveEntries=" + positiveCache.size() +
+                ", negativeEntries=" + negativeCache.size() +
+                '}';
+    }
+
+    private boolean isCached(Map<String, Long> cache, String key, long now) {
+        Long expiresAt = cache.get(key);
+        if (expiresAt == null) {
+            return false;
+        }
+        if (now >= expiresAt) {
+            cache.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    private static Map<String, Long> createLruMap(final int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Maximum number of DNS cache entries must be at least 1, not " + maxEntries);
+        }
+        return Collections.synchronizedMap(new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+}
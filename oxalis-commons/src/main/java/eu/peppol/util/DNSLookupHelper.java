@@ -1,8 +1,6 @@
 package eu.peppol.util;
 
-import java.net.InetAddress;
 import java.net.URL;
-import java.net.UnknownHostException;
 
 /**
  * User: Adam
@@ -11,18 +9,28 @@ import java.net.UnknownHostException;
  */
 public class DNSLookupHelper {
 
+    private final DnsResolver dnsResolver;
+
+    public DNSLookupHelper() {
+        this(new InetAddressDnsResolver());
+    }
+
+    public DNSLookupHelper(DnsResolver dnsResolver) {
+        this.dnsResolver = dnsResolver;
+    }
+
     /**
      * Checks if given domain exists
      *
-     * InetAddress.getByName() tries to resolve name to an ip address and throws UnknownHostException if fails.
+     * The actual lookup is performed by the {@link DnsResolver} supplied in the constructor, which defaults to
+     * {@link InetAddressDnsResolver}, i.e. InetAddress.getByName()
      *
+     * A lookup which failed is reported as the domain not existing.
      */
     public boolean domainExists(URL url) {
-
         try {
-            InetAddress.getByName(url.getHost());
-            return true;
-        } catch (UnknownHostException exception) {
+            return dnsResolver.domainExists(url.getHost());
+        } catch (DnsLookupException e) {
             return false;
         }
     }
@@ -0,0 +1,19 @@
+package eu.peppol.util;
+
+/**
+ * Thrown by a {@link DnsResolver} when it could not be determined whether a host name exists, e.g. as the name
+ * server did not respond in due time. Unlike a host name known not to exist, the outcome must not be cached.
+ */
+public class DnsLookupException extends RuntimeException {
+
+    private final String hostname;
+
+    public DnsLookupException(String hostname, Throwable cause) {
+        super("Unable to determine whether " + hostname + " exists: " + cause.getMessage(), cause);
+        this.hostname = hostname;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+}
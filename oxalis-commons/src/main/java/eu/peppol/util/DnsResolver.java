@@ -0,0 +1,21 @@
+package eu.peppol.util;
+
+/**
+ * Resolves host names, which is how the SML tells whether a participant is registered or not. Each registered
+ * participant has its own host name in the SML domain.
+ *
+ * <p>Implementations must be thread safe. See {@link CachingDnsResolver} for caching with explicit time to live
+ * values and {@link StubDnsResolver} for an in-process replacement to be used when testing and benchmarking.</p>
+ */
+public interface DnsResolver {
+
+    /**
+     * Determines whether the supplied host name exists, i.e. can be resolved into an address.
+     *
+     * @param hostname the fully qualified host name to look up
+     * @return true if the host name could be resolved, false otherwise.
+     * @throws DnsLookupException if the resolver is able to tell that the lookup failed, rather than the host name
+     * not existing
+     */
+    boolean domainExists(String hostname);
+}
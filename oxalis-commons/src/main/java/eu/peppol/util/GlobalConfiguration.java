@@ -7,6 +7,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import static eu.peppol.util.GlobalConfiguration.PropertyDef.*;
@@ -179,6 +181,34 @@ public enum GlobalConfiguration {
         return INBOUND_MESSAGE_STORE.getValue(properties);
     }
 
+    public int getInboundSpoolThreshold() {
+        return Integer.parseInt(INBOUND_SPOOL_THRESHOLD.getValue(properties));
+    }
+
+    public String getInboundSpoolDirectory() {
+        return INBOUND_SPOOL_DIRECTORY.getValue(properties);
+    }
+
+    public long getInboundMaxContentLength() {
+        return Long.parseLong(INBOUND_MAX_CONTENT_LENGTH.getValue(properties));
+    }
+
+    public int getInboundWorkerThreads() {
+        return Integer.parseInt(INBOUND_WORKER_THREADS.getValue(properties));
+    }
+
+    public int getInboundWorkerQueueSize() {
+        return Integer.parseInt(INBOUND_WORKER_QUEUE_SIZE.getValue(properties));
+    }
+
+    public int getInboundRetryAfter() {
+        return Integer.parseInt(INBOUND_RETRY_AFTER.getValue(properties));
+    }
+
+    public long getInboundWorkerTimeout() {
+        return Long.parseLong(INBOUND_WORKER_TIMEOUT.getValue(properties));
+    }
+
     public String getPersistenceClassPath() {
         return OXALIS_PERSISTENCE_CLASS_PATH.getValue(properties);
     }
@@ -210,6 +240,30 @@ public enum GlobalConfiguration {
         return Integer.parseInt(READ_TIMEOUT.getValue(properties));
     }
 
+    public Integer getHttpPoolMaxTotal() {
+        return Integer.parseInt(HTTP_POOL_MAX_TOTAL.getValue(properties));
+    }
+
+    public Integer getHttpPoolMaxPerRoute() {
+        return Integer.parseInt(HTTP_POOL_MAX_PER_ROUTE.getValue(properties));
+    }
+
+    public Integer getHttpPoolIdleTimeout() {
+        return Integer.parseInt(HTTP_POOL_IDLE_TIMEOUT.getValue(properties));
+    }
+
+    public Integer getHttpWarmupDestinations() {
+        return Integer.parseInt(HTTP_WARMUP_DESTINATIONS.getValue(properties));
+    }
+
+    public Integer getHttpWarmupConnections() {
+        return Integer.parseInt(HTTP_WARMUP_CONNECTIONS.getValue(properties));
+    }
+
+    public Integer getHttpWarmupInterval() {
+        return Integer.parseInt(HTTP_WARMUP_INTERVAL.getValue(properties));
+    }
+
     public File getOxalisHomeDir() {
         return oxalisHomeDirectory;
     }
@@ -222,6 +276,220 @@ public enum GlobalConfiguration {
         properties.setProperty(SML_HOSTNAME.getPropertyName(), hostname);
     }
 
+    public Long getSmpCacheTtl() {
+        return Long.parseLong(SMP_CACHE_TTL.getValue(properties));
+    }
+
+    public Integer getSmpCacheMaxEntries() {
+        return Integer.parseInt(SMP_CACHE_MAX_ENTRIES.getValue(properties));
+    }
+
+    public Long getSmpCacheRefreshAhead() {
+        return Long.parseLong(SMP_CACHE_REFRESH_AHEAD.getValue(properties));
+    }
+
+    public Long getSmpCacheMaxStaleness() {
+        return Long.parseLong(SMP_CACHE_MAX_STALENESS.getValue(properties));
+    }
+
+    public Integer getSmpCacheRefreshThreads() {
+        return Integer.parseInt(SMP_CACHE_REFRESH_THREADS.getValue(properties));
+    }
+
+    public Boolean isSmpCacheSnapshotEnabled() {
+        return Boolean.valueOf(SMP_CACHE_SNAPSHOT.getValue(properties));
+    }
+
+    public Boolean isSmpCacheSnapshotTrusted() {
+        return Boolean.valueOf(SMP_CACHE_SNAPSHOT_TRUSTED.getValue(properties));
+    }
+
+    public File getSmpCacheSnapshotFile() {
+        return new File(oxalisHomeDirectory, "smp-cache.snapshot");
+    }
+
+    public Boolean isSmpHttpPooled() {
+        return Boolean.valueOf(SMP_HTTP_POOLED.getValue(properties));
+    }
+
+    public Boolean isSmpHedgeEnabled() {
+        return Boolean.valueOf(SMP_HEDGE.getValue(properties));
+    }
+
+    public Double getSmpHedgePercentile() {
+        return Double.parseDouble(SMP_HEDGE_PERCENTILE.getValue(properties));
+    }
+
+    public Long getSmpHedgeMinDelay() {
+        return Long.parseLong(SMP_HEDGE_MIN_DELAY.getValue(properties));
+    }
+
+    public Double getSmpHedgeMaxRate() {
+        return Double.parseDouble(SMP_HEDGE_MAX_RATE.getValue(properties));
+    }
+
+    public Integer getSmpBulkThreads() {
+        return Integer.parseInt(SMP_BULK_THREADS.getValue(properties));
+    }
+
+    public Integer getSmpBulkMaxPerHost() {
+        return Integer.parseInt(SMP_BULK_MAX_PER_HOST.getValue(properties));
+    }
+
+    public Long getDnsCacheTtl() {
+        return Long.parseLong(DNS_CACHE_TTL.getValue(properties));
+    }
+
+    public Long getDnsNegativeCacheTtl() {
+        return Long.parseLong(DNS_NEGATIVE_CACHE_TTL.getValue(properties));
+    }
+
+    public Integer getDnsCacheMaxEntries() {
+        return Integer.parseInt(DNS_CACHE_MAX_ENTRIES.getValue(properties));
+    }
+
+    public Boolean isAs2StreamingEnabled() {
+        return Boolean.valueOf(AS2_STREAMING.getValue(properties));
+    }
+
+    public Long getPayloadMaxSize() {
+        return Long.parseLong(PAYLOAD_MAX_SIZE.getValue(properties));
+    }
+
+    public Long getPayloadMemoryThreshold() {
+        return Long.parseLong(PAYLOAD_MEMORY_THRESHOLD.getValue(properties));
+    }
+
+    public Integer getTransmissionPreparationThreads() {
+        return Integer.parseInt(TRANSMISSION_PREPARATION_THREADS.getValue(properties));
+    }
+
+    public Integer getTransmissionSendingThreads() {
+        return Integer.parseInt(TRANSMISSION_SENDING_THREADS.getValue(properties));
+    }
+
+    public Integer getTransmissionMaxInFlight() {
+        return Integer.parseInt(TRANSMISSION_MAX_IN_FLIGHT.getValue(properties));
+    }
+
+    public Long getTransmissionSubmitTimeout() {
+        return Long.parseLong(TRANSMISSION_SUBMIT_TIMEOUT.getValue(properties));
+    }
+
+    public Long getTransmissionShutdownTimeout() {
+        return Long.parseLong(TRANSMISSION_SHUTDOWN_TIMEOUT.getValue(properties));
+    }
+
+    public Integer getTransmissionMaxPerDestination() {
+        return Integer.parseInt(TRANSMISSION_MAX_PER_DESTINATION.getValue(properties));
+    }
+
+    public String getTransmissionLaneWeights() {
+        return TRANSMISSION_LANE_WEIGHTS.getValue(properties);
+    }
+
+    public File getOutboxDirectory() {
+        return new File(oxalisHomeDirectory, "outbox");
+    }
+
+    public Integer getOutboxWorkers() {
+        return Integer.parseInt(OUTBOX_WORKERS.getValue(properties));
+    }
+
+    public Integer getOutboxMaxAttempts() {
+        return Integer.parseInt(OUTBOX_MAX_ATTEMPTS.getValue(properties));
+    }
+
+    public Long getOutboxInitialBackoff() {
+        return Long.parseLong(OUTBOX_INITIAL_BACKOFF.getValue(properties));
+    }
+
+    public Long getOutboxMaxBackoff() {
+        return Long.parseLong(OUTBOX_MAX_BACKOFF.getValue(properties));
+    }
+
+    public Integer getOutboxCompactionThreshold() {
+        return Integer.parseInt(OUTBOX_COMPACTION_THRESHOLD.getValue(properties));
+    }
+
+    public Boolean isCircuitBreakerEnabled() {
+        return Boolean.valueOf(CIRCUIT_BREAKER_ENABLED.getValue(properties));
+    }
+
+    public Integer getCircuitBreakerWindowSize() {
+        return Integer.parseInt(CIRCUIT_BREAKER_WINDOW_SIZE.getValue(properties));
+    }
+
+    public Long getCircuitBreakerWindowDuration() {
+        return Long.parseLong(CIRCUIT_BREAKER_WINDOW_DURATION.getValue(properties));
+    }
+
+    public Integer getCircuitBreakerMinCalls() {
+        return Integer.parseInt(CIRCUIT_BREAKER_MIN_CALLS.getValue(properties));
+    }
+
+    public Double getCircuitBreakerFailureRate() {
+        return Double.parseDouble(CIRCUIT_BREAKER_FAILURE_RATE.getValue(properties));
+    }
+
+    public Long getCircuitBreakerSlowCallThreshold() {
+        return Long.parseLong(CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD.getValue(properties));
+    }
+
+    public Long getCircuitBreakerOpenDuration() {
+        return Long.parseLong(CIRCUIT_BREAKER_OPEN_DURATION.getValue(properties));
+    }
+
+    public Long getCircuitBreakerMaxOpenDuration() {
+        return Long.parseLong(CIRCUIT_BREAKER_MAX_OPEN_DURATION.getValue(properties));
+    }
+
+    public Boolean isAdaptiveTimeoutEnabled() {
+        return Boolean.valueOf(ADAPTIVE_TIMEOUT.getValue(properties));
+    }
+
+    public Double getAdaptiveTimeoutPercentile() {
+        return Double.parseDouble(ADAPTIVE_TIMEOUT_PERCENTILE.getValue(properties));
+    }
+
+    public Double getAdaptiveTimeoutMultiplier() {
+        return Double.parseDouble(ADAPTIVE_TIMEOUT_MULTIPLIER.getValue(properties));
+    }
+
+    public Integer getAdaptiveTimeoutMinSamples() {
+        return Integer.parseInt(ADAPTIVE_TIMEOUT_MIN_SAMPLES.getValue(properties));
+    }
+
+    public Integer getAdaptiveConnectTimeoutMin() {
+        return Integer.parseInt(ADAPTIVE_CONNECT_TIMEOUT_MIN.getValue(properties));
+    }
+
+    public Integer getAdaptiveConnectTimeoutMax() {
+        return Integer.parseInt(ADAPTIVE_CONNECT_TIMEOUT_MAX.getValue(properties));
+    }
+
+    public Integer getAdaptiveReadTimeoutMin() {
+        return Integer.parseInt(ADAPTIVE_READ_TIMEOUT_MIN.getValue(properties));
+    }
+
+    public Integer getAdaptiveReadTimeoutMax() {
+        return Integer.parseInt(ADAPTIVE_READ_TIMEOUT_MAX.getValue(properties));
+    }
+
+    public Boolean isLoopbackEnabled() {
+        return Boolean.valueOf(LOOPBACK_ENABLED.getValue(properties));
+    }
+
+    public List<String> getLoopbackLocalUrls() {
+        List<String> urls = new ArrayList<String>();
+        for (String url : LOOPBACK_LOCAL_URLS.getValue(properties).split(",")) {
+            if (url.trim().length() > 0) {
+                urls.add(url.trim());
+            }
+        }
+        return urls;
+    }
+
     public String getValidationQuery() {
         return JDBC_VALIDATION_QUERY.getValue(properties);
     }
@@ -248,6 +516,44 @@ public enum GlobalConfiguration {
          */
         INBOUND_MESSAGE_STORE("oxalis.inbound.message.store", true, System.getProperty("java.io.tmpdir") + "inbound"),
 
+        /**
+         * Payloads of inbound AS2 messages larger than this number of bytes are spooled to a temporary file
+         * rather than held in memory until persisted
+         */
+        INBOUND_SPOOL_THRESHOLD("oxalis.inbound.spool.threshold", false, "1048576"),
+
+        /**
+         * Where the temporary files of large inbound AS2 messages are written
+         */
+        INBOUND_SPOOL_DIRECTORY("oxalis.inbound.spool.dir", false, System.getProperty("java.io.tmpdir")),
+
+        /**
+         * Inbound AS2 requests having a larger Content-Length are rejected without being read, 0 means no limit
+         */
+        INBOUND_MAX_CONTENT_LENGTH("oxalis.inbound.max.content.length", false, "0"),
+
+        /**
+         * Number of threads receiving inbound AS2 messages, rather than the threads of the servlet container, 0 means
+         * messages are received by the container threads without any bound
+         */
+        INBOUND_WORKER_THREADS("oxalis.inbound.worker.threads", false, "0"),
+
+        /**
+         * Number of inbound AS2 messages awaiting a worker thread, beyond which requests are rejected with HTTP 503
+         */
+        INBOUND_WORKER_QUEUE_SIZE("oxalis.inbound.worker.queue.size", false, "50"),
+
+        /**
+         * Seconds a rejected sender is asked to wait before retrying, i.e. the value of the Retry-After header
+         */
+        INBOUND_RETRY_AFTER("oxalis.inbound.retry.after", false, "60"),
+
+        /**
+         * Milliseconds a message received by the worker pool may wait for a thread, after which the sender is answered
+         * with 503 and the connection is released. Messages being received by then are completed by the worker.
+         */
+        INBOUND_WORKER_TIMEOUT("oxalis.inbound.worker.timeout", false, "300000"),
+
         /**
          * Class path entry where the persistence module is located.
          */
@@ -338,13 +644,318 @@ public enum GlobalConfiguration {
          */
         READ_TIMEOUT("oxalis.read.timeout", false, "5000"),
 
+        /**
+         * Maximum number of connections held in the pool of outbound HTTP connections, across all
+         * the receiving access points.
+         */
+        HTTP_POOL_MAX_TOTAL("oxalis.http.pool.max.total", false, "100"),
+
+        /**
+         * Maximum number of pooled outbound HTTP connections to a single receiving access point (route).
+         */
+        HTTP_POOL_MAX_PER_ROUTE("oxalis.http.pool.max.per.route", false, "10"),
+
+        /**
+         * Number of milliseconds a pooled HTTP connection may stay idle before it is evicted and closed.
+         */
+        HTTP_POOL_IDLE_TIMEOUT("oxalis.http.pool.idle.timeout", false, "60000"),
+
+        /**
+         * Maximum number of the most frequently used receiving access points, to which connections are established
+         * ahead of time. Zero disables the warm-up.
+         */
+        HTTP_WARMUP_DESTINATIONS("oxalis.http.warmup.destinations", false, "0"),
+
+        /**
+         * Number of idle connections kept ready in the pool for each of the receiving access points being kept warm.
+         */
+        HTTP_WARMUP_CONNECTIONS("oxalis.http.warmup.connections", false, "1"),
+
+        /**
+         * Number of milliseconds between each warm-up of the most frequently used receiving access points, which should
+         * be less than the idle timeout of the pool.
+         */
+        HTTP_WARMUP_INTERVAL("oxalis.http.warmup.interval", false, "30000"),
+
         /**
          * Will override SML hostname if defined in properties file. Makes it possible to route trafic to other SMLs
          * than the official SMLs.
          *
          * Example: oxalis.xml.hostname=sml.peppolcentral.org
          */
-        SML_HOSTNAME("oxalis.sml.hostname", false, "", false);
+        SML_HOSTNAME("oxalis.sml.hostname", false, "", false),
+
+        /**
+         * Number of milliseconds the results of an SMP lookup are kept in the cache. A value of 0 disables caching.
+         */
+        SMP_CACHE_TTL("oxalis.smp.cache.ttl", false, "3600000"),
+
+        /**
+         * Maximum number of participant and document type combinations held in the SMP cache. The least recently
+         * used entries are evicted first.
+         */
+        SMP_CACHE_MAX_ENTRIES("oxalis.smp.cache.max.entries", false, "10000"),
+
+        /**
+         * Number of milliseconds before expiry, during which a requested SMP cache entry is reloaded in the
+         * background while the current entry is still being served. A value of 0 disables refresh ahead.
+         */
+        SMP_CACHE_REFRESH_AHEAD("oxalis.smp.cache.refresh.ahead", false, "300000"),
+
+        /**
+         * Number of milliseconds after expiry, during which an SMP cache entry is still served while it is being
+         * reloaded in the background, i.e. how long we keep sending using old data if the SMP is unreachable.
+         * A value of 0 disables serving of stale entries.
+         */
+        SMP_CACHE_MAX_STALENESS("oxalis.smp.cache.max.staleness", false, "900000"),
+
+        /**
+         * Number of threads reloading SMP cache entries in the background.
+         */
+        SMP_CACHE_REFRESH_THREADS("oxalis.smp.cache.refresh.threads", false, "2"),
+
+        /**
+         * Whether the SMP cache should be restored from, and saved to, the file smp-cache.snapshot in the Oxalis
+         * home directory, upon start up and shut down respectively.
+         */
+        SMP_CACHE_SNAPSHOT("oxalis.smp.cache.snapshot", false, "false"),
+
+        /**
+         * Whether the SMP responses held in the snapshot should be trusted, rather than having their signatures
+         * verified once more when the snapshot is loaded.
+         */
+        SMP_CACHE_SNAPSHOT_TRUSTED("oxalis.smp.cache.snapshot.trusted", false, "false"),
+
+        /**
+         * Whether SMP lookups should be performed using a pool of keep-alive HTTP connections, rather than
+         * a new HttpURLConnection for every lookup.
+         */
+        SMP_HTTP_POOLED("oxalis.smp.http.pooled", false, "true"),
+
+        /**
+         * Whether slow SMP requests should be hedged, i.e. repeated if no response has been received within the
+         * delay given by the percentile below.
+         */
+        SMP_HEDGE("oxalis.smp.hedge", false, "false"),
+
+        /**
+         * Percentile of recently observed SMP latencies, after which a hedged request is issued.
+         */
+        SMP_HEDGE_PERCENTILE("oxalis.smp.hedge.percentile", false, "95"),
+
+        /**
+         * Minimum number of milliseconds to wait before issuing a hedged SMP request.
+         */
+        SMP_HEDGE_MIN_DELAY("oxalis.smp.hedge.min.delay", false, "50"),
+
+        /**
+         * Maximum fraction of SMP requests being hedged.
+         */
+        SMP_HEDGE_MAX_RATE("oxalis.smp.hedge.max.rate", false, "0.1"),
+
+        /**
+         * Maximum number of concurrent lookups performed by a bulk capability lookup.
+         */
+        SMP_BULK_THREADS("oxalis.smp.bulk.threads", false, "16"),
+
+        /**
+         * Maximum number of concurrent lookups against a single SMP, performed by a bulk capability lookup.
+         */
+        SMP_BULK_MAX_PER_HOST("oxalis.smp.bulk.max.per.host", false, "4"),
+
+        /**
+         * Number of milliseconds to remember that the SML host name of a participant exists.
+         */
+        DNS_CACHE_TTL("oxalis.dns.cache.ttl", false, "300000"),
+
+        /**
+         * Number of milliseconds to remember that the SML host name of a participant does not exist, i.e. that the
+         * participant is not registered. Lookups which failed, e.g. timed out, are not remembered. A value of 0
+         * disables the negative cache.
+         */
+        DNS_NEGATIVE_CACHE_TTL("oxalis.dns.negative.cache.ttl", false, "60000"),
+
+        /**
+         * Maximum number of entries in each of the positive and negative DNS caches.
+         */
+        DNS_CACHE_MAX_ENTRIES("oxalis.dns.cache.max.entries", false, "10000"),
+
+        /**
+         * Whether outbound AS2 messages should be wrapped, signed and posted in a single pass, using chunked
+         * transfer encoding, rather than being assembled in memory first. Requires the receiving access point to
+         * accept chunked HTTP requests.
+         */
+        AS2_STREAMING("oxalis.as2.streaming", false, "false"),
+
+        /**
+         * Maximum number of bytes accepted for the payload of an outbound transmission.
+         */
+        PAYLOAD_MAX_SIZE("oxalis.payload.max.size", false, "6291456"),
+
+        /**
+         * Outbound payloads larger than this number of bytes are held in a temporary file rather than in memory.
+         */
+        PAYLOAD_MEMORY_THRESHOLD("oxalis.payload.memory.threshold", false, "1048576"),
+
+        /**
+         * Number of threads preparing, i.e. wrapping and signing, asynchronous transmissions. A value of 0 uses one
+         * thread per available processor.
+         */
+        TRANSMISSION_PREPARATION_THREADS("oxalis.transmission.preparation.threads", false, "0"),
+
+        /**
+         * Number of threads sending prepared asynchronous transmissions to the receiving access points.
+         */
+        TRANSMISSION_SENDING_THREADS("oxalis.transmission.sending.threads", false, "20"),
+
+        /**
+         * Maximum number of asynchronous transmissions of each lane being either queued or processed at any time.
+         */
+        TRANSMISSION_MAX_IN_FLIGHT("oxalis.transmission.max.in.flight", false, "200"),
+
+        /**
+         * Number of milliseconds an asynchronous transmission waits for capacity when the maximum number of
+         * transmissions in flight is reached, before being rejected.
+         */
+        TRANSMISSION_SUBMIT_TIMEOUT("oxalis.transmission.submit.timeout", false, "60000"),
+
+        /**
+         * Number of milliseconds to wait for asynchronous transmissions in flight to complete upon shutdown.
+         */
+        TRANSMISSION_SHUTDOWN_TIMEOUT("oxalis.transmission.shutdown.timeout", false, "30000"),
+
+        /**
+         * Maximum number of transmissions of a batch being sent concurrently to the same receiving access point.
+         */
+        TRANSMISSION_MAX_PER_DESTINATION("oxalis.transmission.max.per.destination", false, "10"),
+
+        /**
+         * Weights of the lanes of asynchronous transmissions, i.e. the share of the threads given to each lane having
+         * transmissions queued. Lanes not mentioned are given their default weight.
+         */
+        TRANSMISSION_LANE_WEIGHTS("oxalis.transmission.lane.weights", false, "URGENT=16,NORMAL=4,BULK=1"),
+
+        /**
+         * Number of threads transmitting the messages held in the outbox.
+         */
+        OUTBOX_WORKERS("oxalis.outbox.workers", false, "4"),
+
+        /**
+         * Maximum number of attempts at transmitting a message from the outbox, before it is abandoned.
+         */
+        OUTBOX_MAX_ATTEMPTS("oxalis.outbox.max.attempts", false, "10"),
+
+        /**
+         * Number of milliseconds to wait before retrying a destination which failed for the first time. The delay is
+         * doubled for every consecutive failure of the same destination.
+         */
+        OUTBOX_INITIAL_BACKOFF("oxalis.outbox.initial.backoff", false, "30000"),
+
+        /**
+         * Maximum number of milliseconds to wait before retrying a failing destination.
+         */
+        OUTBOX_MAX_BACKOFF("oxalis.outbox.max.backoff", false, "3600000"),
+
+        /**
+         * Number of obsolete records allowed in the outbox journal, before it is compacted.
+         */
+        OUTBOX_COMPACTION_THRESHOLD("oxalis.outbox.compaction.threshold", false, "1000"),
+
+        /**
+         * Whether transmissions to access points failing repeatedly should fail fast, rather than waiting for the
+         * connect timeout every time.
+         */
+        CIRCUIT_BREAKER_ENABLED("oxalis.circuit.breaker.enabled", false, "true"),
+
+        /**
+         * Number of recent transmissions to an access point from which the failure rate is computed.
+         */
+        CIRCUIT_BREAKER_WINDOW_SIZE("oxalis.circuit.breaker.window.size", false, "20"),
+
+        /**
+         * Number of milliseconds after which the outcome of a transmission is no longer part of the window.
+         */
+        CIRCUIT_BREAKER_WINDOW_DURATION("oxalis.circuit.breaker.window.duration", false, "600000"),
+
+        /**
+         * Minimum number of transmissions within the window, before the failure rate is considered.
+         */
+        CIRCUIT_BREAKER_MIN_CALLS("oxalis.circuit.breaker.min.calls", false, "5"),
+
+        /**
+         * Failure rate in the range (0,1] at which transmissions to the access point start failing fast.
+         */
+        CIRCUIT_BREAKER_FAILURE_RATE("oxalis.circuit.breaker.failure.rate", false, "0.5"),
+
+        /**
+         * Successful transmissions taking longer than this number of milliseconds count as failures. A value of 0
+         * disables the slow call detection.
+         */
+        CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD("oxalis.circuit.breaker.slow.call.threshold", false, "60000"),
+
+        /**
+         * Number of milliseconds to fail fast, before a single probe is let through to the access point.
+         * The duration is doubled every time the probe fails.
+         */
+        CIRCUIT_BREAKER_OPEN_DURATION("oxalis.circuit.breaker.open.duration", false, "30000"),
+
+        /**
+         * Maximum number of milliseconds to fail fast between probes.
+         */
+        CIRCUIT_BREAKER_MAX_OPEN_DURATION("oxalis.circuit.breaker.max.open.duration", false, "1800000"),
+
+        /**
+         * Whether the connect and read timeouts of every access point should be derived from the latencies observed,
+         * rather than using oxalis.connection.timeout and oxalis.read.timeout for all of them.
+         */
+        ADAPTIVE_TIMEOUT("oxalis.timeout.adaptive", false, "true"),
+
+        /**
+         * Percentile of the observed latencies of an access point, from which its timeouts are derived.
+         */
+        ADAPTIVE_TIMEOUT_PERCENTILE("oxalis.timeout.percentile", false, "99"),
+
+        /**
+         * Factor by which the percentile of the observed latencies is multiplied to obtain the timeout.
+         */
+        ADAPTIVE_TIMEOUT_MULTIPLIER("oxalis.timeout.multiplier", false, "3"),
+
+        /**
+         * Number of latencies observed for an access point, before its timeouts are derived from them.
+         */
+        ADAPTIVE_TIMEOUT_MIN_SAMPLES("oxalis.timeout.min.samples", false, "20"),
+
+        /**
+         * Lower bound in milliseconds of a derived connect timeout.
+         */
+        ADAPTIVE_CONNECT_TIMEOUT_MIN("oxalis.timeout.connect.min", false, "1000"),
+
+        /**
+         * Upper bound in milliseconds of a derived connect timeout.
+         */
+        ADAPTIVE_CONNECT_TIMEOUT_MAX("oxalis.timeout.connect.max", false, "30000"),
+
+        /**
+         * Lower bound in milliseconds of a derived read timeout.
+         */
+        ADAPTIVE_READ_TIMEOUT_MIN("oxalis.timeout.read.min", false, "2000"),
+
+        /**
+         * Upper bound in milliseconds of a derived read timeout.
+         */
+        ADAPTIVE_READ_TIMEOUT_MAX("oxalis.timeout.read.max", false, "300000"),
+
+        /**
+         * Whether messages to receivers served by this access point are delivered directly to the message repository,
+         * rather than being sent to ourselves using HTTP and S/MIME.
+         */
+        LOOPBACK_ENABLED("oxalis.loopback.enabled", false, "false"),
+
+        /**
+         * Comma separated list of end point URLs served by this access point, in addition to those having our
+         * certificate, for which loopback delivery is used.
+         */
+        LOOPBACK_LOCAL_URLS("oxalis.loopback.local.urls", false, "");
 
         /**
          * External name of property as it appears in your .properties file, i.e. with the dot notation,
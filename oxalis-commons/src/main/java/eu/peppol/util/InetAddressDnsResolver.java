@@ -0,0 +1,63 @@
+package eu.peppol.util;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Hashtable;
+
+/**
+ * Resolves host names using {@link InetAddress}, i.e. the name service of the JVM.
+ *
+ * <p>As an {@link UnknownHostException} does not tell a host name which does not exist from a name server which did
+ * not respond, a failed lookup is repeated as a DNS query of the configured name servers. Only if they answer that
+ * the name does not exist (NXDOMAIN) is false returned, otherwise a {@link DnsLookupException} is thrown.</p>
+ *
+ * <p>Note that the JVM keeps a cache of its own, which is governed by the security properties
+ * <code>networkaddress.cache.ttl</code> and <code>networkaddress.cache.negative.ttl</code>.</p>
+ */
+public class InetAddressDnsResolver implements DnsResolver {
+
+    @Override
+    public boolean domainExists(String hostname) {
+        try {
+            InetAddress.getByName(hostname);
+            return true;
+        } catch (UnknownHostException exception) {
+            confirmNonExistentDomain(hostname, exception);
+            return false;
+        }
+    }
+
+    /**
+     * Queries the name servers directly, throwing a {@link DnsLookupException} unless they answer that the host
+     * name does not exist.
+     */
+    private static void confirmNonExistentDomain(String hostname, UnknownHostException unknownHostException) {
+        Hashtable<String, String> environment = new Hashtable<String, String>();
+        environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+
+        DirContext dirContext = null;
+        try {
+            dirContext = new InitialDirContext(environment);
+            dirContext.getAttributes(hostname, new String[]{"A", "AAAA", "CNAME"});
+        } catch (NameNotFoundException e) {
+            return;
+        } catch (NamingException e) {
+            throw new DnsLookupException(hostname, e);
+        } finally {
+            if (dirContext != null) {
+                try {
+                    dirContext.close();
+                } catch (NamingException e) {
+                    // Nothing to be done
+                }
+            }
+        }
+        // The name exists, although it could not be resolved into an address
+        throw new DnsLookupException(hostname, unknownHostException);
+    }
+}
@@ -0,0 +1,77 @@
+package eu.peppol.util;
+
+import java.net.SocketTimeoutException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process {@link DnsResolver}, which only knows about the host names registered with it. Allows SML lookups to be
+ * tested and benchmarked without network access. An artificial latency may be supplied to simulate a real DNS server.
+ */
+public class StubDnsResolver implements DnsResolver {
+
+    private final Set<String> hostnames = Collections.synchronizedSet(new HashSet<String>());
+    private final Set<String> unreachable = Collections.synchronizedSet(new HashSet<String>());
+    private final AtomicLong lookupCount = new AtomicLong();
+    private volatile long latencyInMillis = 0;
+
+    public StubDnsResolver() {
+    }
+
+    public StubDnsResolver(Collection<String> hostnames) {
+        for (String hostname : hostnames) {
+            register(hostname);
+        }
+    }
+
+    public StubDnsResolver register(String hostname) {
+        hostnames.add(hostname.toLowerCase());
+        return this;
+    }
+
+    public StubDnsResolver unregister(String hostname) {
+        hostnames.remove(hostname.toLowerCase());
+        return this;
+    }
+
+    /** Lookups of the host name will fail as if the name servers did not respond, until it is made reachable again */
+    public StubDnsResolver unreachable(String hostname) {
+        unreachable.add(hostname.toLowerCase());
+        return this;
+    }
+
+    public StubDnsResolver reachable(String hostname) {
+        unreachable.remove(hostname.toLowerCase());
+        return this;
+    }
+
+    /** Every lookup will be delayed by the supplied number of milliseconds */
+    public StubDnsResolver latency(long latencyInMillis) {
+        this.latencyInMillis = latencyInMillis;
+        return this;
+    }
+
+    @Override
+    public boolean domainExists(String hostname) {
+        lookupCount.incrementAndGet();
+        if (latencyInMillis > 0) {
+            try {
+                Thread.sleep(latencyInMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (unreachable.contains(hostname.toLowerCase())) {
+            throw new DnsLookupException(hostname, new SocketTimeoutException("Name server did not respond"));
+        }
+        return hostnames.contains(hostname.toLowerCase());
+    }
+
+    /** Number of lookups performed since this instance was created */
+    public long getLookupCount() {
+        return lookupCount.get();
+    }
+}
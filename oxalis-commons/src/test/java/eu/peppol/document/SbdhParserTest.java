@@ -8,13 +8,16 @@ import eu.peppol.identifier.PeppolProcessTypeId;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.Scanner;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
@@ -50,6 +53,31 @@ public class SbdhParserTest {
     }
 
 
+    /**
+     * Only the header is parsed, hence the start of the document is sufficient.
+     */
+    @Test
+    public void parseStartOfDocument() throws Exception {
+        InputStream inputStream = SbdhParserTest.class.getClassLoader().getResourceAsStream("peppol-bis-invoice-sbdh.xml");
+        String document;
+        try {
+            document = new Scanner(inputStream, "UTF-8").useDelimiter("\\A").next();
+        } finally {
+            inputStream.close();
+        }
+        String endOfHeader = "</StandardBusinessDocumentHeader>";
+        String startOfDocument = document.substring(0, document.indexOf(endOfHeader) + endOfHeader.length() + 20);
+
+        PeppolStandardBusinessHeader header = sbdhParser.parse(new ByteArrayInputStream(startOfDocument.getBytes("UTF-8")));
+        assertEquals(header.getRecipientId(), new ParticipantId("0007:4455454480"));
+        assertEquals(header.getSenderId(), new ParticipantId("0007:5567125082"));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void documentWithoutHeaderIsRejected() throws Exception {
+        sbdhParser.parse(new ByteArrayInputStream("<Invoice xmlns=\"urn:oasis:names:specification:ubl:schema:xsd:Invoice-2\"/>".getBytes("UTF-8")));
+    }
+
     private void parseData() throws URISyntaxException, IOException {
         URL resource = ParseSbdhTest.class.getClassLoader().getResource("peppol-bis-invoice-sbdh.xml");
         assertNotNull(resource);
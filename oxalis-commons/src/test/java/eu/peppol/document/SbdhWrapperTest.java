@@ -19,11 +19,17 @@
 
 package eu.peppol.document;
 
+import eu.peppol.PeppolStandardBusinessHeader;
+import org.apache.commons.io.IOUtils;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 
+import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
 
 /**
  * @author steinar
@@ -44,4 +50,37 @@ public class SbdhWrapperTest {
         String s = new String(wrap, "UTF-8");
         System.out.println(s);
     }
+
+    @Test
+    public void wrapIntoOutputStream() throws Exception {
+
+        InputStream resourceAsStream = SbdhWrapperTest.class.getClassLoader().getResourceAsStream("ehf-invoice-no-sbdh.xml");
+        assertNotNull(resourceAsStream);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        SbdhWrapper sbdhWrapper = new SbdhWrapper();
+        sbdhWrapper.wrap(resourceAsStream, outputStream);
+
+        // The wrapped document must be complete, i.e. parseable as an SBDH
+        PeppolStandardBusinessHeader header = new SbdhParser().parse(new ByteArrayInputStream(outputStream.toByteArray()));
+        assertEquals(header.getSenderId(), sbdhWrapper.getSender());
+        assertEquals(header.getRecipientId(), sbdhWrapper.getReceiver());
+    }
+
+    @Test
+    public void wrappedDocumentIsDeclaredAsUtf8WhateverTheEncodingOfTheInput() throws Exception {
+
+        InputStream resourceAsStream = SbdhWrapperTest.class.getClassLoader().getResourceAsStream("ehf-invoice-no-sbdh.xml");
+        assertNotNull(resourceAsStream);
+        String document = new String(IOUtils.toByteArray(resourceAsStream), "UTF-8");
+        resourceAsStream.close();
+        byte[] latin1 = document.replace("encoding=\"UTF-8\"", "encoding=\"ISO-8859-1\"").getBytes("ISO-8859-1");
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new SbdhWrapper().wrap(new ByteArrayInputStream(latin1), outputStream);
+
+        String wrapped = new String(outputStream.toByteArray(), "UTF-8");
+        assertTrue(wrapped.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"), wrapped.substring(0, 60));
+        assertTrue(wrapped.contains("NAV \u00d8konomitjeneste"));
+    }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2011,2012,2013,2014 UNIT4 Agresso AS.
+ *
+ * This file is part of Oxalis.
+ *
+ * Oxalis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Oxalis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Oxalis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.peppol.smp;
+
+import eu.peppol.BusDoxProtocol;
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.identifier.PeppolDocumentTypeId;
+import eu.peppol.identifier.PeppolDocumentTypeIdAcronym;
+import org.busdox.smp.SignedServiceMetadataType;
+import org.testng.annotations.Test;
+
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+/**
+ * Verifies the bulk capability lookup without accessing the network.
+ */
+public class BulkCapabilityLookupTest {
+
+    private static final PeppolDocumentTypeId INVOICE = PeppolDocumentTypeIdAcronym.INVOICE.getDocumentTypeIdentifier();
+    private static final PeppolDocumentTypeId ORDER = PeppolDocumentTypeIdAcronym.ORDER.getDocumentTypeIdentifier();
+
+    @Test
+    public void failuresAreReportedPerParticipantAndDocumentType() throws Exception {
+        StubSmpLookupManager stub = new StubSmpLookupManager(0);
+        BulkCapabilityLookup bulkCapabilityLookup = new StubbedHostBulkCapabilityLookup(stub, 4, 2);
+
+        ParticipantId good = new ParticipantId("9908:000000001");
+        ParticipantId partial = new ParticipantId("9908:000000002");
+        ParticipantId unregistered = new ParticipantId("9908:000000003");
+        stub.failingEndpoint = partial;
+
+        final List<ParticipantCapabilities> results = new ArrayList<ParticipantCapabilities>();
+        final Thread caller = Thread.currentThread();
+        bulkCapabilityLookup.lookup(Arrays.asList(good, partial, unregistered), new CapabilityLookupListener() {
+            @Override
+            public void onCapabilities(ParticipantCapabilities participantCapabilities) {
+                assertSame(Thread.currentThread(), caller, "Listener should be invoked by the calling thread");
+                results.add(participantCapabilities);
+            }
+        });
+
+        assertEquals(results.size(), 3);
+        for (ParticipantCapabilities result : results) {
+            if (result.getParticipantId().equals(good)) {
+                assertTrue(result.isSuccess());
+                assertEquals(result.getDocumentTypes(), Arrays.asList(INVOICE, ORDER));
+                assertEquals(result.getEndpoints().size(), 2);
+            } else if (result.getParticipantId().equals(partial)) {
+                assertFalse(result.isSuccess());
+                assertNull(result.getError());
+                assertEquals(result.getEndpoints().size(), 1);
+                assertTrue(result.getEndpoints().containsKey(INVOICE));
+                assertTrue(result.getDocumentTypeErrors().containsKey(ORDER));
+            } else {
+                assertTrue(result.getError() instanceof ParticipantNotRegisteredException);
+            }
+        }
+    }
+
+    @Test
+    public void concurrencyIsLimitedPerSmpHost() throws Exception {
+        StubSmpLookupManager stub = new StubSmpLookupManager(20);
+        BulkCapabilityLookup bulkCapabilityLookup = new StubbedHostBulkCapabilityLookup(stub, 16, 2);
+
+        List<ParticipantId> participantIds = new ArrayList<ParticipantId>();
+        for (int i = 0; i < 40; i++) {
+            participantIds.add(new ParticipantId("9908:1000000" + (i < 10 ? "0" + i : "" + i)));
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+        bulkCapabilityLookup.lookup(participantIds, new CapabilityLookupListener() {
+            @Override
+            public void onCapabilities(ParticipantCapabilities participantCapabilities) {
+                assertTrue(participantCapabilities.isSuccess(), participantCapabilities.toString());
+                count.incrementAndGet();
+            }
+        });
+
+        assertEquals(count.get(), 40);
+        for (String host : StubbedHostBulkCapabilityLookup.HOSTS) {
+            assertTrue(stub.maxConcurrent.get(host).get() <= 2, "Too many concurrent lookups against " + host + ": " + stub.maxConcurrent.get(host));
+        }
+        assertTrue(stub.maxConcurrentTotal.get() > 2, "Lookups against different SMP hosts should run concurrently");
+    }
+
+    /**
+     * Distributes the participants on a few fake SMP hosts, the participant ending with 3 is not registered.
+     */
+    static class StubbedHostBulkCapabilityLookup extends BulkCapabilityLookup {
+
+        static final String[] HOSTS = {"10.0.0.1", "10.0.0.2", "10.0.0.3", "10.0.0.4"};
+
+        StubbedHostBulkCapabilityLookup(SmpLookupManager smpLookupManager, int threads, int maxConcurrentPerHost) {
+            super(smpLookupManager, null, threads, maxConcurrentPerHost);
+        }
+
+        @Override
+        String resolveSmpHost(ParticipantId participantId) throws UnknownHostException {
+            if (participantId.stringValue().equals("9908:000000003")) {
+                throw new UnknownHostException(participantId.stringValue());
+            }
+            return HOSTS[Math.abs(participantId.hashCode()) % HOSTS.length];
+        }
+    }
+
+    /**
+     * Every participant accepts invoices and orders, tracks the number of concurrent lookups per SMP host.
+     */
+    static class StubSmpLookupManager implements SmpLookupManager {
+
+        final long delayInMillis;
+        volatile ParticipantId failingEndpoint;
+
+        final ConcurrentMap<String, AtomicInteger> concurrent = new ConcurrentHashMap<String, AtomicInteger>();
+        final ConcurrentMap<String, AtomicInteger> maxConcurrent = new ConcurrentHashMap<String, AtomicInteger>();
+        final AtomicInteger concurrentTotal = new AtomicInteger();
+        final AtomicInteger maxConcurrentTotal = new AtomicInteger();
+
+        StubSmpLookupManager(long delayInMillis) {
+            this.delayInMillis = delayInMillis;
+            for (String host : StubbedHostBulkCapabilityLookup.HOSTS) {
+                concurrent.put(host, new AtomicInteger());
+                maxConcurrent.put(host, new AtomicInteger());
+            }
+        }
+
+        @Override
+        public List<PeppolDocumentTypeId> getServiceGroups(ParticipantId participantId) {
+            String host = StubbedHostBulkCapabilityLookup.HOSTS[Math.abs(participantId.hashCode()) % StubbedHostBulkCapabilityLookup.HOSTS.length];
+            int current = concurrent.get(host).incrementAndGet();
+            int total = concurrentTotal.incrementAndGet();
+            updateMax(maxConcurrent.get(host), current);
+            updateMax(maxConcurrentTotal, total);
+            try {
+                Thread.sleep(delayInMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrent.get(host).decrementAndGet();
+                concurrentTotal.decrementAndGet();
+            }
+            return Arrays.asList(INVOICE, ORDER);
+        }
+
+        @Override
+        public PeppolEndpointData getEndpointTransmissionData(ParticipantId participantId, PeppolDocumentTypeId documentTypeIdentifier) {
+            if (participantId.equals(failingEndpoint) && documentTypeIdentifier.equals(ORDER)) {
+                throw new IllegalStateException("Simulated SMP failure");
+            }
+            try {
+                return new PeppolEndpointData(new URL("https://ap.example.com/as2"), BusDoxProtocol.AS2);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public URL getEndpointAddress(ParticipantId participant, PeppolDocumentTypeId documentTypeIdentifier) {
+            return getEndpointTransmissionData(participant, documentTypeIdentifier).getUrl();
+        }
+
+        @Override
+        public X509Certificate getEndpointCertificate(ParticipantId participant, PeppolDocumentTypeId documentTypeIdentifier) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SignedServiceMetadataType getServiceMetaData(ParticipantId participant, PeppolDocumentTypeId documentTypeIdentifier) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void getCapabilities(Collection<ParticipantId> participantIds, CapabilityLookupListener listener) {
+            throw new UnsupportedOperationException();
+        }
+
+        private static void updateMax(AtomicInteger max, int value) {
+            int current;
+            do {
+                current = max.get();
+            } while (value > current && !max.compareAndSet(current, value));
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2011,2012,2013,2014 UNIT4 Agresso AS.
+ *
+ * This file is part of Oxalis.
+ *
+ * Oxalis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Oxalis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Oxalis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.peppol.smp;
+
+import eu.peppol.BusDoxProtocol;
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.identifier.PeppolDocumentTypeId;
+import eu.peppol.identifier.PeppolDocumentTypeIdAcronym;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+/**
+ * Verifies the caching of SMP lookups without accessing the network, using a canned SMP response.
+ */
+public class CachingSmpLookupManagerTest {
+
+    private static final PeppolDocumentTypeId INVOICE = PeppolDocumentTypeIdAcronym.INVOICE.getDocumentTypeIdentifier();
+    private static final ParticipantId RECEIVER = new ParticipantId("9908:991825827");
+
+    private CountingSmpLookupManager countingSmpLookupManager;
+
+    @BeforeMethod
+    public void setUp() {
+        countingSmpLookupManager = new CountingSmpLookupManager();
+    }
+
+    @Test
+    public void repeatedLookupsAreServedFromCache() throws Exception {
+        CachingSmpLookupManager cachingSmpLookupManager = new CachingSmpLookupManager(countingSmpLookupManager, 60000, 10);
+
+        SmpLookupManager.PeppolEndpointData endpointData = cachingSmpLookupManager.getEndpointTransmissionData(RECEIVER, INVOICE);
+        assertEquals(endpointData.getBusDoxProtocol(), BusDoxProtocol.AS2);
+        assertNotNull(endpointData.getCommonName());
+
+        assertEquals(cachingSmpLookupManager.getEndpointAddress(RECEIVER, INVOICE), new URL("https://ap.ergogroup.no/oxalis/as2"));
+        assertNotNull(cachingSmpLookupManager.getEndpointCertificate(RECEIVER, INVOICE));
+        assertNotNull(cachingSmpLookupManager.getServiceMetaData(RECEIVER, INVOICE));
+        assertEquals(cachingSmpLookupManager.getProcessIdentifierForDocumentType(RECEIVER, INVOICE).toString(), "urn:www.cenbii.eu:profile:bii04:ver1.0");
+
+        assertEquals(countingSmpLookupManager.lookups.get(), 1);
+
+        CachingSmpLookupManager.Statistics statistics = cachingSmpLookupManager.getStatistics();
+        assertEquals(statistics.getMissCount(), 1);
+        assertEquals(statistics.getHitCount(), 4);
+        assertEquals(statistics.getLoadCount(), 1);
+        assertEquals(statistics.getSize(), 1);
+    }
+
+    @Test
+    public void expiredEntriesAreReloaded() throws Exception {
+        CachingSmpLookupManager cachingSmpLookupManager = new CachingSmpLookupManager(countingSmpLookupManager, 10, 10);
+
+        cachingSmpLookupManager.getEndpointTransmissionData(RECEIVER, INVOICE);
+        Thread.sleep(20);
+        cachingSmpLookupManager.getEndpointTransmissionData(RECEIVER, INVOICE);
+
+        assertEquals(countingSmpLookupManager.lookups.get(), 2);
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() throws Exception {
+        CachingSmpLookupManager cachingSmpLookupManager = new CachingSmpLookupManager(countingSmpLookupManager, 60000, 2);
+
+        ParticipantId first = new ParticipantId("9908:000000001");
+        ParticipantId second = new ParticipantId("9908:000000002");
+        ParticipantId third = new ParticipantId("9908:000000003");
+
+        cachingSmpLookupManager.getEndpointTransmissionData(first, INVOICE);
+        cachingSmpLookupManager.getEndpointTransmissionData(second, INVOICE);
+        cachingSmpLookupManager.getEndpointTransmissionData(first, INVOICE);   // first is now the most recently used
+        cachingSmpLookupManager.getEndpointTransmissionData(third, INVOICE);   // evicts second
+
+        assertEquals(cachingSmpLookupManager.size(), 2);
+        assertEquals(countingSmpLookupManager.lookups.get(), 3);
+
+        cachingSmpLookupManager.getEndpointTransmissionData(first, INVOICE);
+        assertEquals(countingSmpLookupManager.lookups.get(), 3);
+
+        cachingSmpLookupManager.getEndpointTransmissionData(second, INVOICE);
+        assertEquals(countingSmpLookupManager.lookups.get(), 4);
+    }
+
+    @Test
+    public void concurrentMissesAreCoalesced() throws Exception {
+        countingSmpLookupManager.delayInMillis = 200;
+        final CachingSmpLookupManager cachingSmpLookupManager = new CachingSmpLookupManager(countingSmpLookupManager, 60000, 10);
+
+        final int threadCount = 50;
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        startSignal.await();
+                        assertNotNull(cachingSmpLookupManager.getEndpointTransmissionData(RECEIVER, INVOICE));
+                    } catch (Throwable t) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+
+        startSignal.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(failures.get(), 0);
+        assertEquals(countingSmpLookupManager.lookups.get(), 1, "Concurrent misses should cause a single SMP lookup");
+        assertEquals(cachingSmpLookupManager.getStatistics().getLoadCount(), 1);
+    }
+
+    @Test
+    public void failuresAreNotCached() throws Exception {
+        countingSmpLookupManager.failNextLookup = true;
+        CachingSmpLookupManager cachingSmpLookupManager = new CachingSmpLookupManager(countingSmpLookupManager, 60000, 10);
+
+        try {
+            cachingSmpLookupManager.getServiceMetaData(RECEIVER, INVOICE);
+            fail("Expected the lookup to fail");
+        } catch (SmpSignedServiceMetaDataException e) {
+            // expected
+        }
+        assertEquals(cachingSmpLookupManager.getStatistics().getLoadFailureCount(), 1);
+
+        assertNotNull(cachingSmpLookupManager.getServiceMetaData(RECEIVER, INVOICE));
+        assertEquals(countingSmpLookupManager.lookups.get(), 2);
+    }
+
+    @Test
+    public void entriesAboutToExpireAreReloadedInBackground() throws Exception {
+        CachingSmpLookupManager cachingSmpLookupManager = new CachingSmpLookupManager(countingSmpLookupManager, 200, 10, 150, 0, 1);
+        try {
+            SmpCacheEntry first = cachingSmpLookupManager.lookup(RECEIVER, INVOICE);
+            Thread.sleep(100);
+
+            // Within the refresh ahead period, the current entry is returned while a new one is loaded
+            countingSmpLookupManager.delayInMillis = 50;
+            assertSame(cachingSmpLookupManager.lookup(RECEIVER, INVOICE), first);
+            waitForRefreshes(cachingSmpLookupManager, 1);
+
+            assertEquals(countingSmpLookupManager.lookups.get(), 2);
+            assertNotSame(cachingSmpLookupManager.lookup(RECEIVER, INVOICE), first);
+            assertEquals(cachingSmpLookupManager.getStatistics().getMissCount(), 1);
+        } finally {
+            cachingSmpLookupManager.close();
+        }
+    }
+
+    @Test
+    public void staleEntriesAreServedWhileSmpIsUnreachable() throws Exception {
+        CachingSmpLookupManager cachingSmpLookupManager = new CachingSmpLookupManager(countingSmpLookupManager, 50, 10, 0, 200, 1);
+        try {
+            SmpCacheEntry first = cachingSmpLookupManager.lookup(RECEIVER, INVOICE);
+            Thread.sleep(60);
+
+            countingSmpLookupManager.failNextLookup = true;
+            assertSame(cachingSmpLookupManager.lookup(RECEIVER, INVOICE), first);
+
+            long timeout = System.currentTimeMillis() + 5000;
+            while (cachingSmpLookupManager.getStatistics().getRefreshFailureCount() < 1 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(5);
+            }
+            assertEquals(cachingSmpLookupManager.getStatistics().getRefreshFailureCount(), 1);
+
+            // The failed reload is not retried immediately, the stale entry is still being served
+            assertSame(cachingSmpLookupManager.lookup(RECEIVER, INVOICE), first);
+            assertEquals(countingSmpLookupManager.lookups.get(), 2);
+            assertEquals(cachingSmpLookupManager.getStatistics().getStaleHitCount(), 2);
+
+            // Beyond the maximum staleness, the entry is reloaded by the requesting thread
+            Thread.sleep(200);
+            assertNotSame(cachingSmpLookupManager.lookup(RECEIVER, INVOICE), first);
+            assertEquals(countingSmpLookupManager.lookups.get(), 3);
+        } finally {
+            cachingSmpLookupManager.close();
+        }
+    }
+
+    @Test
+    public void snapshotIsRestored() throws Exception {
+        CachingSmpLookupManager cachingSmpLookupManager = new CachingSmpLookupManager(countingSmpLookupManager, 60000, 10);
+        cachingSmpLookupManager.lookup(RECEIVER, INVOICE);
+        cachingSmpLookupManager.lookup(new ParticipantId("9908:000000001"), INVOICE);
+
+        File snapshot = File.createTempFile("smp-cache", ".snapshot");
+        try {
+            assertEquals(cachingSmpLookupManager.saveSnapshot(snapshot), 2);
+
+            CountingSmpLookupManager restoredSmpLookupManager = new CountingSmpLookupManager();
+            CachingSmpLookupManager restored = new CachingSmpLookupManager(restoredSmpLookupManager, 60000, 10);
+            assertEquals(restored.loadSnapshot(snapshot, true), 2);
+
+            SmpLookupManager.PeppolEndpointData endpointData = restored.getEndpointTransmissionData(RECEIVER, INVOICE);
+            assertEquals(endpointData.getUrl(), new URL("https://ap.ergogroup.no/oxalis/as2"));
+            assertEquals(endpointData.getCommonName(), cachingSmpLookupManager.getEndpointTransmissionData(RECEIVER, INVOICE).getCommonName());
+            assertEquals(restored.getEndpointCertificate(RECEIVER, INVOICE), cachingSmpLookupManager.getEndpointCertificate(RECEIVER, INVOICE));
+            assertEquals(restored.lookup(RECEIVER, INVOICE).getFetchedAt(), cachingSmpLookupManager.lookup(RECEIVER, INVOICE).getFetchedAt());
+
+            assertEquals(restoredSmpLookupManager.lookups.get(), 0, "Restored entries should not require SMP lookups");
+        } finally {
+            snapshot.delete();
+        }
+    }
+
+    @Test
+    public void expiredAndTamperedSnapshotEntriesAreIgnored() throws Exception {
+        CachingSmpLookupManager cachingSmpLookupManager = new CachingSmpLookupManager(countingSmpLookupManager, 60000, 10);
+        SmpCacheEntry entry = cachingSmpLookupManager.lookup(RECEIVER, INVOICE);
+
+        String tampered = new String(entry.getSignedResponse(), "UTF-8").replace("https://ap.ergogroup.no/oxalis/as2", "https://evil.example.com/as2");
+        SmpCacheEntry tamperedEntry = new SmpCacheEntry(new SmpCacheEntry.Key(new ParticipantId("9908:000000001"), INVOICE),
+                entry.getServiceMetadata(), entry.getEndpointData(), entry.getCertificate(), entry.getProcessTypeId(),
+                entry.getFetchedAt(), tampered.getBytes("UTF-8"));
+        SmpCacheEntry expiredEntry = new SmpCacheEntry(new SmpCacheEntry.Key(new ParticipantId("9908:000000002"), INVOICE),
+                entry.getServiceMetadata(), entry.getEndpointData(), entry.getCertificate(), entry.getProcessTypeId(),
+                entry.getFetchedAt() - 120000, entry.getSignedResponse());
+
+        File snapshot = File.createTempFile("smp-cache", ".snapshot");
+        try {
+            SmpCacheSnapshot.write(Arrays.asList(tamperedEntry, expiredEntry), snapshot);
+
+            CachingSmpLookupManager restored = new CachingSmpLookupManager(new CountingSmpLookupManager(), 60000, 10);
+            assertEquals(restored.loadSnapshot(snapshot, false), 0);
+            assertEquals(restored.size(), 0);
+        } finally {
+            snapshot.delete();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void bulkLookupRequiresAtLeastOneLookupPerSmp() {
+        new CachingSmpLookupManager(countingSmpLookupManager, 60000, 10).setBulkLookupLimits(4, 0);
+    }
+
+    private void waitForRefreshes(CachingSmpLookupManager cachingSmpLookupManager, long expectedRefreshes) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000;
+        while (cachingSmpLookupManager.getStatistics().getRefreshCount() < expectedRefreshes && System.currentTimeMillis() < timeout) {
+            Thread.sleep(5);
+        }
+        assertEquals(cachingSmpLookupManager.getStatistics().getRefreshCount(), expectedRefreshes);
+    }
+
+    /**
+     * Returns a canned SMP response, counting the number of invocations.
+     */
+    static class CountingSmpLookupManager extends SmpLookupManagerImpl {
+
+        final AtomicInteger lookups = new AtomicInteger();
+        volatile long delayInMillis = 0;
+        volatile boolean failNextLookup = false;
+
+        CountingSmpLookupManager() {
+            super(SmlHost.TEST_SML, new SmpContentRetriever() {
+                @Override
+                public InputSource getUrlContent(URL url) {
+                    throw new IllegalStateException("Network access not expected");
+                }
+            }, new DefaultBusDoxProtocolSelectionStrategyImpl());
+        }
+
+        @Override
+        Document getSignedServiceMetaDataDocument(ParticipantId participant, PeppolDocumentTypeId documentTypeIdentifier) throws SmpSignedServiceMetaDataException {
+            lookups.incrementAndGet();
+            try {
+                if (delayInMillis > 0) {
+                    Thread.sleep(delayInMillis);
+                }
+                if (failNextLookup) {
+                    failNextLookup = false;
+                    throw new IllegalStateException("Simulated SMP failure");
+                }
+                InputStream inputStream = CachingSmpLookupManagerTest.class.getClassLoader().getResourceAsStream("smp-response-with-as2.xml");
+                return createXmlDocument(new InputSource(inputStream));
+            } catch (Exception e) {
+                throw new SmpSignedServiceMetaDataException(participant, documentTypeIdentifier, null, e);
+            }
+        }
+    }
+}
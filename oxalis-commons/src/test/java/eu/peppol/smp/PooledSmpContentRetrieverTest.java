@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2011,2012,2013,2014 UNIT4 Agresso AS.
+ *
+ * This file is part of Oxalis.
+ *
+ * Oxalis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Oxalis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Oxalis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.peppol.smp;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import eu.peppol.util.ConnectionException;
+import eu.peppol.util.TryAgainLaterException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import static org.testng.Assert.*;
+
+/**
+ * Verifies the pooled SMP content retriever against a local HTTP server.
+ */
+public class PooledSmpContentRetrieverTest {
+
+    private static final String XML = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><ServiceGroup>Blåbær</ServiceGroup>";
+
+    private HttpServer httpServer;
+    private PooledSmpContentRetriever retriever;
+
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+    private volatile String acceptEncoding;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        httpServer.createContext("/smp", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+
+                byte[] body = XML.getBytes("ISO-8859-1");
+                exchange.getResponseHeaders().add("Content-Type", "text/xml");
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = new GZIPOutputStream(exchange.getResponseBody());
+                out.write(body);
+                out.close();
+            }
+        });
+        httpServer.createContext("/busy", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("Retry-After", "120");
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+            }
+        });
+        httpServer.createContext("/missing", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+            }
+        });
+        httpServer.start();
+
+        retriever = new PooledSmpContentRetriever(5000, 5000, 10, 2, 60000);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        retriever.close();
+        httpServer.stop(0);
+    }
+
+    @Test
+    public void compressedResponseIsStreamedToParser() throws Exception {
+        InputSource inputSource = retriever.getUrlContent(url("/smp"));
+        assertNotNull(inputSource.getByteStream());
+        assertNull(inputSource.getCharacterStream());
+
+        Document document = parse(inputSource);
+        assertEquals(document.getDocumentElement().getTextContent(), "Blåbær", "Encoding of XML declaration should be honoured");
+
+        assertNotNull(acceptEncoding);
+        assertTrue(acceptEncoding.contains("gzip"), "Compression should be negotiated, got " + acceptEncoding);
+    }
+
+    @Test
+    public void connectionsAreReused() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            parse(retriever.getUrlContent(url("/smp")));
+        }
+        assertEquals(clientPorts.size(), 1, "All requests should have been sent on the same connection");
+        assertEquals(retriever.getConnectionManager().getTotalStats().getLeased(), 0);
+    }
+
+    @Test(expectedExceptions = TryAgainLaterException.class)
+    public void serviceUnavailable() throws Exception {
+        retriever.getUrlContent(url("/busy"));
+    }
+
+    @Test(expectedExceptions = ConnectionException.class)
+    public void notFound() throws Exception {
+        retriever.getUrlContent(url("/missing"));
+    }
+
+    @Test
+    public void latencyIsRecordedPerHost() throws Exception {
+        parse(retriever.getUrlContent(url("/smp")));
+        try {
+            retriever.getUrlContent(url("/missing"));
+            fail("Expected ConnectionException");
+        } catch (ConnectionException e) {
+            // expected
+        }
+
+        PooledSmpContentRetriever.HostStatistics statistics = retriever.getHostStatistics().get("localhost");
+        assertNotNull(statistics);
+        assertEquals(statistics.getRequestCount(), 2);
+        assertEquals(statistics.getFailureCount(), 1);
+        assertTrue(statistics.getMaxLatencyMillis() >= statistics.getAverageLatencyMillis());
+    }
+
+    private URL url(String path) throws Exception {
+        return new URL("http://localhost:" + httpServer.getAddress().getPort() + path);
+    }
+
+    private Document parse(InputSource inputSource) throws Exception {
+        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        try {
+            return documentBuilderFactory.newDocumentBuilder().parse(inputSource);
+        } finally {
+            inputSource.getByteStream().close();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2011,2012,2013,2014 UNIT4 Agresso AS.
+ *
+ * This file is part of Oxalis.
+ *
+ * Oxalis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Oxalis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Oxalis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.peppol.smp;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.annotations.Test;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+public class SmpRequestHedgerTest {
+
+    @Test
+    public void disabledHedgerInvokesTaskOnce() throws Exception {
+        final AtomicInteger invocations = new AtomicInteger();
+        SmpRequestHedger hedger = SmpRequestHedger.disabled();
+
+        String result = hedger.execute(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                invocations.incrementAndGet();
+                return Thread.currentThread().getName();
+            }
+        });
+
+        assertEquals(result, Thread.currentThread().getName());
+        assertEquals(invocations.get(), 1);
+        assertFalse(hedger.isEnabled());
+    }
+
+    @Test
+    public void noHedgingUntilEnoughLatenciesObserved() throws Exception {
+        SmpRequestHedger hedger = new SmpRequestHedger(95, 10, 1.0, 100, 4);
+        try {
+            assertNull(hedger.getHedgeDelay());
+            assertEquals(hedger.execute(new SlowFirstInvocation(200, false)), "first");
+
+            // The first invocation is awaited, as no hedge delay can be computed yet
+            assertEquals(hedger.getHedgeCount(), 0);
+        } finally {
+            hedger.close();
+        }
+    }
+
+    @Test
+    public void slowRequestIsHedged() throws Exception {
+        SmpRequestHedger hedger = primedHedger(1.0);
+        try {
+            long start = System.currentTimeMillis();
+            String result = hedger.execute(new SlowFirstInvocation(5000, false));
+            long elapsed = System.currentTimeMillis() - start;
+
+            assertEquals(result, "second");
+            assertTrue(elapsed < 2000, "Hedged request should have won, took " + elapsed + "ms");
+            assertEquals(hedger.getHedgeCount(), 1);
+            assertEquals(hedger.getHedgeWinCount(), 1);
+        } finally {
+            hedger.close();
+        }
+    }
+
+    @Test
+    public void failedRequestLosesToHedge() throws Exception {
+        SmpRequestHedger hedger = primedHedger(1.0);
+        try {
+            // The first invocation fails, e.g. due to an invalid signature, after the hedge has been issued
+            assertEquals(hedger.execute(new SlowFirstInvocation(200, true)), "second");
+        } finally {
+            hedger.close();
+        }
+    }
+
+    @Test
+    public void hedgeRateIsCapped() throws Exception {
+        SmpRequestHedger hedger = primedHedger(0.0);
+        try {
+            assertEquals(hedger.execute(new SlowFirstInvocation(200, false)), "first");
+            assertEquals(hedger.getHedgeCount(), 0);
+        } finally {
+            hedger.close();
+        }
+    }
+
+    @Test
+    public void delayIsPercentileOfRecentLatencies() {
+        SmpRequestHedger hedger = new SmpRequestHedger(90, 1, 0.1, 100, 1);
+        try {
+            for (int i = 1; i <= 100; i++) {
+                hedger.recordLatency(i);
+            }
+            assertEquals(hedger.getHedgeDelay(), Long.valueOf(90));
+
+            // The minimum delay applies when the SMP servers are fast
+            SmpRequestHedger withMinimum = new SmpRequestHedger(90, 500, 0.1, 100, 1);
+            for (int i = 1; i <= 100; i++) {
+                withMinimum.recordLatency(i);
+            }
+            assertEquals(withMinimum.getHedgeDelay(), Long.valueOf(500));
+            withMinimum.close();
+        } finally {
+            hedger.close();
+        }
+    }
+
+    /**
+     * Demonstrates the reduction of tail latency, using a local stand-in for an SMP server, which delays 5% of
+     * the responses by 500ms.
+     */
+    @Test(groups = {"manual"})
+    public void demonstrateTailLatencyReduction() throws Exception {
+        final Random random = new Random(42);
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        httpServer.setExecutor(Executors.newCachedThreadPool());
+        httpServer.createContext("/smp", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(random.nextInt(100) < 5 ? 500 : 5 + random.nextInt(10));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                byte[] body = "<ServiceMetadata/>".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        httpServer.start();
+
+        final URL url = new URL("http://localhost:" + httpServer.getAddress().getPort() + "/smp");
+        final PooledSmpContentRetriever retriever = new PooledSmpContentRetriever(5000, 5000, 20, 20, 60000);
+        SmpRequestHedger hedger = new SmpRequestHedger(95, 20, 0.1, 1000, 20);
+        try {
+            Callable<Object> lookup = new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(retriever.getUrlContent(url));
+                }
+            };
+
+            long[] plain = measure(SmpRequestHedger.disabled(), lookup, 500);
+            long[] hedged = measure(hedger, lookup, 500);
+
+            System.out.println("Without hedging: p50=" + percentile(plain, 50) + "ms, p99=" + percentile(plain, 99) + "ms");
+            System.out.println("With hedging:    p50=" + percentile(hedged, 50) + "ms, p99=" + percentile(hedged, 99) + "ms, " + hedger);
+
+            assertTrue(percentile(hedged, 99) < percentile(plain, 99));
+        } finally {
+            hedger.close();
+            retriever.close();
+            httpServer.stop(0);
+        }
+    }
+
+    private long[] measure(SmpRequestHedger hedger, Callable<Object> lookup, int count) throws Exception {
+        long[] latencies = new long[count];
+        for (int i = 0; i < count; i++) {
+            long start = System.currentTimeMillis();
+            hedger.execute(lookup);
+            latencies[i] = System.currentTimeMillis() - start;
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private long percentile(long[] sortedLatencies, int percentile) {
+        return sortedLatencies[(int) Math.ceil(percentile / 100.0 * sortedLatencies.length) - 1];
+    }
+
+    private SmpRequestHedger primedHedger(double maxHedgeRate) {
+        SmpRequestHedger hedger = new SmpRequestHedger(95, 10, maxHedgeRate, 100, 4);
+        for (int i = 0; i < SmpRequestHedger.MIN_SAMPLES; i++) {
+            hedger.recordLatency(10);
+        }
+        return hedger;
+    }
+
+    /**
+     * The first invocation is delayed and optionally fails, while the second invocation completes after 50ms.
+     */
+    static class SlowFirstInvocation implements Callable<String> {
+
+        private final AtomicInteger invocations = new AtomicInteger();
+        private final long delayInMillis;
+        private final boolean failFirst;
+
+        SlowFirstInvocation(long delayInMillis, boolean failFirst) {
+            this.delayInMillis = delayInMillis;
+            this.failFirst = failFirst;
+        }
+
+        @Override
+        public String call() throws Exception {
+            if (invocations.incrementAndGet() == 1) {
+                Thread.sleep(delayInMillis);
+                if (failFirst) {
+                    throw new IllegalStateException("SMP response contained invalid signature");
+                }
+                return "first";
+            }
+            Thread.sleep(50);
+            return "second";
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package eu.peppol.util;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class CachingDnsResolverTest {
+
+    private static final String REGISTERED = "B-1234.iso6523-actorid-upis.sml.peppolcentral.org";
+    private static final String UNKNOWN = "B-9999.iso6523-actorid-upis.sml.peppolcentral.org";
+
+    private StubDnsResolver stubDnsResolver;
+
+    @BeforeMethod
+    public void setUp() {
+        stubDnsResolver = new StubDnsResolver().register(REGISTERED);
+    }
+
+    @Test
+    public void existingHostNamesAreCached() {
+        CachingDnsResolver cachingDnsResolver = new CachingDnsResolver(stubDnsResolver, 60000, 60000, 10);
+
+        assertTrue(cachingDnsResolver.domainExists(REGISTERED));
+        assertTrue(cachingDnsResolver.domainExists(REGISTERED.toLowerCase()));
+
+        assertEquals(stubDnsResolver.getLookupCount(), 1);
+        assertEquals(cachingDnsResolver.getPositiveHitCount(), 1);
+    }
+
+    @Test
+    public void missingHostNamesAreCached() {
+        CachingDnsResolver cachingDnsResolver = new CachingDnsResolver(stubDnsResolver, 60000, 60000, 10);
+
+        assertFalse(cachingDnsResolver.domainExists(UNKNOWN));
+        assertFalse(cachingDnsResolver.domainExists(UNKNOWN));
+
+        assertEquals(stubDnsResolver.getLookupCount(), 1);
+        assertEquals(cachingDnsResolver.getNegativeHitCount(), 1);
+        assertEquals(cachingDnsResolver.getNegativeCacheSize(), 1);
+        assertEquals(cachingDnsResolver.getPositiveCacheSize(), 0);
+    }
+
+    @Test
+    public void failedLookupsAreNotCached() {
+        CachingDnsResolver cachingDnsResolver = new CachingDnsResolver(stubDnsResolver, 60000, 60000, 10);
+
+        stubDnsResolver.unreachable(REGISTERED);
+        try {
+            cachingDnsResolver.domainExists(REGISTERED);
+            fail("Expected DnsLookupException");
+        } catch (DnsLookupException e) {
+            // expected
+        }
+        assertEquals(cachingDnsResolver.getNegativeCacheSize(), 0);
+
+        stubDnsResolver.reachable(REGISTERED);
+        assertTrue(cachingDnsResolver.domainExists(REGISTERED));
+        assertEquals(stubDnsResolver.getLookupCount(), 2);
+    }
+
+    @Test
+    public void negativeEntriesExpireIndependently() throws Exception {
+        CachingDnsResolver cachingDnsResolver = new CachingDnsResolver(stubDnsResolver, 60000, 10, 10);
+
+        assertTrue(cachingDnsResolver.domainExists(REGISTERED));
+        assertFalse(cachingDnsResolver.domainExists(UNKNOWN));
+
+        // The participant is registered while the negative entry is still alive
+        stubDnsResolver.register(UNKNOWN);
+        assertFalse(cachingDnsResolver.domainExists(UNKNOWN));
+
+        Thread.sleep(20);
+
+        assertTrue(cachingDnsResolver.domainExists(UNKNOWN));
+        assertTrue(cachingDnsResolver.domainExists(REGISTERED));
+        assertEquals(stubDnsResolver.getLookupCount(), 3);
+    }
+
+    @Test
+    public void negativeCachingMayBeDisabled() {
+        CachingDnsResolver cachingDnsResolver = new CachingDnsResolver(stubDnsResolver, 60000, 0, 10);
+
+        assertFalse(cachingDnsResolver.domainExists(UNKNOWN));
+        assertFalse(cachingDnsResolver.domainExists(UNKNOWN));
+
+        assertEquals(stubDnsResolver.getLookupCount(), 2);
+    }
+
+    @Test
+    public void unknownHostNamesDoNotEvictRegisteredOnes() {
+        CachingDnsResolver cachingDnsResolver = new CachingDnsResolver(stubDnsResolver, 60000, 60000, 2);
+
+        assertTrue(cachingDnsResolver.domainExists(REGISTERED));
+        for (int i = 0; i < 10; i++) {
+            assertFalse(cachingDnsResolver.domainExists("unknown-" + i + ".sml.peppolcentral.org"));
+        }
+
+        assertEquals(cachingDnsResolver.getNegativeCacheSize(), 2);
+        assertEquals(cachingDnsResolver.getPositiveCacheSize(), 1);
+
+        long lookups = stubDnsResolver.getLookupCount();
+        assertTrue(cachingDnsResolver.domainExists(REGISTERED));
+        assertEquals(stubDnsResolver.getLookupCount(), lookups);
+    }
+
+    @Test
+    public void invalidateForcesNewLookup() {
+        CachingDnsResolver cachingDnsResolver = new CachingDnsResolver(stubDnsResolver, 60000, 60000, 10);
+
+        assertFalse(cachingDnsResolver.domainExists(UNKNOWN));
+        stubDnsResolver.register(UNKNOWN);
+        cachingDnsResolver.invalidate(UNKNOWN);
+
+        assertTrue(cachingDnsResolver.domainExists(UNKNOWN));
+        assertEquals(stubDnsResolver.getLookupCount(), 2);
+    }
+}
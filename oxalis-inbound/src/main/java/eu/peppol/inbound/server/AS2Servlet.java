@@ -26,26 +26,31 @@ import eu.peppol.persistence.MessageRepository;
 import eu.peppol.start.persistence.MessageRepositoryFactory;
 import eu.peppol.statistics.RawStatisticsRepository;
 import eu.peppol.statistics.RawStatisticsRepositoryFactoryProvider;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import eu.peppol.util.GlobalConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeMessage;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.security.PrivateKey;
-import java.security.Security;
-import java.security.cert.X509Certificate;
+import java.io.InputStream;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -64,30 +69,52 @@ public class AS2Servlet extends HttpServlet {
     private InboundMessageReceiver inboundMessageReceiver;
     private RawStatisticsRepository rawStatisticsRepository;
     private MessageRepository messageRepository;
+    private long maxContentLength;
+    private InboundWorkerPool workerPool;
+
+    /** States of a request received asynchronously */
+    private static final int WAITING = 0;
+    private static final int RECEIVING = 1;
+    private static final int ANSWERED = 2;
+
+    public AS2Servlet() {
+    }
+
+    /**
+     * Creates a servlet receiving messages by the supplied collaborators, rather than those configured for the
+     * container by {@link #init(ServletConfig)}.
+     */
+    AS2Servlet(MdnMimeMessageFactory mdnMimeMessageFactory, InboundMessageReceiver inboundMessageReceiver, MessageRepository messageRepository, long maxContentLength) {
+        this.mdnMimeMessageFactory = mdnMimeMessageFactory;
+        this.inboundMessageReceiver = inboundMessageReceiver;
+        this.messageRepository = messageRepository;
+        this.maxContentLength = maxContentLength;
+    }
 
 
     /**
      * Loads our X509 PEPPOL certificate togheter with our private key and initializes
-     * a MdnMimeMessageFactory instance.
+     * a MdnMimeMessageFactory instance, which signs all the MDNs using a single {@link SMimeSigner}.
      *
      * @param servletConfig
      */
     @Override
     public void init(ServletConfig servletConfig) {
-        KeystoreManager keystoreManager = KeystoreManager.getInstance();
-        X509Certificate ourCertificate = keystoreManager.getOurCertificate();
-        PrivateKey ourPrivateKey = keystoreManager.getOurPrivateKey();
-
-        mdnMimeMessageFactory = new MdnMimeMessageFactory(ourCertificate, ourPrivateKey);
-
-        // Gives us access to BouncyCastle
-        Security.addProvider(new BouncyCastleProvider());
+        // Gives us access to BouncyCastle, the signer registers the provider unless already present
+        mdnMimeMessageFactory = new MdnMimeMessageFactory(new SMimeSigner(KeystoreManager.getInstance()));
 
         // Gives us access to the Message repository holding the received messages
         messageRepository = MessageRepositoryFactory.getInstance();
 
-        // Creates the receiver for inbound messages
-        inboundMessageReceiver = new InboundMessageReceiver();
+        // Creates the receiver for inbound messages, large payloads are spooled to disk until persisted
+        GlobalConfiguration globalConfiguration = GlobalConfiguration.getInstance();
+        inboundMessageReceiver = new InboundMessageReceiver(globalConfiguration.getInboundSpoolThreshold(), new File(globalConfiguration.getInboundSpoolDirectory()), getOurAs2SystemIdentifier());
+        maxContentLength = globalConfiguration.getInboundMaxContentLength();
+
+        // Receives the messages on a bounded pool of threads, unless the threads of the container are to be used
+        if (InboundWorkerPool.isEnabled()) {
+            workerPool = InboundWorkerPool.getInstance();
+        }
 
         // Locates an instance of the repository used for storage of raw statistics
         rawStatisticsRepository = RawStatisticsRepositoryFactoryProvider.getInstance().getInstanceForRawStatistics();
@@ -107,12 +134,146 @@ public class AS2Servlet extends HttpServlet {
 
         InternetHeaders headers = copyHttpHeadersIntoMap(request);
 
+        // Rejects requests larger than we accept before reading the body, bodies of unknown length are counted while read
+        if (maxContentLength > 0 && request.getContentLength() > maxContentLength) {
+            log.warn("Rejected request from " + request.getRemoteAddr() + ", Content-Length " + request.getContentLength() + " exceeds " + maxContentLength);
+            rejectTooLarge(response);
+            return;
+        }
+
+        if (workerPool == null) {
+            receive(request, response, headers);
+        } else {
+            receiveAsynchronously(request, response, headers);
+        }
+    }
+
+    /**
+     * Hands the request over to the worker pool, releasing the container thread until the MDN has been written.
+     * Requests still waiting for a thread when the timeout of the pool expires are answered with 503 and released.
+     * Requests being received are left to the worker, which completes them once done, as the container recycles
+     * the request and the response once completed.
+     */
+    void receiveAsynchronously(final HttpServletRequest request, final HttpServletResponse response, final InternetHeaders headers) throws ServletException, IOException {
+        if (!request.isAsyncSupported()) {
+            // Blocking the container thread while a worker receives the message would merely hold two threads
+            throw new ServletException("Asynchronous processing is not supported for " + request.getRequestURI()
+                    + ", every filter and the AS2 servlet must be <async-supported>, see OxalisGuiceContextListener");
+        }
+
+        final AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(workerPool.getTimeoutMillis());
+
+        // Whoever leaves the waiting state first, the worker, the timeout or the rejection, answers the sender
+        final AtomicInteger state = new AtomicInteger(WAITING);
+        // Released by the worker once the context has been completed
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent asyncEvent) throws IOException {
+                if (state.compareAndSet(WAITING, ANSWERED)) {
+                    workerPool.recordTimeout();
+                    log.error("Message from " + request.getRemoteAddr() + " waited " + workerPool.getTimeoutMillis() + "ms without being received, " + workerPool);
+                    try {
+                        // The body has not been read, hence the connection is not to be reused
+                        response.setHeader("Connection", "close");
+                        response.setHeader("Retry-After", String.valueOf(workerPool.getRetryAfterSeconds()));
+                        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Reception of message timed out, please retry later");
+                    } finally {
+                        asyncContext.complete();
+                    }
+                    return;
+                }
+
+                // The worker holds the request and the response. Unless completed by a listener, the container would
+                // answer with an error and recycle them, hence the worker is allowed to finish. A slow body is bounded
+                // by the read timeout of the connector and by the maximum content length.
+                log.warn("Reception of message from " + request.getRemoteAddr() + " exceeds " + workerPool.getTimeoutMillis() + "ms, awaiting the worker");
+                awaitUninterruptibly(completed);
+            }
+
+            @Override
+            public void onComplete(AsyncEvent asyncEvent) {
+            }
+
+            @Override
+            public void onError(AsyncEvent asyncEvent) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent asyncEvent) {
+            }
+        });
+
+        Future<?> future = workerPool.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (!state.compareAndSet(WAITING, RECEIVING)) {
+                    // Timed out while waiting for a thread, the sender has been answered already
+                    return;
+                }
+                try {
+                    receive(request, response, headers);
+                } catch (Exception e) {
+                    log.error("Unable to complete reception of message: " + e.getMessage(), e);
+                } finally {
+                    asyncContext.complete();
+                    completed.countDown();
+                }
+            }
+        });
+
+        if (future == null && state.compareAndSet(WAITING, ANSWERED)) {
+            try {
+                reject(request, response);
+            } finally {
+                asyncContext.complete();
+            }
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Sheds the load by asking the sender to retry later, as the worker pool has no capacity left */
+    void reject(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        log.warn("Rejected request from " + request.getRemoteAddr() + ", no capacity left in " + workerPool);
+        response.setHeader("Retry-After", String.valueOf(workerPool.getRetryAfterSeconds()));
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many messages being received, please retry later");
+    }
+
+    /**
+     * Receives the message, writing the MDN to the response.
+     */
+    void receive(HttpServletRequest request, HttpServletResponse response, InternetHeaders headers) throws IOException {
+
+        // Aborts the reading once the body exceeds the maximum, whether the Content-Length was given or not
+        LimitedInputStream limitedInputStream = maxContentLength > 0 ? new LimitedInputStream(request.getInputStream(), maxContentLength) : null;
+        InputStream body = limitedInputStream != null ? limitedInputStream : request.getInputStream();
+
         // Receives the data, validates the headers, signature etc., invokes the persistence handler
         // and finally returns the MdnData to be sent back to the caller
         try {
 
+            // Validates the AS2 headers before the body is read, i.e. misdirected or malformed requests are
+            // rejected with an MDN without the body being consumed
+            As2Message as2Message = inboundMessageReceiver.inspectHeaders(headers);
+
             // Performs the actual reception of the message by parsing the HTTP POST request
-            MdnData mdnData = inboundMessageReceiver.receive(headers, request.getInputStream(), messageRepository);
+            MdnData mdnData = inboundMessageReceiver.receive(headers, as2Message, body, messageRepository);
 
             // Creates the S/MIME message to be returned to the sender
             MimeMessage mimeMessage = mdnMimeMessageFactory.createMdn(mdnData, headers);
@@ -134,6 +295,11 @@ public class AS2Servlet extends HttpServlet {
             }
 
         } catch (ErrorWithMdnException e) {
+            if (limitedInputStream != null && limitedInputStream.isLimitExceeded()) {
+                log.warn("Rejected request from " + request.getRemoteAddr() + ", body exceeds " + maxContentLength + " bytes");
+                rejectTooLarge(response);
+                return;
+            }
             // Reception of AS2 message failed, send back a MDN indicating failure.
             response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
             MimeMessage mimeMessage = mdnMimeMessageFactory.createMdn(e.getMdnData(), headers);
@@ -150,6 +316,31 @@ public class AS2Servlet extends HttpServlet {
         }
     }
 
+    /** Receives the messages on the supplied pool rather than on the threads of the container */
+    void setWorkerPool(InboundWorkerPool workerPool) {
+        this.workerPool = workerPool;
+    }
+
+    @Override
+    public void destroy() {
+        InboundWorkerPool.shutdownInstance();
+    }
+
+    /** The connection is closed, as the remainder of the body is not read */
+    void rejectTooLarge(HttpServletResponse response) throws IOException {
+        response.setHeader("Connection", "close");
+        response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Request body exceeds " + maxContentLength + " bytes");
+    }
+
+    /** Inbound messages must be addressed to the AS2 system identifier given by the CN of our certificate */
+    PeppolAs2SystemIdentifier getOurAs2SystemIdentifier() {
+        try {
+            return PeppolAs2SystemIdentifier.valueOf(KeystoreManager.getInstance().getOurCommonName());
+        } catch (InvalidAs2SystemIdentifierException e) {
+            throw new IllegalStateException("Unable to create AS2 system identifier from our certificate. " + e.getMessage(), e);
+        }
+    }
+
     void setHeadersForMDN(HttpServletResponse response, MdnData mdnData, MimeMessage mimeMessage) throws MessagingException {
         response.setHeader("Message-ID", mimeMessage.getHeader("Message-ID")[0]);
         response.setHeader("MIME-Version", "1.0");
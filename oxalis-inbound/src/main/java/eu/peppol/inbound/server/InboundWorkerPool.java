@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2011,2012,2013,2014 UNIT4 Agresso AS.
+ *
+ * This file is part of Oxalis.
+ *
+ * Oxalis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Oxalis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Oxalis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.peppol.inbound.server;
+
+import eu.peppol.util.GlobalConfiguration;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of threads receiving inbound AS2 messages on behalf of the {@link AS2Servlet}, holding a bounded
+ * queue of messages awaiting a thread. Messages arriving when the queue is full are rejected at once, allowing the
+ * sender to retry later, rather than queueing invisibly at the connector of the servlet container until the
+ * sender times out.
+ *
+ * <p>The depth of the queue, the time spent in the queue and the number of messages rejected or timed out are
+ * recorded, and reported by the {@link StatusServlet}.</p>
+ */
+public class InboundWorkerPool {
+
+    private static InboundWorkerPool instance;
+
+    private final ThreadPoolExecutor executor;
+    private final int retryAfterSeconds;
+    private final long timeoutMillis;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * @param threads           number of messages received concurrently
+     * @param queueSize         number of messages awaiting a thread, beyond which messages are rejected
+     * @param retryAfterSeconds seconds a rejected sender should wait before retrying
+     * @param timeoutMillis     milliseconds a message may wait for a thread, beyond which the sender is asked to retry
+     */
+    public InboundWorkerPool(int threads, int queueSize, int retryAfterSeconds, long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Timeout of inbound messages must be positive, not " + timeoutMillis);
+        }
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.timeoutMillis = timeoutMillis;
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new WorkerThreadFactory());
+    }
+
+    /**
+     * The pool configured by {@link GlobalConfiguration}, created upon the first invocation, shared by the
+     * {@link AS2Servlet} and the {@link StatusServlet}.
+     */
+    public static synchronized InboundWorkerPool getInstance() {
+        if (instance == null) {
+            GlobalConfiguration globalConfiguration = GlobalConfiguration.getInstance();
+            instance = new InboundWorkerPool(globalConfiguration.getInboundWorkerThreads(),
+                    globalConfiguration.getInboundWorkerQueueSize(), globalConfiguration.getInboundRetryAfter(),
+                    globalConfiguration.getInboundWorkerTimeout());
+        }
+        return instance;
+    }
+
+    /** Tells whether messages are to be received by the pool rather than by the threads of the container */
+    public static boolean isEnabled() {
+        return GlobalConfiguration.getInstance().getInboundWorkerThreads() > 0;
+    }
+
+    /** Stops the threads of the shared pool, if created, once the messages being received are completed */
+    public static synchronized void shutdownInstance() {
+        if (instance != null) {
+            instance.executor.shutdown();
+            instance = null;
+        }
+    }
+
+    /**
+     * Submits the reception of a message.
+     *
+     * @return the completion of the task, or null if rejected due to the queue being full
+     */
+    public Future<?> submit(final Runnable task) {
+        final long enqueued = System.nanoTime();
+        FutureTask<Object> futureTask = new FutureTask<Object>(new Runnable() {
+            @Override
+            public void run() {
+                recordWait(System.nanoTime() - enqueued);
+                task.run();
+            }
+        }, null);
+
+        try {
+            executor.execute(futureTask);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            return null;
+        }
+        accepted.incrementAndGet();
+        return futureTask;
+    }
+
+    /** Records a message which did not get a thread within the timeout, the sender of which has been answered already */
+    public void recordTimeout() {
+        timedOut.incrementAndGet();
+    }
+
+    private void recordWait(long waitNanos) {
+        started.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        long max;
+        while (waitNanos > (max = maxWaitNanos.get())) {
+            if (maxWaitNanos.compareAndSet(max, waitNanos)) {
+                break;
+            }
+        }
+    }
+
+    /** Number of messages awaiting a thread */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /** Number of messages being received */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public long getAcceptedCount() {
+        return accepted.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    /** Average number of milliseconds messages have been waiting for a thread */
+    public double getAverageWaitMillis() {
+        long count = started.get();
+        return count == 0 ? 0 : totalWaitNanos.get() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /** Longest time in milliseconds a message has been waiting for a thread */
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "InboundWorkerPool{" +
+                "active=" + getActiveCount() +
+                ", queueDepth=" + getQueueDepth() +
+                ", accepted=" + getAcceptedCount() +
+                ", rejected=" + getRejectedCount() +
+                ", timedOut=" + getTimedOutCount() +
+                '}';
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "oxalis-inbound-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2011,2012,2013,2014 UNIT4 Agresso AS.
+ *
+ * This file is part of Oxalis.
+ *
+ * Oxalis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Oxalis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Oxalis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.peppol.inbound.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes of a request body while it is being read, failing the read once more than the maximum number of
+ * bytes have been read. Hence the size of bodies of unknown length, i.e. chunked requests, is bounded as well.
+ */
+class LimitedInputStream extends FilterInputStream {
+
+    private final long maxLength;
+    private long count = 0;
+    private boolean limitExceeded = false;
+
+    /**
+     * @param inputStream the body of the request
+     * @param maxLength   maximum number of bytes to be read
+     */
+    LimitedInputStream(InputStream inputStream, long maxLength) {
+        super(inputStream);
+        this.maxLength = maxLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int numberOfBytesRead = super.read(b, off, len);
+        if (numberOfBytesRead > 0) {
+            count(numberOfBytesRead);
+        }
+        return numberOfBytesRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void count(long numberOfBytes) throws IOException {
+        count += numberOfBytes;
+        if (count > maxLength) {
+            limitExceeded = true;
+            throw new IOException("Request body exceeds " + maxLength + " bytes");
+        }
+    }
+
+    /** Tells whether the body was found to be larger than the maximum, in which case the reading has been aborted */
+    boolean isLimitExceeded() {
+        return limitExceeded;
+    }
+}
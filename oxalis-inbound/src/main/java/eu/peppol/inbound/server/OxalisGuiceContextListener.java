@@ -25,6 +25,11 @@ import com.google.inject.servlet.GuiceServletContextListener;
 import com.google.inject.servlet.ServletModule;
 import eu.peppol.inbound.guice.RepositoryModule;
 
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletRegistration;
+
 /**
  * Wires our object graph together using Google Guice.
  *
@@ -35,17 +40,42 @@ import eu.peppol.inbound.guice.RepositoryModule;
 public class OxalisGuiceContextListener extends GuiceServletContextListener {
 
 
+    /** Path of the AS2 servlet, relative to the context */
+    public static final String AS2_PATH = "/as2";
+
+    /** Paths below {@link #AS2_PATH}, as endpoints may be registered in the SMP with a trailing slash or a sub path */
+    public static final String AS2_SUB_PATHS = AS2_PATH + "/*";
+
     @Override
     protected Injector getInjector() {
         return Guice.createInjector(
                 new RepositoryModule(),
-                new ServletModule(){
-
-                    @Override
-                    protected void configureServlets() {
-                        serve("/as2*").with(AS2Servlet.class);
-                    }
-                }
+                new ServletModule()
         );
     }
+
+    /**
+     * Registers the AS2 servlet created by Guice with the container, rather than serving it through the GuiceFilter,
+     * as requests dispatched by the filter end at the default servlet of the container, which does not support
+     * asynchronous processing.
+     */
+    @Override
+    public void contextInitialized(ServletContextEvent servletContextEvent) {
+        super.contextInitialized(servletContextEvent);
+
+        ServletContext servletContext = servletContextEvent.getServletContext();
+        Injector injector = (Injector) servletContext.getAttribute(Injector.class.getName());
+        registerAs2Servlet(servletContext, injector.getInstance(AS2Servlet.class));
+    }
+
+    /**
+     * Maps the AS2 servlet to {@link #AS2_PATH} and the paths below it, as <code>serve("/as2*")</code> used to,
+     * supporting asynchronous processing, which is required when messages are received by the {@link InboundWorkerPool}.
+     */
+    static ServletRegistration.Dynamic registerAs2Servlet(ServletContext servletContext, Servlet as2Servlet) {
+        ServletRegistration.Dynamic registration = servletContext.addServlet("as2Servlet", as2Servlet);
+        registration.setAsyncSupported(true);
+        registration.addMapping(AS2_PATH, AS2_SUB_PATHS);
+        return registration;
+    }
 }
@@ -39,5 +39,16 @@ public class StatusServlet extends HttpServlet {
         writer.println("certificate.issuer: " + ourCertificate.getIssuerX500Principal().getName());
         writer.println("certificate.expired: " + ourCertificate.getNotAfter().before(new Date()));
 
+        if (InboundWorkerPool.isEnabled()) {
+            InboundWorkerPool workerPool = InboundWorkerPool.getInstance();
+            writer.println("inbound.worker.active: " + workerPool.getActiveCount());
+            writer.println("inbound.worker.queue.depth: " + workerPool.getQueueDepth());
+            writer.println("inbound.worker.accepted: " + workerPool.getAcceptedCount());
+            writer.println("inbound.worker.rejected: " + workerPool.getRejectedCount());
+            writer.println("inbound.worker.timed_out: " + workerPool.getTimedOutCount());
+            writer.println("inbound.worker.wait.avg_ms: " + workerPool.getAverageWaitMillis());
+            writer.println("inbound.worker.wait.max_ms: " + workerPool.getMaxWaitMillis());
+        }
+
     }
 }
@@ -0,0 +1,248 @@
+package eu.peppol.inbound.server;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.servlet.GuiceFilter;
+import com.google.inject.servlet.GuiceServletContextListener;
+import com.google.inject.servlet.ServletModule;
+import org.apache.catalina.Context;
+import org.apache.catalina.deploy.FilterDef;
+import org.apache.catalina.deploy.FilterMap;
+import org.apache.catalina.startup.Tomcat;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.mail.internet.InternetHeaders;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContainerInitializer;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Posts to the AS2 servlet running in an embedded container, set up like web.xml and OxalisGuiceContextListener,
+ * verifying that the requests pass the GuiceFilter and are received asynchronously by the worker pool.
+ */
+public class AS2ServletAsyncTest {
+
+    private Tomcat tomcat;
+    private File baseDir;
+    private int port;
+
+    @BeforeMethod
+    public void createContainer() throws Exception {
+        baseDir = File.createTempFile("oxalis-tomcat-", "");
+        baseDir.delete();
+        baseDir.mkdirs();
+
+        ServerSocket serverSocket = new ServerSocket(0);
+        port = serverSocket.getLocalPort();
+        serverSocket.close();
+
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.getAbsolutePath());
+        tomcat.setPort(port);
+        tomcat.getConnector();
+    }
+
+    @AfterMethod
+    public void stopContainer() throws Exception {
+        tomcat.stop();
+        tomcat.destroy();
+        deleteRecursively(baseDir);
+    }
+
+    @Test
+    public void messagesAreReceivedAsynchronouslyThroughTheFilterChain() throws Exception {
+        InboundWorkerPool workerPool = new InboundWorkerPool(2, 10, 60, 60000);
+        ProbeAs2Servlet as2Servlet = new ProbeAs2Servlet(workerPool);
+        start(as2Servlet);
+
+        HttpURLConnection connection = post(OxalisGuiceContextListener.AS2_PATH);
+
+        assertEquals(connection.getResponseCode(), HttpServletResponse.SC_OK);
+        assertTrue(readBody(connection).startsWith("oxalis-inbound-"), "The message should be received by the worker pool");
+        assertTrue(as2Servlet.asyncStarted, "The request should have been put into asynchronous mode");
+        assertEquals(workerPool.getAcceptedCount(), 1);
+    }
+
+    @Test
+    public void messagesBelowTheAs2PathAreReceived() throws Exception {
+        InboundWorkerPool workerPool = new InboundWorkerPool(2, 10, 60, 60000);
+        start(new ProbeAs2Servlet(workerPool));
+
+        assertEquals(post(OxalisGuiceContextListener.AS2_PATH + "/").getResponseCode(), HttpServletResponse.SC_OK);
+        assertEquals(post(OxalisGuiceContextListener.AS2_PATH + "/peppol").getResponseCode(), HttpServletResponse.SC_OK);
+        assertEquals(workerPool.getAcceptedCount(), 2);
+    }
+
+    @Test
+    public void messagesWaitingBeyondTheTimeoutAreAnsweredWith503WhileReceptionsInProgressComplete() throws Exception {
+        InboundWorkerPool workerPool = new InboundWorkerPool(1, 10, 30, 500);
+        ProbeAs2Servlet as2Servlet = new ProbeAs2Servlet(workerPool);
+        as2Servlet.release = new CountDownLatch(1);
+        start(as2Servlet);
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            // Occupies the only thread of the pool beyond the timeout
+            Future<HttpURLConnection> receiving = executorService.submit(new Callable<HttpURLConnection>() {
+                @Override
+                public HttpURLConnection call() throws Exception {
+                    HttpURLConnection connection = post(OxalisGuiceContextListener.AS2_PATH);
+                    connection.getResponseCode();
+                    return connection;
+                }
+            });
+            assertTrue(as2Servlet.entered.await(10, TimeUnit.SECONDS));
+
+            // Waits for the thread until the timeout expires
+            HttpURLConnection waiting = post(OxalisGuiceContextListener.AS2_PATH);
+            assertEquals(waiting.getResponseCode(), HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            assertEquals(waiting.getHeaderField("Retry-After"), "30");
+            assertEquals(workerPool.getTimedOutCount(), 1);
+
+            // The reception in progress is completed by the worker rather than by the timeout
+            Thread.sleep(500);
+            as2Servlet.release.countDown();
+            HttpURLConnection received = receiving.get(10, TimeUnit.SECONDS);
+            assertEquals(received.getResponseCode(), HttpServletResponse.SC_OK);
+            assertTrue(readBody(received).startsWith("oxalis-inbound-"));
+            assertEquals(workerPool.getTimedOutCount(), 1);
+        } finally {
+            as2Servlet.release.countDown();
+            executorService.shutdownNow();
+        }
+    }
+
+    private void start(final AS2Servlet as2Servlet) throws Exception {
+        Context context = tomcat.addContext("", baseDir.getAbsolutePath());
+
+        // As declared in web.xml
+        FilterDef filterDef = new FilterDef();
+        filterDef.setFilterName("guiceFilter");
+        filterDef.setFilterClass(GuiceFilter.class.getName());
+        filterDef.setAsyncSupported("true");
+        context.addFilterDef(filterDef);
+
+        FilterMap filterMap = new FilterMap();
+        filterMap.setFilterName("guiceFilter");
+        filterMap.addURLPattern(OxalisGuiceContextListener.AS2_PATH);
+        filterMap.addURLPattern(OxalisGuiceContextListener.AS2_SUB_PATHS);
+        context.addFilterMap(filterMap);
+
+        // As performed by OxalisGuiceContextListener, without the repositories
+        context.addServletContainerInitializer(new ServletContainerInitializer() {
+            @Override
+            public void onStartup(Set<Class<?>> classes, ServletContext servletContext) {
+                servletContext.addListener(new GuiceServletContextListener() {
+                    @Override
+                    protected Injector getInjector() {
+                        return Guice.createInjector(new ServletModule());
+                    }
+                });
+                OxalisGuiceContextListener.registerAs2Servlet(servletContext, as2Servlet);
+            }
+        }, null);
+
+        tomcat.start();
+    }
+
+    private HttpURLConnection post(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setReadTimeout(10000);
+        OutputStream outputStream = connection.getOutputStream();
+        outputStream.write("Not really an AS2 message".getBytes("US-ASCII"));
+        outputStream.close();
+        return connection;
+    }
+
+    private static String readBody(HttpURLConnection connection) throws IOException {
+        InputStream inputStream = connection.getInputStream();
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int numberOfBytesRead;
+            while ((numberOfBytesRead = inputStream.read(buffer)) != -1) {
+                body.write(buffer, 0, numberOfBytesRead);
+            }
+            return body.toString("US-ASCII");
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Receives every request by writing the name of the receiving thread, rather than receiving an AS2 message.
+     */
+    static class ProbeAs2Servlet extends AS2Servlet {
+
+        volatile boolean asyncStarted = false;
+
+        /** Holds the reception until released, if set */
+        volatile CountDownLatch release;
+
+        final CountDownLatch entered = new CountDownLatch(1);
+
+        ProbeAs2Servlet(InboundWorkerPool workerPool) {
+            super(null, null, null, 0);
+            setWorkerPool(workerPool);
+        }
+
+        @Override
+        public void init(ServletConfig servletConfig) {
+            // Requires neither keystore nor repositories
+        }
+
+        @Override
+        public void destroy() {
+            // The pool is owned by the test
+        }
+
+        @Override
+        void receive(HttpServletRequest request, HttpServletResponse response, InternetHeaders headers) throws IOException {
+            asyncStarted = request.isAsyncStarted();
+            entered.countDown();
+            if (release != null) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().print(Thread.currentThread().getName());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package eu.peppol.inbound.server;
+
+import eu.peppol.as2.As2Header;
+import eu.peppol.as2.InboundMessageReceiver;
+import eu.peppol.as2.PeppolAs2SystemIdentifier;
+import eu.peppol.persistence.MessageRepository;
+import org.easymock.IAnswer;
+import org.testng.annotations.Test;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.easymock.EasyMock.*;
+
+public class AS2ServletTest {
+
+    @Test
+    public void chunkedRequestLargerThanTheMaximumIsRejected() throws Exception {
+        StringBuilder body = new StringBuilder("Content-Type: multipart/signed; protocol=\"application/pkcs7-signature\"; micalg=sha1; boundary=b\r\n\r\n"
+                + "--b\r\nContent-Type: application/xml\r\n\r\n");
+        for (int i = 0; i < 4000; i++) {
+            body.append('x');
+        }
+        final Map<String, String> headers = createAs2Headers();
+
+        // A chunked request has no Content-Length
+        HttpServletRequest request = createNiceMock(HttpServletRequest.class);
+        expect(request.getContentLength()).andStubReturn(-1);
+        expect(request.getHeaderNames()).andStubAnswer(new IAnswer<Enumeration<String>>() {
+            @Override
+            public Enumeration<String> answer() {
+                return Collections.enumeration(headers.keySet());
+            }
+        });
+        expect(request.getHeader(anyObject(String.class))).andStubAnswer(new IAnswer<String>() {
+            @Override
+            public String answer() {
+                return headers.get((String) getCurrentArguments()[0]);
+            }
+        });
+        expect(request.getInputStream()).andStubReturn(new ByteArrayServletInputStream(body.toString().getBytes("US-ASCII")));
+
+        HttpServletResponse response = createMock(HttpServletResponse.class);
+        response.setHeader("Connection", "close");
+        response.sendError(eq(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE), anyObject(String.class));
+        replay(request, response);
+
+        AS2Servlet as2Servlet = new AS2Servlet(null, new InboundMessageReceiver(), createNiceMock(MessageRepository.class), 1000);
+        as2Servlet.doPost(request, response);
+
+        verify(response);
+    }
+
+    private static Map<String, String> createAs2Headers() {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put(As2Header.DISPOSITION_NOTIFICATION_OPTIONS.getHttpHeaderName(), "signed-receipt-protocol=required, pkcs7-signature; signed-receipt-micalg=required,sha1");
+        headers.put(As2Header.AS2_TO.getHttpHeaderName(), PeppolAs2SystemIdentifier.AS2_SYSTEM_ID_PREFIX + "AP_1000000006");
+        headers.put(As2Header.AS2_FROM.getHttpHeaderName(), PeppolAs2SystemIdentifier.AS2_SYSTEM_ID_PREFIX + "APP_1000000006");
+        headers.put(As2Header.MESSAGE_ID.getHttpHeaderName(), "42");
+        headers.put(As2Header.AS2_VERSION.getHttpHeaderName(), As2Header.VERSION);
+        headers.put(As2Header.SUBJECT.getHttpHeaderName(), "An AS2 message");
+        headers.put(As2Header.DATE.getHttpHeaderName(), "Mon Oct 21 22:01:48 CEST 2013");
+        return headers;
+    }
+
+    static class ByteArrayServletInputStream extends ServletInputStream {
+
+        private final InputStream inputStream;
+
+        ByteArrayServletInputStream(byte[] bytes) {
+            this.inputStream = new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return inputStream.read();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package eu.peppol.inbound.server;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class InboundWorkerPoolTest {
+
+    @Test
+    public void messagesAreRejectedWhenTheQueueIsFull() throws Exception {
+        InboundWorkerPool workerPool = new InboundWorkerPool(1, 1, 30, 60000);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<?> first = workerPool.submit(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                awaitQuietly(release);
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        // Occupies the only place in the queue while the only thread is busy
+        Future<?> second = workerPool.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        assertNotNull(second);
+        assertEquals(workerPool.getQueueDepth(), 1);
+
+        Future<?> third = workerPool.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        assertNull(third);
+        assertEquals(workerPool.getRejectedCount(), 1);
+
+        release.countDown();
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+
+        assertEquals(workerPool.getAcceptedCount(), 2);
+        assertEquals(workerPool.getQueueDepth(), 0);
+        assertEquals(workerPool.getRetryAfterSeconds(), 30);
+    }
+
+    @Test
+    public void timeSpentInTheQueueIsRecorded() throws Exception {
+        InboundWorkerPool workerPool = new InboundWorkerPool(1, 10, 60, 60000);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        workerPool.submit(new Runnable() {
+            @Override
+            public void run() {
+                awaitQuietly(release);
+            }
+        });
+        Future<?> waiting = workerPool.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+
+        Thread.sleep(50);
+        release.countDown();
+        waiting.get(10, TimeUnit.SECONDS);
+
+        assertTrue(workerPool.getMaxWaitMillis() >= 50, "Max wait " + workerPool.getMaxWaitMillis());
+        assertTrue(workerPool.getAverageWaitMillis() > 0);
+        assertTrue(workerPool.getAverageWaitMillis() <= workerPool.getMaxWaitMillis());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
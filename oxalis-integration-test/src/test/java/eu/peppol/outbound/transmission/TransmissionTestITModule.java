@@ -36,6 +36,7 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.cert.X509Certificate;
+import java.util.Collection;
 import java.util.List;
 
 import static org.testng.Assert.assertNotNull;
@@ -120,6 +121,11 @@ public class TransmissionTestITModule extends AbstractModule {
             public SignedServiceMetadataType getServiceMetaData(ParticipantId participant, PeppolDocumentTypeId documentTypeIdentifier) throws SmpSignedServiceMetaDataException {
                 return null;
             }
+
+            @Override
+            public void getCapabilities(Collection<ParticipantId> participantIds, CapabilityLookupListener listener) {
+                throw new IllegalStateException("Not supported yet.");
+            }
         };
     }
 
@@ -2,12 +2,23 @@ package eu.peppol.outbound;
 
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import eu.peppol.outbound.outbox.Outbox;
+import eu.peppol.outbound.transmission.AdaptiveTimeouts;
+import eu.peppol.outbound.transmission.EndpointHealthRegistry;
+import eu.peppol.outbound.transmission.HttpConnectionPool;
+import eu.peppol.outbound.transmission.TransmissionExecutor;
 import eu.peppol.outbound.transmission.TransmissionModule;
 import eu.peppol.outbound.transmission.TransmissionRequestBuilder;
 import eu.peppol.outbound.transmission.Transmitter;
+import eu.peppol.smp.CachingSmpLookupManager;
 import eu.peppol.smp.SmpLookupManager;
 import eu.peppol.smp.SmpModule;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * Object factory for the Oxalis outbound module.
  *
@@ -21,6 +32,9 @@ public class OxalisOutboundModule {
 
     private Injector injector;
 
+    /** Components needing to be closed, which have been created by the getters, either directly or as dependencies */
+    private final Set<Class<?>> createdComponents = Collections.synchronizedSet(new HashSet<Class<?>>());
+
     public OxalisOutboundModule() {
         injector = Guice.createInjector(
                 new SmpModule(),
@@ -37,7 +51,7 @@ public class OxalisOutboundModule {
      * @return instance of TransmissionRequestBuilder
      */
     public TransmissionRequestBuilder getTransmissionRequestBuilder() {
-        return injector.getInstance(TransmissionRequestBuilder.class);
+        return getInstance(TransmissionRequestBuilder.class, CachingSmpLookupManager.class);
     }
 
     /**
@@ -46,11 +60,100 @@ public class OxalisOutboundModule {
      * @return instance of Transmitter
      */
     public Transmitter getTransmitter() {
-        return injector.getInstance(Transmitter.class);
+        return getInstance(Transmitter.class, TransmissionExecutor.class, HttpConnectionPool.class, CachingSmpLookupManager.class);
     }
 
 
     public SmpLookupManager getSmpLookupManager() {
-        return injector.getInstance(SmpLookupManager.class);
+        return getInstance(SmpLookupManager.class, CachingSmpLookupManager.class);
+    }
+
+    /**
+     * Provides the SMP cache, which may be saved to and restored from disk.
+     *
+     * @return the shared instance of CachingSmpLookupManager
+     */
+    public CachingSmpLookupManager getSmpCache() {
+        return getInstance(CachingSmpLookupManager.class, CachingSmpLookupManager.class);
+    }
+
+    /**
+     * Provides the pool of outbound HTTP connections, which holds statistics on leased, available and pending connections.
+     *
+     * @return the shared instance of HttpConnectionPool
+     */
+    public HttpConnectionPool getHttpConnectionPool() {
+        return getInstance(HttpConnectionPool.class, HttpConnectionPool.class);
+    }
+
+    /**
+     * Provides the health of the receiving access points, including the blacklist.
+     *
+     * @return the shared instance of EndpointHealthRegistry
+     */
+    public EndpointHealthRegistry getEndpointHealthRegistry() {
+        return injector.getInstance(EndpointHealthRegistry.class);
+    }
+
+    /**
+     * Provides the connect and read timeouts derived from the latencies observed for each receiving access point.
+     *
+     * @return the shared instance of AdaptiveTimeouts
+     */
+    public AdaptiveTimeouts getAdaptiveTimeouts() {
+        return injector.getInstance(AdaptiveTimeouts.class);
+    }
+
+    /**
+     * Provides the executor of asynchronous transmissions, which holds statistics on transmissions in flight.
+     *
+     * @return the shared instance of TransmissionExecutor
+     */
+    public TransmissionExecutor getTransmissionExecutor() {
+        return getInstance(TransmissionExecutor.class, TransmissionExecutor.class);
+    }
+
+    /**
+     * Provides the durable outbox, from which messages are transmitted with retries. The messages left in the outbox
+     * when it was last closed are recovered when it is first requested.
+     *
+     * @return the shared, started instance of Outbox
+     */
+    public Outbox getOutbox() {
+        Outbox outbox = getInstance(Outbox.class, Outbox.class, TransmissionExecutor.class, HttpConnectionPool.class, CachingSmpLookupManager.class);
+        outbox.start();
+        return outbox;
+    }
+
+    /**
+     * Releases the resources held by the outbound module, like for instance pooled HTTP connections and the threads
+     * reloading SMP data in the background.
+     * Asynchronous transmissions in flight are allowed to complete first, within the configured shutdown timeout.
+     * This is also taken care of by a JVM shutdown hook, but you had better invoke this yourself when you are done.
+     * Components which have not been created are left alone.
+     */
+    public void close() {
+        if (createdComponents.contains(Outbox.class)) {
+            injector.getInstance(Outbox.class).close();
+        }
+        if (createdComponents.contains(TransmissionExecutor.class)) {
+            injector.getInstance(TransmissionExecutor.class).shutdown();
+        }
+        if (createdComponents.contains(HttpConnectionPool.class)) {
+            injector.getInstance(HttpConnectionPool.class).close();
+        }
+        if (createdComponents.contains(CachingSmpLookupManager.class)) {
+            injector.getInstance(CachingSmpLookupManager.class).close();
+        }
+    }
+
+    /**
+     * Retrieves an instance from the injector, remembering which of the components to be closed it has caused to be
+     * created.
+     */
+    private <T> T getInstance(Class<T> type, Class<?>... components) {
+        T instance = injector.getInstance(type);
+        createdComponents.addAll(Arrays.asList(components));
+        return instance;
     }
 }
\ No newline at end of file
@@ -0,0 +1,98 @@
+package eu.peppol.outbound.outbox;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps track of the consecutive failures of every destination, computing jittered exponential delays. The delay
+ * after <em>n</em> consecutive failures is chosen at random between half of, and the full value of,
+ * <code>min(maxDelay, initialDelay * 2^(n-1))</code>, thus spreading the retries of messages held back by the same
+ * outage.
+ */
+class Backoff {
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final Random random;
+
+    private final ConcurrentMap<String, State> destinations = new ConcurrentHashMap<String, State>();
+
+    Backoff(long initialDelay, long maxDelay) {
+        this(initialDelay, maxDelay, new Random());
+    }
+
+    Backoff(long initialDelay, long maxDelay, Random random) {
+        if (initialDelay < 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Invalid backoff; initial delay " + initialDelay + "ms, max delay " + maxDelay + "ms");
+        }
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.random = random;
+    }
+
+    /**
+     * Records a failure of the supplied destination.
+     *
+     * @return the time at which the destination may be attempted again
+     */
+    long failed(String destination, long now) {
+        State state = destinations.get(destination);
+        if (state == null) {
+            State existing = destinations.putIfAbsent(destination, state = new State());
+            if (existing != null) {
+                state = existing;
+            }
+        }
+        synchronized (state) {
+            state.consecutiveFailures++;
+            state.notBefore = now + computeDelay(state.consecutiveFailures);
+            return state.notBefore;
+        }
+    }
+
+    /** Forgets the failures of the supplied destination */
+    void succeeded(String destination) {
+        destinations.remove(destination);
+    }
+
+    /** The time at which the supplied destination may be attempted, 0 if not backing off */
+    long getNotBefore(String destination) {
+        State state = destinations.get(destination);
+        if (state == null) {
+            return 0;
+        }
+        synchronized (state) {
+            return state.notBefore;
+        }
+    }
+
+    int getConsecutiveFailures(String destination) {
+        State state = destinations.get(destination);
+        if (state == null) {
+            return 0;
+        }
+        synchronized (state) {
+            return state.consecutiveFailures;
+        }
+    }
+
+    /** Number of destinations currently failing */
+    int getFailingDestinationCount() {
+        return destinations.size();
+    }
+
+    long computeDelay(int consecutiveFailures) {
+        long delay = maxDelay;
+        if (consecutiveFailures - 1 < 62 && initialDelay <= (maxDelay >> (consecutiveFailures - 1))) {
+            delay = initialDelay << (consecutiveFailures - 1);
+        }
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+
+    private static class State {
+        int consecutiveFailures;
+        long notBefore;
+    }
+}
@@ -0,0 +1,416 @@
+package eu.peppol.outbound.outbox;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import eu.peppol.BusDoxProtocol;
+import eu.peppol.outbound.transmission.EndpointUnavailableException;
+import eu.peppol.outbound.transmission.PreparedTransmission;
+import eu.peppol.outbound.transmission.TransmissionRequest;
+import eu.peppol.outbound.transmission.TransmissionRequestBuilder;
+import eu.peppol.outbound.transmission.TransmissionResponse;
+import eu.peppol.outbound.transmission.Transmitter;
+import eu.peppol.util.GlobalConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durable queue of outbound messages, which are transmitted by a pool of worker threads.
+ *
+ * <p>A message is written to the {@link OutboxJournal} on disk before {@link #enqueue(TransmissionRequest)} returns,
+ * hence it will be transmitted even if the JVM crashes in the meantime; the messages not yet transmitted are recovered
+ * by {@link #start()}. Messages are transmitted at least once, i.e. a crash after sending, but before the completion
+ * has been written to disk, results in the message being sent once more.</p>
+ *
+ * <p>A failure to send the message is deemed transient, like for instance the receiving access point being down,
+ * and is retried using an exponential, jittered backoff for that destination; while a destination is backing off, no
+ * messages are sent to it. Messages failing on the preparation, i.e. wrapping and signing, or exceeding the maximum
+ * number of attempts are abandoned. The payload of an abandoned message is kept in the outbox directory with the
+ * suffix <code>.failed</code>.</p>
+ *
+ * <p>Messages failing fast, as the receiving access point is known to be unavailable, are postponed as hinted by
+ * the {@link EndpointUnavailableException}, without counting as an attempt.</p>
+ */
+public class Outbox {
+
+    public static final Logger log = LoggerFactory.getLogger(Outbox.class);
+
+    /** Number of milliseconds an idle worker waits before checking whether the outbox is being closed */
+    private static final long POLL_INTERVAL = 1000;
+
+    private final Transmitter transmitter;
+    private final Provider<TransmissionRequestBuilder> transmissionRequestBuilderProvider;
+    private final OutboxJournal journal;
+    private final Backoff backoff;
+    private final int workers;
+    private final int maxAttempts;
+    private final int compactionThreshold;
+
+    /** Messages not yet transmitted nor abandoned, including the ones being transmitted */
+    private final Map<String, OutboxEntry> entries = new ConcurrentHashMap<String, OutboxEntry>();
+    private final DelayQueue<OutboxEntry> queue = new DelayQueue<OutboxEntry>();
+    private final List<Thread> workerThreads = new ArrayList<Thread>();
+
+    private volatile boolean running = false;
+
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong recoveredCount = new AtomicLong();
+    private final AtomicLong transmittedCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong abandonedCount = new AtomicLong();
+
+    @Inject
+    public Outbox(Transmitter transmitter, Provider<TransmissionRequestBuilder> transmissionRequestBuilderProvider, GlobalConfiguration globalConfiguration) {
+        this(transmitter, transmissionRequestBuilderProvider, globalConfiguration.getOutboxDirectory(),
+                globalConfiguration.getOutboxWorkers(),
+                globalConfiguration.getOutboxMaxAttempts(),
+                new Backoff(globalConfiguration.getOutboxInitialBackoff(), globalConfiguration.getOutboxMaxBackoff()),
+                globalConfiguration.getOutboxCompactionThreshold());
+    }
+
+    Outbox(Transmitter transmitter, Provider<TransmissionRequestBuilder> transmissionRequestBuilderProvider, File directory, int workers, int maxAttempts, Backoff backoff, int compactionThreshold) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Number of outbox workers must be at least 1, not " + workers);
+        }
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Maximum number of attempts must be at least 1, not " + maxAttempts);
+        }
+        this.transmitter = transmitter;
+        this.transmissionRequestBuilderProvider = transmissionRequestBuilderProvider;
+        this.journal = new OutboxJournal(directory);
+        this.workers = workers;
+        this.maxAttempts = maxAttempts;
+        this.backoff = backoff;
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Recovers the messages not transmitted before the outbox was last closed, or the JVM crashed, and starts the
+     * workers. Invoking this method on a started outbox has no effect.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+
+        List<OutboxEntry> pendingEntries;
+        try {
+            pendingEntries = journal.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open the outbox journal: " + e.getMessage(), e);
+        }
+        for (OutboxEntry entry : pendingEntries) {
+            entries.put(entry.getId(), entry);
+            queue.add(entry);
+        }
+        recoveredCount.addAndGet(pendingEntries.size());
+        if (!pendingEntries.isEmpty()) {
+            log.info("Recovered " + pendingEntries.size() + " messages from the outbox");
+        }
+
+        running = true;
+        for (int i = 1; i <= workers; i++) {
+            Thread thread = new Thread(new Worker(), "oxalis-outbox-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            workerThreads.add(thread);
+        }
+    }
+
+    /**
+     * Writes the message to the outbox on disk, from which it will be transmitted. The outbox takes over the
+     * responsibility for the request, which is disposed once transmitted or abandoned.
+     *
+     * @return the identifier of the message within the outbox
+     */
+    public String enqueue(TransmissionRequest transmissionRequest) {
+        if (!running) {
+            throw new IllegalStateException("The outbox has not been started");
+        }
+
+        String id = UUID.randomUUID().toString();
+        OutboxEntry entry = OutboxEntry.create(id, System.currentTimeMillis(), transmissionRequest);
+        try {
+            journal.storePayload(id, transmissionRequest.getTransmissionPayload());
+            // Registered before being appended, so that a concurrent compaction will not leave it out
+            entries.put(id, entry);
+            journal.appendEnqueued(entry);
+        } catch (IOException e) {
+            entries.remove(id);
+            journal.getPayloadFile(id).delete();
+            throw new IllegalStateException("Unable to write " + entry + " to the outbox: " + e.getMessage(), e);
+        }
+
+        queue.add(entry);
+        enqueuedCount.incrementAndGet();
+        return id;
+    }
+
+    /**
+     * Stops the workers, waiting for the messages being transmitted, and closes the journal. Messages not yet
+     * transmitted remain on disk until the outbox is started again.
+     */
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (Thread thread : workerThreads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        workerThreads.clear();
+
+        for (OutboxEntry entry : entries.values()) {
+            if (entry.getTransmissionRequest() != null) {
+                entry.getTransmissionRequest().dispose();
+            }
+        }
+        entries.clear();
+        queue.clear();
+
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.warn("Unable to close the outbox journal: " + e.getMessage());
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /** Number of messages not yet transmitted nor abandoned */
+    public int getQueueDepth() {
+        return entries.size();
+    }
+
+    /** Number of milliseconds since the oldest message not yet transmitted was enqueued, 0 if the outbox is empty */
+    public long getOldestEntryAge() {
+        long oldest = Long.MAX_VALUE;
+        for (OutboxEntry entry : entries.values()) {
+            oldest = Math.min(oldest, entry.getEnqueuedAt());
+        }
+        return oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - oldest;
+    }
+
+    /** Number of attempts made at transmitting the given message, -1 if it is no longer held in the outbox */
+    public int getAttempts(String id) {
+        OutboxEntry entry = entries.get(id);
+        return entry == null ? -1 : entry.getAttempts();
+    }
+
+    /** Number of destinations backing off after failures */
+    public int getFailingDestinationCount() {
+        return backoff.getFailingDestinationCount();
+    }
+
+    public long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    public long getRecoveredCount() {
+        return recoveredCount.get();
+    }
+
+    public long getTransmittedCount() {
+        return transmittedCount.get();
+    }
+
+    /** Total number of failed attempts, which have been scheduled for a retry */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    public long getAbandonedCount() {
+        return abandonedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Outbox{" +
+                "queueDepth=" + getQueueDepth() +
+                ", oldestEntryAge=" + getOldestEntryAge() +
+                ", transmitted=" + transmittedCount +
+                ", retries=" + retryCount +
+                ", abandoned=" + abandonedCount +
+                '}';
+    }
+
+    void process(OutboxEntry entry) {
+        long notBefore = backoff.getNotBefore(entry.getDestination());
+        if (notBefore > System.currentTimeMillis()) {
+            // Another message to the same destination failed in the meantime
+            entry.postpone(notBefore);
+            queue.add(entry);
+            return;
+        }
+
+        PreparedTransmission preparedTransmission;
+        try {
+            if (entry.getTransmissionRequest() == null) {
+                entry.setTransmissionRequest(rebuildTransmissionRequest(entry));
+            }
+            preparedTransmission = transmitter.prepare(entry.getTransmissionRequest());
+        } catch (EndpointUnavailableException e) {
+            postpone(entry, e);
+            return;
+        } catch (RuntimeException e) {
+            abandon(entry, "unable to prepare the transmission: " + e.getMessage());
+            return;
+        }
+
+        TransmissionResponse transmissionResponse;
+        try {
+            transmissionResponse = preparedTransmission.send();
+        } catch (EndpointUnavailableException e) {
+            postpone(entry, e);
+            return;
+        } catch (RuntimeException e) {
+            retry(entry, e);
+            return;
+        }
+
+        backoff.succeeded(entry.getDestination());
+        completed(entry, transmissionResponse);
+    }
+
+    private void completed(OutboxEntry entry, TransmissionResponse transmissionResponse) {
+        try {
+            journal.appendCompleted(entry);
+        } catch (IOException e) {
+            log.error("Unable to record the transmission of " + entry + ", it will be sent again after a restart: " + e.getMessage());
+        }
+        remove(entry);
+        transmittedCount.incrementAndGet();
+        log.debug("Transmitted " + entry + " with transmission id " + transmissionResponse.getTransmissionId());
+    }
+
+    private void postpone(OutboxEntry entry, EndpointUnavailableException cause) {
+        log.debug("Postponing " + entry + ": " + cause.getMessage());
+        entry.postpone(System.currentTimeMillis() + cause.getRetryAfter());
+        queue.add(entry);
+    }
+
+    private void retry(OutboxEntry entry, RuntimeException cause) {
+        long now = System.currentTimeMillis();
+        long nextAttemptAt = backoff.failed(entry.getDestination(), now);
+        int attempts = entry.getAttempts() + 1;
+        if (attempts >= maxAttempts) {
+            abandon(entry, attempts + " attempts failed, the last one due to: " + cause.getMessage());
+            return;
+        }
+
+        entry.attempted(attempts, nextAttemptAt);
+        try {
+            journal.appendAttempted(entry);
+        } catch (IOException e) {
+            log.warn("Unable to record the failed attempt of " + entry + ": " + e.getMessage());
+        }
+        retryCount.incrementAndGet();
+        log.warn("Attempt " + attempts + " of " + entry + " failed, retrying in " + (nextAttemptAt - now) + "ms: " + cause.getMessage());
+        queue.add(entry);
+    }
+
+    private void abandon(OutboxEntry entry, String reason) {
+        log.error("Abandoning " + entry + ", " + reason + ". The payload is kept in " + journal.getFailedPayloadFile(entry.getId()));
+        try {
+            journal.appendAbandoned(entry);
+        } catch (IOException e) {
+            log.error("Unable to record that " + entry + " has been abandoned: " + e.getMessage());
+        }
+        remove(entry);
+        abandonedCount.incrementAndGet();
+    }
+
+    private void remove(OutboxEntry entry) {
+        entries.remove(entry.getId());
+        if (entry.getTransmissionRequest() != null) {
+            entry.getTransmissionRequest().dispose();
+        }
+        if (journal.getObsoleteRecordCount() >= compactionThreshold) {
+            try {
+                journal.compact(new ArrayList<OutboxEntry>(entries.values()));
+            } catch (IOException e) {
+                log.warn("Unable to compact the outbox journal: " + e.getMessage());
+            }
+        }
+    }
+
+    /** Rebuilds the request of a message recovered from disk, without looking up the endpoint in the SMP once more */
+    private TransmissionRequest rebuildTransmissionRequest(OutboxEntry entry) {
+        TransmissionRequestBuilder builder = transmissionRequestBuilderProvider.get();
+
+        InputStream inputStream = null;
+        try {
+            inputStream = new BufferedInputStream(new FileInputStream(journal.getPayloadFile(entry.getId())));
+            builder.payLoad(inputStream);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read the payload of " + entry + ": " + e.getMessage(), e);
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    log.warn("Unable to close the payload of " + entry + ": " + e.getMessage());
+                }
+            }
+        }
+
+        builder.sender(entry.getSenderId())
+                .receiver(entry.getRecipientId())
+                .documentType(entry.getDocumentTypeId());
+        if (entry.getProcessTypeId() != null) {
+            builder.processType(entry.getProcessTypeId());
+        }
+        if (entry.getBusDoxProtocol() == BusDoxProtocol.AS2) {
+            builder.overrideAs2Endpoint(entry.getUrl(), entry.getCommonName() != null ? entry.getCommonName().toString() : null);
+        } else {
+            builder.overrideEndpointForStartProtocol(entry.getUrl());
+        }
+        return builder.build();
+    }
+
+    private class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            while (running) {
+                OutboxEntry entry;
+                try {
+                    entry = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (entry == null) {
+                    continue;
+                }
+                try {
+                    process(entry);
+                } catch (RuntimeException e) {
+                    log.error("Unexpected failure while processing " + entry + ": " + e.getMessage(), e);
+                    entry.postpone(System.currentTimeMillis() + POLL_INTERVAL);
+                    queue.add(entry);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package eu.peppol.outbound.outbox;
+
+import eu.peppol.BusDoxProtocol;
+import eu.peppol.PeppolStandardBusinessHeader;
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.identifier.PeppolDocumentTypeId;
+import eu.peppol.identifier.PeppolProcessTypeId;
+import eu.peppol.outbound.transmission.TransmissionRequest;
+import eu.peppol.security.CommonName;
+import eu.peppol.smp.SmpLookupManager;
+
+import java.net.URL;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A message held in the outbox, together with the data required to rebuild the {@link TransmissionRequest} after
+ * a restart. The payload itself is held in a separate file, see {@link OutboxJournal#getPayloadFile(String)}.
+ *
+ * Ordered by the time of the next attempt, allowing the entries to be held in a {@link java.util.concurrent.DelayQueue}.
+ */
+class OutboxEntry implements Delayed {
+
+    private final String id;
+    private final long enqueuedAt;
+    private final BusDoxProtocol busDoxProtocol;
+    private final URL url;
+    private final CommonName commonName;
+    private final ParticipantId senderId;
+    private final ParticipantId recipientId;
+    private final PeppolDocumentTypeId documentTypeId;
+    private final PeppolProcessTypeId processTypeId;
+
+    private volatile int attempts;
+    private volatile long nextAttemptAt;
+    private volatile TransmissionRequest transmissionRequest;
+
+    OutboxEntry(String id, long enqueuedAt, BusDoxProtocol busDoxProtocol, URL url, CommonName commonName, ParticipantId senderId, ParticipantId recipientId, PeppolDocumentTypeId documentTypeId, PeppolProcessTypeId processTypeId) {
+        this.id = id;
+        this.enqueuedAt = enqueuedAt;
+        this.busDoxProtocol = busDoxProtocol;
+        this.url = url;
+        this.commonName = commonName;
+        this.senderId = senderId;
+        this.recipientId = recipientId;
+        this.documentTypeId = documentTypeId;
+        this.processTypeId = processTypeId;
+        this.nextAttemptAt = enqueuedAt;
+    }
+
+    static OutboxEntry create(String id, long enqueuedAt, TransmissionRequest transmissionRequest) {
+        SmpLookupManager.PeppolEndpointData endpointAddress = transmissionRequest.getEndpointAddress();
+        PeppolStandardBusinessHeader header = transmissionRequest.getPeppolStandardBusinessHeader();
+
+        OutboxEntry entry = new OutboxEntry(id, enqueuedAt,
+                endpointAddress.getBusDoxProtocol(), endpointAddress.getUrl(), endpointAddress.getCommonName(),
+                header.getSenderId(), header.getRecipientId(), header.getDocumentTypeIdentifier(), header.getProfileTypeIdentifier());
+        entry.setTransmissionRequest(transmissionRequest);
+        return entry;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+
+    BusDoxProtocol getBusDoxProtocol() {
+        return busDoxProtocol;
+    }
+
+    URL getUrl() {
+        return url;
+    }
+
+    /** May be null */
+    CommonName getCommonName() {
+        return commonName;
+    }
+
+    ParticipantId getSenderId() {
+        return senderId;
+    }
+
+    ParticipantId getRecipientId() {
+        return recipientId;
+    }
+
+    PeppolDocumentTypeId getDocumentTypeId() {
+        return documentTypeId;
+    }
+
+    /** May be null */
+    PeppolProcessTypeId getProcessTypeId() {
+        return processTypeId;
+    }
+
+    /** The destination to which the backoff applies, i.e. the receiving access point */
+    String getDestination() {
+        return url.toExternalForm();
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+
+    long getNextAttemptAt() {
+        return nextAttemptAt;
+    }
+
+    void attempted(int attempts, long nextAttemptAt) {
+        this.attempts = attempts;
+        this.nextAttemptAt = nextAttemptAt;
+    }
+
+    void postpone(long nextAttemptAt) {
+        this.nextAttemptAt = nextAttemptAt;
+    }
+
+    /** The request to transmit, null if not yet rebuilt after a restart */
+    TransmissionRequest getTransmissionRequest() {
+        return transmissionRequest;
+    }
+
+    void setTransmissionRequest(TransmissionRequest transmissionRequest) {
+        this.transmissionRequest = transmissionRequest;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(nextAttemptAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+        long difference = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+        return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "OutboxEntry{" + id + ", " + senderId + " -> " + recipientId + " at " + url + ", attempts=" + attempts + '}';
+    }
+}
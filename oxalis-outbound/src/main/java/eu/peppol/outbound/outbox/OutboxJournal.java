@@ -0,0 +1,388 @@
+package eu.peppol.outbound.outbox;
+
+import eu.peppol.BusDoxProtocol;
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.identifier.PeppolDocumentTypeId;
+import eu.peppol.identifier.PeppolProcessTypeId;
+import eu.peppol.outbound.transmission.TransmissionPayload;
+import eu.peppol.security.CommonName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the outbox, written to disk and forced to the storage device before returning. The
+ * payload of every message is held in a file of its own, next to the journal.
+ *
+ * <p>Every record is prefixed with its length and followed by a CRC32 checksum. A record partially written
+ * when the JVM crashed is detected when the journal is replayed and is truncated, after which appending resumes.</p>
+ *
+ * <p>Records of completed and abandoned messages become obsolete and are removed by {@link #compact(java.util.Collection)},
+ * which writes the remaining records to a temporary file, which is then renamed.</p>
+ */
+class OutboxJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboxJournal.class);
+
+    /** "OXOB" */
+    static final int MAGIC = 0x4f584f42;
+    static final int VERSION = 1;
+
+    static final String JOURNAL_FILE_NAME = "outbox.journal";
+    static final String PAYLOAD_SUFFIX = ".payload";
+    static final String FAILED_SUFFIX = ".failed";
+
+    static final byte ENQUEUED = 1;
+    static final byte ATTEMPTED = 2;
+    static final byte COMPLETED = 3;
+    static final byte ABANDONED = 4;
+
+    /** Records exceeding this length are deemed to be garbage */
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+
+    private final File directory;
+    private final File journalFile;
+
+    private FileOutputStream fileOutputStream;
+    private DataOutputStream out;
+
+    /** Number of records which would not be written by a compaction */
+    private int obsoleteRecordCount = 0;
+
+    OutboxJournal(File directory) {
+        this.directory = directory;
+        this.journalFile = new File(directory, JOURNAL_FILE_NAME);
+    }
+
+    /**
+     * Replays the journal, if any, and opens it for appending.
+     *
+     * @return the entries which have neither been completed nor abandoned, in the order in which they were enqueued
+     */
+    synchronized List<OutboxEntry> open() throws IOException {
+        if (out != null) {
+            throw new IllegalStateException("Outbox journal " + journalFile + " is already open");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create outbox directory " + directory);
+        }
+
+        Map<String, OutboxEntry> entries = new LinkedHashMap<String, OutboxEntry>();
+        if (journalFile.exists()) {
+            replay(entries);
+        }
+
+        // Messages for which the payload is missing can not be transmitted
+        List<OutboxEntry> pendingEntries = new ArrayList<OutboxEntry>();
+        for (OutboxEntry entry : entries.values()) {
+            if (getPayloadFile(entry.getId()).isFile()) {
+                pendingEntries.add(entry);
+            } else {
+                log.error("Payload of " + entry + " is missing, unable to transmit it");
+            }
+        }
+        deleteUnreferencedPayloads(entries.keySet());
+
+        openForAppending();
+        if (obsoleteRecordCount > 0 || pendingEntries.size() < entries.size()) {
+            compact(pendingEntries);
+        }
+        return pendingEntries;
+    }
+
+    synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+            fileOutputStream = null;
+        }
+    }
+
+    File getPayloadFile(String id) {
+        return new File(directory, id + PAYLOAD_SUFFIX);
+    }
+
+    File getFailedPayloadFile(String id) {
+        return new File(directory, id + FAILED_SUFFIX);
+    }
+
+    /**
+     * Writes the payload of a message to its own file, which is forced to the storage device. Must be done before
+     * the message is enqueued.
+     */
+    void storePayload(String id, TransmissionPayload payload) throws IOException {
+        File tempFile = new File(directory, id + PAYLOAD_SUFFIX + ".tmp");
+        FileOutputStream payloadOutputStream = new FileOutputStream(tempFile);
+        try {
+            BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(payloadOutputStream);
+            payload.writeTo(bufferedOutputStream);
+            bufferedOutputStream.flush();
+            payloadOutputStream.getFD().sync();
+        } finally {
+            payloadOutputStream.close();
+        }
+        if (!tempFile.renameTo(getPayloadFile(id))) {
+            tempFile.delete();
+            throw new IOException("Unable to rename " + tempFile + " to " + getPayloadFile(id));
+        }
+    }
+
+    synchronized void appendEnqueued(OutboxEntry entry) throws IOException {
+        append(createEnqueuedRecord(entry));
+    }
+
+    synchronized void appendAttempted(OutboxEntry entry) throws IOException {
+        append(createAttemptedRecord(entry));
+        obsoleteRecordCount++;
+    }
+
+    /** Records that the message has been transmitted and removes its payload */
+    synchronized void appendCompleted(OutboxEntry entry) throws IOException {
+        append(createRecord(COMPLETED, entry.getId()));
+        obsoleteRecordCount += 2;
+        if (!getPayloadFile(entry.getId()).delete()) {
+            log.warn("Unable to delete payload of " + entry);
+        }
+    }
+
+    /** Records that the message will not be transmitted, keeping its payload for manual inspection */
+    synchronized void appendAbandoned(OutboxEntry entry) throws IOException {
+        append(createRecord(ABANDONED, entry.getId()));
+        obsoleteRecordCount += 2;
+        if (!getPayloadFile(entry.getId()).renameTo(getFailedPayloadFile(entry.getId()))) {
+            log.warn("Unable to rename payload of " + entry + " to " + getFailedPayloadFile(entry.getId()));
+        }
+    }
+
+    synchronized int getObsoleteRecordCount() {
+        return obsoleteRecordCount;
+    }
+
+    /**
+     * Replaces the journal with one holding only the supplied entries, i.e. the ones still pending.
+     */
+    synchronized void compact(Collection<OutboxEntry> pendingEntries) throws IOException {
+        File tempFile = new File(directory, JOURNAL_FILE_NAME + ".tmp");
+        FileOutputStream tempOutputStream = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream tempOut = new DataOutputStream(new BufferedOutputStream(tempOutputStream));
+            tempOut.writeInt(MAGIC);
+            tempOut.writeInt(VERSION);
+            for (OutboxEntry entry : pendingEntries) {
+                writeRecord(tempOut, createEnqueuedRecord(entry));
+                if (entry.getAttempts() > 0) {
+                    writeRecord(tempOut, createAttemptedRecord(entry));
+                }
+            }
+            tempOut.flush();
+            tempOutputStream.getFD().sync();
+        } finally {
+            tempOutputStream.close();
+        }
+
+        close();
+        // File.renameTo() will not replace an existing file on all platforms
+        if (journalFile.exists() && !journalFile.delete()) {
+            throw new IOException("Unable to replace outbox journal " + journalFile);
+        }
+        if (!tempFile.renameTo(journalFile)) {
+            throw new IOException("Unable to rename " + tempFile + " to " + journalFile);
+        }
+        openForAppending();
+
+        log.debug("Compacted outbox journal, removed " + obsoleteRecordCount + " obsolete records, " + pendingEntries.size() + " messages pending");
+        obsoleteRecordCount = 0;
+    }
+
+    private void replay(Map<String, OutboxEntry> entries) throws IOException {
+        long validLength;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(journalFile + " is not an outbox journal");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported outbox journal version " + version + " in " + journalFile);
+            }
+            validLength = 8;
+
+            byte[] record;
+            while ((record = readRecord(in)) != null) {
+                apply(record, entries);
+                validLength += 4 + record.length + 8;
+            }
+        } finally {
+            in.close();
+        }
+
+        if (validLength < journalFile.length()) {
+            log.warn("Truncating outbox journal " + journalFile + " from " + journalFile.length() + " to " + validLength + " bytes, the last record was not completely written");
+            RandomAccessFile randomAccessFile = new RandomAccessFile(journalFile, "rw");
+            try {
+                randomAccessFile.setLength(validLength);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+    }
+
+    /** Reads the next record, null if there are no more complete records */
+    private byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length < 1 || length > MAX_RECORD_LENGTH) {
+                return null;
+            }
+            byte[] record = new byte[length];
+            in.readFully(record);
+            long checksum = in.readLong();
+            return checksum == checksum(record) ? record : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private void apply(byte[] record, Map<String, OutboxEntry> entries) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        String id = in.readUTF();
+        switch (type) {
+            case ENQUEUED:
+                long enqueuedAt = in.readLong();
+                BusDoxProtocol busDoxProtocol = BusDoxProtocol.valueOf(in.readUTF());
+                URL url = new URL(in.readUTF());
+                String commonName = in.readUTF();
+                ParticipantId senderId = new ParticipantId(in.readUTF());
+                ParticipantId recipientId = new ParticipantId(in.readUTF());
+                PeppolDocumentTypeId documentTypeId = PeppolDocumentTypeId.valueOf(in.readUTF());
+                String processTypeId = in.readUTF();
+                entries.put(id, new OutboxEntry(id, enqueuedAt, busDoxProtocol, url,
+                        commonName.length() > 0 ? new CommonName(commonName) : null,
+                        senderId, recipientId, documentTypeId,
+                        processTypeId.length() > 0 ? PeppolProcessTypeId.valueOf(processTypeId) : null));
+                break;
+            case ATTEMPTED:
+                OutboxEntry entry = entries.get(id);
+                if (entry != null) {
+                    entry.attempted(in.readInt(), in.readLong());
+                }
+                obsoleteRecordCount++;
+                break;
+            case COMPLETED:
+            case ABANDONED:
+                entries.remove(id);
+                obsoleteRecordCount += 2;
+                break;
+            default:
+                throw new IOException("Unknown record type " + type + " in outbox journal " + journalFile);
+        }
+    }
+
+    private void deleteUnreferencedPayloads(Collection<String> ids) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(PAYLOAD_SUFFIX + ".tmp") || (name.endsWith(PAYLOAD_SUFFIX) && !ids.contains(name.substring(0, name.length() - PAYLOAD_SUFFIX.length())))) {
+                // Written by a JVM which crashed before the message was enqueued
+                log.debug("Deleting unreferenced outbox payload " + file);
+                file.delete();
+            }
+        }
+    }
+
+    private void openForAppending() throws IOException {
+        boolean created = !journalFile.exists() || journalFile.length() == 0;
+        fileOutputStream = new FileOutputStream(journalFile, true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+        if (created) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            force();
+        }
+    }
+
+    private void append(byte[] record) throws IOException {
+        if (out == null) {
+            throw new IllegalStateException("Outbox journal " + journalFile + " is not open");
+        }
+        writeRecord(out, record);
+        force();
+    }
+
+    private void force() throws IOException {
+        out.flush();
+        fileOutputStream.getFD().sync();
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+        out.writeInt(record.length);
+        out.write(record);
+        out.writeLong(checksum(record));
+    }
+
+    private static byte[] createEnqueuedRecord(OutboxEntry entry) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(512);
+        DataOutputStream record = new DataOutputStream(byteArrayOutputStream);
+        record.writeByte(ENQUEUED);
+        record.writeUTF(entry.getId());
+        record.writeLong(entry.getEnqueuedAt());
+        record.writeUTF(entry.getBusDoxProtocol().name());
+        record.writeUTF(entry.getUrl().toExternalForm());
+        record.writeUTF(entry.getCommonName() != null ? entry.getCommonName().toString() : "");
+        record.writeUTF(entry.getSenderId().stringValue());
+        record.writeUTF(entry.getRecipientId().stringValue());
+        record.writeUTF(entry.getDocumentTypeId().toString());
+        record.writeUTF(entry.getProcessTypeId() != null ? entry.getProcessTypeId().toString() : "");
+        record.flush();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private static byte[] createAttemptedRecord(OutboxEntry entry) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(64);
+        DataOutputStream record = new DataOutputStream(byteArrayOutputStream);
+        record.writeByte(ATTEMPTED);
+        record.writeUTF(entry.getId());
+        record.writeInt(entry.getAttempts());
+        record.writeLong(entry.getNextAttemptAt());
+        record.flush();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private static byte[] createRecord(byte type, String id) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(64);
+        DataOutputStream record = new DataOutputStream(byteArrayOutputStream);
+        record.writeByte(type);
+        record.writeUTF(id);
+        record.flush();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private static long checksum(byte[] record) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(record);
+        return crc32.getValue();
+    }
+}
@@ -43,6 +43,9 @@ import com.sun.xml.ws.developer.JAXWSProperties;
 import com.sun.xml.ws.rx.rm.api.ReliableMessagingFeatureBuilder;
 import com.sun.xml.ws.rx.rm.api.RmProtocolVersion;
 import eu.peppol.outbound.ssl.AccessPointX509TrustManager;
+import eu.peppol.outbound.transmission.AdaptiveTimeouts;
+import eu.peppol.outbound.transmission.EndpointHealthRegistry;
+import eu.peppol.outbound.transmission.Timeouts;
 import eu.peppol.outbound.util.Log;
 import eu.peppol.start.identifier.StartMessageHeader;
 import eu.peppol.util.GlobalConfiguration;
@@ -84,32 +87,42 @@ public class SoapDispatcher {
     private static boolean add2ApBlackListOnTimeout = true;
     private static Integer apBlackListEntryKeepTime = 1000 * 60 * 120;
 
-    private static Map<URL, Long> apBlackList = Collections.synchronizedMap(new LinkedHashMap<URL, Long>());
-
     public final void enableSoapLogging(boolean value) {
         System.setProperty("com.sun.xml.ws.transport.http.client.HttpTransportPipe.dump", String.valueOf(value));
     }
 
-    // BlackList operations
+    // BlackList operations, the blacklist is held by the EndpointHealthRegistry shared with the AS2 protocol
+
+    /**
+     * Replaces the blacklist, the value being the time at which the entry will be removed, or 0 to keep it until removed.
+     */
     public static void setApBlackList(Map<URL, Long> apBlackList) {
-        SoapDispatcher.apBlackList = apBlackList;
+        clearApBlackList();
+        long now = System.currentTimeMillis();
+        for (Entry<URL, Long> entry : apBlackList.entrySet()) {
+            if (entry.getValue() == null || entry.getValue() == 0) {
+                getEndpointHealthRegistry().blacklist(entry.getKey(), 0);
+            } else if (entry.getValue() > now) {
+                getEndpointHealthRegistry().blacklist(entry.getKey(), entry.getValue() - now);
+            }
+        }
     }
 
+    /**
+     * Provides a copy of the blacklist, changes to which are not reflected by the blacklist.
+     */
     public static Map<URL, Long> getApBlackList() {
-        return apBlackList;
+        return getEndpointHealthRegistry().getBlacklist();
     }
 
     public static Map<String, Date> getApBlackListAsString() {
         Map<String, Date> map = new LinkedHashMap<String, Date>();
-        synchronized (SoapDispatcher.apBlackList) {
-            for (Iterator<Entry<URL, Long>> iter = apBlackList.entrySet().iterator(); iter.hasNext(); ) {
-                Entry<URL, Long> entry = iter.next();
-                Date value = null;
-                if (entry.getValue() != null && entry.getValue() > 0) {
-                    value = new Date(entry.getValue());
-                }
-                map.put(entry.getKey().toExternalForm(), value);
+        for (Entry<URL, Long> entry : getApBlackList().entrySet()) {
+            Date value = null;
+            if (entry.getValue() != null && entry.getValue() > 0) {
+                value = new Date(entry.getValue());
             }
+            map.put(entry.getKey().toExternalForm(), value);
         }
 
         return map;
@@ -117,14 +130,12 @@ public class SoapDispatcher {
 
     public static void setApBlackListFromString(Set<String> apBlackList)
             throws Exception {
-        synchronized (SoapDispatcher.apBlackList) {
-            Log.debug("Populating apBlackList from string");
-            clearApBlackList();
-            for (Iterator<String> iter = apBlackList.iterator(); iter.hasNext(); ) {
-                String destination = iter.next();
-                if (destination != null && destination.trim().length() > 0) {
-                    add2ApBlackList(new URL(destination), 0);
-                }
+        Log.debug("Populating apBlackList from string");
+        clearApBlackList();
+        for (Iterator<String> iter = apBlackList.iterator(); iter.hasNext(); ) {
+            String destination = iter.next();
+            if (destination != null && destination.trim().length() > 0) {
+                add2ApBlackList(new URL(destination), 0);
             }
         }
     }
@@ -149,37 +160,25 @@ public class SoapDispatcher {
 
     public static void add2ApBlackList(URL destination, Integer apBlackListEntryKeepTime) {
         Log.debug("add2ApBlackList " + destination + " apBlackListEntryKeepTime " + apBlackListEntryKeepTime);
-        if (apBlackListEntryKeepTime == null || apBlackListEntryKeepTime == 0) {
-            getApBlackList().put(destination, new Long(0));
-        } else {
-            getApBlackList().put(destination, System.currentTimeMillis() + apBlackListEntryKeepTime);
-        }
+        getEndpointHealthRegistry().blacklist(destination, apBlackListEntryKeepTime == null ? 0 : apBlackListEntryKeepTime);
     }
 
     public static void removeFromApBlackList(URL destination) {
         Log.debug("removeFromApBlackList " + destination);
-        getApBlackList().remove(destination);
+        getEndpointHealthRegistry().removeFromBlacklist(destination);
     }
 
     public static boolean existInApBlackList(URL destination) {
-        if (!getApBlackList().containsKey(destination)) {
-            return false;
-        }
-        Long keepTime = getApBlackList().get(destination);
-        if (keepTime == null || keepTime == 0) {
-            return true;
-        } else if (System.currentTimeMillis() < keepTime) {
-            return true;
-        }
-
-        Log.debug("removeFromApBlackList due to getApBlackListEntryKeepTime");
-        getApBlackList().remove(destination);
-        return false;
+        return getEndpointHealthRegistry().isBlacklisted(destination);
     }
 
     public static void clearApBlackList() {
         Log.debug("clearApBlackList");
-        getApBlackList().clear();
+        getEndpointHealthRegistry().clearBlacklist();
+    }
+
+    private static EndpointHealthRegistry getEndpointHealthRegistry() {
+        return EndpointHealthRegistry.getInstance();
     }
 
     // Connection timeout operations
@@ -216,10 +215,13 @@ public class SoapDispatcher {
     }
 
     public static void setTimeouts(Map<String, Object> requestContext, StartMessageHeader messageHeader) {
-        Integer readTimeout = getReadTimeout();
-        Log.debug("setting connectTimeout " + getConnectTimeout() + " readTimeout " + readTimeout);
-        requestContext.put(JAXWSProperties.CONNECT_TIMEOUT, getConnectTimeout());
-        requestContext.put("com.sun.xml.ws.request.timeout", readTimeout);
+        setTimeouts(requestContext, new Timeouts(getConnectTimeout(), getReadTimeout(), false));
+    }
+
+    public static void setTimeouts(Map<String, Object> requestContext, Timeouts timeouts) {
+        Log.debug("setting connectTimeout " + timeouts.getConnectTimeout() + " readTimeout " + timeouts.getReadTimeout());
+        requestContext.put(JAXWSProperties.CONNECT_TIMEOUT, timeouts.getConnectTimeout());
+        requestContext.put("com.sun.xml.ws.request.timeout", timeouts.getReadTimeout());
     }
 
     /**
@@ -230,12 +232,13 @@ public class SoapDispatcher {
      * @param messageHeader   the SOAPHeaderObject holding the BUSDOX headers information
      *                        that will be attached into the SOAP-envelope.
      * @param soapBody        Create object holding the SOAP-envelope payload.
+     * @return the timeouts used, which are adapted to the latencies previously observed for the endpoint.
      */
-    public void send(URL endpointAddress, StartMessageHeader messageHeader, Create soapBody) throws FaultMessage {
+    public Timeouts send(URL endpointAddress, StartMessageHeader messageHeader, Create soapBody) throws FaultMessage {
 
         initialise();
 
-        sendSoapMessage(endpointAddress, messageHeader, soapBody);
+        return sendSoapMessage(endpointAddress, messageHeader, soapBody);
     }
 
 
@@ -253,7 +256,7 @@ public class SoapDispatcher {
      * @param endpointAddress the address of the webservice.
      * @return the configured port.
      */
-    private void sendSoapMessage(URL endpointAddress, final StartMessageHeader messageHeader, Create soapBody)
+    private Timeouts sendSoapMessage(URL endpointAddress, final StartMessageHeader messageHeader, Create soapBody)
             throws FaultMessage {
 
         if (endpointAddress == null) {
@@ -281,8 +284,13 @@ public class SoapDispatcher {
             }
         });
 
+        // The SOAP stack does not tell the time spent connecting apart, hence only the read timeout will adapt
+        AdaptiveTimeouts adaptiveTimeouts = AdaptiveTimeouts.getInstance();
+        Timeouts timeouts = adaptiveTimeouts.getTimeouts(endpointAddress, getConnectTimeout(), getReadTimeout());
+
         Log.debug("Getting remote resource binding port");
         Resource port = null;
+        long start = 0;
         try {
 //            port = accesspointService.getResourceBindingPort();
             // Thanks to Philip :-)
@@ -292,21 +300,29 @@ public class SoapDispatcher {
 
             requestContext.put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, endpointAddress.toExternalForm());
 
-            setTimeouts(requestContext, messageHeader);
+            setTimeouts(requestContext, timeouts);
 
             // Allows us to verify the name of the remote host.
 //            requestContext.put(JAXWSProperties.HOSTNAME_VERIFIER, createHostnameVerifier());
 
-            Log.info("Performing SOAP request to: " + endpointAddress.toExternalForm());
+            Log.info("Performing SOAP request to: " + endpointAddress.toExternalForm() + " using " + timeouts);
+            start = System.currentTimeMillis();
             port.create(soapBody);
+            adaptiveTimeouts.recordResponse(endpointAddress, System.currentTimeMillis() - start);
 
             Log.info("Sender:\t" + messageHeader.getSenderId().stringValue());
             Log.info("Recipient:\t" + messageHeader.getRecipientId().stringValue());
             Log.info("Destination:\t" + endpointAddress);
             Log.info("Message " + messageHeader.getMessageId() + " has been successfully delivered");
 
+            return timeouts;
+
         } catch (RuntimeException rte) {
 
+            if (start > 0 && getRootCause(rte) instanceof XMLStreamException) {
+                // Timed out, the time spent is merely the read timeout rather than a latency of the endpoint
+                adaptiveTimeouts.recordResponseTimeout(endpointAddress);
+            }
             if (isAdd2ApBlackListOnTimeout() && getRootCause(rte) instanceof XMLStreamException) {
                 Log.debug("Timeout exception occured. Will add to ApBlackList: " + endpointAddress);
                 add2ApBlackList(endpointAddress, getApBlackListEntryKeepTime());
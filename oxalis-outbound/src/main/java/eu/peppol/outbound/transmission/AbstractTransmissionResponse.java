@@ -12,11 +12,23 @@ public class AbstractTransmissionResponse {
 
     TransmissionId transmissionId;
     private final PeppolStandardBusinessHeader sbdh;
+    private final Timeouts timeouts;
+    private final TransmissionTimeline timeline;
 
     public AbstractTransmissionResponse(TransmissionId transmissionId, PeppolStandardBusinessHeader sbdh) {
+        this(transmissionId, sbdh, null);
+    }
+
+    public AbstractTransmissionResponse(TransmissionId transmissionId, PeppolStandardBusinessHeader sbdh, Timeouts timeouts) {
+        this(transmissionId, sbdh, timeouts, null);
+    }
+
+    public AbstractTransmissionResponse(TransmissionId transmissionId, PeppolStandardBusinessHeader sbdh, Timeouts timeouts, TransmissionTimeline timeline) {
 
         this.transmissionId = transmissionId;
         this.sbdh = sbdh;
+        this.timeouts = timeouts;
+        this.timeline = timeline;
     }
 
     public TransmissionId getTransmissionId() {
@@ -26,4 +38,14 @@ public class AbstractTransmissionResponse {
     public PeppolStandardBusinessHeader getSbdh() {
         return sbdh;
     }
+
+    /** The connect and read timeouts used for the transmission, or null if unknown */
+    public Timeouts getTimeouts() {
+        return timeouts;
+    }
+
+    /** Timings of the phases of the transmission, or null if unknown */
+    public TransmissionTimeline getTimeline() {
+        return timeline;
+    }
 }
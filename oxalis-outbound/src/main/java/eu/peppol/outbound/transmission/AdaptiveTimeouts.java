@@ -0,0 +1,190 @@
+package eu.peppol.outbound.transmission;
+
+import eu.peppol.util.GlobalConfiguration;
+
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Derives the connect and read timeouts of every receiving access point from the latencies observed, rather than
+ * using the same timeouts for all of them. Hence a hanging access point, which normally responds quickly, will not
+ * hold a thread for long, while a slow but healthy access point signing large MDNs will not be cut off.
+ *
+ * <p>Once enough latencies have been observed, each timeout is the configured percentile of the latencies multiplied
+ * by the configured factor, clamped to the configured lower and upper bounds. Until then, and for timeouts of
+ * which nothing has been observed, the default timeouts are used.</p>
+ *
+ * <p>A transmission timing out must not be recorded as a latency, as the time spent is merely the current timeout,
+ * which would push the timeout towards the upper bound for exactly the access points that hang or are down. Timeouts
+ * and failed connects are counted separately by {@link #recordResponseTimeout(URL)} and
+ * {@link #recordConnectFailure(URL)}.</p>
+ */
+public class AdaptiveTimeouts {
+
+    /** Number of latencies after which older latencies start losing their weight */
+    static final long HISTOGRAM_MAX_COUNT = 1000;
+
+    private static AdaptiveTimeouts instance;
+
+    private final boolean enabled;
+    private final int defaultConnectTimeout;
+    private final int defaultReadTimeout;
+    private final double percentile;
+    private final double multiplier;
+    private final int minSamples;
+    private final int connectTimeoutMin;
+    private final int connectTimeoutMax;
+    private final int readTimeoutMin;
+    private final int readTimeoutMax;
+
+    private final ConcurrentMap<String, Destination> destinations = new ConcurrentHashMap<String, Destination>();
+
+    /**
+     * Provides the instance shared by all the transmissions of this JVM.
+     */
+    public static synchronized AdaptiveTimeouts getInstance() {
+        if (instance == null) {
+            instance = new AdaptiveTimeouts(GlobalConfiguration.getInstance());
+        }
+        return instance;
+    }
+
+    public AdaptiveTimeouts(GlobalConfiguration globalConfiguration) {
+        this(globalConfiguration.isAdaptiveTimeoutEnabled(),
+                globalConfiguration.getConnectTimeout(),
+                globalConfiguration.getReadTimeout(),
+                globalConfiguration.getAdaptiveTimeoutPercentile(),
+                globalConfiguration.getAdaptiveTimeoutMultiplier(),
+                globalConfiguration.getAdaptiveTimeoutMinSamples(),
+                globalConfiguration.getAdaptiveConnectTimeoutMin(),
+                globalConfiguration.getAdaptiveConnectTimeoutMax(),
+                globalConfiguration.getAdaptiveReadTimeoutMin(),
+                globalConfiguration.getAdaptiveReadTimeoutMax());
+    }
+
+    public AdaptiveTimeouts(boolean enabled, int defaultConnectTimeout, int defaultReadTimeout, double percentile, double multiplier, int minSamples, int connectTimeoutMin, int connectTimeoutMax, int readTimeoutMin, int readTimeoutMax) {
+        if (percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be in the range (0,100], not " + percentile);
+        }
+        if (multiplier <= 0) {
+            throw new IllegalArgumentException("Multiplier must be positive, not " + multiplier);
+        }
+        if (connectTimeoutMin > connectTimeoutMax || readTimeoutMin > readTimeoutMax) {
+            throw new IllegalArgumentException("Lower bound of a timeout exceeds its upper bound");
+        }
+        this.enabled = enabled;
+        this.defaultConnectTimeout = defaultConnectTimeout;
+        this.defaultReadTimeout = defaultReadTimeout;
+        this.percentile = percentile;
+        this.multiplier = multiplier;
+        this.minSamples = Math.max(1, minSamples);
+        this.connectTimeoutMin = connectTimeoutMin;
+        this.connectTimeoutMax = connectTimeoutMax;
+        this.readTimeoutMin = readTimeoutMin;
+        this.readTimeoutMax = readTimeoutMax;
+    }
+
+    /**
+     * Provides the timeouts to use for the next transmission to the given access point.
+     */
+    public Timeouts getTimeouts(URL endpoint) {
+        return getTimeouts(endpoint, defaultConnectTimeout, defaultReadTimeout);
+    }
+
+    /**
+     * Provides the timeouts to use for the next transmission to the given access point, falling back to the
+     * supplied defaults.
+     */
+    public Timeouts getTimeouts(URL endpoint, int defaultConnectTimeout, int defaultReadTimeout) {
+        Destination destination = enabled ? destinations.get(keyOf(endpoint)) : null;
+        if (destination == null) {
+            return new Timeouts(defaultConnectTimeout, defaultReadTimeout, false);
+        }
+
+        boolean adaptive = false;
+        int connectTimeout = defaultConnectTimeout;
+        if (destination.connectLatencies.getCount() >= minSamples) {
+            connectTimeout = derive(destination.connectLatencies, connectTimeoutMin, connectTimeoutMax);
+            adaptive = true;
+        }
+        int readTimeout = defaultReadTimeout;
+        if (destination.responseLatencies.getCount() >= minSamples) {
+            readTimeout = derive(destination.responseLatencies, readTimeoutMin, readTimeoutMax);
+            adaptive = true;
+        }
+        return new Timeouts(connectTimeout, readTimeout, adaptive);
+    }
+
+    /** Records the number of milliseconds spent establishing a connection to the given access point */
+    public void recordConnect(URL endpoint, long latency) {
+        getOrCreate(endpoint).connectLatencies.record(latency);
+    }
+
+    /** Records that a connection to the given access point could not be established, which is not a latency observed */
+    public void recordConnectFailure(URL endpoint) {
+        getOrCreate(endpoint).connectFailures.incrementAndGet();
+    }
+
+    /** Number of attempts to connect to the given access point which failed or timed out */
+    public long getConnectFailureCount(URL endpoint) {
+        Destination destination = destinations.get(keyOf(endpoint));
+        return destination == null ? 0 : destination.connectFailures.get();
+    }
+
+    /** Records the number of milliseconds spent waiting for the response of the given access point */
+    public void recordResponse(URL endpoint, long latency) {
+        getOrCreate(endpoint).responseLatencies.record(latency);
+    }
+
+    /** Records that the given access point did not respond within the read timeout, which is not a latency observed */
+    public void recordResponseTimeout(URL endpoint) {
+        getOrCreate(endpoint).responseTimeouts.incrementAndGet();
+    }
+
+    /** Number of transmissions to the given access point which timed out waiting for the response */
+    public long getResponseTimeoutCount(URL endpoint) {
+        Destination destination = destinations.get(keyOf(endpoint));
+        return destination == null ? 0 : destination.responseTimeouts.get();
+    }
+
+    /** Forgets the latencies observed for the given access point */
+    public void reset(URL endpoint) {
+        destinations.remove(keyOf(endpoint));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private int derive(LatencyHistogram histogram, int min, int max) {
+        double timeout = histogram.getPercentile(percentile) * multiplier;
+        return (int) Math.max(min, Math.min(max, Math.ceil(timeout)));
+    }
+
+    private Destination getOrCreate(URL endpoint) {
+        String key = keyOf(endpoint);
+        Destination destination = destinations.get(key);
+        if (destination == null) {
+            Destination created = new Destination();
+            destination = destinations.putIfAbsent(key, created);
+            if (destination == null) {
+                destination = created;
+            }
+        }
+        return destination;
+    }
+
+    /** URL#equals() resolves the host names, hence the external form is used */
+    private static String keyOf(URL endpoint) {
+        return endpoint.toExternalForm();
+    }
+
+    private static class Destination {
+        final LatencyHistogram connectLatencies = new LatencyHistogram(HISTOGRAM_MAX_COUNT);
+        final LatencyHistogram responseLatencies = new LatencyHistogram(HISTOGRAM_MAX_COUNT);
+        final AtomicLong responseTimeouts = new AtomicLong();
+        final AtomicLong connectFailures = new AtomicLong();
+    }
+}
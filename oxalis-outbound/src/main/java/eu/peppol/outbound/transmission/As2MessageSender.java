@@ -7,25 +7,22 @@ import eu.peppol.identifier.TransmissionId;
 import eu.peppol.security.CommonName;
 import eu.peppol.security.KeystoreManager;
 import eu.peppol.smp.SmpLookupManager;
+import eu.peppol.util.GlobalConfiguration;
 import eu.peppol.identifier.PeppolDocumentTypeId;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.config.Registry;
-import org.apache.http.config.RegistryBuilder;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.conn.HttpHostConnectException;
-import org.apache.http.conn.socket.ConnectionSocketFactory;
-import org.apache.http.conn.socket.PlainConnectionSocketFactory;
-import org.apache.http.conn.ssl.AllowAllHostnameVerifier;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.conn.ssl.SSLContexts;
-import org.apache.http.conn.ssl.X509HostnameVerifier;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentProducer;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.entity.FileEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,15 +30,17 @@ import org.slf4j.LoggerFactory;
 import javax.activation.MimeType;
 import javax.activation.MimeTypeParseException;
 import javax.mail.internet.MimeMessage;
-import javax.net.ssl.SSLContext;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.security.cert.X509Certificate;
 import java.util.Date;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Thread safe implementation of a {@link MessageSender}, which sends messages using the
@@ -51,36 +50,99 @@ import java.util.UUID;
  *         Date: 29.10.13
  *         Time: 11:35
  */
-class As2MessageSender implements MessageSender {
+class As2MessageSender implements PreparingMessageSender {
 
     public static final Logger log = LoggerFactory.getLogger(As2MessageSender.class);
 
     private final SmpLookupManager smpLookupManager;
+    private final HttpConnectionPool httpConnectionPool;
+    private final SMimeMessageFactory sMimeMessageFactory;
+    private final AdaptiveTimeouts adaptiveTimeouts;
+
+    /** Whether messages are wrapped, signed and posted in a single pass, rather than being assembled in memory */
+    private final boolean streaming;
 
     @Inject
-    public As2MessageSender(final SmpLookupManager smpLookupManager) {
+    public As2MessageSender(final SmpLookupManager smpLookupManager, HttpConnectionPool httpConnectionPool, SMimeMessageFactory sMimeMessageFactory, GlobalConfiguration globalConfiguration, AdaptiveTimeouts adaptiveTimeouts) {
+        this(smpLookupManager, httpConnectionPool, sMimeMessageFactory, globalConfiguration.isAs2StreamingEnabled(), adaptiveTimeouts);
+    }
+
+    public As2MessageSender(final SmpLookupManager smpLookupManager, HttpConnectionPool httpConnectionPool) {
+        this(smpLookupManager, httpConnectionPool, new SMimeMessageFactory(new SMimeSigner(KeystoreManager.getInstance())), GlobalConfiguration.getInstance().isAs2StreamingEnabled(), AdaptiveTimeouts.getInstance());
+    }
+
+    As2MessageSender(final SmpLookupManager smpLookupManager, HttpConnectionPool httpConnectionPool, SMimeMessageFactory sMimeMessageFactory, boolean streaming, AdaptiveTimeouts adaptiveTimeouts) {
         this.smpLookupManager = smpLookupManager;
+        this.httpConnectionPool = httpConnectionPool;
+        this.sMimeMessageFactory = sMimeMessageFactory;
+        this.streaming = streaming;
+        this.adaptiveTimeouts = adaptiveTimeouts;
     }
 
     @Override
     public TransmissionResponse send(TransmissionRequest transmissionRequest) {
+        return prepare(transmissionRequest).send();
+    }
+
+    /**
+     * Signs the payload, which is CPU bound, and returns the transmission ready to be posted. When streaming,
+     * the payload is signed while being posted.
+     */
+    @Override
+    public PreparedTransmission prepare(final TransmissionRequest transmissionRequest) {
         if (transmissionRequest.getEndpointAddress().getCommonName() == null) {
             throw new IllegalStateException("Must supply the X.509 common name (AS2 System Identifier) for AS2 protocol");
         }
 
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(transmissionRequest.getPayload());
-
         X509Certificate ourCertificate = KeystoreManager.INSTANCE.getOurCertificate();
-        PeppolAs2SystemIdentifier as2SystemIdentifierOfSender = getAs2SystemIdentifierForSender(ourCertificate);
+        final PeppolAs2SystemIdentifier as2SystemIdentifierOfSender = getAs2SystemIdentifierForSender(ourCertificate);
+
+        if (!streaming && transmissionRequest.isPayloadFileBacked()) {
+            // Large payloads are signed into a temporary file rather than into memory. The signing is performed when
+            // sent, as the file is removed once posted, whereas a prepared transmission might never be sent.
+            return new PreparedTransmission() {
+                @Override
+                public TransmissionResponse send() {
+                    TransmissionPayload signedMimeMessage = createSignedFile(transmissionRequest);
+                    try {
+                        return post(new FileEntity(signedMimeMessage.getFile(), ContentType.APPLICATION_XML), transmissionRequest, as2SystemIdentifierOfSender);
+                    } finally {
+                        signedMimeMessage.delete();
+                    }
+                }
+            };
+        }
 
-        TransmissionId transmissionId = send(inputStream,
-                transmissionRequest.getPeppolStandardBusinessHeader().getRecipientId(),
-                transmissionRequest.getPeppolStandardBusinessHeader().getSenderId(),
-                transmissionRequest.getPeppolStandardBusinessHeader().getDocumentTypeIdentifier(),
-                transmissionRequest.getEndpointAddress(),
-                as2SystemIdentifierOfSender);
+        final HttpEntity entity;
+        if (streaming) {
+            entity = createStreamingEntity(transmissionRequest);
+        } else {
+            InputStream inputStream = openPayload(transmissionRequest);
+            try {
+                long start = System.nanoTime();
+                entity = createSignedEntity(inputStream);
+                transmissionRequest.getTimeline().recordSince(TransmissionTimeline.Phase.SIGN, start);
+            } finally {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    log.warn("Unable to close the payload: " + e.getMessage());
+                }
+            }
+        }
 
-        return new As2TransmissionResponse(transmissionId, transmissionRequest.getPeppolStandardBusinessHeader());
+        return new PreparedTransmission() {
+            @Override
+            public TransmissionResponse send() {
+                return post(entity, transmissionRequest, as2SystemIdentifierOfSender);
+            }
+        };
+    }
+
+    private TransmissionResponse post(HttpEntity entity, TransmissionRequest transmissionRequest, PeppolAs2SystemIdentifier as2SystemIdentifierOfSender) {
+        Timeouts timeouts = adaptiveTimeouts.getTimeouts(transmissionRequest.getEndpointAddress().getUrl());
+        TransmissionId transmissionId = post(entity, transmissionRequest.getEndpointAddress(), as2SystemIdentifierOfSender, timeouts, transmissionRequest.getTimeline());
+        return new As2TransmissionResponse(transmissionId, transmissionRequest.getPeppolStandardBusinessHeader(), timeouts, transmissionRequest.getTimeline());
     }
 
 
@@ -90,22 +152,24 @@ class As2MessageSender implements MessageSender {
         if (peppolEndpointData.getCommonName() == null) {
             throw new IllegalArgumentException("No common name in EndPoint object. " + peppolEndpointData);
         }
-        X509Certificate ourCertificate = KeystoreManager.INSTANCE.getOurCertificate();
 
-        SMimeMessageFactory SMimeMessageFactory = new SMimeMessageFactory(KeystoreManager.INSTANCE.getOurPrivateKey(), ourCertificate);
+        Timeouts timeouts = adaptiveTimeouts.getTimeouts(peppolEndpointData.getUrl());
+        return post(createSignedEntity(inputStream), peppolEndpointData, as2SystemIdentifierOfSender, timeouts, new TransmissionTimeline());
+    }
+
+    /**
+     * Signs the payload and writes the complete S/MIME message into memory.
+     */
+    HttpEntity createSignedEntity(InputStream inputStream) {
+        // The factory is shared and reused for all messages
         MimeMessage signedMimeMessage = null;
         try {
-            signedMimeMessage = SMimeMessageFactory.createSignedMimeMessage(inputStream, new MimeType("application/xml"));
+            signedMimeMessage = sMimeMessageFactory.createSignedMimeMessage(inputStream, new MimeType("application/xml"));
         } catch (MimeTypeParseException e) {
             throw new IllegalStateException("Problems with MIME types: " + e.getMessage(), e);
         }
 
 
-        CloseableHttpClient httpClient = createCloseableHttpClient();
-
-        String endpointAddress = peppolEndpointData.getUrl().toExternalForm();
-        HttpPost httpPost = new HttpPost(endpointAddress);
-
         ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
         try {
             signedMimeMessage.writeTo(byteArrayOutputStream);
@@ -113,6 +177,83 @@ class As2MessageSender implements MessageSender {
             throw new IllegalStateException("Unable to stream S/MIME message into byte array output steram");
         }
 
+        return new ByteArrayEntity(byteArrayOutputStream.toByteArray(), ContentType.APPLICATION_XML);
+    }
+
+    /**
+     * Wraps and signs the payload into a temporary file, which is to be removed by the caller. Only small buffers are
+     * held in memory, while the length of the S/MIME message is known, unlike when streaming.
+     */
+    TransmissionPayload createSignedFile(TransmissionRequest transmissionRequest) {
+        long start = System.nanoTime();
+        TransmissionPayload.Writer writer = new TransmissionPayload.Writer(0, Long.MAX_VALUE);
+        try {
+            OutputStream outputStream = new BufferedOutputStream(writer);
+            writeSignedMimeMessage(createSignedMimeMessageWriter(), transmissionRequest, outputStream);
+            outputStream.flush();
+            TransmissionPayload signedMimeMessage = writer.toPayload();
+            transmissionRequest.getTimeline().recordSince(TransmissionTimeline.Phase.SIGN, start);
+            return signedMimeMessage;
+        } catch (IOException e) {
+            writer.discard();
+            throw new IllegalStateException("Unable to write the S/MIME message into a temporary file: " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            writer.discard();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates an entity, which wraps, signs and writes the payload in a single pass using chunked transfer
+     * encoding. Apart from the payload supplied by the caller, only small buffers are held in memory.
+     */
+    HttpEntity createStreamingEntity(final TransmissionRequest transmissionRequest) {
+
+        final SignedMimeMessageWriter signedMimeMessageWriter = createSignedMimeMessageWriter();
+
+        // The S/MIME message is written by the http client directly to the connection, signing it on the fly
+        EntityTemplate entity = new EntityTemplate(new ContentProducer() {
+            @Override
+            public void writeTo(OutputStream outputStream) throws IOException {
+                writeSignedMimeMessage(signedMimeMessageWriter, transmissionRequest, outputStream);
+            }
+        });
+        entity.setContentType(ContentType.APPLICATION_XML.toString());
+        entity.setChunked(true);
+
+        return entity;
+    }
+
+    private SignedMimeMessageWriter createSignedMimeMessageWriter() {
+        try {
+            return sMimeMessageFactory.createSignedMimeMessageWriter(new MimeType("application/xml"));
+        } catch (MimeTypeParseException e) {
+            throw new IllegalStateException("Problems with MIME types: " + e.getMessage(), e);
+        }
+    }
+
+    private static void writeSignedMimeMessage(SignedMimeMessageWriter signedMimeMessageWriter, final TransmissionRequest transmissionRequest, OutputStream outputStream) throws IOException {
+        signedMimeMessageWriter.writeTo(outputStream, new SignedMimeMessageWriter.ContentWriter() {
+            @Override
+            public void writeTo(OutputStream contentStream) throws IOException {
+                transmissionRequest.writePayloadTo(contentStream);
+            }
+        });
+    }
+
+    /**
+     * Posts the supplied entity holding the S/MIME message, together with the AS2 headers, to the receiving end point
+     * using the supplied timeouts. The latencies observed are fed back into the {@link AdaptiveTimeouts} and recorded
+     * in the supplied timeline.
+     */
+    TransmissionId post(HttpEntity entity, SmpLookupManager.PeppolEndpointData peppolEndpointData, PeppolAs2SystemIdentifier as2SystemIdentifierOfSender, Timeouts timeouts, TransmissionTimeline timeline) {
+
+        // The http client is shared and must not be closed
+        CloseableHttpClient httpClient = httpConnectionPool.getHttpClient();
+
+        String endpointAddress = peppolEndpointData.getUrl().toExternalForm();
+        HttpPost httpPost = new HttpPost(endpointAddress);
+
         httpPost.addHeader(As2Header.AS2_FROM.getHttpHeaderName(), as2SystemIdentifierOfSender.toString());
         try {
             httpPost.setHeader(As2Header.AS2_TO.getHttpHeaderName(), PeppolAs2SystemIdentifier.valueOf(peppolEndpointData.getCommonName()).toString());
@@ -130,24 +271,50 @@ class As2MessageSender implements MessageSender {
 
 
         // Inserts the S/MIME message to be posted
-        httpPost.setEntity(new ByteArrayEntity(byteArrayOutputStream.toByteArray(), ContentType.APPLICATION_XML));
+        httpPost.setEntity(entity);
 
+        httpPost.setConfig(RequestConfig.copy(httpConnectionPool.getDefaultRequestConfig())
+                .setConnectTimeout(timeouts.getConnectTimeout())
+                .setSocketTimeout(timeouts.getReadTimeout())
+                .build());
+
+        httpConnectionPool.recordDestination(peppolEndpointData.getUrl());
+
+        HttpClientContext httpContext = HttpClientContext.create();
         CloseableHttpResponse postResponse = null;      // EXECUTE !!!!
+        long start = System.nanoTime();
         try {
-            log.info("Sending message to " + endpointAddress);
-            postResponse = httpClient.execute(httpPost);
+            log.info("Sending message to " + endpointAddress + " using " + timeouts);
+            postResponse = httpClient.execute(httpPost, httpContext);
         } catch (HttpHostConnectException e) {
+            recordLatencies(peppolEndpointData.getUrl(), httpContext, start, false, timeline);
             throw new IllegalStateException("The Oxalis server does not seem to be running at " + endpointAddress);
+        } catch (SocketTimeoutException e) {
+            // The time spent is the timeout itself rather than a latency of the access point
+            recordLatencies(peppolEndpointData.getUrl(), httpContext, start, false, timeline);
+            adaptiveTimeouts.recordResponseTimeout(peppolEndpointData.getUrl());
+            throw new IllegalStateException("Timed out waiting " + timeouts.getReadTimeout() + "ms for a response from " + endpointAddress, e);
         } catch (Exception e) {
+            recordLatencies(peppolEndpointData.getUrl(), httpContext, start, false, timeline);
             throw new IllegalStateException("Unexpected error during execution of http POST to " + endpointAddress + ": " + e.getMessage(), e);
         }
+        recordLatencies(peppolEndpointData.getUrl(), httpContext, start, true, timeline);
 
         if (postResponse.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
-            return handleFailedRequest(postResponse);
+            try {
+                return handleFailedRequest(postResponse);
+            } finally {
+                // Returns the connection to the pool
+                closeQuietly(postResponse);
+            }
         }
 
-        return handleTheHttpResponse(transmissionId, postResponse);
-
+        long mdnStart = System.nanoTime();
+        try {
+            return handleTheHttpResponse(transmissionId, postResponse);
+        } finally {
+            timeline.recordSince(TransmissionTimeline.Phase.MDN, mdnStart);
+        }
 
     }
 
@@ -223,6 +390,30 @@ class As2MessageSender implements MessageSender {
         }
     }
 
+    /**
+     * Feeds the time spent connecting, if a new connection was established, and the time spent waiting for the
+     * response, if the request was actually sent, into the adaptive timeouts and the timeline. A failed connect is
+     * counted rather than recorded as a latency.
+     *
+     * @param start value of {@link System#nanoTime()} when the request was executed
+     */
+    private void recordLatencies(URL endpoint, HttpClientContext httpContext, long start, boolean responseAwaited, TransmissionTimeline timeline) {
+        long elapsed = System.nanoTime() - start;
+        if (Boolean.TRUE.equals(httpContext.getAttribute(HttpConnectionPool.CONNECT_FAILED_ATTRIBUTE))) {
+            adaptiveTimeouts.recordConnectFailure(endpoint);
+        }
+        Long connectTime = (Long) httpContext.getAttribute(HttpConnectionPool.CONNECT_NANO_TIME_ATTRIBUTE);
+        if (connectTime != null) {
+            adaptiveTimeouts.recordConnect(endpoint, TimeUnit.NANOSECONDS.toMillis(connectTime));
+            timeline.record(TransmissionTimeline.Phase.CONNECT, connectTime);
+        }
+        if (responseAwaited) {
+            long responseTime = elapsed - (connectTime == null ? 0 : connectTime);
+            adaptiveTimeouts.recordResponse(endpoint, TimeUnit.NANOSECONDS.toMillis(responseTime));
+            timeline.record(TransmissionTimeline.Phase.SERVER, responseTime);
+        }
+    }
+
     private PeppolAs2SystemIdentifier getAs2SystemIdentifierForSender(X509Certificate ourCertificate) {
         PeppolAs2SystemIdentifier peppolAs2SystemIdentifier = null;
         try {
@@ -233,21 +424,19 @@ class As2MessageSender implements MessageSender {
         return peppolAs2SystemIdentifier;
     }
 
-    private CloseableHttpClient createCloseableHttpClient() {
-        SSLContext sslcontext = SSLContexts.createSystemDefault();
-        // Use custom hostname verifier to customize SSL hostname verification.
-        X509HostnameVerifier hostnameVerifier = new AllowAllHostnameVerifier();
-
-        SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(sslcontext, SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
-
-        CloseableHttpClient httpclient = HttpClients.custom()
-                .setSSLSocketFactory(sslsf)
-                .build();
+    private InputStream openPayload(TransmissionRequest transmissionRequest) {
+        try {
+            return transmissionRequest.getTransmissionPayload().openInputStream();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read the payload: " + e.getMessage(), e);
+        }
+    }
 
-        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
-                .register("http", PlainConnectionSocketFactory.INSTANCE)
-                .register("https", new SSLConnectionSocketFactory(sslcontext, hostnameVerifier))
-                .build();
-        return httpclient;
+    private void closeQuietly(CloseableHttpResponse postResponse) {
+        try {
+            postResponse.close();
+        } catch (IOException e) {
+            log.warn("Unable to close http response: " + e.getMessage());
+        }
     }
 }
@@ -13,4 +13,12 @@ public class As2TransmissionResponse extends AbstractTransmissionResponse implem
     public As2TransmissionResponse(TransmissionId transmissionId, PeppolStandardBusinessHeader peppolStandardBusinessHeader) {
         super(transmissionId, peppolStandardBusinessHeader);
     }
+
+    public As2TransmissionResponse(TransmissionId transmissionId, PeppolStandardBusinessHeader peppolStandardBusinessHeader, Timeouts timeouts) {
+        super(transmissionId, peppolStandardBusinessHeader, timeouts);
+    }
+
+    public As2TransmissionResponse(TransmissionId transmissionId, PeppolStandardBusinessHeader peppolStandardBusinessHeader, Timeouts timeouts, TransmissionTimeline timeline) {
+        super(transmissionId, peppolStandardBusinessHeader, timeouts, timeline);
+    }
 }
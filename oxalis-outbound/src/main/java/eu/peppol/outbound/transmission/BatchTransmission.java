@@ -0,0 +1,201 @@
+package eu.peppol.outbound.transmission;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Transmits a batch of requests using a {@link TransmissionExecutor}, which prepares the transmissions in parallel
+ * on one thread per processor and sends them on its pool of sending threads.
+ *
+ * <p>The requests are grouped by receiving access point. The destinations take turns, and no more than the given
+ * number of transmissions to the same destination are in flight at any time. Hence a large number of messages
+ * for a single access point neither starves the other destinations, nor floods the receiving access point, while
+ * the messages to the same destination share the keep-alive connections of the {@link HttpConnectionPool}.</p>
+ *
+ * <p>No more transmissions are in flight than the executor accepts for a single lane. Should the executor reject a
+ * transmission anyway, as other callers are using its capacity as well, the request is submitted again once one of
+ * the transmissions of the batch has completed. Only if the batch has nothing in flight is the rejection final.</p>
+ *
+ * <p>Only the calling thread submits transmissions, the threads of the executor merely report their completion.
+ * Every request is disposed once its transmission has completed.</p>
+ */
+class BatchTransmission {
+
+    public static final Logger log = LoggerFactory.getLogger(BatchTransmission.class);
+
+    private final TransmissionExecutor transmissionExecutor;
+    private final Transmitter transmitter;
+    private final int maxPerDestination;
+    private final int maxInFlight;
+
+    private final Object lock = new Object();
+
+    /** Destinations having requests not yet submitted, in the order they take turns */
+    private final LinkedList<Destination> rotation = new LinkedList<Destination>();
+    private BatchTransmissionResult.Item[] items;
+    private int inFlight;
+    private int completedCount;
+
+    BatchTransmission(TransmissionExecutor transmissionExecutor, Transmitter transmitter, int maxPerDestination) {
+        if (maxPerDestination < 1) {
+            throw new IllegalArgumentException("Maximum number of transmissions per destination must be at least 1, not " + maxPerDestination);
+        }
+        this.transmissionExecutor = transmissionExecutor;
+        this.transmitter = transmitter;
+        this.maxPerDestination = maxPerDestination;
+        this.maxInFlight = transmissionExecutor.getMaxInFlight();
+    }
+
+    /**
+     * Transmits every request, blocking until all of them have either succeeded or failed. May only be invoked once.
+     */
+    BatchTransmissionResult execute(Collection<TransmissionRequest> transmissionRequests) throws InterruptedException {
+        List<TransmissionRequest> requests = new ArrayList<TransmissionRequest>(transmissionRequests);
+        items = new BatchTransmissionResult.Item[requests.size()];
+
+        // URL#equals() resolves the host names, hence the external form is used
+        Map<String, Destination> destinations = new LinkedHashMap<String, Destination>();
+        for (int i = 0; i < requests.size(); i++) {
+            String key = requests.get(i).getEndpointAddress().getUrl().toExternalForm();
+            Destination destination = destinations.get(key);
+            if (destination == null) {
+                destination = new Destination(key);
+                destinations.put(key, destination);
+            }
+            destination.pending.add(i);
+        }
+        rotation.addAll(destinations.values());
+
+        log.info("Transmitting batch of " + requests.size() + " messages to " + destinations.size() + " access points");
+        long start = System.currentTimeMillis();
+
+        int submitted = 0;
+        while (submitted < requests.size()) {
+            Destination destination;
+            int index;
+            int completedBefore;
+            synchronized (lock) {
+                while (inFlight >= maxInFlight || (destination = nextDestination()) == null) {
+                    lock.wait();
+                }
+                index = destination.pending.removeFirst();
+                destination.inFlight++;
+                inFlight++;
+                completedBefore = completedCount;
+            }
+            if (submit(requests.get(index), index, destination)) {
+                submitted++;
+            } else {
+                synchronized (lock) {
+                    destination.pending.addFirst(index);
+                    // Capacity is freed as the transmissions in flight complete
+                    while (completedCount == completedBefore) {
+                        lock.wait();
+                    }
+                }
+            }
+        }
+
+        synchronized (lock) {
+            while (completedCount < requests.size()) {
+                lock.wait();
+            }
+        }
+
+        BatchTransmissionResult result = new BatchTransmissionResult(Arrays.asList(items), destinations.size(), System.currentTimeMillis() - start);
+        log.info("Batch transmitted: " + result);
+        return result;
+    }
+
+    /**
+     * Provides the next destination in turn having capacity for another transmission, or null if every destination
+     * having requests left is fully occupied. Destinations having no requests left are removed.
+     */
+    private Destination nextDestination() {
+        for (int i = rotation.size(); i > 0; i--) {
+            Destination destination = rotation.removeFirst();
+            if (destination.pending.isEmpty()) {
+                continue;
+            }
+            rotation.addLast(destination);
+            if (destination.inFlight < maxPerDestination) {
+                return destination;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return false if the executor had no capacity for the transmission, which should be submitted again once
+     * another transmission of the batch has completed
+     */
+    private boolean submit(final TransmissionRequest transmissionRequest, final int index, final Destination destination) {
+        final long payloadSize = transmissionRequest.getTransmissionPayload().getSize();
+        final long start = System.currentTimeMillis();
+        try {
+            TransmissionFuture future = transmissionExecutor.submit(transmissionRequest, new Callable<PreparedTransmission>() {
+                @Override
+                public PreparedTransmission call() throws Exception {
+                    return transmitter.prepare(transmissionRequest);
+                }
+            });
+            future.addCallback(new TransmissionCallback() {
+                @Override
+                public void onSuccess(TransmissionResponse transmissionResponse) {
+                    completed(index, destination, new BatchTransmissionResult.Item(transmissionRequest, transmissionResponse, null, payloadSize, System.currentTimeMillis() - start));
+                }
+
+                @Override
+                public void onFailure(Throwable cause) {
+                    completed(index, destination, new BatchTransmissionResult.Item(transmissionRequest, null, cause, payloadSize, System.currentTimeMillis() - start));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (lock) {
+                if (!transmissionExecutor.isShutdown() && inFlight > 1) {
+                    log.debug("No capacity for another transmission to " + destination.key + ", waiting for the batch to make room");
+                    destination.inFlight--;
+                    inFlight--;
+                    return false;
+                }
+            }
+            completed(index, destination, new BatchTransmissionResult.Item(transmissionRequest, null, e, payloadSize, System.currentTimeMillis() - start));
+        }
+        return true;
+    }
+
+    private void completed(int index, Destination destination, BatchTransmissionResult.Item item) {
+        // Removes the temporary file holding a large payload
+        item.getTransmissionRequest().dispose();
+        if (!item.isSucceeded()) {
+            log.warn("Transmission to " + destination.key + " failed: " + item.getFailure().getMessage());
+        }
+        synchronized (lock) {
+            items[index] = item;
+            destination.inFlight--;
+            inFlight--;
+            completedCount++;
+            lock.notifyAll();
+        }
+    }
+
+    private static class Destination {
+        final String key;
+        final LinkedList<Integer> pending = new LinkedList<Integer>();
+        int inFlight;
+
+        Destination(String key) {
+            this.key = key;
+        }
+    }
+}
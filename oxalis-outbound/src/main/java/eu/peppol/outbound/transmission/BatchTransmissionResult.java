@@ -0,0 +1,140 @@
+package eu.peppol.outbound.transmission;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of {@link Transmitter#transmitAll(java.util.Collection)}, holding the result of every transmission in the
+ * order the requests were supplied, together with the aggregated figures of the batch.
+ */
+public class BatchTransmissionResult {
+
+    private final List<Item> items;
+    private final int destinationCount;
+    private final long elapsedTime;
+
+    BatchTransmissionResult(List<Item> items, int destinationCount, long elapsedTime) {
+        this.items = Collections.unmodifiableList(items);
+        this.destinationCount = destinationCount;
+        this.elapsedTime = elapsedTime;
+    }
+
+    /** The result of every transmission, in the order of the requests */
+    public List<Item> getItems() {
+        return items;
+    }
+
+    public int getTransmissionCount() {
+        return items.size();
+    }
+
+    public int getSucceededCount() {
+        int count = 0;
+        for (Item item : items) {
+            if (item.isSucceeded()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getFailedCount() {
+        return items.size() - getSucceededCount();
+    }
+
+    /** Number of distinct receiving access points */
+    public int getDestinationCount() {
+        return destinationCount;
+    }
+
+    /** Total number of payload bytes transmitted successfully */
+    public long getBytesTransmitted() {
+        long bytes = 0;
+        for (Item item : items) {
+            if (item.isSucceeded()) {
+                bytes += item.getPayloadSize();
+            }
+        }
+        return bytes;
+    }
+
+    /** Milliseconds from the first transmission was submitted until the last one completed */
+    public long getElapsedTime() {
+        return elapsedTime;
+    }
+
+    /** Number of successful transmissions per second */
+    public double getThroughput() {
+        return elapsedTime > 0 ? getSucceededCount() * 1000.0 / elapsedTime : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchTransmissionResult{" +
+                "transmissions=" + getTransmissionCount() +
+                ", succeeded=" + getSucceededCount() +
+                ", failed=" + getFailedCount() +
+                ", destinations=" + destinationCount +
+                ", bytes=" + getBytesTransmitted() +
+                ", elapsed=" + elapsedTime + "ms" +
+                ", throughput=" + String.format("%.1f", getThroughput()) + "/s" +
+                '}';
+    }
+
+    /**
+     * Result of a single transmission of the batch, holding either the response or the cause of the failure.
+     */
+    public static class Item {
+
+        private final TransmissionRequest transmissionRequest;
+        private final TransmissionResponse transmissionResponse;
+        private final Throwable failure;
+        private final long payloadSize;
+        private final long elapsedTime;
+
+        Item(TransmissionRequest transmissionRequest, TransmissionResponse transmissionResponse, Throwable failure, long payloadSize, long elapsedTime) {
+            this.transmissionRequest = transmissionRequest;
+            this.transmissionResponse = transmissionResponse;
+            this.failure = failure;
+            this.payloadSize = payloadSize;
+            this.elapsedTime = elapsedTime;
+        }
+
+        public TransmissionRequest getTransmissionRequest() {
+            return transmissionRequest;
+        }
+
+        public URL getDestination() {
+            return transmissionRequest.getEndpointAddress().getUrl();
+        }
+
+        /** The response of the receiving access point, or null if the transmission failed */
+        public TransmissionResponse getTransmissionResponse() {
+            return transmissionResponse;
+        }
+
+        /** The cause of the failure, or null if the transmission succeeded */
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        public boolean isSucceeded() {
+            return failure == null;
+        }
+
+        public long getPayloadSize() {
+            return payloadSize;
+        }
+
+        /** Milliseconds from the transmission was submitted until it completed, including time spent queued */
+        public long getElapsedTime() {
+            return elapsedTime;
+        }
+
+        @Override
+        public String toString() {
+            return "Item{" + getDestination() + ", " + (isSucceeded() ? "succeeded" : "failed: " + failure.getMessage()) + ", " + elapsedTime + "ms}";
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package eu.peppol.outbound.transmission;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Daemon thread keeping connections to the most frequently used receiving access points ready in the
+ * {@link HttpConnectionPool}, sparing the first message after a quiet period, or after the idle connections have
+ * been evicted, the DNS lookup, the TCP connect and the TLS handshake.
+ *
+ * <p>Every transmission is counted against its route, i.e. scheme, host and port, and the counts decay with a half
+ * life of 24 hours, hence a partner receiving messages every day is still warm the next morning. Periodically the
+ * host names of the most frequent routes are resolved, refreshing the DNS cache of the JVM, and new connections are
+ * established until the configured number of connections is either idle or in use. Should the receiver close an idle
+ * connection anyhow, the TLS session is still held by the shared SSL context, allowing the next handshake to be an
+ * abbreviated one.</p>
+ *
+ * <p>The counts are held in memory only, hence the routes are learned anew after a restart. The statistics
+ * repository is not consulted, as it records the receiving access points by name rather than by URL.</p>
+ */
+class ConnectionWarmer extends Thread {
+
+    public static final Logger log = LoggerFactory.getLogger(ConnectionWarmer.class);
+
+    static final long HALF_LIFE = TimeUnit.HOURS.toMillis(24);
+
+    /** Routes must score at least this, i.e. have received a couple of messages lately, in order to be kept warm */
+    static final double WARM_SCORE = 2.0;
+
+    /** Routes scoring less than this are forgotten */
+    static final double FORGET_SCORE = 0.1;
+
+    /** Upper bound of the number of routes being counted */
+    static final int MAX_TRACKED = 1000;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final int maxDestinations;
+    private final int connectionsPerDestination;
+    private final long intervalInMillis;
+    private final long keepAliveInMillis;
+    private final int connectTimeout;
+
+    private final Map<HttpRoute, Destination> destinations = new HashMap<HttpRoute, Destination>();
+    private long lastDecay = System.currentTimeMillis();
+    private volatile boolean shutdown = false;
+
+    ConnectionWarmer(PoolingHttpClientConnectionManager connectionManager, int maxDestinations, int connectionsPerDestination, long intervalInMillis, long keepAliveInMillis, int connectTimeout) {
+        super("oxalis-http-pool-warmer");
+        this.connectionManager = connectionManager;
+        this.maxDestinations = maxDestinations;
+        this.connectionsPerDestination = connectionsPerDestination;
+        this.intervalInMillis = intervalInMillis;
+        this.keepAliveInMillis = keepAliveInMillis;
+        this.connectTimeout = connectTimeout;
+        setDaemon(true);
+    }
+
+    /**
+     * Counts a transmission to the given end point.
+     */
+    synchronized void recordTransmission(URL url) {
+        HttpRoute route = routeFor(url);
+        Destination destination = destinations.get(route);
+        if (destination == null) {
+            if (destinations.size() >= MAX_TRACKED) {
+                return;
+            }
+            destination = new Destination(url);
+            destinations.put(route, destination);
+        }
+        destination.score++;
+    }
+
+    /**
+     * The end points to be kept warm, most frequently used first.
+     */
+    List<URL> getWarmSet() {
+        return getWarmSet(System.currentTimeMillis());
+    }
+
+    synchronized List<URL> getWarmSet(long now) {
+        decay(now);
+
+        List<Destination> candidates = new ArrayList<Destination>();
+        for (Destination destination : destinations.values()) {
+            if (destination.score >= WARM_SCORE) {
+                candidates.add(destination);
+            }
+        }
+        Collections.sort(candidates, new Comparator<Destination>() {
+            @Override
+            public int compare(Destination d1, Destination d2) {
+                return Double.compare(d2.score, d1.score);
+            }
+        });
+
+        List<URL> warmSet = new ArrayList<URL>();
+        for (Destination destination : candidates.subList(0, Math.min(maxDestinations, candidates.size()))) {
+            warmSet.add(destination.url);
+        }
+        return warmSet;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!shutdown) {
+                synchronized (this) {
+                    wait(intervalInMillis);
+                }
+                if (!shutdown) {
+                    warmUp();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Terminates
+        }
+    }
+
+    void warmUp() throws InterruptedException {
+        for (URL url : getWarmSet()) {
+            if (shutdown) {
+                return;
+            }
+            try {
+                int established = warm(url);
+                if (established > 0) {
+                    log.debug("Established " + established + " connection(s) to " + url);
+                }
+            } catch (IOException e) {
+                log.warn("Unable to warm up connections to " + url + ": " + e.getMessage());
+            } catch (RuntimeException e) {
+                log.warn("Unable to warm up connections to " + url + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Resolves the host name of the given end point and ensures the configured number of connections are in the
+     * pool, counting both idle connections and connections currently in use.
+     *
+     * @return the number of connections established
+     */
+    int warm(URL url) throws IOException, InterruptedException {
+        InetAddress.getAllByName(url.getHost());
+
+        HttpRoute route = routeFor(url);
+        PoolStats stats = connectionManager.getStats(route);
+        int missing = Math.min(connectionsPerDestination, connectionManager.getMaxPerRoute(route)) - (stats.getAvailable() + stats.getLeased());
+        if (missing <= 0) {
+            return 0;
+        }
+
+        // The idle connections are handed out first, hence they are leased as well in order to obtain new ones, all at
+        // once, otherwise the same idle connection would be handed out over again
+        int leases = stats.getAvailable() + missing;
+        List<HttpClientConnection> connections = new ArrayList<HttpClientConnection>();
+        int established = 0;
+        try {
+            for (int i = 0; i < leases; i++) {
+                HttpClientConnection connection = leaseConnection(route);
+                connections.add(connection);
+
+                if (connection.isOpen() && connection.isStale()) {
+                    // Closed by the receiver while idle
+                    connection.close();
+                }
+                if (!connection.isOpen()) {
+                    HttpClientContext context = HttpClientContext.create();
+                    connectionManager.connect(connection, route, connectTimeout, context);
+                    connectionManager.routeComplete(connection, route, context);
+                    established++;
+                }
+            }
+        } finally {
+            for (HttpClientConnection connection : connections) {
+                connectionManager.releaseConnection(connection, null, keepAliveInMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        return established;
+    }
+
+    void shutdown() {
+        shutdown = true;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private HttpClientConnection leaseConnection(HttpRoute route) throws IOException, InterruptedException {
+        ConnectionRequest connectionRequest = connectionManager.requestConnection(route, null);
+        try {
+            return connectionRequest.get(connectTimeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to lease connection for " + route + ": " + e.getMessage(), e);
+        }
+    }
+
+    /** Must be invoked holding the lock */
+    private void decay(long now) {
+        double factor = Math.pow(0.5, (now - lastDecay) / (double) HALF_LIFE);
+        lastDecay = now;
+
+        for (Iterator<Destination> iterator = destinations.values().iterator(); iterator.hasNext(); ) {
+            Destination destination = iterator.next();
+            destination.score *= factor;
+            if (destination.score < FORGET_SCORE) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * The route of the http client for the given URL, i.e. the default port made explicit and no proxy.
+     */
+    static HttpRoute routeFor(URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        HttpHost target = new HttpHost(url.getHost(), port, url.getProtocol());
+        return new HttpRoute(target, null, "https".equalsIgnoreCase(url.getProtocol()));
+    }
+
+    private static class Destination {
+        final URL url;
+        double score = 0;
+
+        Destination(URL url) {
+            this.url = url;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package eu.peppol.outbound.transmission;
+
+import java.net.URL;
+
+/**
+ * Health of a single receiving access point, i.e. the outcome and latency of the most recent transmissions, and the
+ * state of its circuit breaker:
+ * <ul>
+ *     <li>{@link State#CLOSED}: transmissions are attempted as usual, while the failure rate is being monitored</li>
+ *     <li>{@link State#OPEN}: the failure rate exceeded the threshold, transmissions fail fast until the open duration has elapsed</li>
+ *     <li>{@link State#HALF_OPEN}: a single probe is let through, which closes the circuit if successful, or opens it
+ *     again for twice the duration if not</li>
+ * </ul>
+ * An access point may also be blacklisted explicitly, in which case transmissions fail fast regardless of the state.
+ */
+public class EndpointHealth {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final URL endpoint;
+    private final EndpointHealthRegistry registry;
+
+    // Ring buffer holding the most recent outcomes
+    private final long[] outcomeTimes;
+    private final long[] latencies;
+    private final boolean[] failures;
+    private int next = 0;
+    private int size = 0;
+
+    private State state = State.CLOSED;
+    private long openUntil = 0;
+    private long openDuration;
+    private boolean probeInFlight = false;
+
+    /** 0 if not blacklisted, Long.MAX_VALUE if blacklisted indefinitely */
+    private long blacklistedUntil = 0;
+
+    private long successCount = 0;
+    private long failureCount = 0;
+    private long rejectedCount = 0;
+
+    EndpointHealth(URL endpoint, EndpointHealthRegistry registry) {
+        this.endpoint = endpoint;
+        this.registry = registry;
+        this.outcomeTimes = new long[registry.getWindowSize()];
+        this.latencies = new long[registry.getWindowSize()];
+        this.failures = new boolean[registry.getWindowSize()];
+        this.openDuration = registry.getOpenDuration();
+    }
+
+    public URL getEndpoint() {
+        return endpoint;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /** Fraction of the transmissions within the window which failed, 0 if there are none */
+    public synchronized double getFailureRate() {
+        long now = System.currentTimeMillis();
+        int calls = 0, failed = 0;
+        for (int i = 0; i < size; i++) {
+            if (isWithinWindow(i, now)) {
+                calls++;
+                if (failures[i]) {
+                    failed++;
+                }
+            }
+        }
+        return calls == 0 ? 0 : (double) failed / calls;
+    }
+
+    /** Average number of milliseconds spent on the transmissions within the window, 0 if there are none */
+    public synchronized long getAverageLatency() {
+        long now = System.currentTimeMillis();
+        int calls = 0;
+        long total = 0;
+        for (int i = 0; i < size; i++) {
+            if (isWithinWindow(i, now)) {
+                calls++;
+                total += latencies[i];
+            }
+        }
+        return calls == 0 ? 0 : total / calls;
+    }
+
+    public synchronized boolean isBlacklisted() {
+        return isBlacklisted(System.currentTimeMillis());
+    }
+
+    /** The time at which the blacklisting expires, 0 if blacklisted indefinitely or not at all */
+    public synchronized long getBlacklistedUntil() {
+        return blacklistedUntil == Long.MAX_VALUE ? 0 : blacklistedUntil;
+    }
+
+    public synchronized long getSuccessCount() {
+        return successCount;
+    }
+
+    public synchronized long getFailureCount() {
+        return failureCount;
+    }
+
+    /** Number of transmissions which failed fast, without being attempted */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Fails fast if transmissions to this access point may not be attempted at the given time, without taking
+     * the probe of a half open circuit.
+     */
+    synchronized void checkAvailable(long now) {
+        if (isBlacklisted(now)) {
+            rejectedCount++;
+            long retryAfter = blacklistedUntil == Long.MAX_VALUE ? registry.getMaxOpenDuration() : blacklistedUntil - now;
+            throw new EndpointUnavailableException(endpoint, retryAfter, "it has been blacklisted");
+        }
+        if (state == State.OPEN && now < openUntil) {
+            rejectedCount++;
+            throw new EndpointUnavailableException(endpoint, openUntil - now, "failure rate exceeded " + registry.getFailureRateThreshold());
+        }
+        if (state == State.HALF_OPEN && probeInFlight) {
+            rejectedCount++;
+            throw new EndpointUnavailableException(endpoint, openDuration, "awaiting the outcome of a probe");
+        }
+    }
+
+    /**
+     * Permits a transmission to be attempted or fails fast. Once the open duration has elapsed, the first
+     * transmission permitted becomes the probe.
+     */
+    synchronized void acquire(long now) {
+        checkAvailable(now);
+        if (state == State.OPEN) {
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN) {
+            probeInFlight = true;
+        }
+    }
+
+    synchronized void recordSuccess(long now, long latency) {
+        successCount++;
+        long slowCallThreshold = registry.getSlowCallThreshold();
+        boolean slow = slowCallThreshold > 0 && latency > slowCallThreshold;
+        record(now, latency, slow);
+        if (state == State.HALF_OPEN && probeInFlight) {
+            probeInFlight = false;
+            if (slow) {
+                reopen(now);
+            } else {
+                close();
+            }
+        } else if (state == State.CLOSED) {
+            evaluate(now);
+        }
+    }
+
+    synchronized void recordFailure(long now, long latency) {
+        failureCount++;
+        record(now, latency, true);
+        if (state == State.HALF_OPEN && probeInFlight) {
+            probeInFlight = false;
+            reopen(now);
+        } else if (state == State.CLOSED) {
+            evaluate(now);
+        }
+    }
+
+    synchronized void blacklist(long until) {
+        blacklistedUntil = until;
+    }
+
+    synchronized void removeFromBlacklist() {
+        blacklistedUntil = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "EndpointHealth{" +
+                endpoint.toExternalForm() +
+                ", state=" + state +
+                ", failureRate=" + getFailureRate() +
+                ", averageLatency=" + getAverageLatency() +
+                (isBlacklisted() ? ", blacklisted" : "") +
+                '}';
+    }
+
+    private boolean isBlacklisted(long now) {
+        if (blacklistedUntil != 0 && now >= blacklistedUntil) {
+            blacklistedUntil = 0;
+        }
+        return blacklistedUntil != 0;
+    }
+
+    private boolean isWithinWindow(int i, long now) {
+        return now - outcomeTimes[i] <= registry.getWindowDuration();
+    }
+
+    private void record(long now, long latency, boolean failure) {
+        outcomeTimes[next] = now;
+        latencies[next] = latency;
+        failures[next] = failure;
+        next = (next + 1) % outcomeTimes.length;
+        size = Math.min(size + 1, outcomeTimes.length);
+    }
+
+    private void evaluate(long now) {
+        if (!registry.isEnabled()) {
+            return;
+        }
+        int calls = 0, failed = 0;
+        for (int i = 0; i < size; i++) {
+            if (isWithinWindow(i, now)) {
+                calls++;
+                if (failures[i]) {
+                    failed++;
+                }
+            }
+        }
+        if (calls >= registry.getMinCalls() && (double) failed / calls >= registry.getFailureRateThreshold()) {
+            openDuration = registry.getOpenDuration();
+            open(now);
+        }
+    }
+
+    private void reopen(long now) {
+        openDuration = Math.min(registry.getMaxOpenDuration(), openDuration * 2);
+        open(now);
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        openUntil = now + openDuration;
+        EndpointHealthRegistry.log.warn("Circuit to " + endpoint.toExternalForm() + " opened, failing fast for " + openDuration + "ms");
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        openDuration = registry.getOpenDuration();
+        // Failures prior to the recovery should not cause the circuit to open again
+        size = 0;
+        next = 0;
+        EndpointHealthRegistry.log.info("Circuit to " + endpoint.toExternalForm() + " closed");
+    }
+}
@@ -0,0 +1,235 @@
+package eu.peppol.outbound.transmission;
+
+import eu.peppol.util.GlobalConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps track of the health of every receiving access point, shared by the AS2 and START protocols, allowing
+ * transmissions to access points which keep failing to fail fast with an {@link EndpointUnavailableException},
+ * rather than tying up a thread for the full connect timeout. See {@link EndpointHealth} for the states of the
+ * circuit breaker of each access point.
+ *
+ * <p>Holds the blacklist of access points as well, which used to be held by
+ * {@link eu.peppol.outbound.soap.SoapDispatcher}.</p>
+ *
+ * <p>The access points are identified by the external form of their URL, as {@link URL#equals(Object)} resolves
+ * the host names.</p>
+ */
+public class EndpointHealthRegistry {
+
+    public static final Logger log = LoggerFactory.getLogger(EndpointHealthRegistry.class);
+
+    private static EndpointHealthRegistry instance;
+
+    private final boolean enabled;
+    private final int windowSize;
+    private final long windowDuration;
+    private final int minCalls;
+    private final double failureRateThreshold;
+    private final long slowCallThreshold;
+    private final long openDuration;
+    private final long maxOpenDuration;
+
+    private final ConcurrentMap<String, EndpointHealth> endpoints = new ConcurrentHashMap<String, EndpointHealth>();
+
+    /**
+     * Provides the registry shared by all the transmissions of this JVM.
+     */
+    public static synchronized EndpointHealthRegistry getInstance() {
+        if (instance == null) {
+            instance = new EndpointHealthRegistry(GlobalConfiguration.getInstance());
+        }
+        return instance;
+    }
+
+    public EndpointHealthRegistry(GlobalConfiguration globalConfiguration) {
+        this(globalConfiguration.isCircuitBreakerEnabled(),
+                globalConfiguration.getCircuitBreakerWindowSize(),
+                globalConfiguration.getCircuitBreakerWindowDuration(),
+                globalConfiguration.getCircuitBreakerMinCalls(),
+                globalConfiguration.getCircuitBreakerFailureRate(),
+                globalConfiguration.getCircuitBreakerSlowCallThreshold(),
+                globalConfiguration.getCircuitBreakerOpenDuration(),
+                globalConfiguration.getCircuitBreakerMaxOpenDuration());
+    }
+
+    /**
+     * @param enabled              if false, only the blacklist is honoured
+     * @param windowSize           number of recent transmissions from which the failure rate is computed
+     * @param windowDuration       milliseconds after which a transmission is no longer part of the window
+     * @param minCalls             minimum number of transmissions within the window before the circuit may open
+     * @param failureRateThreshold failure rate in the range (0,1] at which the circuit opens
+     * @param slowCallThreshold    milliseconds after which a successful transmission counts as a failure, 0 to disable
+     * @param openDuration         milliseconds to fail fast once the circuit has opened
+     * @param maxOpenDuration      maximum milliseconds to fail fast, as the duration is doubled for every failed probe
+     */
+    public EndpointHealthRegistry(boolean enabled, int windowSize, long windowDuration, int minCalls, double failureRateThreshold, long slowCallThreshold, long openDuration, long maxOpenDuration) {
+        if (windowSize < 1 || minCalls < 1 || minCalls > windowSize) {
+            throw new IllegalArgumentException("Minimum number of calls must be in the range [1," + windowSize + "], not " + minCalls);
+        }
+        if (failureRateThreshold <= 0 || failureRateThreshold > 1) {
+            throw new IllegalArgumentException("Failure rate must be in the range (0,1], not " + failureRateThreshold);
+        }
+        if (openDuration < 1 || maxOpenDuration < openDuration) {
+            throw new IllegalArgumentException("Invalid open duration " + openDuration + "ms, max " + maxOpenDuration + "ms");
+        }
+        this.enabled = enabled;
+        this.windowSize = windowSize;
+        this.windowDuration = windowDuration;
+        this.minCalls = minCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallThreshold = slowCallThreshold;
+        this.openDuration = openDuration;
+        this.maxOpenDuration = maxOpenDuration;
+    }
+
+    /**
+     * Fails fast if the access point is blacklisted or its circuit is open. Intended to be invoked prior to
+     * preparing a transmission, thus avoiding wasted effort.
+     *
+     * @throws EndpointUnavailableException if no transmission to the access point should be attempted now
+     */
+    public void checkAvailable(URL endpoint) {
+        EndpointHealth health = endpoints.get(keyOf(endpoint));
+        if (health != null) {
+            health.checkAvailable(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Invoked immediately before sending to the access point. Once the circuit of the access point has been open
+     * for the open duration, the first caller becomes the probe, while the others keep failing fast.
+     *
+     * @throws EndpointUnavailableException if no transmission to the access point should be attempted now
+     */
+    public void acquire(URL endpoint) {
+        EndpointHealth health = endpoints.get(keyOf(endpoint));
+        if (health != null) {
+            health.acquire(System.currentTimeMillis());
+        }
+    }
+
+    public void recordSuccess(URL endpoint, long latency) {
+        getOrCreate(endpoint).recordSuccess(System.currentTimeMillis(), latency);
+    }
+
+    public void recordFailure(URL endpoint, long latency) {
+        getOrCreate(endpoint).recordFailure(System.currentTimeMillis(), latency);
+    }
+
+    /**
+     * Blacklists the access point, causing transmissions to it to fail fast.
+     *
+     * @param keepTime number of milliseconds to keep the access point in the blacklist, 0 to keep it until removed
+     */
+    public void blacklist(URL endpoint, long keepTime) {
+        log.debug("Blacklisting " + endpoint + (keepTime > 0 ? " for " + keepTime + "ms" : ""));
+        getOrCreate(endpoint).blacklist(keepTime > 0 ? System.currentTimeMillis() + keepTime : Long.MAX_VALUE);
+    }
+
+    public void removeFromBlacklist(URL endpoint) {
+        EndpointHealth health = endpoints.get(keyOf(endpoint));
+        if (health != null) {
+            health.removeFromBlacklist();
+        }
+    }
+
+    public boolean isBlacklisted(URL endpoint) {
+        EndpointHealth health = endpoints.get(keyOf(endpoint));
+        return health != null && health.isBlacklisted();
+    }
+
+    /**
+     * Provides a copy of the blacklist, mapping every blacklisted access point to the time at which it will be
+     * removed, or 0 if blacklisted until removed explicitly.
+     */
+    public Map<URL, Long> getBlacklist() {
+        Map<URL, Long> blacklist = new LinkedHashMap<URL, Long>();
+        for (EndpointHealth health : endpoints.values()) {
+            if (health.isBlacklisted()) {
+                blacklist.put(health.getEndpoint(), health.getBlacklistedUntil());
+            }
+        }
+        return blacklist;
+    }
+
+    public void clearBlacklist() {
+        for (EndpointHealth health : endpoints.values()) {
+            health.removeFromBlacklist();
+        }
+    }
+
+    /**
+     * @return the health of the given access point, or null if nothing is known about it
+     */
+    public EndpointHealth getHealth(URL endpoint) {
+        return endpoints.get(keyOf(endpoint));
+    }
+
+    public Collection<EndpointHealth> getEndpoints() {
+        return new ArrayList<EndpointHealth>(endpoints.values());
+    }
+
+    /** Forgets everything known about the given access point, including whether it has been blacklisted */
+    public void reset(URL endpoint) {
+        endpoints.remove(keyOf(endpoint));
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    int getWindowSize() {
+        return windowSize;
+    }
+
+    long getWindowDuration() {
+        return windowDuration;
+    }
+
+    int getMinCalls() {
+        return minCalls;
+    }
+
+    double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    long getSlowCallThreshold() {
+        return slowCallThreshold;
+    }
+
+    long getOpenDuration() {
+        return openDuration;
+    }
+
+    long getMaxOpenDuration() {
+        return maxOpenDuration;
+    }
+
+    private EndpointHealth getOrCreate(URL endpoint) {
+        String key = keyOf(endpoint);
+        EndpointHealth health = endpoints.get(key);
+        if (health == null) {
+            EndpointHealth created = new EndpointHealth(endpoint, this);
+            health = endpoints.putIfAbsent(key, created);
+            if (health == null) {
+                health = created;
+            }
+        }
+        return health;
+    }
+
+    private static String keyOf(URL endpoint) {
+        return endpoint.toExternalForm();
+    }
+}
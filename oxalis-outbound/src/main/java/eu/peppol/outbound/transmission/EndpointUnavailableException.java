@@ -0,0 +1,28 @@
+package eu.peppol.outbound.transmission;
+
+import java.net.URL;
+
+/**
+ * Thrown instead of attempting a transmission to an access point, which is known to be failing or has been
+ * blacklisted. See {@link EndpointHealthRegistry}.
+ */
+public class EndpointUnavailableException extends IllegalStateException {
+
+    private final URL endpoint;
+    private final long retryAfter;
+
+    public EndpointUnavailableException(URL endpoint, long retryAfter, String reason) {
+        super("Access point " + endpoint.toExternalForm() + " is not available, " + reason + ", retry after " + retryAfter + "ms");
+        this.endpoint = endpoint;
+        this.retryAfter = retryAfter;
+    }
+
+    public URL getEndpoint() {
+        return endpoint;
+    }
+
+    /** Number of milliseconds before a transmission to the access point may be attempted again */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
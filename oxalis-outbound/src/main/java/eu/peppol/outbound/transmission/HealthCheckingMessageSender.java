@@ -0,0 +1,57 @@
+package eu.peppol.outbound.transmission;
+
+import java.net.URL;
+
+/**
+ * Decorates a {@link PreparingMessageSender}, recording the outcome and latency of every transmission in the
+ * {@link EndpointHealthRegistry}, and failing fast when the receiving access point is known to be unavailable.
+ */
+class HealthCheckingMessageSender implements PreparingMessageSender {
+
+    private final PreparingMessageSender messageSender;
+    private final EndpointHealthRegistry endpointHealthRegistry;
+
+    HealthCheckingMessageSender(PreparingMessageSender messageSender, EndpointHealthRegistry endpointHealthRegistry) {
+        this.messageSender = messageSender;
+        this.endpointHealthRegistry = endpointHealthRegistry;
+    }
+
+    @Override
+    public TransmissionResponse send(TransmissionRequest transmissionRequest) {
+        return prepare(transmissionRequest).send();
+    }
+
+    @Override
+    public PreparedTransmission prepare(TransmissionRequest transmissionRequest) {
+        final URL endpoint = transmissionRequest.getEndpointAddress().getUrl();
+
+        // No point in signing a message which will not be sent
+        endpointHealthRegistry.checkAvailable(endpoint);
+
+        final PreparedTransmission preparedTransmission = messageSender.prepare(transmissionRequest);
+        return new PreparedTransmission() {
+            @Override
+            public TransmissionResponse send() {
+                endpointHealthRegistry.acquire(endpoint);
+
+                long start = System.currentTimeMillis();
+                boolean succeeded = false;
+                try {
+                    TransmissionResponse transmissionResponse = preparedTransmission.send();
+                    succeeded = true;
+                    endpointHealthRegistry.recordSuccess(endpoint, System.currentTimeMillis() - start);
+                    return transmissionResponse;
+                } finally {
+                    // Errors count as failures as well, or the probe of a half open circuit would never be released
+                    if (!succeeded) {
+                        endpointHealthRegistry.recordFailure(endpoint, System.currentTimeMillis() - start);
+                    }
+                }
+            }
+        };
+    }
+
+    PreparingMessageSender getMessageSender() {
+        return messageSender;
+    }
+}
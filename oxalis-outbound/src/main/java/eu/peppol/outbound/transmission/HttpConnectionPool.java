@@ -0,0 +1,303 @@
+package eu.peppol.outbound.transmission;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import eu.peppol.util.GlobalConfiguration;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.UnsupportedSchemeException;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLContexts;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long lived pool of keep-alive HTTP connections used when sending messages to other access points.
+ *
+ * <p>A single {@link SSLContext} is shared by all connections, which allows TLS sessions to be resumed rather than
+ * performing a complete handshake for every message. Idle and expired connections are evicted by a background daemon
+ * thread, and the pool is closed when the JVM shuts down or {@link #close()} is invoked. Optionally connections to the
+ * most frequently used access points are kept ready by a {@link ConnectionWarmer}.</p>
+ */
+@Singleton
+public class HttpConnectionPool {
+
+    public static final Logger log = LoggerFactory.getLogger(HttpConnectionPool.class);
+
+    /**
+     * Name of the {@link HttpContext} attribute holding the number of milliseconds spent establishing a new
+     * connection, including the TLS handshake. Not present if a pooled connection was re-used.
+     */
+    public static final String CONNECT_TIME_ATTRIBUTE = "oxalis.connect.time";
+
+    /** As {@link #CONNECT_TIME_ATTRIBUTE}, but in nanoseconds */
+    public static final String CONNECT_NANO_TIME_ATTRIBUTE = "oxalis.connect.nano.time";
+
+    /**
+     * Name of the {@link HttpContext} attribute holding {@link Boolean#TRUE} if a new connection could not be
+     * established. The time spent is not recorded, as it is mostly the connect timeout rather than a latency.
+     */
+    public static final String CONNECT_FAILED_ATTRIBUTE = "oxalis.connect.failed";
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final RequestConfig defaultRequestConfig;
+    private final IdleConnectionEvictor idleConnectionEvictor;
+    private final ConnectionWarmer connectionWarmer;
+    private final Thread shutdownHook;
+    private volatile boolean closed = false;
+
+    @Inject
+    public HttpConnectionPool(GlobalConfiguration globalConfiguration) {
+        this(globalConfiguration.getHttpPoolMaxTotal(),
+                globalConfiguration.getHttpPoolMaxPerRoute(),
+                globalConfiguration.getHttpPoolIdleTimeout(),
+                globalConfiguration.getConnectTimeout(),
+                globalConfiguration.getReadTimeout(),
+                globalConfiguration.getHttpWarmupDestinations(),
+                globalConfiguration.getHttpWarmupConnections(),
+                globalConfiguration.getHttpWarmupInterval());
+    }
+
+    HttpConnectionPool(int maxTotal, int maxPerRoute, long idleTimeoutInMillis, int connectTimeout, int readTimeout) {
+        this(maxTotal, maxPerRoute, idleTimeoutInMillis, connectTimeout, readTimeout, 0, 0, 0);
+    }
+
+    /**
+     * @param warmupDestinations maximum number of the most frequently used receiving access points to which
+     *                           connections are established ahead of time, zero disables the warm-up
+     */
+    HttpConnectionPool(int maxTotal, int maxPerRoute, long idleTimeoutInMillis, int connectTimeout, int readTimeout, int warmupDestinations, int warmupConnections, long warmupIntervalInMillis) {
+
+        SSLContext sslContext = SSLContexts.createSystemDefault();
+
+        // Uses the same lenient host name verification as before, the AS2 system identifier is verified elsewhere
+        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", new TimingConnectionSocketFactory(PlainConnectionSocketFactory.INSTANCE))
+                .register("https", new TimingConnectionSocketFactory(new SSLConnectionSocketFactory(sslContext, SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER)))
+                .build();
+
+        connectionManager = new PoolingHttpClientConnectionManager(socketFactoryRegistry);
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+
+        defaultRequestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .build();
+
+        // We never present a client certificate, hence connections need not be tied to a user token in order to be re-used
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(defaultRequestConfig)
+                .disableConnectionState()
+                .build();
+
+        idleConnectionEvictor = new IdleConnectionEvictor(connectionManager, idleTimeoutInMillis);
+        idleConnectionEvictor.start();
+
+        if (warmupDestinations > 0 && warmupConnections > 0) {
+            connectionWarmer = new ConnectionWarmer(connectionManager, warmupDestinations, warmupConnections, warmupIntervalInMillis, idleTimeoutInMillis, connectTimeout);
+            connectionWarmer.start();
+            log.info("Keeping " + warmupConnections + " connection(s) ready to each of the " + warmupDestinations + " most frequently used access points, every " + warmupIntervalInMillis + "ms");
+        } else {
+            connectionWarmer = null;
+        }
+
+        shutdownHook = new Thread("oxalis-http-pool-shutdown") {
+            @Override
+            public void run() {
+                close();
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        log.info("HTTP connection pool created; max total=" + maxTotal + ", max per route=" + maxPerRoute + ", idle timeout=" + idleTimeoutInMillis + "ms");
+    }
+
+    /**
+     * Provides the shared http client, which must <em>not</em> be closed by the caller. Remember to consume or close
+     * every response in order to return the connection to the pool.
+     */
+    public CloseableHttpClient getHttpClient() {
+        if (closed) {
+            throw new IllegalStateException("HTTP connection pool has been closed");
+        }
+        return httpClient;
+    }
+
+    /**
+     * The request configuration holding the default timeouts, to be copied when a request needs other timeouts.
+     */
+    public RequestConfig getDefaultRequestConfig() {
+        return defaultRequestConfig;
+    }
+
+    /**
+     * Statistics for the entire pool, i.e. number of leased, available and pending connections.
+     */
+    public PoolStats getStatistics() {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * Counts a transmission to the given end point, the most frequently used end points are kept warm if configured.
+     */
+    public void recordDestination(URL url) {
+        if (connectionWarmer != null) {
+            connectionWarmer.recordTransmission(url);
+        }
+    }
+
+    PoolingHttpClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    ConnectionWarmer getConnectionWarmer() {
+        return connectionWarmer;
+    }
+
+    /**
+     * Stops the eviction thread and closes all the pooled connections. Invoked automatically when the JVM shuts down.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        idleConnectionEvictor.shutdown();
+        if (connectionWarmer != null) {
+            connectionWarmer.shutdown();
+        }
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            log.warn("Unable to close the http client: " + e.getMessage(), e);
+        }
+        connectionManager.shutdown();
+
+        // Removes the hook unless we are invoked by it
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // JVM is already shutting down
+            }
+        }
+        log.info("HTTP connection pool closed");
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String toString() {
+        return "HttpConnectionPool{" + getStatistics() + '}';
+    }
+
+    /**
+     * Measures the time spent establishing new connections, placing it in the {@link HttpContext} of the request
+     * under {@link #CONNECT_TIME_ATTRIBUTE} and {@link #CONNECT_NANO_TIME_ATTRIBUTE}. Failed attempts are marked by
+     * {@link #CONNECT_FAILED_ATTRIBUTE} instead.
+     */
+    static class TimingConnectionSocketFactory implements LayeredConnectionSocketFactory {
+
+        private final ConnectionSocketFactory delegate;
+
+        TimingConnectionSocketFactory(ConnectionSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Socket createSocket(HttpContext context) throws IOException {
+            return delegate.createSocket(context);
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context) throws IOException {
+            long start = System.nanoTime();
+            Socket connectedSocket;
+            try {
+                connectedSocket = delegate.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            } catch (IOException e) {
+                // The time spent by a failed attempt is mostly the connect timeout, which is not a latency
+                context.setAttribute(CONNECT_FAILED_ATTRIBUTE, Boolean.TRUE);
+                throw e;
+            }
+            long elapsed = System.nanoTime() - start;
+            context.setAttribute(CONNECT_NANO_TIME_ATTRIBUTE, elapsed);
+            context.setAttribute(CONNECT_TIME_ATTRIBUTE, TimeUnit.NANOSECONDS.toMillis(elapsed));
+            // Another address of the host may have failed before this one succeeded
+            context.removeAttribute(CONNECT_FAILED_ATTRIBUTE);
+            return connectedSocket;
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+            if (!(delegate instanceof LayeredConnectionSocketFactory)) {
+                throw new UnsupportedSchemeException(delegate.getClass().getName() + " does not support layered sockets");
+            }
+            return ((LayeredConnectionSocketFactory) delegate).createLayeredSocket(socket, target, port, context);
+        }
+    }
+
+    /**
+     * Daemon thread, which periodically closes expired connections and connections having been idle for too long.
+     */
+    static class IdleConnectionEvictor extends Thread {
+
+        private final PoolingHttpClientConnectionManager connectionManager;
+        private final long idleTimeoutInMillis;
+        private volatile boolean shutdown = false;
+
+        IdleConnectionEvictor(PoolingHttpClientConnectionManager connectionManager, long idleTimeoutInMillis) {
+            super("oxalis-http-pool-evictor");
+            this.connectionManager = connectionManager;
+            this.idleTimeoutInMillis = idleTimeoutInMillis;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long sleepTime = Math.max(1000L, Math.min(idleTimeoutInMillis / 2, 30000L));
+            try {
+                while (!shutdown) {
+                    synchronized (this) {
+                        wait(sleepTime);
+                    }
+                    connectionManager.closeExpiredConnections();
+                    connectionManager.closeIdleConnections(idleTimeoutInMillis, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                // Terminates
+            }
+        }
+
+        void shutdown() {
+            shutdown = true;
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package eu.peppol.outbound.transmission;
+
+/**
+ * Histogram of latencies in milliseconds, using buckets growing by 20% from 1ms to about 10 minutes, hence the
+ * percentiles are accurate to within 20%. Latencies beyond the last bucket are counted in the last bucket.
+ *
+ * <p>Once the number of recorded latencies reaches the maximum count, every bucket is halved, causing older
+ * latencies to gradually lose their weight as the behaviour of the access point changes.</p>
+ */
+class LatencyHistogram {
+
+    /** Upper bound of each bucket, inclusive */
+    static final long[] BUCKET_BOUNDS = createBucketBounds(1.2, 600000);
+
+    private final long[] counts = new long[BUCKET_BOUNDS.length];
+    private final long maxCount;
+    private long count = 0;
+
+    LatencyHistogram(long maxCount) {
+        if (maxCount < 2) {
+            throw new IllegalArgumentException("Maximum count must be at least 2, not " + maxCount);
+        }
+        this.maxCount = maxCount;
+    }
+
+    synchronized void record(long latency) {
+        counts[bucketOf(latency)]++;
+        count++;
+        if (count >= maxCount) {
+            decay();
+        }
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @param percentile in the range (0,100]
+     * @return upper bound of the bucket holding the given percentile, 0 if nothing has been recorded
+     */
+    synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return BUCKET_BOUNDS[i];
+            }
+        }
+        return BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1];
+    }
+
+    private void decay() {
+        count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = counts[i] / 2;
+            count += counts[i];
+        }
+    }
+
+    static int bucketOf(long latency) {
+        int low = 0;
+        int high = BUCKET_BOUNDS.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (BUCKET_BOUNDS[middle] < latency) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static long[] createBucketBounds(double growth, long max) {
+        int size = 1;
+        for (double bound = 1; bound < max; bound = Math.max(bound + 1, bound * growth)) {
+            size++;
+        }
+        long[] bounds = new long[size];
+        double bound = 1;
+        for (int i = 0; i < size; i++) {
+            bounds[i] = (long) Math.ceil(bound);
+            bound = Math.max(bound + 1, bound * growth);
+        }
+        return bounds;
+    }
+}
@@ -0,0 +1,191 @@
+package eu.peppol.outbound.transmission;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+import eu.peppol.PeppolMessageMetaData;
+import eu.peppol.PeppolStandardBusinessHeader;
+import eu.peppol.document.DocumentSniffer;
+import eu.peppol.document.SbdhParser;
+import eu.peppol.identifier.AccessPointIdentifier;
+import eu.peppol.identifier.TransmissionId;
+import eu.peppol.persistence.MessageRepository;
+import eu.peppol.persistence.OxalisMessagePersistenceException;
+import eu.peppol.security.CommonName;
+import eu.peppol.security.KeystoreManager;
+import eu.peppol.statistics.RawStatistics;
+import eu.peppol.statistics.RawStatisticsRepository;
+import eu.peppol.util.GlobalConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.Principal;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Delivers messages for receivers served by this very access point directly to the {@link MessageRepository},
+ * rather than signing them, posting them to ourselves, verifying the signature and returning a signed MDN.
+ *
+ * <p>A receiver is served by us if the AS2 system identifier of the end point, i.e. the common name of its
+ * certificate, is ours, or if the URL of the end point is configured as local. The message repository is supplied
+ * with the same meta data as when the message is received using AS2, and the reception is recorded in the statistics.
+ * Loopback delivery is disabled unless enabled in the configuration.</p>
+ */
+class LoopbackMessageSender implements PreparingMessageSender {
+
+    public static final Logger log = LoggerFactory.getLogger(LoopbackMessageSender.class);
+
+    private final boolean enabled;
+    private final Set<String> localUrls;
+    private final CommonName ourCommonName;
+    private final AccessPointIdentifier ourAccessPointIdentifier;
+    private final Provider<MessageRepository> messageRepositoryProvider;
+    private final RawStatisticsRepository rawStatisticsRepository;
+    private final SbdhParser sbdhParser = new SbdhParser();
+
+    @Inject
+    LoopbackMessageSender(GlobalConfiguration globalConfiguration, @Named("OurCommonName") CommonName ourCommonName, Provider<MessageRepository> messageRepositoryProvider, RawStatisticsRepository rawStatisticsRepository) {
+        this(globalConfiguration.isLoopbackEnabled(), globalConfiguration.getLoopbackLocalUrls(), ourCommonName, messageRepositoryProvider, rawStatisticsRepository);
+    }
+
+    LoopbackMessageSender(boolean enabled, Collection<String> localUrls, CommonName ourCommonName, Provider<MessageRepository> messageRepositoryProvider, RawStatisticsRepository rawStatisticsRepository) {
+        this.enabled = enabled;
+        this.localUrls = new HashSet<String>(localUrls);
+        this.ourCommonName = ourCommonName;
+        this.ourAccessPointIdentifier = new AccessPointIdentifier(ourCommonName.toString());
+        this.messageRepositoryProvider = messageRepositoryProvider;
+        this.rawStatisticsRepository = rawStatisticsRepository;
+        if (enabled) {
+            log.info("Loopback delivery enabled for " + ourCommonName + (localUrls.isEmpty() ? "" : " and " + localUrls));
+        }
+    }
+
+    /**
+     * Whether the receiving end point of the request is served by this access point.
+     */
+    boolean isLocal(TransmissionRequest transmissionRequest) {
+        if (!enabled) {
+            return false;
+        }
+        CommonName commonName = transmissionRequest.getEndpointAddress().getCommonName();
+        if (commonName != null && commonName.toString().equals(ourCommonName.toString())) {
+            return true;
+        }
+        // URL#equals() resolves the host names, hence the external form is used
+        return localUrls.contains(transmissionRequest.getEndpointAddress().getUrl().toExternalForm());
+    }
+
+    @Override
+    public TransmissionResponse send(TransmissionRequest transmissionRequest) {
+        return prepare(transmissionRequest).send();
+    }
+
+    /**
+     * Nothing needs to be prepared, the payload is handed to the message repository as is.
+     */
+    @Override
+    public PreparedTransmission prepare(final TransmissionRequest transmissionRequest) {
+        return new PreparedTransmission() {
+            @Override
+            public TransmissionResponse send() {
+                return deliver(transmissionRequest);
+            }
+        };
+    }
+
+    TransmissionResponse deliver(TransmissionRequest transmissionRequest) {
+        TransmissionId transmissionId = new TransmissionId();
+        PeppolMessageMetaData peppolMessageMetaData = createMessageMetaData(transmissionId, transmissionRequest);
+
+        try {
+            InputStream inputStream = transmissionRequest.getTransmissionPayload().openInputStream();
+            try {
+                messageRepositoryProvider.get().saveInboundMessage(peppolMessageMetaData, inputStream);
+            } finally {
+                inputStream.close();
+            }
+        } catch (OxalisMessagePersistenceException e) {
+            throw new IllegalStateException("Unable to persist message delivered locally: " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read the payload: " + e.getMessage(), e);
+        }
+
+        persistStatistics(peppolMessageMetaData);
+
+        log.info("Message " + peppolMessageMetaData.getMessageId() + " for " + peppolMessageMetaData.getRecipientId() + " delivered locally, transmission id " + transmissionId);
+        return new LoopbackTransmissionResponse(transmissionId, transmissionRequest.getPeppolStandardBusinessHeader(), transmissionRequest.getTimeline());
+    }
+
+    /**
+     * Collects the meta data just like {@link eu.peppol.as2.InboundMessageReceiver} does, preferring the SBDH
+     * actually held in the payload as it holds the message identifier.
+     */
+    PeppolMessageMetaData createMessageMetaData(TransmissionId transmissionId, TransmissionRequest transmissionRequest) {
+        PeppolStandardBusinessHeader sbdh = parseSbdh(transmissionRequest);
+
+        PeppolMessageMetaData peppolMessageMetaData = new PeppolMessageMetaData();
+        peppolMessageMetaData.setTransmissionId(transmissionId);
+        peppolMessageMetaData.setMessageId(sbdh.getMessageId());
+
+        peppolMessageMetaData.setSenderId(sbdh.getSenderId());
+        peppolMessageMetaData.setRecipientId(sbdh.getRecipientId());
+        peppolMessageMetaData.setDocumentTypeIdentifier(sbdh.getDocumentTypeIdentifier());
+        peppolMessageMetaData.setProfileTypeIdentifier(sbdh.getProfileTypeIdentifier());
+
+        peppolMessageMetaData.setProtocol(transmissionRequest.getEndpointAddress().getBusDoxProtocol());
+        peppolMessageMetaData.setSendingAccessPointId(ourAccessPointIdentifier);
+        peppolMessageMetaData.setReceivingAccessPoint(ourAccessPointIdentifier);
+        peppolMessageMetaData.setSendingAccessPointPrincipal(getOurPrincipal());
+        peppolMessageMetaData.setSendersTimeStamp(new Date());
+
+        return peppolMessageMetaData;
+    }
+
+    Principal getOurPrincipal() {
+        return KeystoreManager.getInstance().getOurCertificate().getSubjectX500Principal();
+    }
+
+    private PeppolStandardBusinessHeader parseSbdh(TransmissionRequest transmissionRequest) {
+        try {
+            InputStream inputStream = transmissionRequest.getTransmissionPayload().openInputStream();
+            try {
+                if (new DocumentSniffer(inputStream).isSbdhDetected()) {
+                    // The sniffer has consumed the start of the stream unless it supports mark/reset
+                    InputStream sbdhInputStream = transmissionRequest.getTransmissionPayload().openInputStream();
+                    try {
+                        return sbdhParser.parse(sbdhInputStream);
+                    } finally {
+                        sbdhInputStream.close();
+                    }
+                }
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read the payload: " + e.getMessage(), e);
+        }
+        return transmissionRequest.getPeppolStandardBusinessHeader();
+    }
+
+    private void persistStatistics(PeppolMessageMetaData peppolMessageMetaData) {
+        try {
+            RawStatistics rawStatistics = new RawStatistics.RawStatisticsBuilder()
+                    .accessPointIdentifier(ourAccessPointIdentifier)
+                    .inbound()
+                    .documentType(peppolMessageMetaData.getDocumentTypeIdentifier())
+                    .sender(peppolMessageMetaData.getSenderId())
+                    .receiver(peppolMessageMetaData.getRecipientId())
+                    .profile(peppolMessageMetaData.getProfileTypeIdentifier())
+                    .build();
+            rawStatisticsRepository.persist(rawStatistics);
+        } catch (Exception e) {
+            // The message has been delivered, hence problems with the statistics must not fail the transmission
+            log.error("Unable to persist statistics for " + peppolMessageMetaData + "; " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package eu.peppol.outbound.transmission;
+
+import eu.peppol.PeppolStandardBusinessHeader;
+import eu.peppol.identifier.TransmissionId;
+
+/**
+ * Response of a message delivered to a receiver served by this access point, see {@link LoopbackMessageSender}.
+ */
+public class LoopbackTransmissionResponse extends AbstractTransmissionResponse implements TransmissionResponse {
+
+    public LoopbackTransmissionResponse(TransmissionId transmissionId, PeppolStandardBusinessHeader sbdh) {
+        super(transmissionId, sbdh);
+    }
+
+    public LoopbackTransmissionResponse(TransmissionId transmissionId, PeppolStandardBusinessHeader sbdh, TransmissionTimeline timeline) {
+        super(transmissionId, sbdh, null, timeline);
+    }
+}
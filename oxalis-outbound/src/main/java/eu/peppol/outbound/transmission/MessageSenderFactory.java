@@ -35,6 +35,10 @@ import eu.peppol.identifier.PeppolDocumentTypeId;
  *     <li>The PEPPOL Process identifier, which is not really used for anything just now. This value is best obtained from the SMP</li>
  * </ul>
  *
+ * <p>The senders returned fail fast when the receiving access point is known to be unavailable, see
+ * {@link EndpointHealthRegistry}. Messages for receivers served by this access point are delivered locally when
+ * so configured, see {@link LoopbackMessageSender}.</p>
+ *
  * <p>Caveat! The two EndpointID elements are not mandatory as per the UBL schema. They are however strongly recommended in the Norwegian EHF-format.
  * Henceforth; determining the above identifiers can be somewhat risky.
  * </p>
@@ -47,14 +51,18 @@ import eu.peppol.identifier.PeppolDocumentTypeId;
 class MessageSenderFactory {
 
     SmpLookupManager smpLookupManager;
-    private final As2MessageSender as2MessageSender;
-    private final StartMessageSender startMessageSender;
+    private final MessageSender as2MessageSender;
+    private final MessageSender startMessageSender;
+    private final EndpointHealthRegistry endpointHealthRegistry;
+    private final LoopbackMessageSender loopbackMessageSender;
 
     @Inject
-    MessageSenderFactory(SmpLookupManager smpLookupManager, As2MessageSender as2MessageSender, StartMessageSender startMessageSender) {
+    MessageSenderFactory(SmpLookupManager smpLookupManager, As2MessageSender as2MessageSender, StartMessageSender startMessageSender, EndpointHealthRegistry endpointHealthRegistry, LoopbackMessageSender loopbackMessageSender) {
         this.smpLookupManager = smpLookupManager;
-        this.as2MessageSender = as2MessageSender;
-        this.startMessageSender = startMessageSender;
+        this.endpointHealthRegistry = endpointHealthRegistry;
+        this.loopbackMessageSender = loopbackMessageSender;
+        this.as2MessageSender = new HealthCheckingMessageSender(as2MessageSender, endpointHealthRegistry);
+        this.startMessageSender = new HealthCheckingMessageSender(startMessageSender, endpointHealthRegistry);
     }
 
     MessageSender createMessageSender(ParticipantId receiver, PeppolDocumentTypeId peppolDocumentTypeId) {
@@ -70,6 +78,17 @@ class MessageSenderFactory {
     }
 
 
+    /**
+     * Provides the sender for the given request, which delivers the message locally if the receiver is served by
+     * this access point and loopback delivery is enabled.
+     */
+    MessageSender createMessageSender(TransmissionRequest transmissionRequest) {
+        if (loopbackMessageSender.isLocal(transmissionRequest)) {
+            return loopbackMessageSender;
+        }
+        return createMessageSender(transmissionRequest.getEndpointAddress().getBusDoxProtocol());
+    }
+
     MessageSender createMessageSender(BusDoxProtocol busDoxProtocol) {
         switch (busDoxProtocol) {
             case AS2:
@@ -80,4 +99,8 @@ class MessageSenderFactory {
                 throw new IllegalStateException("Invalid or unknown protocol: " + busDoxProtocol);
         }
     }
+
+    EndpointHealthRegistry getEndpointHealthRegistry() {
+        return endpointHealthRegistry;
+    }
 }
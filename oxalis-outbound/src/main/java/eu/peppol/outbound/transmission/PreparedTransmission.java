@@ -0,0 +1,13 @@
+package eu.peppol.outbound.transmission;
+
+/**
+ * A transmission for which the CPU bound work has been performed, leaving only the I/O bound sending to the
+ * receiving access point. Allows the two parts of a transmission to be executed by separate thread pools.
+ *
+ * @see PreparingMessageSender#prepare(TransmissionRequest)
+ */
+public interface PreparedTransmission {
+
+    /** Sends the prepared message, waiting for the response of the receiving access point */
+    TransmissionResponse send();
+}
@@ -0,0 +1,16 @@
+package eu.peppol.outbound.transmission;
+
+/**
+ * A {@link MessageSender} separating the CPU bound part of a transmission from the sending, allowing the two to be
+ * executed by separate thread pools. The {@link Transmitter} prepares transmissions by other senders by deferring
+ * all of the work to {@link #send(TransmissionRequest)}.
+ */
+public interface PreparingMessageSender extends MessageSender {
+
+    /**
+     * Performs the CPU bound part of the transmission, like parsing and signing, without touching the network.
+     * Invoking {@link PreparedTransmission#send()} on the result is equivalent to {@link #send(TransmissionRequest)}.
+     */
+    PreparedTransmission prepare(TransmissionRequest transmissionRequest);
+
+}
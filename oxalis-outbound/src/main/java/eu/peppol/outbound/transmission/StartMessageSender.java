@@ -14,7 +14,7 @@ import org.w3._2009._02.ws_tra.FaultMessage;
 import org.w3c.dom.Document;
 
 import javax.xml.parsers.DocumentBuilderFactory;
-import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.UUID;
 
@@ -23,7 +23,7 @@ import java.util.UUID;
  *         Date: 05.11.13
  *         Time: 13:16
  */
-class StartMessageSender implements MessageSender {
+class StartMessageSender implements PreparingMessageSender {
 
     public static final Logger log = LoggerFactory.getLogger(StartMessageSender.class);
     private final SoapDispatcher soapDispatcher;
@@ -37,41 +37,64 @@ class StartMessageSender implements MessageSender {
 
     @Override
     public TransmissionResponse send(TransmissionRequest transmissionRequest) {
+        return prepare(transmissionRequest).send();
+    }
 
-        Document document = parsePayload(transmissionRequest);
-        PeppolStandardBusinessHeader sbdh = transmissionRequest.getPeppolStandardBusinessHeader();
-
-        try {
-            MessageId messageId = send(document,
-                    sbdh.getDocumentTypeIdentifier(),
-                    sbdh.getProfileTypeIdentifier(),
-                    sbdh.getSenderId(),
-                    sbdh.getRecipientId(),
-                    transmissionRequest.getEndpointAddress().getUrl());
-
-            StartTransmissionResponse startTransmissionResponse = new StartTransmissionResponse(new TransmissionId(), sbdh);
-            return startTransmissionResponse;
-
-        } catch (FaultMessage faultMessage) {
-            throw new IllegalStateException("Unable to send message: " + faultMessage.getMessage(), faultMessage);
-        }
+    /**
+     * Parses the payload into the document to be placed in the SOAP body.
+     */
+    @Override
+    public PreparedTransmission prepare(final TransmissionRequest transmissionRequest) {
+
+        long start = System.nanoTime();
+        final Document document = parsePayload(transmissionRequest);
+        transmissionRequest.getTimeline().recordSince(TransmissionTimeline.Phase.DOCUMENT_PARSE, start);
+        final PeppolStandardBusinessHeader sbdh = transmissionRequest.getPeppolStandardBusinessHeader();
+
+        return new PreparedTransmission() {
+            @Override
+            public TransmissionResponse send() {
+                try {
+                    long start = System.nanoTime();
+                    Timeouts timeouts = StartMessageSender.this.send(document,
+                            sbdh.getDocumentTypeIdentifier(),
+                            sbdh.getProfileTypeIdentifier(),
+                            sbdh.getSenderId(),
+                            sbdh.getRecipientId(),
+                            transmissionRequest.getEndpointAddress().getUrl());
+                    transmissionRequest.getTimeline().recordSince(TransmissionTimeline.Phase.SOAP, start);
+
+                    StartTransmissionResponse startTransmissionResponse = new StartTransmissionResponse(new TransmissionId(), sbdh, timeouts, transmissionRequest.getTimeline());
+                    return startTransmissionResponse;
+
+                } catch (FaultMessage faultMessage) {
+                    throw new IllegalStateException("Unable to send message: " + faultMessage.getMessage(), faultMessage);
+                }
+            }
+        };
     }
 
     Document parsePayload(TransmissionRequest transmissionRequest) {
 
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(transmissionRequest.getPayload());
-
         try {
-            log.debug("Constructing document body....");
-            Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(byteArrayInputStream);
-            return document;
+            InputStream inputStream = transmissionRequest.getTransmissionPayload().openInputStream();
+            try {
+                log.debug("Constructing document body....");
+                Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(inputStream);
+                return document;
+            } finally {
+                inputStream.close();
+            }
         } catch (Exception e) {
             throw new IllegalStateException("Unable to parseMultipart byte stream into a valid XML Document; " + e.getMessage(), e);
         }
     }
 
 
-    MessageId send(Document document, PeppolDocumentTypeId documentTypeIdentifier,
+    /**
+     * Sends the document and provides the timeouts used.
+     */
+    Timeouts send(Document document, PeppolDocumentTypeId documentTypeIdentifier,
                            PeppolProcessTypeId peppolProcessTypeId,
                            ParticipantId senderId, ParticipantId recipientId,
                            URL destination) throws FaultMessage {
@@ -95,9 +118,7 @@ class StartMessageSender implements MessageSender {
 
         soapDispatcher.enableSoapLogging(globalConfiguration.isSoapTraceEnabled());
 
-        soapDispatcher.send(destination, messageHeader, soapBody);
-
-        return messageId;
+        return soapDispatcher.send(destination, messageHeader, soapBody);
     }
 
 }
@@ -13,4 +13,12 @@ public class StartTransmissionResponse  extends AbstractTransmissionResponse imp
     public StartTransmissionResponse(TransmissionId transmissionId, PeppolStandardBusinessHeader sbdh) {
         super(transmissionId, sbdh);
     }
+
+    public StartTransmissionResponse(TransmissionId transmissionId, PeppolStandardBusinessHeader sbdh, Timeouts timeouts) {
+        super(transmissionId, sbdh, timeouts);
+    }
+
+    public StartTransmissionResponse(TransmissionId transmissionId, PeppolStandardBusinessHeader sbdh, Timeouts timeouts, TransmissionTimeline timeline) {
+        super(transmissionId, sbdh, timeouts, timeline);
+    }
 }
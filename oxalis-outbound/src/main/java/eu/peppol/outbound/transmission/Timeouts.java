@@ -0,0 +1,37 @@
+package eu.peppol.outbound.transmission;
+
+/**
+ * The connect and read timeouts used for a transmission, see {@link AdaptiveTimeouts}.
+ */
+public class Timeouts {
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final boolean adaptive;
+
+    public Timeouts(int connectTimeout, int readTimeout, boolean adaptive) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.adaptive = adaptive;
+    }
+
+    /** Milliseconds to wait for a connection to be established */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /** Milliseconds to wait for data from the receiving access point */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /** Whether the timeouts were derived from the latencies observed, rather than being the configured defaults */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    @Override
+    public String toString() {
+        return "Timeouts{connect=" + connectTimeout + "ms, read=" + readTimeout + "ms" + (adaptive ? ", adaptive" : "") + '}';
+    }
+}
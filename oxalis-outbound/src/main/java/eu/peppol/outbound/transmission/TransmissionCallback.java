@@ -0,0 +1,14 @@
+package eu.peppol.outbound.transmission;
+
+/**
+ * Notified upon completion of an asynchronous transmission, see {@link Transmitter#transmitAsync(TransmissionRequest)}.
+ *
+ * Callbacks are invoked by the thread completing the transmission and should return quickly, as they hold up
+ * a thread of the bounded sending pool.
+ */
+public interface TransmissionCallback {
+
+    void onSuccess(TransmissionResponse transmissionResponse);
+
+    void onFailure(Throwable cause);
+}
@@ -0,0 +1,376 @@
+package eu.peppol.outbound.transmission;
+
+import com.google.inject.Inject;
+import eu.peppol.util.GlobalConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes asynchronous transmissions in two stages, each having its own bounded pool of threads:
+ * <ol>
+ *     <li>Preparation, i.e. wrapping and signing, which is CPU bound and hence needs no more threads than there are processors</li>
+ *     <li>Sending, which mostly waits for the network and the receiving access point</li>
+ * </ol>
+ * Thus a slow receiver will not hold up the preparation of other messages and vice versa.
+ *
+ * <p>Transmissions are queued in the {@link TransmissionLane} of their request. Both stages serve the lanes by
+ * weighted fair queuing, see {@link WeightedFairQueue}, hence urgent transmissions need not wait for a bulk run to
+ * complete. The time spent queued is recorded for each lane.</p>
+ *
+ * <p>The number of transmissions in flight is bounded for each lane, thus a bulk run filling its own lane does not
+ * block the submission of urgent transmissions. Once the limit is reached, submitting blocks the caller until
+ * capacity is available, or rejects the transmission with a {@link RejectedExecutionException} if the submit
+ * timeout elapses first.</p>
+ */
+public class TransmissionExecutor {
+
+    public static final Logger log = LoggerFactory.getLogger(TransmissionExecutor.class);
+
+    private final ThreadPoolExecutor preparationExecutor;
+    private final ThreadPoolExecutor sendingExecutor;
+    private final Map<TransmissionLane, Semaphore> inFlight = new EnumMap<TransmissionLane, Semaphore>(TransmissionLane.class);
+    private final Map<TransmissionLane, LatencyHistogram> queueWaits = new EnumMap<TransmissionLane, LatencyHistogram>(TransmissionLane.class);
+    private final WeightedFairQueue preparationQueue;
+    private final WeightedFairQueue sendingQueue;
+    private final int maxInFlight;
+    private final long submitTimeout;
+    private final long shutdownTimeout;
+
+    private volatile boolean shutdown = false;
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    @Inject
+    public TransmissionExecutor(GlobalConfiguration globalConfiguration) {
+        this(globalConfiguration.getTransmissionPreparationThreads(),
+                globalConfiguration.getTransmissionSendingThreads(),
+                globalConfiguration.getTransmissionMaxInFlight(),
+                globalConfiguration.getTransmissionSubmitTimeout(),
+                globalConfiguration.getTransmissionShutdownTimeout(),
+                TransmissionLane.parseWeights(globalConfiguration.getTransmissionLaneWeights()));
+    }
+
+    public TransmissionExecutor(int preparationThreads, int sendingThreads, int maxInFlight, long submitTimeout, long shutdownTimeout) {
+        this(preparationThreads, sendingThreads, maxInFlight, submitTimeout, shutdownTimeout, TransmissionLane.getDefaultWeights());
+    }
+
+    /**
+     * @param preparationThreads number of threads preparing transmissions, 0 gives one per available processor
+     * @param sendingThreads     number of threads sending prepared transmissions
+     * @param maxInFlight        maximum number of transmissions of each lane queued or being processed
+     * @param submitTimeout      milliseconds to wait for capacity before rejecting a transmission
+     * @param shutdownTimeout    milliseconds to wait for transmissions in flight upon {@link #shutdown()}
+     * @param laneWeights        the weight of every lane when serving the lanes
+     */
+    public TransmissionExecutor(int preparationThreads, int sendingThreads, int maxInFlight, long submitTimeout, long shutdownTimeout, Map<TransmissionLane, Integer> laneWeights) {
+        if (preparationThreads == 0) {
+            preparationThreads = Runtime.getRuntime().availableProcessors();
+        }
+        if (preparationThreads < 1 || sendingThreads < 1) {
+            throw new IllegalArgumentException("Number of preparation and sending threads must be at least 1");
+        }
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Maximum number of transmissions in flight must be at least 1, not " + maxInFlight);
+        }
+        this.maxInFlight = maxInFlight;
+        this.submitTimeout = submitTimeout;
+        this.shutdownTimeout = shutdownTimeout;
+        for (TransmissionLane lane : TransmissionLane.values()) {
+            inFlight.put(lane, new Semaphore(maxInFlight, true));
+            queueWaits.put(lane, new LatencyHistogram(AdaptiveTimeouts.HISTOGRAM_MAX_COUNT));
+        }
+
+        // The queues are unbounded, the number of transmissions in flight is bounded by the semaphores
+        preparationQueue = new WeightedFairQueue(laneWeights);
+        sendingQueue = new WeightedFairQueue(laneWeights);
+        preparationExecutor = createExecutor(preparationThreads, preparationQueue, "oxalis-transmission-prepare-");
+        sendingExecutor = createExecutor(sendingThreads, sendingQueue, "oxalis-transmission-send-");
+
+        log.debug("Transmission executor created; preparation threads=" + preparationThreads + ", sending threads=" + sendingThreads + ", max in flight per lane=" + maxInFlight + ", lane weights=" + laneWeights);
+    }
+
+    /**
+     * Submits a transmission, which is prepared by the preparation pool and then sent by the sending pool.
+     *
+     * @param transmissionRequest the request being transmitted
+     * @param preparation         prepares the transmission, invoked by a thread of the preparation pool
+     * @return handle to the outcome of the transmission
+     * @throws RejectedExecutionException if no capacity became available within the submit timeout, or if shut down
+     */
+    public TransmissionFuture submit(TransmissionRequest transmissionRequest, final Callable<PreparedTransmission> preparation) {
+        final TransmissionLane lane = laneOf(transmissionRequest);
+        acquire(lane);
+
+        final TransmissionFuture future = new TransmissionFuture(transmissionRequest);
+        submittedCount.incrementAndGet();
+        try {
+            preparationExecutor.execute(new TransmissionTask(lane, future) {
+                @Override
+                public void run() {
+                    prepare(future, preparation, getQueueWait());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            complete(future, null, e);
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * Stops accepting transmissions and waits for those in flight to complete, for at most the configured
+     * shutdown timeout. Transmissions still queued after that are failed with a {@link RejectedExecutionException},
+     * and those being processed are interrupted.
+     *
+     * @return true if every transmission in flight completed
+     */
+    public boolean shutdown() {
+        return shutdown(shutdownTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        shutdown = true;
+
+        boolean drained = true;
+        List<Semaphore> acquired = new ArrayList<Semaphore>();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            // Once every permit has been returned, there is nothing left in flight
+            for (Semaphore semaphore : inFlight.values()) {
+                if (!semaphore.tryAcquire(maxInFlight, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    drained = false;
+                    break;
+                }
+                acquired.add(semaphore);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            drained = false;
+        }
+        // Nothing is accepted once shut down, hence the permits only serve to count the transmissions in flight
+        for (Semaphore semaphore : acquired) {
+            semaphore.release(maxInFlight);
+        }
+
+        if (drained) {
+            preparationExecutor.shutdown();
+            sendingExecutor.shutdown();
+        } else {
+            log.warn(getInFlightCount() + " transmissions still in flight after " + unit.toMillis(timeout) + "ms, interrupting them");
+            List<Runnable> discarded = new ArrayList<Runnable>(preparationExecutor.shutdownNow());
+            discarded.addAll(sendingExecutor.shutdownNow());
+            for (Runnable task : discarded) {
+                complete(((TransmissionTask) task).future, null, new RejectedExecutionException("Transmission executor was shut down before the transmission was sent"));
+            }
+        }
+        return drained;
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /** Maximum number of transmissions of each lane queued or being processed */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /** Number of transmissions queued or being processed */
+    public int getInFlightCount() {
+        int count = 0;
+        for (TransmissionLane lane : TransmissionLane.values()) {
+            count += getInFlightCount(lane);
+        }
+        return count;
+    }
+
+    /** Number of transmissions of the given lane queued or being processed */
+    public int getInFlightCount(TransmissionLane lane) {
+        return maxInFlight - inFlight.get(lane).availablePermits();
+    }
+
+    public int getPreparationQueueSize() {
+        return preparationQueue.size();
+    }
+
+    public int getSendingQueueSize() {
+        return sendingQueue.size();
+    }
+
+    /** Number of transmissions of the given lane waiting to be either prepared or sent */
+    public int getQueueSize(TransmissionLane lane) {
+        return preparationQueue.size(lane) + sendingQueue.size(lane);
+    }
+
+    /**
+     * Milliseconds spent queued, waiting to be prepared and waiting to be sent, by recent transmissions of the given
+     * lane, accurate to within 20%.
+     *
+     * @param percentile in the range (0,100], e.g. 99
+     * @return 0 if no transmission of the lane has been sent yet
+     */
+    public long getQueueWaitPercentile(TransmissionLane lane, double percentile) {
+        return queueWaits.get(lane).getPercentile(percentile);
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /** Number of transmissions rejected for lack of capacity or due to shut down */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TransmissionExecutor{" +
+                "inFlight=" + getInFlightCount() +
+                ", submitted=" + submittedCount +
+                ", completed=" + completedCount +
+                ", failed=" + failedCount +
+                ", rejected=" + rejectedCount +
+                '}';
+    }
+
+    private void acquire(TransmissionLane lane) {
+        if (shutdown) {
+            rejectedCount.incrementAndGet();
+            throw new RejectedExecutionException("Transmission executor has been shut down");
+        }
+        boolean acquired;
+        try {
+            acquired = inFlight.get(lane).tryAcquire(submitTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            rejectedCount.incrementAndGet();
+            throw new RejectedExecutionException("No capacity for another transmission within " + submitTimeout + "ms, " + getInFlightCount(lane) + " transmissions in flight in lane " + lane);
+        }
+        if (shutdown) {
+            inFlight.get(lane).release();
+            rejectedCount.incrementAndGet();
+            throw new RejectedExecutionException("Transmission executor has been shut down");
+        }
+    }
+
+    private void prepare(final TransmissionFuture future, Callable<PreparedTransmission> preparation, final long preparationQueueWait) {
+        if (future.isDone()) {
+            // Cancelled while queued
+            complete(future, null, null);
+            return;
+        }
+
+        final PreparedTransmission preparedTransmission;
+        try {
+            preparedTransmission = preparation.call();
+        } catch (Throwable e) {
+            complete(future, null, e);
+            return;
+        }
+
+        try {
+            sendingExecutor.execute(new TransmissionTask(laneOf(future.getTransmissionRequest()), future) {
+                @Override
+                public void run() {
+                    queueWaits.get(getLane()).record(preparationQueueWait + getQueueWait());
+                    send(future, preparedTransmission);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            complete(future, null, e);
+        }
+    }
+
+    private void send(TransmissionFuture future, PreparedTransmission preparedTransmission) {
+        if (!future.startSending()) {
+            complete(future, null, null);
+            return;
+        }
+        try {
+            complete(future, preparedTransmission.send(), null);
+        } catch (Throwable e) {
+            complete(future, null, e);
+        }
+    }
+
+    /** Completes the transmission and returns its permit, a cause of null and no response means it was cancelled */
+    private void complete(TransmissionFuture future, TransmissionResponse transmissionResponse, Throwable cause) {
+        try {
+            if (cause != null) {
+                failedCount.incrementAndGet();
+                log.warn("Asynchronous transmission failed: " + cause.getMessage());
+                future.failed(cause);
+            } else if (transmissionResponse != null) {
+                completedCount.incrementAndGet();
+                future.succeeded(transmissionResponse);
+            }
+        } finally {
+            inFlight.get(laneOf(future.getTransmissionRequest())).release();
+        }
+    }
+
+    private static TransmissionLane laneOf(TransmissionRequest transmissionRequest) {
+        return transmissionRequest == null ? TransmissionLane.NORMAL : transmissionRequest.getLane();
+    }
+
+    private static ThreadPoolExecutor createExecutor(int threads, WeightedFairQueue queue, String threadNamePrefix) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, new TransmissionThreadFactory(threadNamePrefix));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /** Task preparing or sending a transmission, which must be completed should the task never run */
+    private abstract static class TransmissionTask extends WeightedFairQueue.Task {
+
+        final TransmissionFuture future;
+
+        TransmissionTask(TransmissionLane lane, TransmissionFuture future) {
+            super(lane);
+            this.future = future;
+        }
+    }
+
+    private static class TransmissionThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+        private final String threadNamePrefix;
+
+        TransmissionThreadFactory(String threadNamePrefix) {
+            this.threadNamePrefix = threadNamePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, threadNamePrefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
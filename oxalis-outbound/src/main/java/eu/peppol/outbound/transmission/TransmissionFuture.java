@@ -0,0 +1,164 @@
+package eu.peppol.outbound.transmission;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Handle to an asynchronous transmission, which may be waited for like any other {@link Future}, or which will
+ * notify the callbacks added, once completed.
+ *
+ * A transmission may be cancelled as long as it has not been sent, after which cancelling has no effect.
+ */
+public class TransmissionFuture implements Future<TransmissionResponse> {
+
+    public static final Logger log = LoggerFactory.getLogger(TransmissionFuture.class);
+
+    private final TransmissionRequest transmissionRequest;
+    private final CountDownLatch completed = new CountDownLatch(1);
+    private final List<TransmissionCallback> callbacks = new ArrayList<TransmissionCallback>();
+
+    private TransmissionResponse transmissionResponse;
+    private Throwable failure;
+    private boolean cancelled;
+    private boolean sending;
+
+    TransmissionFuture(TransmissionRequest transmissionRequest) {
+        this.transmissionRequest = transmissionRequest;
+    }
+
+    public TransmissionRequest getTransmissionRequest() {
+        return transmissionRequest;
+    }
+
+    /**
+     * Adds a callback, which is invoked upon completion. If already completed, the callback is invoked immediately
+     * by the current thread.
+     */
+    public void addCallback(TransmissionCallback callback) {
+        synchronized (this) {
+            if (!isDone()) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        notify(callback);
+    }
+
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+        if (isDone() || sending) {
+            return false;
+        }
+        cancelled = true;
+        completed.countDown();
+        notifyCallbacks();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return completed.getCount() == 0;
+    }
+
+    @Override
+    public TransmissionResponse get() throws InterruptedException, ExecutionException {
+        completed.await();
+        return getResult();
+    }
+
+    @Override
+    public TransmissionResponse get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!completed.await(timeout, unit)) {
+            throw new TimeoutException("Transmission not completed within " + unit.toMillis(timeout) + "ms");
+        }
+        return getResult();
+    }
+
+    /**
+     * Marks the transmission as being sent, after which it may not be cancelled.
+     *
+     * @return false if the transmission has been cancelled and should not be sent
+     */
+    synchronized boolean startSending() {
+        if (cancelled) {
+            return false;
+        }
+        sending = true;
+        return true;
+    }
+
+    void succeeded(TransmissionResponse transmissionResponse) {
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            this.transmissionResponse = transmissionResponse;
+            completed.countDown();
+        }
+        notifyCallbacks();
+    }
+
+    void failed(Throwable cause) {
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            this.failure = cause;
+            completed.countDown();
+        }
+        notifyCallbacks();
+    }
+
+    private synchronized TransmissionResponse getResult() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException("Transmission was cancelled");
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return transmissionResponse;
+    }
+
+    private void notifyCallbacks() {
+        List<TransmissionCallback> callbacksToNotify;
+        synchronized (this) {
+            callbacksToNotify = new ArrayList<TransmissionCallback>(callbacks);
+            callbacks.clear();
+        }
+        for (TransmissionCallback callback : callbacksToNotify) {
+            notify(callback);
+        }
+    }
+
+    private void notify(TransmissionCallback callback) {
+        TransmissionResponse response;
+        Throwable cause;
+        synchronized (this) {
+            response = transmissionResponse;
+            cause = cancelled ? new CancellationException("Transmission was cancelled") : failure;
+        }
+        try {
+            if (cause == null) {
+                callback.onSuccess(response);
+            } else {
+                callback.onFailure(cause);
+            }
+        } catch (RuntimeException e) {
+            log.error("Transmission callback " + callback + " failed: " + e.getMessage(), e);
+        }
+    }
+}
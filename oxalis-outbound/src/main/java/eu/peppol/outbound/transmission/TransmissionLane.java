@@ -0,0 +1,70 @@
+package eu.peppol.outbound.transmission;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Lanes of asynchronous transmissions. The {@link TransmissionExecutor} serves the lanes by weighted fair queuing,
+ * hence a transmission in a lane having a higher weight will not wait behind a bulk run in a lane having a lower
+ * weight, while the lower lanes are never starved.
+ */
+public enum TransmissionLane {
+
+    /** Payment critical documents, credit notes etc. */
+    URGENT(16),
+
+    /** The default lane */
+    NORMAL(4),
+
+    /** Large runs of invoices etc., which may wait */
+    BULK(1);
+
+    private final int defaultWeight;
+
+    TransmissionLane(int defaultWeight) {
+        this.defaultWeight = defaultWeight;
+    }
+
+    public int getDefaultWeight() {
+        return defaultWeight;
+    }
+
+    public static TransmissionLane valueFor(String name) {
+        for (TransmissionLane lane : values()) {
+            if (lane.name().equalsIgnoreCase(name.trim())) {
+                return lane;
+            }
+        }
+        throw new IllegalStateException("Unknown transmission lane : " + name);
+    }
+
+    /**
+     * Parses weights like <code>URGENT=16,NORMAL=4,BULK=1</code>. Lanes not mentioned are given their default weight.
+     */
+    public static Map<TransmissionLane, Integer> parseWeights(String weights) {
+        Map<TransmissionLane, Integer> result = getDefaultWeights();
+        if (weights == null || weights.trim().length() == 0) {
+            return result;
+        }
+        for (String weight : weights.split(",")) {
+            String[] nameAndValue = weight.split("=");
+            if (nameAndValue.length != 2) {
+                throw new IllegalStateException("Invalid transmission lane weight '" + weight + "', expected <lane>=<weight>");
+            }
+            int value = Integer.parseInt(nameAndValue[1].trim());
+            if (value < 1) {
+                throw new IllegalStateException("Weight of transmission lane " + nameAndValue[0] + " must be at least 1, not " + value);
+            }
+            result.put(valueFor(nameAndValue[0]), value);
+        }
+        return result;
+    }
+
+    public static Map<TransmissionLane, Integer> getDefaultWeights() {
+        Map<TransmissionLane, Integer> result = new EnumMap<TransmissionLane, Integer>(TransmissionLane.class);
+        for (TransmissionLane lane : values()) {
+            result.put(lane, lane.defaultWeight);
+        }
+        return result;
+    }
+}
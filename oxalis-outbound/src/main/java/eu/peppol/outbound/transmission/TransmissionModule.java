@@ -2,11 +2,15 @@ package eu.peppol.outbound.transmission;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
+import com.google.inject.Singleton;
 import com.google.inject.name.Named;
+import eu.peppol.as2.SMimeMessageFactory;
+import eu.peppol.as2.SMimeSigner;
+import eu.peppol.outbound.outbox.Outbox;
+import eu.peppol.persistence.MessageRepository;
 import eu.peppol.security.CommonName;
 import eu.peppol.security.KeystoreManager;
-import eu.peppol.smp.SmpLookupManager;
-import eu.peppol.smp.SmpLookupManagerImpl;
+import eu.peppol.start.persistence.MessageRepositoryFactory;
 import eu.peppol.statistics.RawStatisticsRepository;
 import eu.peppol.statistics.RawStatisticsRepositoryFactoryProvider;
 import eu.peppol.util.GlobalConfiguration;
@@ -21,9 +25,16 @@ public class TransmissionModule extends AbstractModule {
     @Override
     protected void configure() {
 
-        // TODO: refactor the binding of SmpLookupManager into separate module by moving the inclusion of SmpModule into eu.peppol.outbound.OxalisOutboundModule
-        bind(SmpLookupManager.class).to(SmpLookupManagerImpl.class);
+        // The binding of SmpLookupManager is provided by eu.peppol.smp.SmpModule, see eu.peppol.outbound.OxalisOutboundModule
 
+        // One pool of keep-alive connections shared by all the outbound transmissions
+        bind(HttpConnectionPool.class).in(Singleton.class);
+
+        // The bounded thread pools of the asynchronous transmissions are shared as well
+        bind(TransmissionExecutor.class).in(Singleton.class);
+
+        // There is only a single outbox, as it owns the journal on disk
+        bind(Outbox.class).in(Singleton.class);
     }
 
     @Provides
@@ -33,6 +44,31 @@ public class TransmissionModule extends AbstractModule {
     }
 
 
+    /** Everything needed for signing, which does not change between messages, is prepared once and shared */
+    @Provides
+    @Singleton
+    SMimeMessageFactory sMimeMessageFactory() {
+        return new SMimeMessageFactory(new SMimeSigner(KeystoreManager.getInstance()));
+    }
+
+    /** Shared with the blacklist of eu.peppol.outbound.soap.SoapDispatcher */
+    @Provides
+    EndpointHealthRegistry endpointHealthRegistry() {
+        return EndpointHealthRegistry.getInstance();
+    }
+
+    /** Shared with eu.peppol.outbound.soap.SoapDispatcher, which is not managed by Guice */
+    @Provides
+    AdaptiveTimeouts adaptiveTimeouts() {
+        return AdaptiveTimeouts.getInstance();
+    }
+
+    /** Receives the messages delivered locally, see LoopbackMessageSender */
+    @Provides
+    MessageRepository obtainMessageRepository() {
+        return MessageRepositoryFactory.getInstance();
+    }
+
     @Provides
     GlobalConfiguration obtainConfiguration() {
         return GlobalConfiguration.getInstance();
@@ -0,0 +1,215 @@
+package eu.peppol.outbound.transmission;
+
+import eu.peppol.util.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The payload of a transmission, which is held in memory if small and in a temporary file if large.
+ *
+ * <p>Documents up to the in-memory threshold are held in a byte array, while larger documents, like invoices
+ * holding embedded PDF attachments, are spilled to a temporary file. Every consumer, i.e. the sniffing, the
+ * parsing of the SBDH, the wrapping and the signing, reads the payload through {@link #openInputStream()}, hence
+ * a file backed payload is never loaded into memory in its entirety, unless {@link #toByteArray()} is invoked.</p>
+ *
+ * <p>The temporary file is removed by {@link #delete()}.</p>
+ */
+public class TransmissionPayload {
+
+    public static final Logger log = LoggerFactory.getLogger(TransmissionPayload.class);
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final byte[] bytes;
+    private final File file;
+    private final long size;
+
+    private TransmissionPayload(byte[] bytes, File file, long size) {
+        this.bytes = bytes;
+        this.file = file;
+        this.size = size;
+    }
+
+    /** Creates a payload held in memory */
+    public static TransmissionPayload of(byte[] bytes) {
+        return new TransmissionPayload(bytes, null, bytes.length);
+    }
+
+    /**
+     * Reads the supplied stream into a new payload, which is spilled to a temporary file if larger than the
+     * in-memory threshold.
+     *
+     * @param inputStream       the payload, which is read but not closed
+     * @param inMemoryThreshold maximum number of bytes held in memory
+     * @param maxSize           maximum number of bytes accepted
+     * @throws IllegalStateException if the payload is larger than the maximum size allowed
+     */
+    public static TransmissionPayload create(InputStream inputStream, long inMemoryThreshold, long maxSize) throws IOException {
+        Writer writer = new Writer(inMemoryThreshold, maxSize);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int numberOfBytesRead;
+            while ((numberOfBytesRead = inputStream.read(buffer)) != -1) {
+                writer.write(buffer, 0, numberOfBytesRead);
+            }
+        } catch (IOException e) {
+            writer.discard();
+            throw e;
+        } catch (RuntimeException e) {
+            writer.discard();
+            throw e;
+        }
+        return writer.toPayload();
+    }
+
+    /** Opens a new, buffered stream from which the entire payload may be read */
+    public InputStream openInputStream() throws IOException {
+        if (bytes != null) {
+            return new ByteArrayInputStream(bytes);
+        }
+        return new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+    }
+
+    /** Writes the entire payload to the supplied stream, which is not closed */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        if (bytes != null) {
+            outputStream.write(bytes);
+            return;
+        }
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int numberOfBytesRead;
+            while ((numberOfBytesRead = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, numberOfBytesRead);
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /** Provides a copy of the entire payload in memory, which should be avoided for large documents */
+    public byte[] toByteArray() {
+        if (bytes != null) {
+            return bytes;
+        }
+        try {
+            InputStream inputStream = openInputStream();
+            try {
+                return Util.intoBuffer(inputStream, size);
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read the payload from " + file + "; " + e.getMessage(), e);
+        }
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public boolean isFileBacked() {
+        return file != null;
+    }
+
+    /** The temporary file holding the payload, or null if held in memory */
+    File getFile() {
+        return file;
+    }
+
+    /** Removes the temporary file holding the payload, if any. The payload may not be read afterwards. */
+    public void delete() {
+        if (file != null && file.exists() && !file.delete()) {
+            log.warn("Unable to delete temporary payload file " + file);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TransmissionPayload{" + size + " bytes" + (file != null ? ", file=" + file : ", in memory") + '}';
+    }
+
+    /**
+     * Stream into which a payload is written, keeping the data in memory until the threshold is exceeded, after
+     * which everything is written to a temporary file.
+     */
+    static class Writer extends OutputStream {
+
+        private final long inMemoryThreshold;
+        private final long maxSize;
+
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream(BUFFER_SIZE);
+        private File file;
+        private OutputStream fileOutputStream;
+        private long size;
+
+        Writer(long inMemoryThreshold, long maxSize) {
+            this.inMemoryThreshold = inMemoryThreshold;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (size + len > maxSize) {
+                throw new IllegalStateException("Payload exceeded the maximum size of " + maxSize + " bytes, see the property oxalis.payload.max.size");
+            }
+            if (fileOutputStream == null && size + len > inMemoryThreshold) {
+                spillToFile();
+            }
+            if (fileOutputStream != null) {
+                fileOutputStream.write(b, off, len);
+            } else {
+                memory.write(b, off, len);
+            }
+            size += len;
+        }
+
+        private void spillToFile() throws IOException {
+            file = File.createTempFile("oxalis-payload-", ".xml");
+            log.debug("Payload exceeds " + inMemoryThreshold + " bytes, spilling to " + file);
+            fileOutputStream = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+            memory.writeTo(fileOutputStream);
+            memory = null;
+        }
+
+        /** Completes the writing, the Writer may not be used afterwards */
+        TransmissionPayload toPayload() throws IOException {
+            if (fileOutputStream == null) {
+                return TransmissionPayload.of(memory.toByteArray());
+            }
+            fileOutputStream.close();
+            return new TransmissionPayload(null, file, size);
+        }
+
+        /** Abandons whatever has been written, removing the temporary file if any */
+        void discard() {
+            if (fileOutputStream != null) {
+                try {
+                    fileOutputStream.close();
+                } catch (IOException e) {
+                    log.warn("Unable to close temporary payload file " + file + "; " + e.getMessage());
+                }
+                if (!file.delete()) {
+                    log.warn("Unable to delete temporary payload file " + file);
+                }
+            }
+        }
+    }
+}
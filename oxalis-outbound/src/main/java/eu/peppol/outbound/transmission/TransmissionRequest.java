@@ -1,12 +1,29 @@
 package eu.peppol.outbound.transmission;
 
 import eu.peppol.PeppolStandardBusinessHeader;
+import eu.peppol.document.SbdhWrapper;
 import eu.peppol.smp.SmpLookupManager;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.UUID;
+
 /**
  * Describes a request to transmit a payload (PEPPOL Document) to a designated end-point.
  *
- * Instances of this class are to be deemed as value objects, as they are immutable.
+ * The properties of a request do not change once built. If the payload must be wrapped with an SBDH, the wrapping
+ * is postponed until the payload is actually needed, allowing it to be streamed directly to the receiver by
+ * {@link #writePayloadTo(java.io.OutputStream)}. A payload wrapped in advance by {@link #getTransmissionPayload()}
+ * is held by the request. The identification of the SBDH is assigned once per request, hence every transmission of
+ * the request carries the same SBDH, allowing the receiver to detect duplicates.
+ *
+ * Large payloads are held in temporary files, which are removed by {@link #dispose()} once the request is no
+ * longer needed. Requests transmitted by {@link Transmitter#transmit(TransmissionRequest)},
+ * {@link Transmitter#transmitAsync(TransmissionRequest)} and {@link Transmitter#transmitAll(java.util.Collection)}
+ * are disposed by the Transmitter once transmitted, whereas the caller of {@link Transmitter#prepare(TransmissionRequest)}
+ * remains responsible for disposing the request.
  *
  * @author steinar
  *         Date: 04.11.13
@@ -16,8 +33,18 @@ public class TransmissionRequest {
 
 
     private final PeppolStandardBusinessHeader peppolStandardBusinessHeader;
-    private final byte[] payload;
+    private final TransmissionPayload payload;
+    private final boolean sbdhWrappingRequired;
     private final SmpLookupManager.PeppolEndpointData endpointAddress;
+    private final TransmissionLane lane;
+    private final TransmissionTimeline timeline;
+
+    /** Identification of the SBDH wrapping the payload, the same for every transmission of this request */
+    private final String sbdhInstanceIdentifier = UUID.randomUUID().toString();
+    private final Date sbdhCreationDateAndTime = new Date();
+
+    /** The payload wrapped with an SBDH, once created it is reused rather than wrapping the payload again */
+    private TransmissionPayload wrappedPayload;
 
     /**
      * Module private constructor grabbing the constructor data from the supplied builder.
@@ -27,18 +54,120 @@ public class TransmissionRequest {
     TransmissionRequest(TransmissionRequestBuilder transmissionRequestBuilder) {
         peppolStandardBusinessHeader = transmissionRequestBuilder.getEffectiveStandardBusinessHeader();
         payload = transmissionRequestBuilder.getPayload();
+        sbdhWrappingRequired = transmissionRequestBuilder.isSbdhWrappingRequired();
         endpointAddress = transmissionRequestBuilder.getEndpointAddress();
+        lane = transmissionRequestBuilder.getLane();
+        timeline = transmissionRequestBuilder.getTimeline();
     }
 
     public PeppolStandardBusinessHeader getPeppolStandardBusinessHeader() {
         return peppolStandardBusinessHeader;
     }
 
+    /**
+     * Provides a copy in memory of the payload to be transmitted, wrapped with an SBDH if required by the protocol.
+     *
+     * @deprecated loads a payload held in a temporary file into memory, use {@link #getTransmissionPayload()} or
+     * {@link #writePayloadTo(java.io.OutputStream)}
+     */
+    @Deprecated
     public byte[] getPayload() {
-        return payload;
+        return getTransmissionPayload().toByteArray();
+    }
+
+    /**
+     * Provides the payload to be transmitted, wrapped with an SBDH if required by the protocol. A payload held in
+     * a temporary file is wrapped into another temporary file.
+     */
+    public synchronized TransmissionPayload getTransmissionPayload() {
+        if (!sbdhWrappingRequired) {
+            return payload;
+        }
+        if (wrappedPayload == null) {
+            long start = System.nanoTime();
+            wrappedPayload = wrap(payload);
+            timeline.recordSince(TransmissionTimeline.Phase.SBDH_WRAP, start);
+        }
+        return wrappedPayload;
+    }
+
+    /**
+     * Writes the payload to be transmitted to the supplied stream, which is not closed. Any SBDH required is
+     * created while writing, rather than by wrapping the payload into yet another buffer.
+     */
+    public void writePayloadTo(OutputStream outputStream) throws IOException {
+        TransmissionPayload alreadyWrapped;
+        synchronized (this) {
+            alreadyWrapped = sbdhWrappingRequired ? wrappedPayload : payload;
+        }
+        if (alreadyWrapped != null) {
+            alreadyWrapped.writeTo(outputStream);
+            return;
+        }
+
+        InputStream inputStream = payload.openInputStream();
+        try {
+            createSbdhWrapper().wrap(inputStream, outputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /** Tells whether the payload supplied is held in a temporary file, rather than in memory */
+    public boolean isPayloadFileBacked() {
+        return payload.isFileBacked();
+    }
+
+    public boolean isSbdhWrappingRequired() {
+        return sbdhWrappingRequired;
     }
 
     public SmpLookupManager.PeppolEndpointData getEndpointAddress() {
         return endpointAddress;
     }
+
+    /** The lane in which asynchronous transmissions of this request are queued */
+    public TransmissionLane getLane() {
+        return lane;
+    }
+
+    /** Timings of the phases of the transmission, completed while being transmitted */
+    public TransmissionTimeline getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * Removes any temporary files holding the payload. The request can not be transmitted afterwards, while
+     * disposing it again has no effect.
+     */
+    public synchronized void dispose() {
+        payload.delete();
+        if (wrappedPayload != null) {
+            wrappedPayload.delete();
+        }
+    }
+
+    private SbdhWrapper createSbdhWrapper() {
+        return new SbdhWrapper(sbdhInstanceIdentifier, sbdhCreationDateAndTime);
+    }
+
+    private TransmissionPayload wrap(TransmissionPayload payload) {
+        // Wraps into memory or into a file depending on where the original payload is held, the size limit has been enforced already
+        TransmissionPayload.Writer writer = new TransmissionPayload.Writer(payload.isFileBacked() ? 0 : Long.MAX_VALUE, Long.MAX_VALUE);
+        try {
+            InputStream inputStream = payload.openInputStream();
+            try {
+                createSbdhWrapper().wrap(inputStream, writer);
+            } finally {
+                inputStream.close();
+            }
+            return writer.toPayload();
+        } catch (IOException e) {
+            writer.discard();
+            throw new IllegalStateException("Unable to wrap the payload " + payload + " with an SBDH: " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            writer.discard();
+            throw e;
+        }
+    }
 }
@@ -6,17 +6,15 @@ import eu.peppol.PeppolStandardBusinessHeader;
 import eu.peppol.document.DocumentSniffer;
 import eu.peppol.document.NoSbdhParser;
 import eu.peppol.document.SbdhParser;
-import eu.peppol.document.SbdhWrapper;
 import eu.peppol.identifier.ParticipantId;
 import eu.peppol.identifier.PeppolDocumentTypeId;
 import eu.peppol.identifier.PeppolProcessTypeId;
 import eu.peppol.security.CommonName;
 import eu.peppol.smp.SmpLookupManager;
-import eu.peppol.util.Util;
+import eu.peppol.util.GlobalConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
@@ -34,8 +32,11 @@ public class TransmissionRequestBuilder {
     final NoSbdhParser noSbdhParser;
     final SmpLookupManager smpLookupManager;
 
+    /** Payloads larger than this are held in a temporary file */
+    private final long payloadMemoryThreshold;
+    private final long payloadMaxSize;
 
-    private byte[] payload;
+    private TransmissionPayload payload;
 
     /**
      * The address of the endpoint either supplied by the caller or looked up in the SMP
@@ -53,27 +54,48 @@ public class TransmissionRequestBuilder {
      */
     private boolean sbdhDetected;
 
+    /**
+     * Indicates whether the payload must be wrapped with an SBDH before being transmitted
+     */
+    private boolean sbdhWrappingRequired;
+
     /**
      * Supplied by the caller
      */
     private ParticipantId receiverId;
 
+    /** The lane of asynchronous transmissions in which the request is queued */
+    private TransmissionLane lane = TransmissionLane.NORMAL;
+
+    /** Timings of the request being built, handed over to the {@link TransmissionRequest} */
+    private TransmissionTimeline timeline = new TransmissionTimeline();
+
     @Inject
-    public TransmissionRequestBuilder(SbdhParser sbdhParser, NoSbdhParser noSbdhParser, SmpLookupManager smpLookupManager) {
+    public TransmissionRequestBuilder(SbdhParser sbdhParser, NoSbdhParser noSbdhParser, SmpLookupManager smpLookupManager, GlobalConfiguration globalConfiguration) {
+        this(sbdhParser, noSbdhParser, smpLookupManager, globalConfiguration.getPayloadMemoryThreshold(), globalConfiguration.getPayloadMaxSize());
+    }
+
+    TransmissionRequestBuilder(SbdhParser sbdhParser, NoSbdhParser noSbdhParser, SmpLookupManager smpLookupManager, long payloadMemoryThreshold, long payloadMaxSize) {
         this.sbdhParser = sbdhParser;
         this.noSbdhParser = noSbdhParser;
         this.smpLookupManager = smpLookupManager;
+        this.payloadMemoryThreshold = payloadMemoryThreshold;
+        this.payloadMaxSize = payloadMaxSize;
     }
 
     /**
-     * Supplies the  builder with the contents of the message to be sent.
+     * Supplies the  builder with the contents of the message to be sent. Large payloads are copied into a temporary
+     * file, which is removed by {@link TransmissionRequest#dispose()}, or by {@link #build()} if it fails.
      *
      * @param inputStream
      * @return
      */
     public TransmissionRequestBuilder payLoad(InputStream inputStream) {
 
+        timeline = new TransmissionTimeline();
+        long start = System.nanoTime();
         savePayLoad(inputStream);
+        timeline.recordSince(TransmissionTimeline.Phase.PAYLOAD, start);
 
         return this;
     }
@@ -116,23 +138,56 @@ public class TransmissionRequestBuilder {
         return this;
     }
 
+    /**
+     * Places asynchronous transmissions of the request in the given lane, rather than in the normal one.
+     *
+     * @see TransmissionExecutor
+     */
+    public TransmissionRequestBuilder lane(TransmissionLane lane) {
+        if (lane == null) {
+            throw new IllegalArgumentException("Transmission lane required");
+        }
+        this.lane = lane;
+        return this;
+    }
+
+    /**
+     * Builds the request, which holds the payload supplied from now on. If the request can not be built, any
+     * temporary file holding the payload is removed.
+     */
     public TransmissionRequest build() {
+        try {
+            return buildRequest();
+        } catch (RuntimeException e) {
+            if (payload != null) {
+                payload.delete();
+            }
+            throw e;
+        }
+    }
+
+    private TransmissionRequest buildRequest() {
 
+        long start = System.nanoTime();
         PeppolStandardBusinessHeader parsedPeppolStandardBusinessHeader = parsePayLoadAndDeduceSbdh();
+        timeline.recordSince(TransmissionTimeline.Phase.PARSE, start);
 
         effectiveStandardBusinessHeader = createEffectiveHeader(parsedPeppolStandardBusinessHeader, suppliedHeaderFields);
 
         // If the endpoint has not been overridden by the caller, look up the endpoint address in the SMP using the data supplied in the payload
         if (!isEndpointOverridden()) {
 
+            start = System.nanoTime();
             endpointAddress = smpLookupManager.getEndpointTransmissionData(effectiveStandardBusinessHeader.getRecipientId(), effectiveStandardBusinessHeader.getDocumentTypeIdentifier());
+            timeline.recordSince(TransmissionTimeline.Phase.SMP_LOOKUP, start);
 
         }
 
         if (endpointAddress.getBusDoxProtocol() == BusDoxProtocol.AS2 && !sbdhDetected) {
 
-            // Wraps the payload with an SBDH, as this is required for AS2
-            payload = wrapPayLoadWithSBDH(new ByteArrayInputStream(payload));
+            // The payload must be wrapped with an SBDH, as this is required for AS2. The wrapping is performed by
+            // the TransmissionRequest, either into a buffer or while streaming the payload to the receiver
+            sbdhWrappingRequired = true;
 
         } else if (endpointAddress.getBusDoxProtocol() == BusDoxProtocol.START && sbdhDetected) {
                 throw new IllegalStateException("Payload may not contain SBDH when using protocol " + endpointAddress.getBusDoxProtocol().toString());
@@ -181,12 +236,17 @@ public class TransmissionRequestBuilder {
         sbdhDetected = checkForSbdh();
 
         PeppolStandardBusinessHeader peppolSbdh;
-        if (sbdhDetected) {
-            // Parses the SBDH to determine the receivers endpoint URL etc.
-            peppolSbdh = sbdhParser.parse(new ByteArrayInputStream(payload));
-        } else {
-            // Parses the PEPPOL document in order to determine the header fields
-            peppolSbdh = noSbdhParser.parse(new ByteArrayInputStream(payload));
+        InputStream inputStream = openPayload();
+        try {
+            if (sbdhDetected) {
+                // Parses the SBDH to determine the receivers endpoint URL etc.
+                peppolSbdh = sbdhParser.parse(inputStream);
+            } else {
+                // Parses the PEPPOL document in order to determine the header fields
+                peppolSbdh = noSbdhParser.parse(inputStream);
+            }
+        } finally {
+            closeQuietly(inputStream);
         }
 
         return peppolSbdh;
@@ -194,36 +254,63 @@ public class TransmissionRequestBuilder {
 
     boolean checkForSbdh() {
         // Sniff, sniff; does it contain a SBDH?
-        DocumentSniffer documentSniffer = new DocumentSniffer(new ByteArrayInputStream(payload));
-        return documentSniffer.isSbdhDetected();
+        InputStream inputStream = openPayload();
+        try {
+            DocumentSniffer documentSniffer = new DocumentSniffer(inputStream);
+            return documentSniffer.isSbdhDetected();
+        } finally {
+            closeQuietly(inputStream);
+        }
     }
 
     void savePayLoad(InputStream inputStream) {
         try {
-            payload = Util.intoBuffer(inputStream, 6L * 1024 * 1024);     // Copies the contents into a buffer
+            // Copies the contents into a buffer or a temporary file, depending on the size
+            payload = TransmissionPayload.create(inputStream, payloadMemoryThreshold, payloadMaxSize);
         } catch (IOException e) {
             throw new IllegalStateException("Unable to save the payload: " + e.getMessage(), e);
         }
     }
 
+    private void closeQuietly(InputStream inputStream) {
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            log.warn("Unable to close the payload " + payload + ": " + e.getMessage());
+        }
+    }
+
+    private InputStream openPayload() {
+        try {
+            return payload.openInputStream();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read the payload " + payload + ": " + e.getMessage(), e);
+        }
+    }
+
 
     PeppolStandardBusinessHeader getEffectiveStandardBusinessHeader() {
         return effectiveStandardBusinessHeader;
     }
 
-    byte[] getPayload() {
+    TransmissionPayload getPayload() {
         return payload;
     }
 
+    boolean isSbdhWrappingRequired() {
+        return sbdhWrappingRequired;
+    }
+
     SmpLookupManager.PeppolEndpointData getEndpointAddress() {
         return endpointAddress;
     }
 
-    private byte[] wrapPayLoadWithSBDH(ByteArrayInputStream byteArrayInputStream) {
-        SbdhWrapper sbdhWrapper = new SbdhWrapper();
-        byte[] result = sbdhWrapper.wrap(byteArrayInputStream);
+    TransmissionLane getLane() {
+        return lane;
+    }
 
-        return result;
+    TransmissionTimeline getTimeline() {
+        return timeline;
     }
 
     static class SuppliedHeaderFields {
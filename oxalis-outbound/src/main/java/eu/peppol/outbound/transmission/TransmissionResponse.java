@@ -12,4 +12,7 @@ public interface TransmissionResponse {
 
     /** Transmission id assigned during transmission */
     TransmissionId getTransmissionId();
+
+    /** Timings of the phases of the transmission, or null if unknown */
+    TransmissionTimeline getTimeline();
 }
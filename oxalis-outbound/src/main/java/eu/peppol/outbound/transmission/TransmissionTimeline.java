@@ -0,0 +1,116 @@
+package eu.peppol.outbound.transmission;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * High resolution timeline of the phases of a single transmission, telling the time spent locally apart from the
+ * time spent by the network and the receiving access point. Created by the {@link TransmissionRequestBuilder}, which
+ * records the time spent parsing the payload and looking up the end point, and completed by the
+ * {@link MessageSender} and the {@link Transmitter}.
+ *
+ * <p>Phases not applicable to the protocol, or skipped, like connecting when a pooled connection is re-used, are
+ * not present. A request transmitted more than once holds the timings of its most recent attempt.</p>
+ */
+public class TransmissionTimeline {
+
+    public enum Phase {
+
+        /** Copying the payload supplied into memory or a temporary file */
+        PAYLOAD("payload"),
+
+        /** Sniffing and parsing the payload for the header fields */
+        PARSE("parse"),
+
+        /** Looking up the end point in the SMP, unless overridden */
+        SMP_LOOKUP("smp_lookup"),
+
+        /** Wrapping the payload with an SBDH, unless performed while streaming */
+        SBDH_WRAP("sbdh_wrap"),
+
+        /** Signing the S/MIME message, unless performed while streaming */
+        SIGN("sign"),
+
+        /** Parsing the payload into the document placed in the SOAP body (START) */
+        DOCUMENT_PARSE("document_parse"),
+
+        /** All of the preparations by the message sender */
+        PREPARE("prepare"),
+
+        /** TCP connect and TLS handshake, only present if a new connection was established (AS2) */
+        CONNECT("connect"),
+
+        /** Posting the message and awaiting the response, i.e. the upload and the processing of the receiver (AS2) */
+        SERVER("server"),
+
+        /** Reading and inspecting the MDN (AS2) */
+        MDN("mdn"),
+
+        /** The SOAP round trip (START) */
+        SOAP("soap"),
+
+        /** All of the sending by the message sender */
+        SEND("send"),
+
+        /** Persisting the statistics */
+        STATISTICS("statistics");
+
+        private final String key;
+
+        Phase(String key) {
+            this.key = key;
+        }
+
+        /** Name of the phase in the log */
+        public String getKey() {
+            return key;
+        }
+    }
+
+    private final Map<Phase, Long> nanos = new EnumMap<Phase, Long>(Phase.class);
+
+    public synchronized void record(Phase phase, long elapsedNanos) {
+        nanos.put(phase, elapsedNanos);
+    }
+
+    /**
+     * Records the time elapsed since the supplied value of {@link System#nanoTime()}.
+     */
+    public void recordSince(Phase phase, long startNanos) {
+        record(phase, System.nanoTime() - startNanos);
+    }
+
+    /** Nanoseconds spent in the given phase, or null if not recorded */
+    public synchronized Long getNanos(Phase phase) {
+        return nanos.get(phase);
+    }
+
+    /** Milliseconds spent in the given phase, or null if not recorded */
+    public Double getMillis(Phase phase) {
+        Long elapsed = getNanos(phase);
+        return elapsed == null ? null : elapsed / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /** Copy of the phases recorded, in the order in which they occur */
+    public synchronized Map<Phase, Long> getPhases() {
+        return new EnumMap<Phase, Long>(nanos);
+    }
+
+    /**
+     * Provides the phases recorded as <code>key_ms=value</code> pairs, like <code>parse_ms=3.127 smp_lookup_ms=41.530</code>.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Phase, Long> entry : getPhases().entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(entry.getKey().getKey()).append("_ms=")
+                    .append(String.format(Locale.ROOT, "%.3f", entry.getValue() / (double) TimeUnit.MILLISECONDS.toNanos(1)));
+        }
+        return sb.toString();
+    }
+}
@@ -2,14 +2,18 @@ package eu.peppol.outbound.transmission;
 
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
-import eu.peppol.BusDoxProtocol;
 import eu.peppol.security.CommonName;
 import eu.peppol.identifier.AccessPointIdentifier;
 import eu.peppol.start.identifier.ChannelId;
 import eu.peppol.statistics.RawStatistics;
 import eu.peppol.statistics.RawStatisticsRepository;
+import eu.peppol.util.GlobalConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
 import java.util.Date;
+import java.util.concurrent.Callable;
 
 /**
  * Executes transmission requests by sending the payload to the requested destination.
@@ -18,6 +22,9 @@ import java.util.Date;
  * <li>Logs the fact that we are about to send</li>
  * <li>Logs the outcome of the transmission</li>
  * </ol>
+ * <p/>
+ * The outcome is logged in a single line holding the {@link TransmissionTimeline} of the transmission, like
+ * <code>Transmission outcome=OK protocol=AS2 endpoint=https://ap.example.com/as2 receiver=9908:810017902 transmissionId=... payload_ms=0.412 ...</code>
  *
  * @author steinar
  *         Date: 04.11.13
@@ -25,15 +32,23 @@ import java.util.Date;
  */
 public class Transmitter {
 
+    public static final Logger log = LoggerFactory.getLogger(Transmitter.class);
+
     private final MessageSenderFactory messageSenderFactory;
     private final RawStatisticsRepository rawStatisticsRepository;
     private final CommonName ourCommonName;
+    private final TransmissionExecutor transmissionExecutor;
     private AccessPointIdentifier ourAccessPointIdentifier;
 
 
-    @Inject
     public Transmitter(MessageSenderFactory messageSenderFactory, RawStatisticsRepository rawStatisticsRepository, @Named("OurCommonName")CommonName ourCommonName) {
+        this(messageSenderFactory, rawStatisticsRepository, ourCommonName, null);
+    }
+
+    @Inject
+    public Transmitter(MessageSenderFactory messageSenderFactory, RawStatisticsRepository rawStatisticsRepository, @Named("OurCommonName")CommonName ourCommonName, TransmissionExecutor transmissionExecutor) {
         this.messageSenderFactory = messageSenderFactory;
+        this.transmissionExecutor = transmissionExecutor;
         this.rawStatisticsRepository = rawStatisticsRepository;
         this.ourCommonName = ourCommonName;
         if (ourCommonName == null) {
@@ -43,16 +58,157 @@ public class Transmitter {
     }
 
 
+    /**
+     * Transmits the request, which is disposed afterwards, whether transmitted successfully or not.
+     */
     public TransmissionResponse transmit(TransmissionRequest transmissionRequest) {
+        try {
+            return prepare(transmissionRequest).send();
+        } finally {
+            // Removes the temporary file holding a large payload
+            transmissionRequest.dispose();
+        }
+    }
+
+    /**
+     * Transmits the request asynchronously. The payload is wrapped and signed by one bounded pool of threads, after
+     * which it is sent by another, see {@link TransmissionExecutor}. Blocks the caller if the maximum number of
+     * transmissions in flight has been reached. The request is disposed once the transmission has completed.
+     *
+     * @return handle to the outcome of the transmission, to which callbacks may be added
+     * @throws java.util.concurrent.RejectedExecutionException if no capacity became available in due time, in which
+     * case the request is left to the caller, who may submit it again
+     */
+    public TransmissionFuture transmitAsync(final TransmissionRequest transmissionRequest) {
+        if (transmissionExecutor == null) {
+            throw new IllegalStateException("No TransmissionExecutor supplied, asynchronous transmissions are not available");
+        }
+
+        TransmissionFuture transmissionFuture = transmissionExecutor.submit(transmissionRequest, new Callable<PreparedTransmission>() {
+            @Override
+            public PreparedTransmission call() throws Exception {
+                return prepare(transmissionRequest);
+            }
+        });
+        transmissionFuture.addCallback(new TransmissionCallback() {
+            @Override
+            public void onSuccess(TransmissionResponse transmissionResponse) {
+                transmissionRequest.dispose();
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                transmissionRequest.dispose();
+            }
+        });
+        return transmissionFuture;
+    }
 
-        BusDoxProtocol busDoxProtocol = transmissionRequest.getEndpointAddress().getBusDoxProtocol();
-        MessageSender messageSender = messageSenderFactory.createMessageSender(busDoxProtocol);
+    /**
+     * Transmits a batch of requests, blocking until every one of them has either succeeded or failed. The
+     * transmissions are prepared in parallel, one thread per processor, and the receiving access points take turns,
+     * each having at most the configured number of transmissions in flight, see {@link BatchTransmission}.
+     *
+     * <p>The endpoint of every request was resolved when it was built, the SMP cache ensures each combination of
+     * receiver and document type is looked up once only.</p>
+     *
+     * <p>Every request is disposed once transmitted.</p>
+     *
+     * @return the result of every transmission in the order supplied, together with the throughput of the batch
+     */
+    public BatchTransmissionResult transmitAll(Collection<TransmissionRequest> transmissionRequests) throws InterruptedException {
+        return transmitAll(transmissionRequests, GlobalConfiguration.getInstance().getTransmissionMaxPerDestination());
+    }
+
+    public BatchTransmissionResult transmitAll(Collection<TransmissionRequest> transmissionRequests, int maxPerDestination) throws InterruptedException {
+        if (transmissionExecutor == null) {
+            throw new IllegalStateException("No TransmissionExecutor supplied, batch transmissions are not available");
+        }
+        return new BatchTransmission(transmissionExecutor, this, maxPerDestination).execute(transmissionRequests);
+    }
+
+    /**
+     * Performs the CPU bound part of the transmission, leaving the sending to the caller. Statistics are persisted
+     * once the prepared transmission has been sent successfully. The request is not disposed, as the caller may
+     * prepare it again in order to retry.
+     *
+     * @see PreparingMessageSender#prepare(TransmissionRequest)
+     */
+    public PreparedTransmission prepare(final TransmissionRequest transmissionRequest) {
+
+        MessageSender messageSender = messageSenderFactory.createMessageSender(transmissionRequest);
+
+        final TransmissionTimeline timeline = transmissionRequest.getTimeline();
+        final PreparedTransmission preparedTransmission;
+        long start = System.nanoTime();
+        try {
+            preparedTransmission = prepare(messageSender, transmissionRequest);
+        } catch (RuntimeException e) {
+            timeline.recordSince(TransmissionTimeline.Phase.PREPARE, start);
+            logOutcome(transmissionRequest, null, e);
+            throw e;
+        }
+        timeline.recordSince(TransmissionTimeline.Phase.PREPARE, start);
+
+        return new PreparedTransmission() {
+            @Override
+            public TransmissionResponse send() {
+                TransmissionResponse transmissionResponse;
+                long start = System.nanoTime();
+                try {
+                    transmissionResponse = preparedTransmission.send();
+                } catch (RuntimeException e) {
+                    timeline.recordSince(TransmissionTimeline.Phase.SEND, start);
+                    logOutcome(transmissionRequest, null, e);
+                    throw e;
+                }
+                timeline.recordSince(TransmissionTimeline.Phase.SEND, start);
+
+                start = System.nanoTime();
+                persistStatistics(transmissionRequest, transmissionResponse);
+                timeline.recordSince(TransmissionTimeline.Phase.STATISTICS, start);
+
+                logOutcome(transmissionRequest, transmissionResponse, null);
+                return transmissionResponse;
+            }
+        };
+    }
 
-        TransmissionResponse transmissionResponse = messageSender.send(transmissionRequest);
+    /** Senders not separating the preparation from the sending perform all of the work when sent */
+    private static PreparedTransmission prepare(final MessageSender messageSender, final TransmissionRequest transmissionRequest) {
+        if (messageSender instanceof PreparingMessageSender) {
+            return ((PreparingMessageSender) messageSender).prepare(transmissionRequest);
+        }
+        return new PreparedTransmission() {
+            @Override
+            public TransmissionResponse send() {
+                return messageSender.send(transmissionRequest);
+            }
+        };
+    }
 
-        persistStatistics(transmissionRequest, transmissionResponse);
+    /**
+     * Logs the outcome of the transmission together with its timeline in a single line of key=value pairs, allowing
+     * slow receivers and regressions to be found.
+     */
+    void logOutcome(TransmissionRequest transmissionRequest, TransmissionResponse transmissionResponse, RuntimeException failure) {
+        StringBuilder sb = new StringBuilder("Transmission outcome=").append(failure == null ? "OK" : "FAILED");
+        sb.append(" protocol=").append(transmissionRequest.getEndpointAddress().getBusDoxProtocol());
+        sb.append(" endpoint=").append(transmissionRequest.getEndpointAddress().getUrl().toExternalForm());
+        sb.append(" receiver=").append(transmissionRequest.getPeppolStandardBusinessHeader().getRecipientId());
+        if (transmissionResponse != null) {
+            sb.append(" transmissionId=").append(transmissionResponse.getTransmissionId());
+        }
+        if (failure != null) {
+            sb.append(" error=").append(failure.getClass().getSimpleName());
+        }
+        sb.append(' ').append(transmissionRequest.getTimeline());
 
-        return transmissionResponse;
+        if (failure == null) {
+            log.info(sb.toString());
+        } else {
+            log.warn(sb.toString());
+        }
     }
 
     void persistStatistics(TransmissionRequest transmissionRequest, TransmissionResponse transmissionResponse) {
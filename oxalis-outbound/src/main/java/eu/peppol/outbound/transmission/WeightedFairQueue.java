@@ -0,0 +1,301 @@
+package eu.peppol.outbound.transmission;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Work queue of a {@link java.util.concurrent.ThreadPoolExecutor}, which holds one FIFO queue per
+ * {@link TransmissionLane} and serves them by weighted fair queuing, i.e. stride scheduling. Every lane having
+ * tasks queued receives a share of the threads proportional to its weight, regardless of the number of tasks queued
+ * in the other lanes.
+ *
+ * <p>A lane which has been idle does not accumulate credit, as it is placed at the current virtual time once it
+ * receives a task.</p>
+ *
+ * <p>The queue is unbounded, the number of tasks is bounded by the {@link TransmissionExecutor}. Runnables not being
+ * {@link Task}s are placed in the normal lane.</p>
+ */
+class WeightedFairQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    /** The stride of a lane is this value divided by its weight */
+    private static final long STRIDE_SCALE = 1L << 20;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Map<TransmissionLane, Lane> lanes = new EnumMap<TransmissionLane, Lane>(TransmissionLane.class);
+
+    /** Pass of the lane most recently served */
+    private long virtualTime = 0;
+    private int size = 0;
+
+    WeightedFairQueue(Map<TransmissionLane, Integer> weights) {
+        for (TransmissionLane transmissionLane : TransmissionLane.values()) {
+            Integer weight = weights.get(transmissionLane);
+            if (weight == null || weight < 1) {
+                throw new IllegalArgumentException("Weight of transmission lane " + transmissionLane + " must be at least 1, not " + weight);
+            }
+            lanes.put(transmissionLane, new Lane(STRIDE_SCALE / weight));
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable runnable) {
+        Task task = runnable instanceof Task ? (Task) runnable : new WrappedTask(TransmissionLane.NORMAL, runnable);
+        lock.lock();
+        try {
+            Lane lane = lanes.get(task.lane);
+            if (lane.tasks.isEmpty()) {
+                lane.pass = Math.max(lane.pass, virtualTime);
+            }
+            task.enqueuedAt = System.currentTimeMillis();
+            lane.tasks.addLast(task);
+            size++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable runnable) {
+        offer(runnable);
+    }
+
+    @Override
+    public boolean offer(Runnable runnable, long timeout, TimeUnit unit) {
+        return offer(runnable);
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            Lane lane = nextLane();
+            return lane == null ? null : lane.tasks.getFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            for (Lane lane : lanes.values()) {
+                if (lane.tasks.remove(o)) {
+                    size--;
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Number of tasks queued in the given lane */
+    int size(TransmissionLane transmissionLane) {
+        lock.lock();
+        try {
+            return lanes.get(transmissionLane).tasks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxElements && size > 0) {
+                c.add(dequeue());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Provides a snapshot of the tasks queued, removing through the iterator removes from the queue.
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        final List<Runnable> snapshot = new ArrayList<Runnable>();
+        lock.lock();
+        try {
+            for (Lane lane : lanes.values()) {
+                snapshot.addAll(lane.tasks);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        final Iterator<Runnable> iterator = snapshot.iterator();
+        return new Iterator<Runnable>() {
+            private Runnable current;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                current = iterator.next();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                WeightedFairQueue.this.remove(current);
+            }
+        };
+    }
+
+    /** Must be invoked holding the lock */
+    private Task dequeue() {
+        Lane lane = nextLane();
+        if (lane == null) {
+            return null;
+        }
+        Task task = lane.tasks.removeFirst();
+        size--;
+        virtualTime = lane.pass;
+        lane.pass += lane.stride;
+        task.dequeuedAt = System.currentTimeMillis();
+        return task;
+    }
+
+    /** The lane having tasks queued with the lowest pass, must be invoked holding the lock */
+    private Lane nextLane() {
+        Lane next = null;
+        for (Lane lane : lanes.values()) {
+            if (!lane.tasks.isEmpty() && (next == null || lane.pass < next.pass)) {
+                next = lane;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Task to be queued in a given lane, which knows how long it waited in the queue.
+     */
+    abstract static class Task implements Runnable {
+
+        private final TransmissionLane lane;
+        private volatile long enqueuedAt;
+        private volatile long dequeuedAt;
+
+        Task(TransmissionLane lane) {
+            this.lane = lane;
+        }
+
+        TransmissionLane getLane() {
+            return lane;
+        }
+
+        /** Milliseconds spent in the queue, valid once the task has been taken from the queue */
+        long getQueueWait() {
+            return Math.max(0, dequeuedAt - enqueuedAt);
+        }
+    }
+
+    private static class WrappedTask extends Task {
+
+        private final Runnable runnable;
+
+        WrappedTask(TransmissionLane lane, Runnable runnable) {
+            super(lane);
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            runnable.run();
+        }
+    }
+
+    private static class Lane {
+        final LinkedList<Task> tasks = new LinkedList<Task>();
+        final long stride;
+        long pass = 0;
+
+        Lane(long stride) {
+            this.stride = stride;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package eu.peppol.outbound.outbox;
+
+import eu.peppol.BusDoxProtocol;
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.identifier.PeppolDocumentTypeId;
+import eu.peppol.identifier.PeppolProcessTypeId;
+import eu.peppol.outbound.transmission.TransmissionPayload;
+import eu.peppol.security.CommonName;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class OutboxJournalTest {
+
+    public static final PeppolDocumentTypeId DOCUMENT_TYPE_ID = PeppolDocumentTypeId.valueOf("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:www.cenbii.eu:transaction:biicoretrdm010:ver1.0:#urn:www.peppol.eu:bis:peppol4a:ver1.0#urn:www.difi.no:ehf:faktura:ver1::2.0");
+    public static final PeppolProcessTypeId PROCESS_TYPE_ID = PeppolProcessTypeId.valueOf("urn:www.cenbii.eu:profile:bii04:ver1.0");
+
+    private File directory;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        directory = File.createTempFile("oxalis-outbox-", "");
+        directory.delete();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void replayReturnsPendingEntries() throws Exception {
+        OutboxJournal journal = new OutboxJournal(directory);
+        assertTrue(journal.open().isEmpty());
+
+        OutboxEntry transmitted = enqueue(journal, "transmitted");
+        OutboxEntry abandoned = enqueue(journal, "abandoned");
+        OutboxEntry pending = enqueue(journal, "pending");
+
+        pending.attempted(2, 4711L);
+        journal.appendAttempted(pending);
+        journal.appendCompleted(transmitted);
+        journal.appendAbandoned(abandoned);
+        journal.close();
+
+        assertFalse(journal.getPayloadFile("transmitted").exists());
+        assertTrue(journal.getFailedPayloadFile("abandoned").isFile());
+
+        List<OutboxEntry> entries = new OutboxJournal(directory).open();
+        assertEquals(entries.size(), 1);
+
+        OutboxEntry entry = entries.get(0);
+        assertEquals(entry.getId(), "pending");
+        assertEquals(entry.getAttempts(), 2);
+        assertEquals(entry.getNextAttemptAt(), 4711L);
+        assertEquals(entry.getBusDoxProtocol(), BusDoxProtocol.AS2);
+        assertEquals(entry.getUrl(), pending.getUrl());
+        assertEquals(entry.getCommonName().toString(), "APP_1000000006");
+        assertEquals(entry.getRecipientId(), pending.getRecipientId());
+        assertEquals(entry.getDocumentTypeId(), DOCUMENT_TYPE_ID);
+        assertEquals(entry.getProcessTypeId(), PROCESS_TYPE_ID);
+        assertNull(entry.getTransmissionRequest());
+    }
+
+    @Test
+    public void partiallyWrittenRecordIsTruncated() throws Exception {
+        OutboxJournal journal = new OutboxJournal(directory);
+        journal.open();
+        enqueue(journal, "first");
+        journal.close();
+
+        // Simulates a crash while appending a record
+        File journalFile = new File(directory, OutboxJournal.JOURNAL_FILE_NAME);
+        long validLength = journalFile.length();
+        FileOutputStream fileOutputStream = new FileOutputStream(journalFile, true);
+        fileOutputStream.write(new byte[]{0, 0, 0, 42, 1, 2, 3});
+        fileOutputStream.close();
+
+        journal = new OutboxJournal(directory);
+        assertEquals(journal.open().size(), 1);
+        assertEquals(journalFile.length(), validLength);
+
+        // Appending resumes after the last complete record
+        enqueue(journal, "second");
+        journal.close();
+        assertEquals(new OutboxJournal(directory).open().size(), 2);
+    }
+
+    @Test
+    public void compactionRemovesObsoleteRecords() throws Exception {
+        OutboxJournal journal = new OutboxJournal(directory);
+        journal.open();
+        OutboxEntry pending = null;
+        for (int i = 0; i < 100; i++) {
+            OutboxEntry entry = enqueue(journal, "entry-" + i);
+            if (i < 99) {
+                journal.appendCompleted(entry);
+            } else {
+                pending = entry;
+            }
+        }
+        assertEquals(journal.getObsoleteRecordCount(), 198);
+
+        File journalFile = new File(directory, OutboxJournal.JOURNAL_FILE_NAME);
+        long lengthBefore = journalFile.length();
+        journal.compact(Collections.singletonList(pending));
+        assertTrue(journalFile.length() < lengthBefore / 50);
+        assertEquals(journal.getObsoleteRecordCount(), 0);
+        journal.close();
+
+        List<OutboxEntry> entries = new OutboxJournal(directory).open();
+        assertEquals(entries.size(), 1);
+        assertEquals(entries.get(0).getId(), "entry-99");
+    }
+
+    @Test
+    public void unreferencedPayloadsAreDeleted() throws Exception {
+        OutboxJournal journal = new OutboxJournal(directory);
+        journal.open();
+        enqueue(journal, "referenced");
+        // Written by a JVM which crashed before appending the record
+        journal.storePayload("unreferenced", TransmissionPayload.of("<Invoice/>".getBytes("UTF-8")));
+        journal.close();
+
+        journal = new OutboxJournal(directory);
+        assertEquals(journal.open().size(), 1);
+        assertTrue(journal.getPayloadFile("referenced").isFile());
+        assertFalse(journal.getPayloadFile("unreferenced").exists());
+    }
+
+    static OutboxEntry enqueue(OutboxJournal journal, String id) throws Exception {
+        OutboxEntry entry = createEntry(id);
+        journal.storePayload(id, TransmissionPayload.of("<Invoice/>".getBytes("UTF-8")));
+        journal.appendEnqueued(entry);
+        return entry;
+    }
+
+    static OutboxEntry createEntry(String id) throws Exception {
+        return new OutboxEntry(id, System.currentTimeMillis(), BusDoxProtocol.AS2, new URL("https://localhost:8443/oxalis/as2"),
+                new CommonName("APP_1000000006"), new ParticipantId("9908:976098897"), new ParticipantId("9908:810017902"),
+                DOCUMENT_TYPE_ID, PROCESS_TYPE_ID);
+    }
+}
@@ -0,0 +1,184 @@
+package eu.peppol.outbound.outbox;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import eu.peppol.identifier.TransmissionId;
+import eu.peppol.outbound.guice.TestResourceModule;
+import eu.peppol.outbound.transmission.PreparedTransmission;
+import eu.peppol.outbound.transmission.TransmissionRequest;
+import eu.peppol.outbound.transmission.TransmissionRequestBuilder;
+import eu.peppol.outbound.transmission.TransmissionResponse;
+import eu.peppol.outbound.transmission.TransmissionTimeline;
+import eu.peppol.outbound.transmission.TransmissionTestModule;
+import eu.peppol.outbound.transmission.Transmitter;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Guice;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+@Guice(modules = {TransmissionTestModule.class, TestResourceModule.class})
+public class OutboxTest {
+
+    @Inject
+    Provider<TransmissionRequestBuilder> transmissionRequestBuilderProvider;
+
+    private File directory;
+    private Outbox outbox;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        directory = File.createTempFile("oxalis-outbox-", "");
+        directory.delete();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        if (outbox != null) {
+            outbox.close();
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void enqueuedMessageIsTransmitted() throws Exception {
+        AtomicInteger sendCount = new AtomicInteger();
+        outbox = createOutbox(createTransmitter(sendCount, 0), 3);
+        outbox.start();
+
+        String id = outbox.enqueue(createTransmissionRequest());
+
+        waitForTransmitted(1);
+        assertEquals(sendCount.get(), 1);
+        assertEquals(outbox.getQueueDepth(), 0);
+        assertEquals(outbox.getAttempts(id), -1);
+        assertFalse(new File(directory, id + OutboxJournal.PAYLOAD_SUFFIX).exists());
+    }
+
+    @Test
+    public void failedAttemptsAreRetried() throws Exception {
+        AtomicInteger sendCount = new AtomicInteger();
+        outbox = createOutbox(createTransmitter(sendCount, 2), 5);
+        outbox.start();
+
+        outbox.enqueue(createTransmissionRequest());
+
+        waitForTransmitted(1);
+        assertEquals(sendCount.get(), 3);
+        assertEquals(outbox.getRetryCount(), 2);
+        assertEquals(outbox.getAbandonedCount(), 0);
+        assertEquals(outbox.getFailingDestinationCount(), 0);
+    }
+
+    @Test
+    public void messageIsAbandonedAfterMaxAttempts() throws Exception {
+        AtomicInteger sendCount = new AtomicInteger();
+        outbox = createOutbox(createTransmitter(sendCount, Integer.MAX_VALUE), 3);
+        outbox.start();
+
+        String id = outbox.enqueue(createTransmissionRequest());
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (outbox.getAbandonedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(outbox.getAbandonedCount(), 1);
+        assertEquals(sendCount.get(), 3);
+        assertEquals(outbox.getQueueDepth(), 0);
+        assertTrue(new File(directory, id + OutboxJournal.FAILED_SUFFIX).isFile());
+    }
+
+    @Test
+    public void pendingMessageIsRecoveredAfterCrash() throws Exception {
+        // Leaves a message in the journal, as if the JVM had crashed before transmitting it
+        OutboxJournal journal = new OutboxJournal(directory);
+        journal.open();
+        OutboxEntry entry = OutboxEntry.create("recovered", System.currentTimeMillis(), createTransmissionRequest());
+        journal.storePayload(entry.getId(), entry.getTransmissionRequest().getTransmissionPayload());
+        journal.appendEnqueued(entry);
+        journal.close();
+
+        AtomicInteger sendCount = new AtomicInteger();
+        outbox = createOutbox(createTransmitter(sendCount, 0), 3);
+        outbox.start();
+        assertEquals(outbox.getRecoveredCount(), 1);
+
+        waitForTransmitted(1);
+        assertEquals(sendCount.get(), 1);
+        assertEquals(outbox.getQueueDepth(), 0);
+    }
+
+    private void waitForTransmitted(long transmittedCount) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (outbox.getTransmittedCount() < transmittedCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(outbox.getTransmittedCount(), transmittedCount);
+    }
+
+    private Outbox createOutbox(Transmitter transmitter, int maxAttempts) {
+        return new Outbox(transmitter, transmissionRequestBuilderProvider, directory, 2, maxAttempts, new Backoff(10, 50), 1000);
+    }
+
+    private TransmissionRequest createTransmissionRequest() throws Exception {
+        InputStream inputStream = OutboxTest.class.getClassLoader().getResourceAsStream(TestResourceModule.PEPPOL_BIS_INVOICE_SBD_XML);
+        try {
+            return transmissionRequestBuilderProvider.get()
+                    .payLoad(inputStream)
+                    .overrideAs2Endpoint(new URL("https://localhost:8443/oxalis/as2"), "APP_1000000006")
+                    .build();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Creates a Transmitter, which fails to send the given number of times before succeeding.
+     */
+    private static Transmitter createTransmitter(final AtomicInteger sendCount, final int failures) {
+        Transmitter transmitter = EasyMock.createMock(Transmitter.class);
+        EasyMock.expect(transmitter.prepare(EasyMock.isA(TransmissionRequest.class))).andStubAnswer(new IAnswer<PreparedTransmission>() {
+            @Override
+            public PreparedTransmission answer() throws Throwable {
+                return new PreparedTransmission() {
+                    @Override
+                    public TransmissionResponse send() {
+                        if (sendCount.incrementAndGet() <= failures) {
+                            throw new IllegalStateException("The Oxalis server does not seem to be running");
+                        }
+                        return new TransmissionResponse() {
+                            @Override
+                            public TransmissionId getTransmissionId() {
+                                return new TransmissionId();
+                            }
+
+                            @Override
+                            public TransmissionTimeline getTimeline() {
+                                return null;
+                            }
+                        };
+                    }
+                };
+            }
+        });
+        EasyMock.replay(transmitter);
+        return transmitter;
+    }
+}
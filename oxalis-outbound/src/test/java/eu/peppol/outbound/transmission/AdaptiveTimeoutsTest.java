@@ -0,0 +1,198 @@
+package eu.peppol.outbound.transmission;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.URL;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class AdaptiveTimeoutsTest {
+
+    private URL endpoint;
+    private AdaptiveTimeouts adaptiveTimeouts;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        endpoint = new URL("https://ap.example.com/oxalis/as2");
+        adaptiveTimeouts = new AdaptiveTimeouts(true, 5000, 60000, 99, 3, 20, 100, 10000, 200, 120000);
+    }
+
+    @Test
+    public void defaultsAreUsedUntilEnoughLatenciesAreObserved() throws Exception {
+        assertDefaults(adaptiveTimeouts.getTimeouts(endpoint));
+
+        for (int i = 0; i < 19; i++) {
+            adaptiveTimeouts.recordConnect(endpoint, 50);
+            adaptiveTimeouts.recordResponse(endpoint, 100);
+        }
+        assertDefaults(adaptiveTimeouts.getTimeouts(endpoint));
+    }
+
+    @Test
+    public void timeoutsAreDerivedFromThePercentile() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            adaptiveTimeouts.recordConnect(endpoint, 50);
+            adaptiveTimeouts.recordResponse(endpoint, 1000);
+        }
+
+        Timeouts timeouts = adaptiveTimeouts.getTimeouts(endpoint);
+        assertTrue(timeouts.isAdaptive());
+        // The histogram is accurate to within 20%
+        assertBetween(timeouts.getConnectTimeout(), 150, 180);
+        assertBetween(timeouts.getReadTimeout(), 3000, 3600);
+    }
+
+    @Test
+    public void connectAndReadTimeoutsAdaptIndependently() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            adaptiveTimeouts.recordResponse(endpoint, 1000);
+        }
+
+        Timeouts timeouts = adaptiveTimeouts.getTimeouts(endpoint);
+        assertEquals(timeouts.getConnectTimeout(), 5000);
+        assertBetween(timeouts.getReadTimeout(), 3000, 3600);
+    }
+
+    @Test
+    public void timeoutsAreClampedToTheBounds() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            adaptiveTimeouts.recordConnect(endpoint, 1);
+            adaptiveTimeouts.recordResponse(endpoint, 1);
+        }
+        Timeouts timeouts = adaptiveTimeouts.getTimeouts(endpoint);
+        assertEquals(timeouts.getConnectTimeout(), 100);
+        assertEquals(timeouts.getReadTimeout(), 200);
+
+        for (int i = 0; i < 20; i++) {
+            adaptiveTimeouts.recordConnect(endpoint, 60000);
+            adaptiveTimeouts.recordResponse(endpoint, 600000);
+        }
+        timeouts = adaptiveTimeouts.getTimeouts(endpoint);
+        assertEquals(timeouts.getConnectTimeout(), 10000);
+        assertEquals(timeouts.getReadTimeout(), 120000);
+    }
+
+    @Test
+    public void endpointsAreKeptApart() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            adaptiveTimeouts.recordResponse(endpoint, 1000);
+        }
+        assertDefaults(adaptiveTimeouts.getTimeouts(new URL("https://other.example.com/oxalis/as2")));
+
+        adaptiveTimeouts.reset(endpoint);
+        assertDefaults(adaptiveTimeouts.getTimeouts(endpoint));
+    }
+
+    @Test
+    public void suppliedDefaultsAreUsedUntilEnoughLatenciesAreObserved() throws Exception {
+        Timeouts timeouts = adaptiveTimeouts.getTimeouts(endpoint, 1234, 5678);
+        assertEquals(timeouts.getConnectTimeout(), 1234);
+        assertEquals(timeouts.getReadTimeout(), 5678);
+    }
+
+    @Test
+    public void defaultsAreAlwaysUsedWhenDisabled() throws Exception {
+        adaptiveTimeouts = new AdaptiveTimeouts(false, 5000, 60000, 99, 3, 20, 100, 10000, 200, 120000);
+        for (int i = 0; i < 100; i++) {
+            adaptiveTimeouts.recordConnect(endpoint, 1);
+            adaptiveTimeouts.recordResponse(endpoint, 1);
+        }
+        assertDefaults(adaptiveTimeouts.getTimeouts(endpoint));
+    }
+
+    @Test
+    public void responseTimeoutsDoNotRaiseTheReadTimeout() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            adaptiveTimeouts.recordResponse(endpoint, 1000);
+        }
+        int readTimeout = adaptiveTimeouts.getTimeouts(endpoint).getReadTimeout();
+
+        for (int i = 0; i < 20; i++) {
+            adaptiveTimeouts.recordResponseTimeout(endpoint);
+        }
+        assertEquals(adaptiveTimeouts.getTimeouts(endpoint).getReadTimeout(), readTimeout);
+        assertEquals(adaptiveTimeouts.getResponseTimeoutCount(endpoint), 20);
+    }
+
+    @Test
+    public void connectFailuresDoNotRaiseTheConnectTimeout() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            adaptiveTimeouts.recordConnect(endpoint, 50);
+        }
+        int connectTimeout = adaptiveTimeouts.getTimeouts(endpoint).getConnectTimeout();
+
+        for (int i = 0; i < 20; i++) {
+            adaptiveTimeouts.recordConnectFailure(endpoint);
+        }
+        assertEquals(adaptiveTimeouts.getTimeouts(endpoint).getConnectTimeout(), connectTimeout);
+        assertEquals(adaptiveTimeouts.getConnectFailureCount(endpoint), 20);
+    }
+
+    @Test
+    public void histogramPercentiles() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram(1000);
+        assertEquals(histogram.getPercentile(99), 0);
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 10);
+        }
+        assertEquals(histogram.getCount(), 100);
+        assertBetween(histogram.getPercentile(50), 500, 600);
+        assertBetween(histogram.getPercentile(99), 990, 1188);
+        assertBetween(histogram.getPercentile(100), 1000, 1200);
+
+        // Beyond the last bucket
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(histogram.getPercentile(100), LatencyHistogram.BUCKET_BOUNDS[LatencyHistogram.BUCKET_BOUNDS.length - 1]);
+    }
+
+    @Test
+    public void histogramForgetsOlderLatencies() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram(100);
+        for (int i = 0; i < 99; i++) {
+            histogram.record(10);
+        }
+        assertEquals(histogram.getCount(), 99);
+
+        // Halves every bucket once the maximum is reached
+        histogram.record(10);
+        assertEquals(histogram.getCount(), 50);
+
+        // The new behaviour soon dominates
+        for (int i = 0; i < 49; i++) {
+            histogram.record(1000);
+        }
+        assertBetween(histogram.getPercentile(50), 10, 12);
+        histogram.record(1000);
+        for (int i = 0; i < 50; i++) {
+            histogram.record(1000);
+        }
+        assertBetween(histogram.getPercentile(50), 1000, 1200);
+    }
+
+    @Test
+    public void bucketsHoldTheirUpperBound() throws Exception {
+        for (int i = 0; i < LatencyHistogram.BUCKET_BOUNDS.length; i++) {
+            long bound = LatencyHistogram.BUCKET_BOUNDS[i];
+            assertEquals(LatencyHistogram.bucketOf(bound), i);
+            if (i > 0) {
+                assertTrue(bound > LatencyHistogram.BUCKET_BOUNDS[i - 1]);
+                assertEquals(LatencyHistogram.bucketOf(LatencyHistogram.BUCKET_BOUNDS[i - 1] + 1), i);
+            }
+        }
+        assertEquals(LatencyHistogram.bucketOf(0), 0);
+    }
+
+    private void assertDefaults(Timeouts timeouts) {
+        assertFalse(timeouts.isAdaptive());
+        assertEquals(timeouts.getConnectTimeout(), 5000);
+        assertEquals(timeouts.getReadTimeout(), 60000);
+    }
+
+    private static void assertBetween(long actual, long min, long max) {
+        assertTrue(actual >= min && actual <= max, "Expected " + actual + " to be within [" + min + "," + max + "]");
+    }
+}
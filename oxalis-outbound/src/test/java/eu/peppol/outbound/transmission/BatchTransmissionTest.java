@@ -0,0 +1,199 @@
+package eu.peppol.outbound.transmission;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import eu.peppol.identifier.TransmissionId;
+import eu.peppol.outbound.guice.TestResourceModule;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Guice;
+import org.testng.annotations.Test;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+@Guice(modules = {TransmissionTestModule.class, TestResourceModule.class})
+public class BatchTransmissionTest {
+
+    @Inject
+    Provider<TransmissionRequestBuilder> transmissionRequestBuilderProvider;
+
+    private TransmissionExecutor executor;
+
+    /** Number of transmissions being sent to each destination right now, and the maximum observed */
+    private final ConcurrentMap<String, AtomicInteger> sending = new ConcurrentHashMap<String, AtomicInteger>();
+    private final ConcurrentMap<String, AtomicInteger> maxSending = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /** Destinations in the order the transmissions were sent */
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+
+    @BeforeMethod
+    public void setUp() {
+        executor = new TransmissionExecutor(2, 8, 100, 10000, 1000);
+        sending.clear();
+        maxSending.clear();
+        sent.clear();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        executor.shutdown(0, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void everyRequestIsTransmittedAndReportedInOrder() throws Exception {
+        List<TransmissionRequest> requests = new ArrayList<TransmissionRequest>();
+        for (int i = 0; i < 12; i++) {
+            requests.add(createTransmissionRequest("https://ap" + (i % 3) + ".example.com/oxalis/as2"));
+        }
+
+        BatchTransmissionResult result = new BatchTransmission(executor, createTransmitter(5, null), 2).execute(requests);
+
+        assertEquals(result.getTransmissionCount(), 12);
+        assertEquals(result.getSucceededCount(), 12);
+        assertEquals(result.getFailedCount(), 0);
+        assertEquals(result.getDestinationCount(), 3);
+        assertTrue(result.getBytesTransmitted() > 0);
+        for (int i = 0; i < requests.size(); i++) {
+            BatchTransmissionResult.Item item = result.getItems().get(i);
+            assertSame(item.getTransmissionRequest(), requests.get(i));
+            assertNotNull(item.getTransmissionResponse());
+        }
+    }
+
+    @Test
+    public void concurrencyIsLimitedPerDestination() throws Exception {
+        List<TransmissionRequest> requests = new ArrayList<TransmissionRequest>();
+        for (int i = 0; i < 20; i++) {
+            requests.add(createTransmissionRequest("https://busy.example.com/oxalis/as2"));
+        }
+        requests.add(createTransmissionRequest("https://quiet.example.com/oxalis/as2"));
+
+        BatchTransmissionResult result = new BatchTransmission(executor, createTransmitter(20, null), 3).execute(requests);
+
+        assertEquals(result.getSucceededCount(), 21);
+        assertTrue(maxSending.get("https://busy.example.com/oxalis/as2").get() <= 3);
+        // The quiet destination had its turn long before the busy one was done, although its request came last
+        int quietPosition = sent.indexOf("https://quiet.example.com/oxalis/as2");
+        assertTrue(quietPosition < 6, "Quiet destination was sent as number " + quietPosition);
+    }
+
+    @Test
+    public void failuresAreReportedPerItem() throws Exception {
+        List<TransmissionRequest> requests = new ArrayList<TransmissionRequest>();
+        requests.add(createTransmissionRequest("https://ap.example.com/oxalis/as2"));
+        requests.add(createTransmissionRequest("https://down.example.com/oxalis/as2"));
+        requests.add(createTransmissionRequest("https://ap.example.com/oxalis/as2"));
+
+        BatchTransmissionResult result = new BatchTransmission(executor, createTransmitter(0, "https://down.example.com/oxalis/as2"), 2).execute(requests);
+
+        assertEquals(result.getSucceededCount(), 2);
+        assertEquals(result.getFailedCount(), 1);
+        assertTrue(result.getItems().get(0).isSucceeded());
+        assertFalse(result.getItems().get(1).isSucceeded());
+        assertTrue(result.getItems().get(1).getFailure() instanceof IllegalStateException);
+        assertTrue(result.getItems().get(2).isSucceeded());
+    }
+
+    @Test
+    public void batchDoesNotExceedTheCapacityOfTheExecutor() throws Exception {
+        // Two transmissions in flight, and no waiting for capacity
+        executor.shutdown(0, TimeUnit.MILLISECONDS);
+        executor = new TransmissionExecutor(2, 8, 2, 0, 1000);
+
+        List<TransmissionRequest> requests = new ArrayList<TransmissionRequest>();
+        for (int i = 0; i < 10; i++) {
+            requests.add(createTransmissionRequest("https://ap" + i + ".example.com/oxalis/as2"));
+        }
+
+        BatchTransmissionResult result = new BatchTransmission(executor, createTransmitter(10, null), 2).execute(requests);
+
+        assertEquals(result.getSucceededCount(), 10);
+        assertEquals(result.getFailedCount(), 0);
+    }
+
+    @Test
+    public void emptyBatch() throws Exception {
+        BatchTransmissionResult result = new BatchTransmission(executor, createTransmitter(0, null), 2).execute(new ArrayList<TransmissionRequest>());
+        assertEquals(result.getTransmissionCount(), 0);
+        assertEquals(result.getThroughput(), 0.0, 0.0);
+    }
+
+    private TransmissionRequest createTransmissionRequest(String url) throws Exception {
+        InputStream inputStream = BatchTransmissionTest.class.getClassLoader().getResourceAsStream(TestResourceModule.PEPPOL_BIS_INVOICE_SBD_XML);
+        try {
+            return transmissionRequestBuilderProvider.get()
+                    .payLoad(inputStream)
+                    .overrideAs2Endpoint(new URL(url), "APP_1000000006")
+                    .build();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Creates a Transmitter, which takes the given number of milliseconds to send, and which fails to send to the
+     * given destination.
+     */
+    private Transmitter createTransmitter(final long sendTime, final String failingDestination) {
+        Transmitter transmitter = EasyMock.createMock(Transmitter.class);
+        EasyMock.expect(transmitter.prepare(EasyMock.isA(TransmissionRequest.class))).andStubAnswer(new IAnswer<PreparedTransmission>() {
+            @Override
+            public PreparedTransmission answer() throws Throwable {
+                final String destination = ((TransmissionRequest) EasyMock.getCurrentArguments()[0]).getEndpointAddress().getUrl().toExternalForm();
+                return new PreparedTransmission() {
+                    @Override
+                    public TransmissionResponse send() {
+                        if (destination.equals(failingDestination)) {
+                            throw new IllegalStateException("The Oxalis server does not seem to be running at " + destination);
+                        }
+                        sent.add(destination);
+                        sending.putIfAbsent(destination, new AtomicInteger());
+                        maxSending.putIfAbsent(destination, new AtomicInteger());
+                        int current = sending.get(destination).incrementAndGet();
+                        synchronized (maxSending) {
+                            if (current > maxSending.get(destination).get()) {
+                                maxSending.get(destination).set(current);
+                            }
+                        }
+                        try {
+                            Thread.sleep(sendTime);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            sending.get(destination).decrementAndGet();
+                        }
+                        return new TransmissionResponse() {
+                            @Override
+                            public TransmissionId getTransmissionId() {
+                                return new TransmissionId();
+                            }
+
+                            @Override
+                            public TransmissionTimeline getTimeline() {
+                                return null;
+                            }
+                        };
+                    }
+                };
+            }
+        });
+        EasyMock.replay(transmitter);
+        return transmitter;
+    }
+}
@@ -0,0 +1,121 @@
+package eu.peppol.outbound.transmission;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.pool.PoolStats;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+public class ConnectionWarmerTest {
+
+    private HttpConnectionPool httpConnectionPool;
+    private ServerSocket serverSocket;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        // Warms up no more than 2 destinations, the interval is long enough for the thread not to interfere
+        httpConnectionPool = new HttpConnectionPool(20, 5, 60000, 1000, 1000, 2, 1, 3600000);
+        serverSocket = new ServerSocket(0, 10, InetAddress.getByName("localhost"));
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        httpConnectionPool.close();
+        serverSocket.close();
+    }
+
+    @Test
+    public void mostFrequentDestinationsAreWarmedUp() throws Exception {
+        ConnectionWarmer connectionWarmer = httpConnectionPool.getConnectionWarmer();
+        assertNotNull(connectionWarmer);
+
+        record(new URL("https://a.example.com/as2"), 10);
+        record(new URL("https://b.example.com/as2"), 5);
+        record(new URL("https://c.example.com/as2"), 20);
+        // Once is not frequent
+        record(new URL("https://d.example.com/as2"), 1);
+
+        List<URL> warmSet = connectionWarmer.getWarmSet();
+        assertEquals(warmSet, Arrays.asList(new URL("https://c.example.com/as2"), new URL("https://a.example.com/as2")));
+    }
+
+    @Test
+    public void endpointsSharingRouteAreCountedTogether() throws Exception {
+        record(new URL("https://a.example.com/as2"), 1);
+        record(new URL("https://a.example.com:443/oxalis/as2"), 1);
+
+        assertEquals(httpConnectionPool.getConnectionWarmer().getWarmSet().size(), 1);
+    }
+
+    @Test
+    public void countsDecay() throws Exception {
+        ConnectionWarmer connectionWarmer = httpConnectionPool.getConnectionWarmer();
+        record(new URL("https://a.example.com/as2"), 4);
+
+        long now = System.currentTimeMillis();
+        // One half life later the count is 2, the next half life it drops below the threshold
+        assertEquals(connectionWarmer.getWarmSet(now + ConnectionWarmer.HALF_LIFE - 60000).size(), 1);
+        assertTrue(connectionWarmer.getWarmSet(now + 2 * ConnectionWarmer.HALF_LIFE).isEmpty());
+    }
+
+    @Test
+    public void connectionsAreEstablishedAndKeptInThePool() throws Exception {
+        ConnectionWarmer connectionWarmer = httpConnectionPool.getConnectionWarmer();
+        URL url = new URL("http://localhost:" + serverSocket.getLocalPort() + "/as2");
+
+        assertEquals(connectionWarmer.warm(url), 1);
+
+        PoolStats stats = httpConnectionPool.getConnectionManager().getStats(ConnectionWarmer.routeFor(url));
+        assertEquals(stats.getAvailable(), 1);
+        assertEquals(stats.getLeased(), 0);
+
+        // Already warm
+        assertEquals(connectionWarmer.warm(url), 0);
+        assertEquals(httpConnectionPool.getConnectionManager().getStats(ConnectionWarmer.routeFor(url)).getAvailable(), 1);
+    }
+
+    @Test
+    public void connectionsInUseCountTowardsTheConnectionsWanted() throws Exception {
+        ConnectionWarmer connectionWarmer = httpConnectionPool.getConnectionWarmer();
+        URL url = new URL("http://localhost:" + serverSocket.getLocalPort() + "/as2");
+        HttpRoute route = ConnectionWarmer.routeFor(url);
+
+        HttpClientConnection connection = httpConnectionPool.getConnectionManager().requestConnection(route, null).get(1, TimeUnit.SECONDS);
+        try {
+            assertEquals(connectionWarmer.warm(url), 0);
+            assertEquals(httpConnectionPool.getConnectionManager().getStats(route).getAvailable(), 0);
+        } finally {
+            httpConnectionPool.getConnectionManager().releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void noWarmerUnlessConfigured() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool(20, 5, 1000, 1000, 1000);
+        try {
+            assertEquals(pool.getConnectionWarmer(), null);
+            // Harmless
+            pool.recordDestination(new URL("https://a.example.com/as2"));
+        } finally {
+            pool.close();
+        }
+    }
+
+    private void record(URL url, int count) {
+        for (int i = 0; i < count; i++) {
+            httpConnectionPool.recordDestination(url);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package eu.peppol.outbound.transmission;
+
+import eu.peppol.BusDoxProtocol;
+import eu.peppol.smp.SmpLookupManager;
+import org.easymock.EasyMock;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.URL;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class EndpointHealthRegistryTest {
+
+    private URL endpoint;
+    private EndpointHealthRegistry registry;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        endpoint = new URL("https://ap.example.com/oxalis/as2");
+        registry = new EndpointHealthRegistry(true, 10, 60000, 4, 0.5, 1000, 100, 1000);
+    }
+
+    @Test
+    public void unknownEndpointIsAvailable() throws Exception {
+        registry.checkAvailable(endpoint);
+        registry.acquire(endpoint);
+        assertNull(registry.getHealth(endpoint));
+    }
+
+    @Test
+    public void circuitOpensWhenFailureRateIsExceeded() throws Exception {
+        registry.recordSuccess(endpoint, 10);
+        registry.recordFailure(endpoint, 10);
+        registry.recordFailure(endpoint, 10);
+        // Not yet the minimum number of calls
+        registry.checkAvailable(endpoint);
+
+        registry.recordFailure(endpoint, 10);
+        assertEquals(registry.getHealth(endpoint).getState(), EndpointHealth.State.OPEN);
+        assertEquals(registry.getHealth(endpoint).getFailureRate(), 0.75, 0.001);
+
+        try {
+            registry.checkAvailable(endpoint);
+            fail("Expected EndpointUnavailableException");
+        } catch (EndpointUnavailableException e) {
+            assertEquals(e.getEndpoint(), endpoint);
+            assertTrue(e.getRetryAfter() > 0 && e.getRetryAfter() <= 100, "Retry after " + e.getRetryAfter());
+        }
+        assertEquals(registry.getHealth(endpoint).getRejectedCount(), 1);
+    }
+
+    @Test
+    public void slowCallsCountAsFailures() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            registry.recordSuccess(endpoint, 5000);
+        }
+        assertEquals(registry.getHealth(endpoint).getState(), EndpointHealth.State.OPEN);
+        assertEquals(registry.getHealth(endpoint).getAverageLatency(), 5000);
+    }
+
+    @Test
+    public void singleProbeIsLetThroughOnceOpenDurationHasElapsed() throws Exception {
+        openCircuit();
+        Thread.sleep(150);
+
+        // The first caller becomes the probe, the others fail fast
+        registry.acquire(endpoint);
+        assertEquals(registry.getHealth(endpoint).getState(), EndpointHealth.State.HALF_OPEN);
+        try {
+            registry.acquire(endpoint);
+            fail("Only a single probe should be let through");
+        } catch (EndpointUnavailableException e) {
+            // expected
+        }
+
+        registry.recordSuccess(endpoint, 10);
+        assertEquals(registry.getHealth(endpoint).getState(), EndpointHealth.State.CLOSED);
+        assertEquals(registry.getHealth(endpoint).getFailureRate(), 0.0, 0.001);
+        registry.acquire(endpoint);
+    }
+
+    @Test
+    public void failedProbeDoublesOpenDuration() throws Exception {
+        openCircuit();
+        Thread.sleep(150);
+
+        registry.acquire(endpoint);
+        registry.recordFailure(endpoint, 10);
+        assertEquals(registry.getHealth(endpoint).getState(), EndpointHealth.State.OPEN);
+        try {
+            registry.checkAvailable(endpoint);
+            fail("Expected EndpointUnavailableException");
+        } catch (EndpointUnavailableException e) {
+            assertTrue(e.getRetryAfter() > 100 && e.getRetryAfter() <= 200, "Retry after " + e.getRetryAfter());
+        }
+    }
+
+    @Test
+    public void circuitNeverOpensWhenDisabled() throws Exception {
+        registry = new EndpointHealthRegistry(false, 10, 60000, 4, 0.5, 1000, 100, 1000);
+        for (int i = 0; i < 10; i++) {
+            registry.recordFailure(endpoint, 10);
+        }
+        registry.checkAvailable(endpoint);
+        assertEquals(registry.getHealth(endpoint).getState(), EndpointHealth.State.CLOSED);
+    }
+
+    @Test
+    public void blacklistedEndpointFailsFast() throws Exception {
+        registry.blacklist(endpoint, 0);
+        assertTrue(registry.isBlacklisted(endpoint));
+        try {
+            registry.acquire(endpoint);
+            fail("Expected EndpointUnavailableException");
+        } catch (EndpointUnavailableException e) {
+            // expected
+        }
+
+        Map<URL, Long> blacklist = registry.getBlacklist();
+        assertEquals(blacklist.size(), 1);
+        assertEquals(blacklist.get(endpoint), Long.valueOf(0));
+
+        registry.removeFromBlacklist(endpoint);
+        assertFalse(registry.isBlacklisted(endpoint));
+        registry.acquire(endpoint);
+    }
+
+    @Test
+    public void blacklistingExpires() throws Exception {
+        registry.blacklist(endpoint, 50);
+        assertTrue(registry.isBlacklisted(endpoint));
+        Thread.sleep(100);
+        assertFalse(registry.isBlacklisted(endpoint));
+        assertTrue(registry.getBlacklist().isEmpty());
+    }
+
+    @Test
+    public void probeFailingWithAnErrorOpensTheCircuitAgain() throws Exception {
+        openCircuit();
+        Thread.sleep(150);
+
+        TransmissionRequest transmissionRequest = EasyMock.createMock(TransmissionRequest.class);
+        EasyMock.expect(transmissionRequest.getEndpointAddress()).andStubReturn(new SmpLookupManager.PeppolEndpointData(endpoint, BusDoxProtocol.AS2));
+        EasyMock.replay(transmissionRequest);
+
+        HealthCheckingMessageSender messageSender = new HealthCheckingMessageSender(new PreparingMessageSender() {
+            @Override
+            public TransmissionResponse send(TransmissionRequest transmissionRequest) {
+                return prepare(transmissionRequest).send();
+            }
+
+            @Override
+            public PreparedTransmission prepare(TransmissionRequest transmissionRequest) {
+                return new PreparedTransmission() {
+                    @Override
+                    public TransmissionResponse send() {
+                        throw new NoClassDefFoundError("org/bouncycastle/cms/CMSException");
+                    }
+                };
+            }
+        }, registry);
+
+        try {
+            messageSender.send(transmissionRequest);
+            fail("Expected NoClassDefFoundError");
+        } catch (NoClassDefFoundError e) {
+            // expected
+        }
+        // The probe has been released, rather than leaving the circuit half open for good
+        assertEquals(registry.getHealth(endpoint).getState(), EndpointHealth.State.OPEN);
+        assertEquals(registry.getHealth(endpoint).getFailureCount(), 5);
+    }
+
+    private void openCircuit() {
+        for (int i = 0; i < 4; i++) {
+            registry.recordFailure(endpoint, 10);
+        }
+        assertEquals(registry.getHealth(endpoint).getState(), EndpointHealth.State.OPEN);
+    }
+}
@@ -0,0 +1,38 @@
+package eu.peppol.outbound.transmission;
+
+import org.apache.http.pool.PoolStats;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class HttpConnectionPoolTest {
+
+    @Test
+    public void statisticsReflectConfiguration() throws Exception {
+        HttpConnectionPool httpConnectionPool = new HttpConnectionPool(20, 5, 1000, 1000, 1000);
+        try {
+            assertNotNull(httpConnectionPool.getHttpClient());
+
+            PoolStats statistics = httpConnectionPool.getStatistics();
+            assertEquals(statistics.getMax(), 20);
+            assertEquals(statistics.getLeased(), 0);
+            assertEquals(statistics.getAvailable(), 0);
+            assertEquals(statistics.getPending(), 0);
+            assertEquals(httpConnectionPool.getConnectionManager().getDefaultMaxPerRoute(), 5);
+        } finally {
+            httpConnectionPool.close();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void closedPoolRefusesToHandOutClient() throws Exception {
+        HttpConnectionPool httpConnectionPool = new HttpConnectionPool(20, 5, 1000, 1000, 1000);
+        httpConnectionPool.close();
+        assertTrue(httpConnectionPool.isClosed());
+
+        // Closing twice is harmless
+        httpConnectionPool.close();
+
+        httpConnectionPool.getHttpClient();
+    }
+}
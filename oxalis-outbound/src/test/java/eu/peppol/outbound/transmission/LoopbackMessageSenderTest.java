@@ -0,0 +1,166 @@
+package eu.peppol.outbound.transmission;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import eu.peppol.PeppolMessageMetaData;
+import eu.peppol.outbound.guice.TestResourceModule;
+import eu.peppol.persistence.MessageRepository;
+import eu.peppol.persistence.OxalisMessagePersistenceException;
+import eu.peppol.security.CommonName;
+import eu.peppol.statistics.Direction;
+import eu.peppol.statistics.RawStatistics;
+import eu.peppol.statistics.RawStatisticsRepository;
+import eu.peppol.statistics.StatisticsGranularity;
+import eu.peppol.statistics.StatisticsTransformer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Guice;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+
+import javax.security.auth.x500.X500Principal;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+@Guice(modules = {TransmissionTestModule.class, TestResourceModule.class})
+public class LoopbackMessageSenderTest {
+
+    @Inject
+    Provider<TransmissionRequestBuilder> transmissionRequestBuilderProvider;
+
+    private final List<PeppolMessageMetaData> savedMetaData = new ArrayList<PeppolMessageMetaData>();
+    private final List<byte[]> savedPayloads = new ArrayList<byte[]>();
+    private final List<RawStatistics> statistics = new ArrayList<RawStatistics>();
+
+    @BeforeMethod
+    public void setUp() {
+        savedMetaData.clear();
+        savedPayloads.clear();
+        statistics.clear();
+    }
+
+    @Test
+    public void endpointHavingOurCommonNameIsLocal() throws Exception {
+        LoopbackMessageSender sender = createSender(true, Collections.<String>emptyList());
+
+        assertTrue(sender.isLocal(createTransmissionRequest("https://ap.example.com/oxalis/as2", "APP_1000000006")));
+        assertFalse(sender.isLocal(createTransmissionRequest("https://ap.example.com/oxalis/as2", "APP_1000000099")));
+    }
+
+    @Test
+    public void configuredUrlIsLocal() throws Exception {
+        LoopbackMessageSender sender = createSender(true, Arrays.asList("https://local.example.com/oxalis/as2"));
+
+        assertTrue(sender.isLocal(createTransmissionRequest("https://local.example.com/oxalis/as2", "APP_1000000099")));
+        assertFalse(sender.isLocal(createTransmissionRequest("https://remote.example.com/oxalis/as2", "APP_1000000099")));
+    }
+
+    @Test
+    public void nothingIsLocalUnlessEnabled() throws Exception {
+        LoopbackMessageSender sender = createSender(false, Arrays.asList("https://local.example.com/oxalis/as2"));
+
+        assertFalse(sender.isLocal(createTransmissionRequest("https://ap.example.com/oxalis/as2", "APP_1000000006")));
+        assertFalse(sender.isLocal(createTransmissionRequest("https://local.example.com/oxalis/as2", "APP_1000000099")));
+    }
+
+    @Test
+    public void messageIsDeliveredToTheRepository() throws Exception {
+        LoopbackMessageSender sender = createSender(true, Collections.<String>emptyList());
+        TransmissionRequest transmissionRequest = createTransmissionRequest("https://ap.example.com/oxalis/as2", "APP_1000000006");
+
+        TransmissionResponse transmissionResponse = sender.prepare(transmissionRequest).send();
+
+        assertTrue(transmissionResponse instanceof LoopbackTransmissionResponse);
+        assertEquals(savedMetaData.size(), 1);
+        PeppolMessageMetaData metaData = savedMetaData.get(0);
+        assertEquals(metaData.getTransmissionId(), transmissionResponse.getTransmissionId());
+        assertNotNull(metaData.getMessageId());
+        assertEquals(metaData.getRecipientId(), transmissionRequest.getPeppolStandardBusinessHeader().getRecipientId());
+        assertEquals(metaData.getSenderId(), transmissionRequest.getPeppolStandardBusinessHeader().getSenderId());
+        assertEquals(metaData.getDocumentTypeIdentifier(), transmissionRequest.getPeppolStandardBusinessHeader().getDocumentTypeIdentifier());
+        assertEquals(metaData.getSendingAccessPoint().toString(), "APP_1000000006");
+        assertEquals(metaData.getReceivingAccessPoint().toString(), "APP_1000000006");
+        assertEquals(metaData.getSendingAccessPointPrincipal().getName(), "CN=APP_1000000006");
+
+        assertTrue(Arrays.equals(savedPayloads.get(0), transmissionRequest.getPayload()));
+
+        assertEquals(statistics.size(), 1);
+        assertEquals(statistics.get(0).getDirection(), Direction.IN);
+    }
+
+    private LoopbackMessageSender createSender(boolean enabled, List<String> localUrls) {
+        final MessageRepository messageRepository = new MessageRepository() {
+            @Override
+            public void saveInboundMessage(String inboundMessageStore, PeppolMessageMetaData peppolMessageMetaData, Document document) throws OxalisMessagePersistenceException {
+                throw new IllegalStateException("Not expected");
+            }
+
+            @Override
+            public void saveInboundMessage(PeppolMessageMetaData peppolMessageMetaData, InputStream payloadInputStream) throws OxalisMessagePersistenceException {
+                savedMetaData.add(peppolMessageMetaData);
+                savedPayloads.add(readFully(payloadInputStream));
+            }
+        };
+        RawStatisticsRepository rawStatisticsRepository = new RawStatisticsRepository() {
+            @Override
+            public Integer persist(RawStatistics rawStatistics) {
+                statistics.add(rawStatistics);
+                return 42;
+            }
+
+            @Override
+            public void fetchAndTransformRawStatistics(StatisticsTransformer transformer, Date start, Date end, StatisticsGranularity granularity) {
+            }
+        };
+
+        return new LoopbackMessageSender(enabled, localUrls, new CommonName("APP_1000000006"), new Provider<MessageRepository>() {
+            @Override
+            public MessageRepository get() {
+                return messageRepository;
+            }
+        }, rawStatisticsRepository) {
+            @Override
+            Principal getOurPrincipal() {
+                return new X500Principal("CN=APP_1000000006");
+            }
+        };
+    }
+
+    private TransmissionRequest createTransmissionRequest(String url, String commonName) throws Exception {
+        InputStream inputStream = LoopbackMessageSenderTest.class.getClassLoader().getResourceAsStream(TestResourceModule.PEPPOL_BIS_INVOICE_SBD_XML);
+        try {
+            return transmissionRequestBuilderProvider.get()
+                    .payLoad(inputStream)
+                    .overrideAs2Endpoint(new URL(url), commonName)
+                    .build();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static byte[] readFully(InputStream inputStream) {
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
+            }
+            return outputStream.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
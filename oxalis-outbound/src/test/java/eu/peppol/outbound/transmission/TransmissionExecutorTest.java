@@ -0,0 +1,209 @@
+package eu.peppol.outbound.transmission;
+
+import eu.peppol.identifier.TransmissionId;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TransmissionExecutorTest {
+
+    private TransmissionExecutor executor;
+
+    @AfterMethod
+    public void tearDown() {
+        if (executor != null && !executor.isShutdown()) {
+            executor.shutdown(0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void transmissionIsPreparedAndSentByTheirOwnPools() throws Exception {
+        executor = new TransmissionExecutor(1, 1, 10, 1000, 1000);
+
+        final AtomicReference<String> preparedBy = new AtomicReference<String>();
+        final AtomicReference<String> sentBy = new AtomicReference<String>();
+        final TransmissionResponse response = createResponse();
+
+        TransmissionFuture future = executor.submit(null, new Callable<PreparedTransmission>() {
+            @Override
+            public PreparedTransmission call() throws Exception {
+                preparedBy.set(Thread.currentThread().getName());
+                return new PreparedTransmission() {
+                    @Override
+                    public TransmissionResponse send() {
+                        sentBy.set(Thread.currentThread().getName());
+                        return response;
+                    }
+                };
+            }
+        });
+
+        assertSame(future.get(5, TimeUnit.SECONDS), response);
+        assertTrue(preparedBy.get().startsWith("oxalis-transmission-prepare-"));
+        assertTrue(sentBy.get().startsWith("oxalis-transmission-send-"));
+        assertEquals(executor.getCompletedCount(), 1);
+        assertEquals(executor.getInFlightCount(), 0);
+    }
+
+    @Test
+    public void failureIsReportedToCallback() throws Exception {
+        executor = new TransmissionExecutor(1, 1, 10, 1000, 1000);
+
+        TransmissionFuture future = executor.submit(null, new Callable<PreparedTransmission>() {
+            @Override
+            public PreparedTransmission call() throws Exception {
+                throw new IllegalStateException("Signing failed");
+            }
+        });
+
+        final CountDownLatch notified = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        future.addCallback(new TransmissionCallback() {
+            @Override
+            public void onSuccess(TransmissionResponse transmissionResponse) {
+                fail("Transmission should have failed");
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                failure.set(cause);
+                notified.countDown();
+            }
+        });
+
+        assertTrue(notified.await(5, TimeUnit.SECONDS));
+        assertEquals(failure.get().getMessage(), "Signing failed");
+        try {
+            future.get();
+            fail("Expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(executor.getFailedCount(), 1);
+    }
+
+    @Test
+    public void submitIsRejectedWhenTooManyTransmissionsAreInFlight() throws Exception {
+        executor = new TransmissionExecutor(1, 1, 1, 100, 1000);
+
+        CountDownLatch release = new CountDownLatch(1);
+        TransmissionFuture first = executor.submit(null, blockingPreparation(release));
+
+        try {
+            executor.submit(null, blockingPreparation(release));
+            fail("Expected RejectedExecutionException");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(executor.getRejectedCount(), 1);
+
+        release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+
+        // Capacity is available again
+        executor.submit(null, blockingPreparation(release)).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void shutdownDrainsTransmissionsInFlight() throws Exception {
+        executor = new TransmissionExecutor(1, 1, 10, 1000, 1000);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        TransmissionFuture future = executor.submit(null, blockingPreparation(release));
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                release.countDown();
+            }
+        }).start();
+
+        assertTrue(executor.shutdown(5, TimeUnit.SECONDS));
+        assertTrue(future.isDone());
+        assertFalse(future.isCancelled());
+
+        try {
+            executor.submit(null, blockingPreparation(release));
+            fail("Expected RejectedExecutionException after shut down");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void transmissionsLeftQueuedByShutdownAreFailed() throws Exception {
+        executor = new TransmissionExecutor(1, 1, 10, 1000, 1000);
+
+        CountDownLatch release = new CountDownLatch(1);
+        TransmissionFuture running = executor.submit(null, blockingPreparation(release));
+        TransmissionFuture queued = executor.submit(null, blockingPreparation(release));
+
+        assertFalse(executor.shutdown(100, TimeUnit.MILLISECONDS));
+
+        assertTrue(queued.isDone());
+        try {
+            queued.get();
+            fail("Expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        try {
+            running.get(5, TimeUnit.SECONDS);
+            fail("Expected the interrupted transmission to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof InterruptedException);
+        }
+        // The permit is returned just after the future has been completed
+        long deadline = System.currentTimeMillis() + 5000;
+        while (executor.getInFlightCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(executor.getInFlightCount(), 0);
+    }
+
+    private static Callable<PreparedTransmission> blockingPreparation(final CountDownLatch release) {
+        return new Callable<PreparedTransmission>() {
+            @Override
+            public PreparedTransmission call() throws Exception {
+                release.await();
+                return new PreparedTransmission() {
+                    @Override
+                    public TransmissionResponse send() {
+                        return createResponse();
+                    }
+                };
+            }
+        };
+    }
+
+    private static TransmissionResponse createResponse() {
+        return new TransmissionResponse() {
+            @Override
+            public TransmissionId getTransmissionId() {
+                return new TransmissionId();
+            }
+
+            @Override
+            public TransmissionTimeline getTimeline() {
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,82 @@
+package eu.peppol.outbound.transmission;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TransmissionPayloadTest {
+
+    @Test
+    public void smallPayloadIsHeldInMemory() throws Exception {
+        byte[] bytes = createBytes(1000);
+
+        TransmissionPayload payload = TransmissionPayload.create(new ByteArrayInputStream(bytes), 1024, 4096);
+
+        assertFalse(payload.isFileBacked());
+        assertEquals(payload.getSize(), 1000);
+        assertTrue(Arrays.equals(readFully(payload.openInputStream()), bytes));
+    }
+
+    @Test
+    public void largePayloadIsSpilledToFile() throws Exception {
+        byte[] bytes = createBytes(100000);
+
+        TransmissionPayload payload = TransmissionPayload.create(new ByteArrayInputStream(bytes), 1024, 200000);
+        try {
+            assertTrue(payload.isFileBacked());
+            assertTrue(payload.getFile().isFile());
+            assertEquals(payload.getFile().length(), 100000);
+            assertEquals(payload.getSize(), 100000);
+
+            // Reads it twice, as the payload is read by the sniffer, the parser and the sender
+            assertTrue(Arrays.equals(readFully(payload.openInputStream()), bytes));
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            payload.writeTo(outputStream);
+            assertTrue(Arrays.equals(outputStream.toByteArray(), bytes));
+            assertTrue(Arrays.equals(payload.toByteArray(), bytes));
+        } finally {
+            payload.delete();
+        }
+        assertFalse(payload.getFile().exists());
+    }
+
+    @Test
+    public void payloadExceedingMaximumSizeIsRejected() throws Exception {
+        try {
+            TransmissionPayload.create(new ByteArrayInputStream(createBytes(5000)), 1024, 4096);
+            fail("Payload larger than the maximum size should be rejected");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("4096"));
+        }
+    }
+
+    private static byte[] createBytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) ('a' + i % 26);
+        }
+        return bytes;
+    }
+
+    private static byte[] readFully(InputStream inputStream) throws Exception {
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int numberOfBytesRead;
+            while ((numberOfBytesRead = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, numberOfBytesRead);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+}
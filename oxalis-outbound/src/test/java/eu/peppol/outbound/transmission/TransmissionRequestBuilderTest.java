@@ -14,13 +14,18 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Guice;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 /**
  * @author steinar
@@ -98,6 +103,23 @@ public class TransmissionRequestBuilderTest {
     }
 
 
+    @Test
+    public void everyTransmissionCarriesTheSameSbdh() throws Exception {
+
+        TransmissionRequest request = transmissionRequestBuilder.payLoad(noSbdhInputStream)
+                .receiver(WellKnownParticipant.DIFI)
+                .build();
+        assertTrue(request.isSbdhWrappingRequired());
+
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        request.writePayloadTo(first);
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        request.writePayloadTo(second);
+
+        assertEquals(second.toString("UTF-8"), first.toString("UTF-8"));
+        assertEquals(new String(request.getPayload(), "UTF-8"), first.toString("UTF-8"));
+    }
+
     @Test(expectedExceptions = {IllegalStateException.class})
     public void createTransmissionRequestWithStartAndSbdh() throws MalformedURLException {
         transmissionRequestBuilder.overrideEndpointForStartProtocol(new URL("http://localhost:8443/bla/bla"));
@@ -105,6 +127,22 @@ public class TransmissionRequestBuilderTest {
         transmissionRequestBuilder.build();
     }
 
+    @Test
+    public void temporaryPayloadFileIsRemovedWhenTheRequestCanNotBeBuilt() throws Exception {
+        // Every payload is held in a temporary file
+        TransmissionRequestBuilder builder = new TransmissionRequestBuilder(transmissionRequestBuilder.sbdhParser, transmissionRequestBuilder.noSbdhParser, transmissionRequestBuilder.smpLookupManager, 0, Long.MAX_VALUE);
+        builder.overrideEndpointForStartProtocol(new URL("http://localhost:8443/bla/bla"));
+        builder.payLoad(inputStreamWithSBDH);
+        File file = builder.getPayload().getFile();
+        assertTrue(file.isFile());
+
+        try {
+            builder.build();
+            fail("START does not allow an SBDH");
+        } catch (IllegalStateException e) {
+            assertFalse(file.exists(), "Temporary payload file " + file + " was not removed");
+        }
+    }
 
     @Test
     public void overrideFields() throws Exception {
@@ -22,6 +22,7 @@ import org.easymock.EasyMock;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.cert.X509Certificate;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -122,6 +123,11 @@ public class TransmissionTestModule extends AbstractModule {
             public SignedServiceMetadataType getServiceMetaData(ParticipantId participant, PeppolDocumentTypeId documentTypeIdentifier) throws SmpSignedServiceMetaDataException {
                 return null;
             }
+
+            @Override
+            public void getCapabilities(Collection<ParticipantId> participantIds, CapabilityLookupListener listener) {
+                throw new IllegalStateException("Not supported yet.");
+            }
         };
     }
 
@@ -0,0 +1,53 @@
+package eu.peppol.outbound.transmission;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import eu.peppol.outbound.guice.TestResourceModule;
+import org.testng.annotations.Guice;
+import org.testng.annotations.Test;
+
+import java.io.InputStream;
+import java.net.URL;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+
+@Guice(modules = {TransmissionTestModule.class, TestResourceModule.class})
+public class TransmissionTimelineTest {
+
+    @Inject
+    Provider<TransmissionRequestBuilder> transmissionRequestBuilderProvider;
+
+    @Test
+    public void builderRecordsParsingOfThePayload() throws Exception {
+        InputStream inputStream = TransmissionTimelineTest.class.getClassLoader().getResourceAsStream(TestResourceModule.PEPPOL_BIS_INVOICE_SBD_XML);
+        TransmissionRequest transmissionRequest;
+        try {
+            transmissionRequest = transmissionRequestBuilderProvider.get()
+                    .payLoad(inputStream)
+                    .overrideAs2Endpoint(new URL("https://ap.example.com/oxalis/as2"), "APP_1000000006")
+                    .build();
+        } finally {
+            inputStream.close();
+        }
+
+        TransmissionTimeline timeline = transmissionRequest.getTimeline();
+        assertNotNull(timeline.getNanos(TransmissionTimeline.Phase.PAYLOAD));
+        assertNotNull(timeline.getNanos(TransmissionTimeline.Phase.PARSE));
+        // The endpoint was overridden
+        assertNull(timeline.getNanos(TransmissionTimeline.Phase.SMP_LOOKUP));
+    }
+
+    @Test
+    public void phasesAreLoggedInTheOrderInWhichTheyOccur() throws Exception {
+        TransmissionTimeline timeline = new TransmissionTimeline();
+        timeline.record(TransmissionTimeline.Phase.MDN, 250000L);
+        timeline.record(TransmissionTimeline.Phase.SIGN, 1500000L);
+        timeline.record(TransmissionTimeline.Phase.CONNECT, 42000000L);
+
+        assertEquals(timeline.toString(), "sign_ms=1.500 connect_ms=42.000 mdn_ms=0.250");
+        assertEquals(timeline.getMillis(TransmissionTimeline.Phase.SIGN), 1.5, 0.0001);
+        assertNull(timeline.getMillis(TransmissionTimeline.Phase.SOAP));
+    }
+}
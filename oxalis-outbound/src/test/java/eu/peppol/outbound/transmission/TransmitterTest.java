@@ -11,7 +11,9 @@ import org.easymock.EasyMock;
 import org.testng.annotations.Guice;
 import org.testng.annotations.Test;
 
+import java.io.File;
 import java.io.InputStream;
+import java.net.URL;
 import java.util.Date;
 import java.util.UUID;
 
@@ -43,6 +45,11 @@ public class TransmitterTest {
             public TransmissionId getTransmissionId() {
                 return new TransmissionId();
             }
+
+            @Override
+            public TransmissionTimeline getTimeline() {
+                return null;
+            }
         };
 
         MessageSenderFactory mockMessageSenderFactory = EasyMock.createMock(MessageSenderFactory.class);
@@ -77,4 +84,32 @@ public class TransmitterTest {
 
         assertNotNull(transmitter);
     }
+
+    @Test
+    public void transmittedRequestIsDisposed() throws Exception {
+        // Every payload is held in a temporary file
+        TransmissionRequest transmissionRequest = new TransmissionRequestBuilder(transmissionRequestBuilder.sbdhParser, transmissionRequestBuilder.noSbdhParser, transmissionRequestBuilder.smpLookupManager, 0, Long.MAX_VALUE)
+                .payLoad(inputStream)
+                .overrideAs2Endpoint(new URL("https://ap.example.com/oxalis/as2"), "APP_1000000006")
+                .build();
+        File file = transmissionRequest.getTransmissionPayload().getFile();
+        assertTrue(file.isFile());
+
+        MessageSenderFactory messageSenderFactory = EasyMock.createMock(MessageSenderFactory.class);
+        EasyMock.expect(messageSenderFactory.createMessageSender(transmissionRequest)).andReturn(new MessageSender() {
+            @Override
+            public TransmissionResponse send(TransmissionRequest transmissionRequest) {
+                throw new IllegalStateException("The Oxalis server does not seem to be running");
+            }
+        });
+        EasyMock.replay(messageSenderFactory);
+
+        Transmitter transmitter = new Transmitter(messageSenderFactory, EasyMock.createNiceMock(RawStatisticsRepository.class), new CommonName("AP_TEST"));
+        try {
+            transmitter.transmit(transmissionRequest);
+            fail("The transmission should fail");
+        } catch (IllegalStateException e) {
+            assertFalse(file.exists(), "Temporary payload file " + file + " was not removed");
+        }
+    }
 }
@@ -0,0 +1,144 @@
+package eu.peppol.outbound.transmission;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class WeightedFairQueueTest {
+
+    @Test
+    public void lanesAreServedInProportionToTheirWeights() throws Exception {
+        WeightedFairQueue queue = new WeightedFairQueue(weights(4, 2, 1));
+        for (int i = 0; i < 100; i++) {
+            queue.offer(new LaneTask(TransmissionLane.BULK));
+            queue.offer(new LaneTask(TransmissionLane.NORMAL));
+            queue.offer(new LaneTask(TransmissionLane.URGENT));
+        }
+
+        Map<TransmissionLane, Integer> served = new EnumMap<TransmissionLane, Integer>(TransmissionLane.class);
+        for (TransmissionLane lane : TransmissionLane.values()) {
+            served.put(lane, 0);
+        }
+        for (int i = 0; i < 70; i++) {
+            TransmissionLane lane = ((WeightedFairQueue.Task) queue.take()).getLane();
+            served.put(lane, served.get(lane) + 1);
+        }
+
+        assertEquals(served.get(TransmissionLane.URGENT).intValue(), 40);
+        assertEquals(served.get(TransmissionLane.NORMAL).intValue(), 20);
+        assertEquals(served.get(TransmissionLane.BULK).intValue(), 10);
+        assertEquals(queue.size(), 230);
+    }
+
+    @Test
+    public void urgentTaskDoesNotWaitBehindBulkRun() throws Exception {
+        WeightedFairQueue queue = new WeightedFairQueue(TransmissionLane.getDefaultWeights());
+        for (int i = 0; i < 1000; i++) {
+            queue.offer(new LaneTask(TransmissionLane.BULK));
+        }
+        // Served a while, the bulk lane must not have gained credit
+        for (int i = 0; i < 500; i++) {
+            queue.poll();
+        }
+
+        LaneTask urgent = new LaneTask(TransmissionLane.URGENT);
+        queue.offer(urgent);
+
+        List<Runnable> next = new ArrayList<Runnable>();
+        next.add(queue.poll());
+        next.add(queue.poll());
+        assertTrue(next.contains(urgent));
+        assertEquals(queue.size(TransmissionLane.URGENT), 0);
+    }
+
+    @Test
+    public void idleLaneDoesNotAccumulateCredit() throws Exception {
+        WeightedFairQueue queue = new WeightedFairQueue(weights(1, 1, 1));
+        for (int i = 0; i < 100; i++) {
+            queue.offer(new LaneTask(TransmissionLane.BULK));
+            queue.poll();
+        }
+
+        // Having been idle, the normal lane alternates with the bulk lane rather than being served 100 times in a row
+        for (int i = 0; i < 10; i++) {
+            queue.offer(new LaneTask(TransmissionLane.BULK));
+            queue.offer(new LaneTask(TransmissionLane.NORMAL));
+        }
+        int normalServed = 0;
+        for (int i = 0; i < 10; i++) {
+            if (((WeightedFairQueue.Task) queue.poll()).getLane() == TransmissionLane.NORMAL) {
+                normalServed++;
+            }
+        }
+        assertTrue(normalServed >= 4 && normalServed <= 6, "Normal lane served " + normalServed + " times out of 10");
+    }
+
+    @Test
+    public void plainRunnablesAreQueuedInTheNormalLane() throws Exception {
+        WeightedFairQueue queue = new WeightedFairQueue(TransmissionLane.getDefaultWeights());
+        queue.offer(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        assertEquals(queue.size(TransmissionLane.NORMAL), 1);
+    }
+
+    @Test
+    public void queueWaitIsRecorded() throws Exception {
+        WeightedFairQueue queue = new WeightedFairQueue(TransmissionLane.getDefaultWeights());
+        LaneTask task = new LaneTask(TransmissionLane.NORMAL);
+        queue.offer(task);
+        Thread.sleep(50);
+        assertSame(queue.take(), task);
+        assertTrue(task.getQueueWait() >= 40, "Waited " + task.getQueueWait() + "ms");
+    }
+
+    @Test
+    public void pollTimesOutWhenEmpty() throws Exception {
+        WeightedFairQueue queue = new WeightedFairQueue(TransmissionLane.getDefaultWeights());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        assertNull(queue.peek());
+    }
+
+    @Test
+    public void weightsAreParsed() throws Exception {
+        Map<TransmissionLane, Integer> weights = TransmissionLane.parseWeights("urgent = 10, BULK=2");
+        assertEquals(weights.get(TransmissionLane.URGENT).intValue(), 10);
+        assertEquals(weights.get(TransmissionLane.NORMAL).intValue(), TransmissionLane.NORMAL.getDefaultWeight());
+        assertEquals(weights.get(TransmissionLane.BULK).intValue(), 2);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void unknownLaneIsRejected() throws Exception {
+        TransmissionLane.parseWeights("EXPRESS=10");
+    }
+
+    private static Map<TransmissionLane, Integer> weights(int urgent, int normal, int bulk) {
+        Map<TransmissionLane, Integer> weights = new EnumMap<TransmissionLane, Integer>(TransmissionLane.class);
+        weights.put(TransmissionLane.URGENT, urgent);
+        weights.put(TransmissionLane.NORMAL, normal);
+        weights.put(TransmissionLane.BULK, bulk);
+        return weights;
+    }
+
+    private static class LaneTask extends WeightedFairQueue.Task {
+
+        LaneTask(TransmissionLane lane) {
+            super(lane);
+        }
+
+        @Override
+        public void run() {
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package eu.sendregning.oxalis;
+
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.identifier.PeppolDocumentTypeId;
+import eu.peppol.outbound.OxalisOutboundModule;
+import eu.peppol.smp.CachingSmpLookupManager;
+import eu.peppol.util.GlobalConfiguration;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Primes the SMP cache of a new node before it is put into service, by performing the SMP lookups for a list of
+ * participant and document type identifiers and writing the result to the SMP cache snapshot.
+ *
+ * <p>The input file holds one participant identifier and document type identifier per line, separated by
+ * white space. Empty lines and lines starting with # are ignored:</p>
+ * <pre>
+ *     9908:810017902 urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:www.cenbii.eu:transaction:biicoretrdm010:ver1.0:#urn:www.peppol.eu:bis:peppol4a:ver1.0::2.0
+ * </pre>
+ *
+ * <p>The snapshot is loaded upon start up if <code>oxalis.smp.cache.snapshot=true</code></p>
+ */
+public class SmpCacheWarmer {
+
+    private static OptionSpec<File> pairsFile;
+    private static OptionSpec<File> snapshotFile;
+    private static OptionSpec<Integer> threads;
+
+    public static void main(String[] args) throws Exception {
+
+        OptionParser optionParser = getOptionParser();
+
+        if (args.length == 0) {
+            System.out.println("");
+            optionParser.printHelpOn(System.out);
+            System.out.println("");
+            return;
+        }
+
+        OptionSet optionSet;
+        try {
+            optionSet = optionParser.parse(args);
+        } catch (Exception e) {
+            printErrorMessage(e.getMessage());
+            return;
+        }
+
+        File inputFile = pairsFile.value(optionSet);
+        if (!inputFile.canRead()) {
+            printErrorMessage("Participant and document type file " + inputFile + " can not be read");
+            return;
+        }
+
+        File outputFile = optionSet.has(snapshotFile) ? snapshotFile.value(optionSet) : GlobalConfiguration.getInstance().getSmpCacheSnapshotFile();
+
+        List<String[]> pairs = readPairs(inputFile);
+
+        OxalisOutboundModule oxalisOutboundModule = new OxalisOutboundModule();
+        try {
+            final CachingSmpLookupManager smpCache = oxalisOutboundModule.getSmpCache();
+
+            final AtomicInteger succeeded = new AtomicInteger();
+            final AtomicInteger failed = new AtomicInteger();
+
+            long start = System.currentTimeMillis();
+            ExecutorService executorService = Executors.newFixedThreadPool(threads.value(optionSet));
+            for (final String[] pair : pairs) {
+                executorService.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            smpCache.getEndpointTransmissionData(new ParticipantId(pair[0]), PeppolDocumentTypeId.valueOf(pair[1]));
+                            succeeded.incrementAndGet();
+                        } catch (Exception e) {
+                            failed.incrementAndGet();
+                            System.out.println("*** " + pair[0] + " " + pair[1] + ": " + e.getMessage());
+                        }
+                    }
+                });
+            }
+            executorService.shutdown();
+            executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+            int saved = smpCache.saveSnapshot(outputFile);
+
+            System.out.println("");
+            System.out.println("Looked up " + pairs.size() + " entries in " + (System.currentTimeMillis() - start) + "ms, " + succeeded + " succeeded, " + failed + " failed");
+            System.out.println("Wrote " + saved + " entries to " + outputFile);
+            System.out.println(smpCache.getStatistics());
+        } finally {
+            oxalisOutboundModule.close();
+        }
+    }
+
+    static List<String[]> readPairs(File file) throws Exception {
+        List<String[]> pairs = new ArrayList<String[]>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] pair = line.split("\\s+", 2);
+                if (pair.length != 2) {
+                    throw new IllegalArgumentException("Expected participant id and document type id separated by white space: " + line);
+                }
+                pairs.add(pair);
+            }
+        } finally {
+            reader.close();
+        }
+        return pairs;
+    }
+
+    private static void printErrorMessage(String message) {
+        System.out.println("");
+        System.out.println("*** " + message);
+        System.out.println("");
+    }
+
+    static OptionParser getOptionParser() {
+        OptionParser optionParser = new OptionParser();
+        pairsFile = optionParser.accepts("f", "file holding participant id and document type id, one pair per line").withRequiredArg().ofType(File.class).required();
+        snapshotFile = optionParser.accepts("o", "SMP cache snapshot to be written [defaults to smp-cache.snapshot in OXALIS_HOME]").withRequiredArg().ofType(File.class);
+        threads = optionParser.accepts("n", "number of concurrent SMP lookups").withRequiredArg().ofType(Integer.class).defaultsTo(4);
+        return optionParser;
+    }
+}